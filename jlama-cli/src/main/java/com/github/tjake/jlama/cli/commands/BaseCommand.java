@@ -15,6 +15,15 @@ public class BaseCommand extends SimpleBaseCommand {
     @CommandLine.Option(names={"-wq", "--working-qtype"}, description = "Working memory quantization data type (default: ${DEFAULT-VALUE})", defaultValue = "I8")
     protected DType workingQuantizationType = DType.I8;
 
+    @CommandLine.Option(names={"--kv-cache-type"}, description = "KV cache data type, I8 or Q4 quantize it to fit longer contexts and more sessions (default: working dtype)")
+    protected DType kvCacheType;
+
+    @CommandLine.Option(names={"--streaming-window"}, description = "Only attend to the attention sinks and this many recent positions, so generation can run past the context length (default: off)")
+    protected Integer streamingWindow;
+
+    @CommandLine.Option(names={"--attention-sinks"}, description = "Number of leading positions always kept with --streaming-window (default: ${DEFAULT-VALUE})", defaultValue = "4")
+    protected int attentionSinks = 4;
+
     @CommandLine.Option(names={"-tc", "--threads"}, description = "Number of threads to use (default: number of cores)")
     protected Integer threadCount = null;
 
@@ -4,6 +4,7 @@ import java.util.Optional;
 import java.util.UUID;
 
 import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.functions.Generator;
 import picocli.CommandLine.*;
 
 import static com.github.tjake.jlama.model.ModelSupport.loadModel;
@@ -16,7 +17,13 @@ public class ChatCommand extends ModelBaseCommand {
     @Override
     public void run() {
         AbstractModel m = loadModel(model, workingDirectory, workingMemoryType, workingQuantizationType, Optional.ofNullable(modelQuantization), Optional.ofNullable(threadCount));
+        if (kvCacheType != null)
+            m.setKvCacheType(kvCacheType);
+        if (streamingWindow != null)
+            m.setStreamingWindow(attentionSinks, streamingWindow);
+        m.setSampler(makeSampler());
 
-        m.generate(UUID.randomUUID(), m.wrapPrompt(prompt, Optional.of(systemPrompt)), prompt, temperature, tokens, true, makeOutHandler());
+        Generator g = withSpeculation(m);
+        g.generate(UUID.randomUUID(), g.wrapPrompt(prompt, Optional.of(systemPrompt)), prompt, temperature, tokens, true, makeOutHandler());
     }
 }
@@ -14,6 +14,11 @@ public class CompleteCommand extends ModelBaseCommand {
     @Override
     public void run() {
         AbstractModel m = loadModel(model, workingDirectory, workingMemoryType, workingQuantizationType, Optional.ofNullable(modelQuantization), Optional.ofNullable(threadCount));
-        m.generate(UUID.randomUUID(), prompt, temperature, tokens, false, makeOutHandler());
+        if (kvCacheType != null)
+            m.setKvCacheType(kvCacheType);
+        if (streamingWindow != null)
+            m.setStreamingWindow(attentionSinks, streamingWindow);
+        m.setSampler(makeSampler());
+        withSpeculation(m).generate(UUID.randomUUID(), prompt, temperature, tokens, false, makeOutHandler());
     }
 }
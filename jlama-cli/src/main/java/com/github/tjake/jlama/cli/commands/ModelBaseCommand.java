@@ -1,13 +1,21 @@
 package com.github.tjake.jlama.cli.commands;
 
-
+import java.io.File;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 
+import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.DefaultSampler;
+import com.github.tjake.jlama.model.SpeculativeGenerator;
+import com.github.tjake.jlama.model.functions.Generator;
+import com.github.tjake.jlama.model.functions.Sampler;
 import picocli.CommandLine.*;
 
+import static com.github.tjake.jlama.model.ModelSupport.loadModel;
+
 public class ModelBaseCommand extends BaseCommand {
     @Option(names = {"-p", "--prompt"}, description = "Text to complete", required = true)
     protected String prompt;
@@ -15,12 +23,55 @@ public class ModelBaseCommand extends BaseCommand {
     @Option(names={"-t", "--temperature"}, description = "Temperature of response [0,1] (default: ${DEFAULT-VALUE})", defaultValue = "0.6")
     protected Float temperature;
 
-    @Option(names={"--top-p"}, description = "Controls how many different words the model considers per token [0,1] (default: ${DEFAULT-VALUE})", defaultValue = ".9")
+    @Option(names={"--top-p"}, description = "Controls how many different words the model considers per token, 1 for no limit (default: ${DEFAULT-VALUE})", defaultValue = "1.0")
     protected Float topp;
 
+    @Option(names={"--top-k"}, description = "Only consider this many of the most likely words per token, 0 for no limit (default: ${DEFAULT-VALUE})", defaultValue = "0")
+    protected Integer topk;
+
+    @Option(names={"--min-p"}, description = "Skip words less than this fraction as likely as the most likely word [0,1) (default: ${DEFAULT-VALUE})", defaultValue = "0")
+    protected Float minp;
+
+    @Option(names={"--repetition-penalty"}, description = "Makes words already used less likely, 1 for none (default: ${DEFAULT-VALUE})", defaultValue = "1.0")
+    protected Float repetitionPenalty;
+
+    @Option(names={"--frequency-penalty"}, description = "Lowers the score of a word for each time it was already used (default: ${DEFAULT-VALUE})", defaultValue = "0")
+    protected Float frequencyPenalty;
+
+    @Option(names={"--presence-penalty"}, description = "Lowers the score of any word already used (default: ${DEFAULT-VALUE})", defaultValue = "0")
+    protected Float presencePenalty;
+
     @Option(names={"-n", "--tokens"}, description = "Number of tokens to generate (default: ${DEFAULT-VALUE})", defaultValue = "256")
     protected Integer tokens;
 
+    @Option(names={"--draft-model"}, description = "Smaller model with the same tokenizer used to draft tokens for speculative decoding")
+    protected File draftModel;
+
+    @Option(names={"--prompt-lookup"}, description = "Draft tokens for speculative decoding by matching up to this many trailing tokens against the prompt and output, no draft model needed")
+    protected Integer promptLookup;
+
+    @Option(names={"--draft-tokens"}, description = "Number of tokens drafted per step (default: ${DEFAULT-VALUE})", defaultValue = "4")
+    protected Integer draftTokens;
+
+    protected Sampler makeSampler() {
+        return new DefaultSampler(topk, topp, minp, repetitionPenalty, frequencyPenalty, presencePenalty);
+    }
+
+    /**
+     * Wraps the model for speculative decoding when a draft model or prompt lookup was asked for
+     */
+    protected Generator withSpeculation(AbstractModel m) {
+        if (draftModel != null) {
+            AbstractModel draft = loadModel(draftModel, workingDirectory, workingMemoryType, workingQuantizationType, Optional.ofNullable(modelQuantization), Optional.ofNullable(threadCount));
+            return new SpeculativeGenerator(m, draft, draftTokens);
+        }
+
+        if (promptLookup != null)
+            return SpeculativeGenerator.promptLookup(m, promptLookup, draftTokens);
+
+        return m;
+    }
+
     protected BiConsumer<String, Float> makeOutHandler() {
         PrintWriter out;
         Charset utf8 = Charset.forName("UTF-8");
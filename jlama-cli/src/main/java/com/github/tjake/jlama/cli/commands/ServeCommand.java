@@ -2,6 +2,7 @@ package com.github.tjake.jlama.cli.commands;
 
 import com.github.tjake.jlama.cli.serve.JlamaRestApi;
 import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.BatchScheduler;
 import io.undertow.Undertow;
 import io.undertow.server.handlers.resource.ClassPathResourceManager;
 import org.jboss.resteasy.plugins.server.undertow.UndertowJaxrsServer;
@@ -18,6 +19,12 @@ public class ServeCommand extends BaseCommand {
     @CommandLine.Option(names = {"-p", "--port"}, description = "http port (default: ${DEFAULT-VALUE})", defaultValue = "8080")
     int port = 8080;
 
+    @CommandLine.Option(names = {"-b", "--batch-size"}, description = "max number of sessions decoded together (default: ${DEFAULT-VALUE})", defaultValue = "8")
+    int batchSize = 8;
+
+    @CommandLine.Option(names = {"--prefix-cache-mb"}, description = "memory for reusing the kv cache of repeated prompt prefixes, 0 to disable (default: ${DEFAULT-VALUE})", defaultValue = "1024")
+    long prefixCacheMb = 1024;
+
     static final String APPLICATION_PATH = "/api";
 
     @Override
@@ -26,8 +33,14 @@ public class ServeCommand extends BaseCommand {
         try {
             AbstractModel m = loadModel(model, workingDirectory, workingMemoryType, workingQuantizationType, java.util.Optional.ofNullable(modelQuantization), Optional.ofNullable(threadCount));
 
+            if (kvCacheType != null)
+                m.setKvCacheType(kvCacheType);
+            if (streamingWindow != null)
+                m.setStreamingWindow(attentionSinks, streamingWindow);
+            m.getPrefixCache().setMaxBytes(prefixCacheMb * 1024 * 1024);
+
             UndertowJaxrsServer ut = new UndertowJaxrsServer();
-            ut.deploy(new JlamaRestApi(m), APPLICATION_PATH);
+            ut.deploy(new JlamaRestApi(new BatchScheduler(m, batchSize)), APPLICATION_PATH);
             ut.addResourcePrefixPath("/ui", resource(new ClassPathResourceManager(ServeCommand.class.getClassLoader())).setDirectoryListingEnabled(true).addWelcomeFiles("index.html"));
 
             System.out.println("Chat UI: http://localhost:" + port + "/ui/index.html");
@@ -103,42 +103,38 @@ public class ChatApi {
             float temperature = createChatCompletionRequest.getTemperature().floatValue();
             @Min(1) @Max(128) Integer n = createChatCompletionRequest.getN().intValue();
             try (PrintWriter writer= response.getWriter()) { // Auto-closes the sink
-                new Thread(() -> {
-                    try {
-                        //TODO: somewhere validate that the model you're requesting is the model that's loaded, maybe support loading different models based on the request
-                        model.generate(
-                                sessionId,
-                                model.wrapPrompt(finalPrompt, finalSystemPrompt),
-                                "",  // WTF is a clean prompt?
-                                temperature,
-                                n,
-                                false,
-                                (s, timing) -> {
-                                    if (!s.equals("")) {
-                                        logger.info("'{}' took {}ms", s, timing);
-                                        CreateChatCompletionStreamResponseChoicesInner inner = new CreateChatCompletionStreamResponseChoicesInner();
-                                        inner.delta(new ChatCompletionStreamResponseDelta().content(s).role(ChatCompletionStreamResponseDelta.RoleEnum.ASSISTANT));
-                                        CreateChatCompletionStreamResponse completionResponse = new CreateChatCompletionStreamResponse().created(0).addChoicesItem(inner);
-
-                                        StringBuilder sb = new StringBuilder();
-                                        sb.append("data: ");
-                                        try {
-                                            sb.append(om.writeValueAsString(completionResponse));
-                                            sb.append("\n\n");
-                                            writer.write(sb.toString());
-                                            writer.flush();
-                                        } catch (JsonProcessingException e) {
-                                            throw new RuntimeException(e);
-                                        }
-                                    }
-                                });
-                    } catch (Exception e) {
-                        Thread.currentThread().interrupt();
-                        e.printStackTrace();
-                    }
-                }).start();
+                //TODO: somewhere validate that the model you're requesting is the model that's loaded, maybe support loading different models based on the request
+                model.generate(
+                        sessionId,
+                        model.wrapPrompt(finalPrompt, finalSystemPrompt),
+                        "",  // WTF is a clean prompt?
+                        temperature,
+                        n,
+                        false,
+                        (s, timing) -> {
+                            if (!s.equals("")) {
+                                logger.info("'{}' took {}ms", s, timing);
+                                CreateChatCompletionStreamResponseChoicesInner inner = new CreateChatCompletionStreamResponseChoicesInner();
+                                inner.delta(new ChatCompletionStreamResponseDelta().content(s).role(ChatCompletionStreamResponseDelta.RoleEnum.ASSISTANT));
+                                CreateChatCompletionStreamResponse completionResponse = new CreateChatCompletionStreamResponse().created(0).addChoicesItem(inner);
+
+                                StringBuilder sb = new StringBuilder();
+                                sb.append("data: ");
+                                try {
+                                    sb.append(om.writeValueAsString(completionResponse));
+                                    sb.append("\n\n");
+                                    writer.write(sb.toString());
+                                    writer.flush();
+                                } catch (JsonProcessingException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                        });
             } catch (IOException e) {
                 throw new RuntimeException(e);
+            } finally {
+                // The whole conversation comes with every request, so the session is never used again
+                model.forget(sessionId);
             }
         }
         return Response.ok().build();
@@ -33,16 +33,24 @@ public class GenerateResource {
     public Response generate(@NotNull GenerateParams params) {
         logger.debug("Sending generate request: {}", params);
         UUID sessionId = params.sessionId == null ? UUID.randomUUID() : params.sessionId;
-        StreamingOutput so = os -> model.generate(sessionId, model.wrapPrompt(params.prompt, Optional.empty()), "", 0.7f, 256, false, (s, timing) -> {
+        StreamingOutput so = os -> {
             try {
-                logger.info("'{}' took {}ms", s, timing);
-                os.write(om.writeValueAsBytes(new GenerateResponse(s, false)));
-                os.write("\n".getBytes());
-                os.flush();
-            } catch (IOException e) {
-                logger.warn("streaming exception", e);
+                model.generate(sessionId, model.wrapPrompt(params.prompt, Optional.empty()), "", 0.7f, 256, false, (s, timing) -> {
+                    try {
+                        logger.info("'{}' took {}ms", s, timing);
+                        os.write(om.writeValueAsBytes(new GenerateResponse(s, false)));
+                        os.write("\n".getBytes());
+                        os.flush();
+                    } catch (IOException e) {
+                        logger.warn("streaming exception", e);
+                    }
+                });
+            } finally {
+                // Nobody can continue a session they didn't name
+                if (params.sessionId == null)
+                    model.forget(sessionId);
             }
-        });
+        };
 
         return Response.ok(so, "application/x-ndjson").build();
     }
@@ -41,6 +41,46 @@ public class VectorMath {
     }
 
 
+    /**
+     * Number of pieces to split a parallel pass over length elements into, a few per core to even out stragglers.
+     * Piece i covers [splitStart(length, splits, i), splitStart(length, splits, i + 1))
+     */
+    public static int parallelSplits(int length) {
+        return Math.max(1, Math.min(length, PhysicalCoreExecutor.instance.get().getCoreCount() * 4));
+    }
+
+    public static int splitStart(int length, int splits, int i) {
+        return (int) ((long) length * i / splits);
+    }
+
+    /**
+     * Index of the largest of the first length values, searched in parallel pieces
+     */
+    public static int argmax(AbstractTensor x, int length) {
+        int splits = parallelSplits(length);
+        int[] maxi = new int[splits];
+        pfor(0, splits, s -> {
+            int end = splitStart(length, splits, s + 1);
+            int best = splitStart(length, splits, s);
+            float bestv = x.get(best);
+            for (int i = best + 1; i < end; i++) {
+                float v = x.get(i);
+                if (v > bestv) {
+                    bestv = v;
+                    best = i;
+                }
+            }
+            maxi[s] = best;
+        });
+
+        int best = maxi[0];
+        for (int s = 1; s < splits; s++) {
+            if (x.get(maxi[s]) > x.get(best))
+                best = maxi[s];
+        }
+        return best;
+    }
+
     public static void softMax(FloatBufferTensor x) {
         int offset = 0;
         long size = x.size();
@@ -137,22 +177,28 @@ public class VectorMath {
         return result;
     }
 
-    public static float[][] precomputeFreqsCis(int dim, int end, double theta, double scaling_factor) {
-        float[] freqs = new float[dim / 2];
+    /**
+     * The RoPE rotations as a flat table, for each position the cos of every frequency followed by the sin of every frequency,
+     * so both halves of a head can be rotated with contiguous loads.
+     *
+     * @return [end][dim] table of cos and sin
+     */
+    public static float[] precomputeRopeTable(int dim, int end, double theta, double scaling_factor) {
+        int half = dim / 2;
+        float[] freqs = new float[half];
         float step = 0.0f;
-        for (int i = 0; i < freqs.length; i++, step += 2.0)
+        for (int i = 0; i < half; i++, step += 2.0)
             freqs[i] = (float) ((1.0 / StrictMath.pow(theta, step / dim)) / scaling_factor);
 
-        float[] t = new float[end];
-        for (int i = 0; i < end; i++)
-            t[i] = i;
-
-        float[] freqs_cis = outerProduct(t, freqs);
-
-        float[][] r = new float[freqs_cis.length][];
-        for (int i = 0; i < freqs_cis.length; i++)
-            r[i] = new float[]{(float) StrictMath.cos(freqs_cis[i]), (float) StrictMath.sin(freqs_cis[i])};
+        float[] table = new float[end * dim];
+        for (int p = 0; p < end; p++) {
+            for (int i = 0; i < half; i++) {
+                float f = p * freqs[i];
+                table[p * dim + i] = (float) StrictMath.cos(f);
+                table[p * dim + half + i] = (float) StrictMath.sin(f);
+            }
+        }
 
-        return r;
+        return table;
     }
 }
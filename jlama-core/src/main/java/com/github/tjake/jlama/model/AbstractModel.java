@@ -4,12 +4,19 @@ import com.github.tjake.jlama.model.functions.Generator;
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.model.functions.EmbedInput;
 import com.github.tjake.jlama.model.functions.SampleOutput;
+import com.github.tjake.jlama.model.functions.Sampler;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.safetensors.tokenizer.StreamingDecoder;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.safetensors.WeightLoader;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBlockPool;
+import com.github.tjake.jlama.tensor.KvBuffer;
+import com.github.tjake.jlama.tensor.KvPrefixCache;
+import com.github.tjake.jlama.tensor.PagedKvBuffer;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.StreamingKvBuffer;
 import com.github.tjake.jlama.tensor.TensorShape;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 
@@ -19,13 +26,12 @@ import com.google.common.primitives.Ints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
@@ -34,6 +40,7 @@ import java.util.stream.IntStream;
 public abstract class AbstractModel implements Generator
 {
     private static final Logger logger = LoggerFactory.getLogger(AbstractModel.class);
+    private static final int[] NO_HISTORY = new int[0];
 
     public enum InferenceType {
         INPUT_TO_EMBEDDING(true, false, false),
@@ -74,6 +81,13 @@ public abstract class AbstractModel implements Generator
     protected EmbedInput embedInput;
     protected SampleOutput sampleOutput;
     protected TransformerBlock[] transformerBlocks;
+    protected final KvBlockPool kvBlockPool;
+    protected final KvPrefixCache prefixCache;
+    protected volatile DType kvCacheType;
+    protected volatile int attentionSinks;
+    protected volatile int streamingWindow;
+    protected final SessionCache sessionCache;
+    protected volatile Sampler sampler;
 
     protected AbstractModel(InferenceType inferenceType, Config c, WeightLoader w, Tokenizer t, DType workingMemoryDType, DType workingMemoryQType, Optional<DType> modelQType)
     {
@@ -103,6 +117,16 @@ public abstract class AbstractModel implements Generator
 
         logger.info("Working memory type = {}, Quantized memory type = {}", this.workingDType, this.workingQType);
 
+        this.kvCacheType = workingDType;
+        // Bounded so a burst of sessions queues for kv memory rather than running out of it
+        int maxKvBlocks = KvBlockPool.DEFAULT_MAX_CONTEXTS * ((c.contextLength + KvBlockPool.DEFAULT_BLOCK_SIZE - 1) / KvBlockPool.DEFAULT_BLOCK_SIZE);
+        this.kvBlockPool = new KvBlockPool(KvBlockPool.DEFAULT_BLOCK_SIZE, maxKvBlocks, () -> c.tensorCache.get(kvCacheType, kvShape(KvBlockPool.DEFAULT_BLOCK_SIZE)));
+        this.prefixCache = new KvPrefixCache(kvBlockPool, 0);
+        this.sessionCache = new SessionCache(this);
+        // Out of blocks, give back cached prefixes first then idle sessions
+        this.kvBlockPool.setReclaimer(() -> prefixCache.reclaim() || sessionCache.reclaim());
+        this.sampler = new DefaultSampler();
+
         this.embedInput = inferenceType.isInput ? loadInputWeights() : null;
         this.transformerBlocks = inferenceType.isFwdPass ? loadTransformerBlockWeights() : null;
         this.sampleOutput = inferenceType.isOutput ? loadOutputWeights() : null;
@@ -126,6 +150,11 @@ public abstract class AbstractModel implements Generator
         return prompt;
     }
 
+    @Override
+    public void forget(UUID session) {
+        sessionCache.remove(session);
+    }
+
     public AbstractTensor makeTensor(int ...shape) {
         TensorShape s;
         if (c.offset().isPresent() && shape[shape.length - 1] == c.embeddingLength)
@@ -140,6 +169,109 @@ public abstract class AbstractModel implements Generator
         return c.tensorCache.get(workingDType, TensorShape.of(shape));
     }
 
+    /**
+     * Shape of the kv memory [layers, positions, 2, kvLength], only covering the kv heads this node owns
+     */
+    public TensorShape kvShape(int positions) {
+        int[] rawShape = new int[]{ c.getNumberOfLayers(), positions, 2, c.kvLength };
+
+        if (c.offset().isPresent()) {
+            Pair<Integer, Integer> offset = c.offset().get();
+            //Adjust the shape to be relative to the kv cache size (in case of GQA)
+            Pair<Integer, Integer> kvOffset = Pair.create(offset.left / c.headGroupSize, offset.right / c.headGroupSize);
+            return TensorShape.sparse(rawShape, kvOffset);
+        }
+
+        return TensorShape.of(rawShape);
+    }
+
+    public KvBlockPool getKvBlockPool() {
+        return kvBlockPool;
+    }
+
+    /**
+     * Cache of prompt prefix kv blocks, disabled until given a byte budget
+     */
+    public KvPrefixCache getPrefixCache() {
+        return prefixCache;
+    }
+
+    /**
+     * The kv memory of generate sessions kept between calls
+     */
+    public SessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    public DType getKvCacheType() {
+        return kvCacheType;
+    }
+
+    /**
+     * Sets the type the keys and values are stored as, I8 or Q4 cut the kv memory 4-8x over F32.
+     * Quantized entries keep a scale per block of each head, so attention runs on them directly.
+     * Must be called before any kv buffers are in use, cached prefixes are dropped.
+     */
+    public synchronized void setKvCacheType(DType type) {
+        Preconditions.checkArgument(type == workingDType || type == DType.I8 || type == DType.Q4, "Unsupported kv cache type %s", type);
+
+        if (type != workingDType) {
+            Preconditions.checkArgument(c.headSize % Q8ByteBufferTensor.BLOCK_SIZE == 0, "Head size %s isn't a multiple of the quantized block size", c.headSize);
+            try (AbstractTensor q = makeFullTensor(Q8ByteBufferTensor.BLOCK_SIZE);
+                 AbstractTensor k = c.tensorCache.get(type, TensorShape.of(Q8ByteBufferTensor.BLOCK_SIZE))) {
+                TensorOperationsProvider.get().dotProduct(q, k, Q8ByteBufferTensor.BLOCK_SIZE);
+            } catch (UnsupportedOperationException e) {
+                logger.warn("KV cache type {} not supported, keeping {}", type, kvCacheType);
+                return;
+            }
+        }
+
+        prefixCache.clear();
+        Preconditions.checkState(kvBlockPool.usedBlocks() == 0, "KV cache type can't change while kv buffers are in use");
+        kvBlockPool.close();
+        kvCacheType = type;
+        logger.info("KV cache type = {}", type);
+    }
+
+    /**
+     * Keeps only the first sinks positions and the last window positions of new kv buffers, so generation can run
+     * past the context length in constant memory. A window of 0 turns it off.
+     */
+    public synchronized void setStreamingWindow(int sinks, int window) {
+        Preconditions.checkArgument(sinks >= 0 && window >= 0, "Invalid streaming window %s + %s", sinks, window);
+        if (window > 0) {
+            Preconditions.checkArgument(c.ropeFreqs.isPresent(), "Streaming window needs rotary position embeddings");
+            // Keys are rotated within an epoch of window positions and queries reach back one epoch
+            Preconditions.checkArgument(sinks + 2 * window <= c.contextLength, "%s sinks + 2 * %s window is larger than the context length %s", sinks, window, c.contextLength);
+        }
+
+        attentionSinks = sinks;
+        streamingWindow = window;
+        logger.info("Streaming window = {}, attention sinks = {}", window, sinks);
+    }
+
+    /**
+     * Creates an empty kv buffer for a sequence of up to the given number of positions.
+     * Blocks are taken from the shared pool as the sequence grows, close the buffer to return them.
+     * With a streaming window the buffer is a fixed ring with no limit on positions instead.
+     */
+    public KvBuffer newKvBuffer(int positions) {
+        int window = streamingWindow;
+        if (window > 0) {
+            int sinks = attentionSinks;
+            return new StreamingKvBuffer(c.tensorCache.get(kvCacheType, kvShape(sinks + window + StreamingKvBuffer.DEFAULT_CHUNK_SIZE)), sinks, window);
+        }
+
+        return kvBlockPool.newBuffer(positions);
+    }
+
+    /**
+     * The type activations are converted to by maybeQuantize before they are multiplied with the weights
+     */
+    protected DType activationType() {
+        return workingDType;
+    }
+
     protected AbstractTensor maybeQuantize(AbstractTensor t) {
         AbstractTensor t2 = c.tensorCache.get(t.dType(), t.shape());
         t2.copyFrom(t, 0, 0, Ints.checkedCast(t.size()));
@@ -147,6 +279,10 @@ public abstract class AbstractModel implements Generator
     }
 
     protected AbstractTensor forward(int token_id, int pos, AbstractTensor kvbuf) {
+        return forward(token_id, pos, KvBuffer.dense(kvbuf), Optional.empty(), Optional.empty());
+    }
+
+    protected AbstractTensor forward(int token_id, int pos, KvBuffer kvbuf) {
         return forward(token_id, pos, kvbuf, Optional.empty(), Optional.empty());
     }
 
@@ -161,10 +297,14 @@ public abstract class AbstractModel implements Generator
      * @return
      */
     public AbstractTensor forward(int token_id, int pos, AbstractTensor kvbuf, Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        return forward(token_id, pos, KvBuffer.dense(kvbuf), normReducer, tensorReducer);
+    }
+
+    public AbstractTensor forward(int token_id, int pos, KvBuffer kvbuf, Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
         AbstractTensor embedding = embedInput.inputTokenToEmbedding(token_id, pos);
 
         for (int i = c.layerStart(); i < c.layerEnd(); i++) {
-            AbstractTensor kvlayer = kvbuf.slice(true, i);
+            KvBuffer.Layer kvlayer = kvbuf.layer(i);
             AbstractTensor ref = embedding; //reference so we can free
             embedding = transformerBlocks[i].forward(embedding, pos, kvlayer, normReducer, tensorReducer);
             ref.close();
@@ -173,122 +313,282 @@ public abstract class AbstractModel implements Generator
         return embedding;
     }
 
+    /**
+     * Runs all the tokens through the model as a single batch, so each layer's weights are read once for the
+     * whole prompt rather than once per token.
+     *
+     * @return the output embedding of the last token
+     */
     protected AbstractTensor batchForward(int[] token_ids, int startPos, AbstractTensor kvbuf) {
-        AbstractTensor last = null;
+        return batchForward(token_ids, startPos, KvBuffer.dense(kvbuf), Optional.empty(), Optional.empty());
+    }
+
+    protected AbstractTensor batchForward(int[] token_ids, int startPos, KvBuffer kvbuf) {
+        return batchForward(token_ids, startPos, kvbuf, Optional.empty(), Optional.empty());
+    }
+
+    public AbstractTensor batchForward(int[] token_ids, int startPos, KvBuffer kvbuf, Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        Preconditions.checkArgument(token_ids.length > 0);
+        if (token_ids.length == 1)
+            return forward(token_ids[0], startPos, kvbuf, normReducer, tensorReducer);
+
+        // A streaming ring only has room for a chunk of new positions past the window at a time
+        if (kvbuf instanceof StreamingKvBuffer s && token_ids.length > s.chunkSize()) {
+            AbstractTensor last = null;
+            for (int i = 0; i < token_ids.length; i += s.chunkSize()) {
+                if (last != null)
+                    last.close();
+                last = batchForward(Arrays.copyOfRange(token_ids, i, Math.min(token_ids.length, i + s.chunkSize())), startPos + i, kvbuf, normReducer, tensorReducer);
+            }
+            return last;
+        }
+
+        int[] positions = new int[token_ids.length];
+        KvBuffer[] kvbufs = new KvBuffer[token_ids.length];
         for (int i = 0; i < token_ids.length; i++) {
-            if (last != null)
-                last.close();
+            positions[i] = startPos + i;
+            kvbufs[i] = kvbuf;
+        }
 
-            last = forward(token_ids[i], startPos + i, kvbuf);
+        AbstractTensor last = makeTensor(c.embeddingLength);
+        try (AbstractTensor output = batchForward(token_ids, positions, kvbufs, normReducer, tensorReducer)) {
+            AbstractTensor lastRow = output.slice(token_ids.length - 1);
+            last.copyFrom(lastRow, lastRow.getOffset(c.embeddingSegmentStart()), last.getOffset(c.embeddingSegmentStart()), c.embeddingSegmentLength());
         }
 
-       return last;
+        return last;
     }
 
-    public int sample(AbstractTensor output, float temperature, float uniformSample, AbstractTensor logits) {
+    /**
+     * Runs the prompt into an empty kv buffer, starting from any prefix already in the prefix cache
+     * and caching the prompt's blocks for later requests.
+     *
+     * @return the output embedding of the last token
+     */
+    public AbstractTensor prefill(int[] promptTokens, KvBuffer kvbuf) {
+        int cached = kvbuf instanceof PagedKvBuffer p ? prefixCache.attach(p, promptTokens) : 0;
+        if (cached > 0)
+            logger.debug("Reusing {} cached prompt positions", cached);
+
+        if (!kvbuf.ensureCapacity(promptTokens.length))
+            throw new IllegalStateException("Not enough kv cache for a prompt of " + promptTokens.length + " tokens");
+
+        AbstractTensor last = batchForward(cached == 0 ? promptTokens : Arrays.copyOfRange(promptTokens, cached, promptTokens.length), cached, kvbuf);
+
+        if (kvbuf instanceof PagedKvBuffer p)
+            prefixCache.insert(p, promptTokens, promptTokens.length);
+
+        return last;
+    }
+
+    public AbstractTensor batchForward(int[] token_ids, int[] positions, KvBuffer[] kvbufs) {
+        return batchForward(token_ids, positions, kvbufs, Optional.empty(), Optional.empty());
+    }
+
+    /**
+     * Runs a batch of tokens through the model where each token has its own position and kv cache.
+     * This is how the decode step of many concurrent sessions is merged into a single pass.
+     *
+     * @return the output embeddings [batch, embedding], up to the caller to close
+     */
+    public AbstractTensor batchForward(int[] token_ids, int[] positions, KvBuffer[] kvbufs, Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        Preconditions.checkArgument(token_ids.length > 0 && token_ids.length == positions.length && token_ids.length == kvbufs.length);
+
+        AbstractTensor embedding = makeTensor(token_ids.length, c.embeddingLength);
+        for (int i = 0; i < token_ids.length; i++) {
+            AbstractTensor row = embedding.slice(i);
+            try (AbstractTensor e = embedInput.inputTokenToEmbedding(token_ids[i], positions[i])) {
+                row.copyFrom(e, e.getOffset(c.embeddingSegmentStart()), row.getOffset(c.embeddingSegmentStart()), c.embeddingSegmentLength());
+            }
+        }
+
+        KvBuffer.Layer[] kvlayers = new KvBuffer.Layer[kvbufs.length];
+        for (int i = c.layerStart(); i < c.layerEnd(); i++) {
+            for (int b = 0; b < kvbufs.length; b++)
+                kvlayers[b] = kvbufs[b].layer(i);
+
+            AbstractTensor ref = embedding; //reference so we can free
+            embedding = transformerBlocks[i].forward(embedding, positions, kvlayers, normReducer, tensorReducer);
+            ref.close();
+        }
+
+        return embedding;
+    }
+
+    /**
+     * Computes the logits of the output embedding over the vocabulary.
+     * Each core takes a piece of the vocabulary and tracks its own argmax, which are then reduced.
+     *
+     * @return the index of the largest logit
+     */
+    protected int computeLogits(AbstractTensor output, AbstractTensor logits) {
+        int vocab = c.vocabularySize;
+        int splits = VectorMath.parallelSplits(vocab);
+        int[] maxi = new int[splits];
+
         try (AbstractTensor embedding = sampleOutput.getOutputLayerNorm().forward(output)) {
-            AtomicReference<Double> maxv = new AtomicReference<>(Double.NEGATIVE_INFINITY);
-            AtomicInteger maxi = new AtomicInteger(Integer.MIN_VALUE);
-
-            //This is a mix of argmax and sampling with softmax
-            VectorMath.pfor(0, c.vocabularySize, i -> {
-                float v = TensorOperationsProvider.get().dotProduct(embedding, sampleOutput.getOutputLogitsWeights().slice(i), c.embeddingLength);
-                logits.set(v, i);
-                maxv.getAndUpdate(x -> {
-                    if (v > x) {
-                        maxi.set(i);
-                        return (double)v;
+            VectorMath.pfor(0, splits, s -> {
+                int end = VectorMath.splitStart(vocab, splits, s + 1);
+                int best = -1;
+                float bestv = Float.NEGATIVE_INFINITY;
+                for (int i = VectorMath.splitStart(vocab, splits, s); i < end; i++) {
+                    float v = TensorOperationsProvider.get().dotProduct(embedding, sampleOutput.getOutputLogitsWeights().slice(i), c.embeddingLength);
+                    logits.set(v, i);
+                    if (best == -1 || v > bestv) {
+                        bestv = v;
+                        best = i;
                     }
-                    return x;
-                });
+                }
+                maxi[s] = best;
             });
+        }
 
-            if (temperature == 0.0) {
-                return maxi.get();
-            }
+        int best = maxi[0];
+        for (int s = 1; s < splits; s++) {
+            if (logits.get(maxi[s]) > logits.get(best))
+                best = maxi[s];
+        }
 
-            float sum = 0;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = (float) Math.exp((logits.get(i) - maxv.get()) / temperature);
-                sum += v;
-                logits.set(v, i);
-            }
+        return best;
+    }
 
-            float acc = 0;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = logits.get(i) / sum;
-                acc += v;
-                if (acc >= uniformSample)
-                    return i;
-            }
+    /**
+     * Computes the distribution the sampler draws the next token from into probs, with its penalties and truncation.
+     * With a temperature of 0 all the probability is on the most likely token.
+     *
+     * @param history tokens so far for the sampler's repetition penalties, only the first historyLength are valid
+     */
+    public void probabilities(AbstractTensor output, Sampler sampler, float temperature, int[] history, int historyLength, AbstractTensor probs) {
+        int maxi = computeLogits(output, probs);
+        sampler.probabilities(probs, maxi, temperature, history, historyLength, probs);
+    }
+
+    public Sampler getSampler() {
+        return sampler;
+    }
 
-            return c.vocabularySize - 1;
+    public void setSampler(Sampler sampler) {
+        this.sampler = Preconditions.checkNotNull(sampler);
+    }
+
+    public int sample(AbstractTensor output, float temperature, float uniformSample, AbstractTensor logits) {
+        return sample(output, temperature, uniformSample, logits, NO_HISTORY, 0);
+    }
+
+    /**
+     * Picks the next token with the model's sampler
+     *
+     * @param history tokens so far for the sampler's repetition penalties, only the first historyLength are valid
+     */
+    public int sample(AbstractTensor output, float temperature, float uniformSample, AbstractTensor logits, int[] history, int historyLength) {
+        int maxi = computeLogits(output, logits);
+        return sampler.sample(logits, maxi, temperature, history, historyLength, uniformSample);
+    }
+
+    /**
+     * Picks a token from a probability distribution given a uniform sample in [0, 1)
+     */
+    protected int sample(AbstractTensor probs, float uniformSample) {
+        float acc = 0;
+        for (int i = 0; i < c.vocabularySize; i++) {
+            acc += probs.get(i);
+            if (acc > uniformSample)
+                return i;
         }
+
+        return c.vocabularySize - 1;
     }
 
-    public void generate(UUID sessionId, String prompt, String cleanPrompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+    /**
+     * Encodes the prompt as model tokens, starting with BOS and optionally ending with EOS
+     */
+    protected int[] encodePrompt(String prompt, boolean useEOS) {
         long[] encoded = tokenizer.encode(prompt);
         Preconditions.checkArgument(encoded.length < c.contextLength);
 
-        if (ntokens > c.contextLength)
-            ntokens = c.contextLength;
-
-        AbstractTensor kvmem = makeTensor(c.getNumberOfLayers(), ntokens, 2, c.kvLength); //k and v are last 2 dims
-        AbstractTensor logits = makeTensor(c.vocabularySize);
-
         int[] promptTokens = new int[useEOS ? (1 + encoded.length + 1) : (1 + encoded.length)];
 
         promptTokens[0] = c.bosToken;
         for (int i = 1; i <= encoded.length; i++)
             promptTokens[i] = Ints.checkedCast(encoded[i - 1]);
 
-        int promptLength = encoded.length;
-
-        if (useEOS) {
+        if (useEOS)
             promptTokens[promptTokens.length - 1] = c.eosToken; //Add EOS
-            promptLength++;
-        }
-
-        String clientPrompt = cleanPrompt == null ? prompt : cleanPrompt;
-        onTokenWithTimings.accept(clientPrompt, 0f);
-        long start = System.currentTimeMillis();
-        //Batch Process Prompt
-        AbstractTensor last = batchForward(promptTokens, 0, kvmem);
-
-        long promptBatchTime = System.currentTimeMillis() - start;
-        float avgTime = Math.round((((double)promptBatchTime)/(double)promptLength));
-        logger.debug("{} prompt tokens in {}ms | {}ms per token", promptLength, promptBatchTime, avgTime);
-
-        int tokensGenerated = 0;
-        int next = sample(last, temperature, ThreadLocalRandom.current().nextFloat(), logits);
-        try {
-            String c = tokenizer.decode(next);
-            onTokenWithTimings.accept(c, avgTime);
-        } catch (Exception e) {
-            logger.error("Failed to decode token {}", next, e);
-        }
-
-        for (int i = promptTokens.length - 1; i < ntokens; i++) {
-            AbstractTensor output = forward(next, i, kvmem);
-            tokensGenerated++;
-            next = sample(output, temperature, ThreadLocalRandom.current().nextFloat(), logits);
 
-            if (logger.isTraceEnabled())
-                logger.trace("Sampled token {} with temperature {}", next, temperature);
-
-            //Model may tell us it's done
-            if (next == c.eosToken)
-                break;
+        return promptTokens;
+    }
 
+    /**
+     * Generates a response to the prompt, the session's kv memory is kept between calls so
+     * a follow-up prompt only runs the tokens the session hasn't seen.
+     *
+     * ntokens caps the prompt and response tokens of this call.
+     */
+    public void generate(UUID sessionId, String prompt, String cleanPrompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+        int[] promptTokens = encodePrompt(prompt, useEOS);
+        int promptLength = promptTokens.length - 1;
+
+        SessionCache.Session session = sessionCache.acquire(sessionId);
+        boolean completed = false;
+        try (AbstractTensor logits = makeTensor(c.vocabularySize)) {
+            String clientPrompt = cleanPrompt == null ? prompt : cleanPrompt;
+            onTokenWithTimings.accept(clientPrompt, 0f);
+            long start = System.currentTimeMillis();
+
+            //Batch Process Prompt, skipping whatever the session has already seen
+            AbstractTensor last = session.prefill(promptTokens);
+            int limit = Math.min(session.position() + Math.max(ntokens - promptTokens.length, 0), session.kv().capacity());
+
+            long promptBatchTime = System.currentTimeMillis() - start;
+            float avgTime = Math.round((((double)promptBatchTime)/(double)promptLength));
+            logger.debug("{} prompt tokens in {}ms | {}ms per token", promptLength, promptBatchTime, avgTime);
+
+            int tokensGenerated = 0;
+            StreamingDecoder decoder = tokenizer.streamingDecoder();
+            int next = sample(last, temperature, ThreadLocalRandom.current().nextFloat(), logits, session.history(), session.position());
+            last.close();
             try {
-                String c = tokenizer.decode(next);
-                onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) (i + 1));
+                String c = decoder.next(next);
+                onTokenWithTimings.accept(c, avgTime);
             } catch (Exception e) {
                 logger.error("Failed to decode token {}", next, e);
             }
-        }
 
-        long end = System.currentTimeMillis();
-        System.out.printf("\n\nelapsed: %ds, %fms per token\n", TimeUnit.MILLISECONDS.toSeconds(end - start), ((end - start) / (float)tokensGenerated));
+            while (session.position() < limit) {
+                // Fail before the step rather than part way through writing its layers
+                if (!session.kv().ensureCapacity(session.position() + 1))
+                    throw new IllegalStateException("Not enough kv cache to continue session " + sessionId);
+
+                AbstractTensor output = forward(next, session.position(), session.kv());
+                session.append(next);
+                tokensGenerated++;
+                next = sample(output, temperature, ThreadLocalRandom.current().nextFloat(), logits, session.history(), session.position());
+                output.close();
+
+                if (logger.isTraceEnabled())
+                    logger.trace("Sampled token {} with temperature {}", next, temperature);
+
+                //Model may tell us it's done
+                if (next == c.eosToken)
+                    break;
+
+                try {
+                    String c = decoder.next(next);
+                    onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) (tokensGenerated + 1));
+                } catch (Exception e) {
+                    logger.error("Failed to decode token {}", next, e);
+                }
+            }
+
+            decoder.flushTo(onTokenWithTimings, (System.currentTimeMillis() - start) / (float) (tokensGenerated + 1));
+
+            completed = true;
+            long end = System.currentTimeMillis();
+            System.out.printf("\n\nelapsed: %ds, %fms per token\n", TimeUnit.MILLISECONDS.toSeconds(end - start), ((end - start) / (float)tokensGenerated));
+        } finally {
+            sessionCache.release(session);
+            if (!completed)
+                sessionCache.remove(sessionId);
+        }
     }
 }
@@ -0,0 +1,305 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.model.functions.Generator;
+import com.github.tjake.jlama.safetensors.tokenizer.StreamingDecoder;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBlockPool;
+import com.github.tjake.jlama.tensor.KvBuffer;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs many generation sessions against a single model by merging the decode step of every
+ * active session into one batched forward pass (continuous batching).
+ *
+ * New sessions are admitted, and finished ones retired, between steps. All model work happens on the
+ * scheduler thread so sessions never compete for the model's scratch space or the core executor.
+ * Callers of generate block until their session completes.
+ */
+public class BatchScheduler implements Generator, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(BatchScheduler.class);
+
+    private final AbstractModel model;
+    private final int maxBatchSize;
+    private final LinkedBlockingDeque<Request> pending;
+    private final List<Request> active;
+    private final Thread thread;
+    private volatile boolean running;
+
+    public BatchScheduler(AbstractModel model, int maxBatchSize) {
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+        this.model = model;
+        this.maxBatchSize = maxBatchSize;
+        this.pending = new LinkedBlockingDeque<>();
+        this.active = new ArrayList<>(maxBatchSize);
+        this.running = true;
+        this.thread = new Thread(this::run, "jlama-batch-scheduler");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private static class Request {
+        final UUID id;
+        final int[] promptTokens;
+        final float temperature;
+        final int ntokens;
+        final BiConsumer<String, Float> onTokenWithTimings;
+        final CompletableFuture<Void> done;
+
+        SessionCache.Session session;
+        StreamingDecoder decoder;
+        AbstractTensor logits;
+        int limit;
+        int nextToken;
+        int tokensGenerated;
+        long start;
+
+        Request(UUID id, int[] promptTokens, float temperature, int ntokens, BiConsumer<String, Float> onTokenWithTimings) {
+            this.id = id;
+            this.promptTokens = promptTokens;
+            this.temperature = temperature;
+            this.ntokens = ntokens;
+            this.onTokenWithTimings = onTokenWithTimings;
+            this.done = new CompletableFuture<>();
+        }
+    }
+
+    public int activeSessions() {
+        return active.size();
+    }
+
+    @Override
+    public void generate(UUID sessionId, String prompt, String cleanPrompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+        Preconditions.checkState(running, "Scheduler is closed");
+        int[] promptTokens = model.encodePrompt(prompt, useEOS);
+
+        onTokenWithTimings.accept(cleanPrompt == null ? prompt : cleanPrompt, 0f);
+
+        Request s = new Request(sessionId, promptTokens, temperature, ntokens, onTokenWithTimings);
+        pending.add(s);
+
+        // Closed after the check above, the scheduler thread may have already drained the queue
+        if (!running && pending.remove(s))
+            throw new IllegalStateException("Scheduler is closed");
+
+        s.done.join();
+    }
+
+    @Override
+    public String wrapPrompt(String prompt, Optional<String> systemPrompt) {
+        return model.wrapPrompt(prompt, systemPrompt);
+    }
+
+    @Override
+    public void forget(UUID session) {
+        model.forget(session);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                // With nothing running, any other use of the session is outside the scheduler and safe to wait for
+                if (active.isEmpty()) {
+                    Request s = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (s != null) {
+                        if (!canAdmit(s)) {
+                            // Nothing running here will free blocks, wait on whatever holds them outside the scheduler
+                            pending.addFirst(s);
+                            TimeUnit.MILLISECONDS.sleep(10);
+                            continue;
+                        }
+
+                        SessionCache.Session session;
+                        try {
+                            session = model.getSessionCache().acquire(s.id);
+                        } catch (RuntimeException e) {
+                            finish(s, e);
+                            throw e;
+                        }
+                        admit(s, session);
+                    }
+                }
+
+                // Leave sessions queued while the kv pool can't hold their prompt, running ones will free blocks.
+                // A request on a session that's still generating waits at the head of the queue for it to finish
+                Request s;
+                while (active.size() < maxBatchSize && (s = pending.peek()) != null && canAdmit(s)) {
+                    SessionCache.Session session = model.getSessionCache().tryAcquire(s.id);
+                    if (session == null)
+                        break;
+
+                    admit(pending.poll(), session);
+                }
+
+                if (!active.isEmpty())
+                    step();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Throwable t) {
+                logger.error("Error running batch of {} sessions", active.size(), t);
+                for (Request s : active)
+                    finish(s, t);
+                active.clear();
+            }
+        }
+
+        Throwable closed = new IllegalStateException("Scheduler is closed");
+        for (Request s : active)
+            finish(s, closed);
+        active.clear();
+
+        Request s;
+        while ((s = pending.poll()) != null)
+            finish(s, closed);
+    }
+
+    private boolean canAdmit(Request s) {
+        KvBlockPool pool = model.getKvBlockPool();
+        return pool.ensureAvailable(pool.blocksFor(s.promptTokens.length + 1));
+    }
+
+    /**
+     * Prefills the prompt of a new session and samples its first token
+     */
+    private void admit(Request s, SessionCache.Session session) {
+        try {
+            s.session = session;
+            s.decoder = model.getTokenizer().streamingDecoder();
+            s.logits = model.makeTensor(model.getConfig().vocabularySize);
+            s.start = System.currentTimeMillis();
+
+            try (AbstractTensor last = s.session.prefill(s.promptTokens)) {
+                s.limit = Math.min(s.session.position() + Math.max(s.ntokens - s.promptTokens.length, 0), s.session.kv().capacity());
+                s.nextToken = model.sample(last, s.temperature, ThreadLocalRandom.current().nextFloat(), s.logits, s.session.history(), s.session.position());
+            }
+
+            logger.debug("Request {} prefilled {} tokens in {}ms", s.id, s.promptTokens.length, System.currentTimeMillis() - s.start);
+
+            if (emit(s))
+                active.add(s);
+            else
+                finish(s, null);
+        } catch (Throwable t) {
+            logger.warn("Error starting session {}", s.id, t);
+            finish(s, t);
+        }
+    }
+
+    /**
+     * Runs the next token of every active session as a single batch
+     */
+    private void step() {
+        // Grab the kv memory for this step up front so running out only fails the sessions it affects
+        for (Iterator<Request> it = active.iterator(); it.hasNext(); ) {
+            Request s = it.next();
+            if (!s.session.kv().ensureCapacity(s.session.position() + 1)) {
+                it.remove();
+                finish(s, new IllegalStateException("Not enough kv cache to continue session " + s.id));
+            }
+        }
+
+        if (active.isEmpty())
+            return;
+
+        int batchSize = active.size();
+        int[] tokens = new int[batchSize];
+        int[] positions = new int[batchSize];
+        KvBuffer[] kvbufs = new KvBuffer[batchSize];
+
+        for (int i = 0; i < batchSize; i++) {
+            Request s = active.get(i);
+            tokens[i] = s.nextToken;
+            positions[i] = s.session.position();
+            kvbufs[i] = s.session.kv();
+        }
+
+        try (AbstractTensor output = model.batchForward(tokens, positions, kvbufs)) {
+            int i = 0;
+            for (Iterator<Request> it = active.iterator(); it.hasNext(); i++) {
+                Request s = it.next();
+                try {
+                    s.session.append(s.nextToken);
+                    s.tokensGenerated++;
+                    s.nextToken = model.sample(output.slice(i), s.temperature, ThreadLocalRandom.current().nextFloat(), s.logits, s.session.history(), s.session.position());
+
+                    if (!emit(s)) {
+                        it.remove();
+                        finish(s, null);
+                    }
+                } catch (Throwable t) {
+                    logger.warn("Error generating token for session {}", s.id, t);
+                    it.remove();
+                    finish(s, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the sampled token to the session
+     * @return true if the session should keep generating
+     */
+    private boolean emit(Request s) {
+        //Model may tell us it's done
+        if (s.nextToken == model.getConfig().eosToken)
+            return false;
+
+        try {
+            String c = s.decoder.next(s.nextToken);
+            s.onTokenWithTimings.accept(c, (System.currentTimeMillis() - s.start) / (float) (s.tokensGenerated + 1));
+        } catch (Exception e) {
+            logger.error("Failed to decode token {}", s.nextToken, e);
+        }
+
+        return s.session.position() < s.limit;
+    }
+
+    /**
+     * Hands the session back to the cache, dropping its kv memory if the request failed part way
+     */
+    private void finish(Request s, Throwable error) {
+        if (s.session != null) {
+            model.getSessionCache().release(s.session);
+            if (error != null)
+                model.getSessionCache().remove(s.id);
+            s.session = null;
+        }
+
+        if (s.logits != null) {
+            s.logits.close();
+            s.logits = null;
+        }
+
+        if (error == null && s.decoder != null)
+            s.decoder.flushTo(s.onTokenWithTimings, (System.currentTimeMillis() - s.start) / (float) (s.tokensGenerated + 1));
+
+        if (error == null)
+            s.done.complete(null);
+        else
+            s.done.completeExceptionally(error);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -3,6 +3,11 @@ package com.github.tjake.jlama.model;
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBuffer;
+import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.StreamingKvBuffer;
+import com.github.tjake.jlama.tensor.operations.TensorOperations;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 
 import com.google.common.base.Preconditions;
@@ -11,6 +16,29 @@ import java.util.*;
 import java.util.function.Consumer;
 
 public class CausalSelfAttention {
+    /**
+     * Cached positions scored together before their values are folded into the running softmax
+     */
+    static final int ATTENTION_TILE = 64;
+
+    /** Per thread scores of the tile being attended */
+    private static final ThreadLocal<float[]> tileScores = ThreadLocal.withInitial(() -> new float[ATTENTION_TILE]);
+
+    /**
+     * A run of cached positions [start, end) a query attends to, with the query rotated to match their keys
+     */
+    private static final class Segment {
+        final AbstractTensor query;
+        final int start;
+        final int end;
+
+        Segment(AbstractTensor query, int start, int end) {
+            this.query = query;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
     private final AbstractModel m;
     private final Config c;
     private final Optional<AbstractTensor> queryAttnBias;
@@ -29,8 +57,6 @@ public class CausalSelfAttention {
 
     private final float attentionScale;
 
-    private final float[][] flashAttnHeads;
-
     private final AbstractTensor[] qkvResults;
     private final AbstractTensor[] qkvWeights;
 
@@ -66,28 +92,48 @@ public class CausalSelfAttention {
 
         this.attentionScale = (float) (1.0 / StrictMath.sqrt(c.headSize));
 
-        this.flashAttnHeads = new float[c.contextLength][c.numberOfHeads];
-
         this.qkvResults = new AbstractTensor[3];
         this.qkvWeights = new AbstractTensor[]{queryAttnWeights, keyAttnWeights, valueAttnWeights};
     }
 
+    /**
+     * Runs a batch of rows [batch, embedding] where each row has its own position and kv cache,
+     * this is used to run the decode step of many sessions at once.
+     */
+    public AbstractTensor forward(AbstractTensor input, int[] positions, KvBuffer.Layer[] kvMems, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        if (input.dims() == 1)
+            return forward(input, positions[0], kvMems[0], tensorReducer);
+
+        return batchForward(input, positions, kvMems, tensorReducer);
+    }
+
+    /**
+     * @param kvMem dense [positions, 2, kvLength] kv memory for this layer
+     */
     public AbstractTensor forward(AbstractTensor input, int position, AbstractTensor kvMem, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        return forward(input, position, KvBuffer.denseLayer(kvMem), tensorReducer);
+    }
+
+    public AbstractTensor forward(AbstractTensor input, int position, KvBuffer.Layer kvMem, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        if (input.dims() == 2) {
+            // Consecutive tokens of the same sequence
+            int batchSize = input.shape().first();
+            int[] positions = new int[batchSize];
+            KvBuffer.Layer[] kvMems = new KvBuffer.Layer[batchSize];
+            for (int b = 0; b < batchSize; b++) {
+                positions[b] = position + b;
+                kvMems[b] = kvMem;
+            }
+            return batchForward(input, positions, kvMems, tensorReducer);
+        }
+
         Preconditions.checkArgument(input.dims() == 1 && input.shape().first() == c.embeddingLength);
 
-        try (AbstractTensor flashAttn_m = m.makeTensor(c.numberOfHeads);
-             AbstractTensor flashAttn_l = m.makeTensor(c.numberOfHeads);
-             AbstractTensor query = m.makeFullTensor(c.embeddingLength);
+        try (AbstractTensor query = m.makeFullTensor(c.embeddingLength);
              AbstractTensor tmpKey = m.makeFullTensor(c.kvLength);
              AbstractTensor tmpVal = m.makeFullTensor(c.kvLength);
              AbstractTensor value = m.makeFullTensor(c.embeddingLength))
         {
-            //This is our memory of the key and value vectors for each position
-            AbstractTensor kvp = kvMem.slice(true, position);
-
-            AbstractTensor key = kvp.slice(0);
-            AbstractTensor val = kvp.slice(1);
-
             if (c.isGQA) {
                 VectorMath.pchunk(0, c.embeddingLength, (chunkStart, chunkLength) -> {
                     TensorOperationsProvider.get().dotProductChunk(query, input, queryAttnWeights, c.embeddingSegmentStart(), c.embeddingSegmentLength(), chunkStart, chunkLength);
@@ -109,137 +155,251 @@ public class CausalSelfAttention {
             // For distributed sum of tensor
             tensorReducer.ifPresent(func -> func.accept(List.of(query, tmpKey, tmpVal)));
 
-            queryAttnBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(query, bias, c.embeddingSegmentStart(), c.embeddingSegmentLength()));
-            keyAttnBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(tmpKey, bias, c.kvSegmentStart(), c.kvSegmentLength()));
-            valueAttnBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(tmpVal, bias, c.kvSegmentStart(), c.kvSegmentLength()));
-
-            key.copyFrom(tmpKey, tmpKey.getOffset(c.kvSegmentStart()), key.getOffset(c.kvSegmentStart()), c.kvSegmentLength());
-            val.copyFrom(tmpVal, tmpVal.getOffset(c.kvSegmentStart()), val.getOffset(c.kvSegmentStart()), c.kvSegmentLength());
-
-            // apply RoPE if present (accounting for huggingface permutation)
-            // https://github.com/huggingface/transformers/blob/d533465150532b0c5de167b574e59f64c68b1154/src/transformers/models/llama/convert_llama_weights_to_hf.py#L114
-            c.ropeFreqs.ifPresent(rf -> {
-                int headPiece = c.headSize / 2;
-                int poffset = position * headPiece;
-
-                if (c.isGQA) {
-                    // apply RoPE rotation to the q and k vectors for each head
-                    for (int h = c.headStart(); h < c.headEnd(); h++) {
-                        // get the q vectors for this head
-                        int offset = h * c.headSize;
-                        int goffset = c.maybeMapToGroupHead(h) * c.headSize;
-                        // rotate q by the freq theta and freq r
-                        for (int i = offset, g = goffset; i < (offset + headPiece); i++, g++) {
-                            float q0 = query.get(i);
-                            float q1 = query.get(i + headPiece);  //hf permutation is 0,64,1,65 etc...
-                            float[] f = rf[poffset + g];
-                            float fcr = f[0];
-                            float fci = f[1];
-                            query.set(q0 * fcr - q1 * fci, i);
-                            query.set(q0 * fci + q1 * fcr, i + headPiece);
-                        }
-                    }
-
-                    for (int h = c.groupHeadStart(); h < c.groupHeadEnd(); h++) {
-                        // get the k vectors for this head
-                        int offset = h * c.headSize;
-                        // rotate k by the freq theta and freq r
-                        for (int i = offset; i < (offset + headPiece); i++) {
-                            float k0 = key.get(i);
-                            float k1 = key.get(i + headPiece);  //hf permutation is 0,64,1,65 etc...
-                            float[] f = rf[poffset + i];
-                            float fcr = f[0];
-                            float fci = f[1];
-                            key.set(k0 * fcr - k1 * fci, i);
-                            key.set(k0 * fci + k1 * fcr, i + headPiece);
-                        }
-                    }
-                } else {
-                    // apply RoPE rotation to the q and k vectors for each head
-                    for (int h = c.headStart(); h < c.headEnd(); h++) {
-                        // get the q and k vectors for this head
-                        int offset = h * c.headSize;
-                        // rotate q and k by the freq theta and freq r
-                        for (int i = offset; i < (offset + headPiece); i++) {
-                            float q0 = query.get(i);
-                            float q1 = query.get(i + headPiece);  //hf permutation is 0,64,1,65 etc...
-                            float k0 = key.get(i);
-                            float k1 = key.get(i + headPiece);
-                            float[] f = rf[poffset + i];
-                            float fcr = f[0];
-                            float fci = f[1];
-                            query.set(q0 * fcr - q1 * fci, i);
-                            query.set(q0 * fci + q1 * fcr, i + headPiece);
-                            key.set(k0 * fcr - k1 * fci, i);
-                            key.set(k0 * fci + k1 * fcr, i + headPiece);
-                        }
-                    }
-                }
-            });
+            storeKeyValue(query, tmpKey, tmpVal, position, kvMem);
+
+            attend(new AbstractTensor[]{query}, new AbstractTensor[]{value}, new int[]{position}, new KvBuffer.Layer[]{kvMem});
+
+            // matmul the projection and sum into input
+            // input += c_proj_weight @ ybuf + c_proj_bias
+            AbstractTensor result = m.makeFullTensor(c.embeddingLength);
+            try(AbstractTensor vq = m.maybeQuantize(value)) {
+                VectorMath.pchunk(0, c.embeddingLength, (chunkStart, chunkSize) -> {
+                    TensorOperationsProvider.get().dotProductChunk(result, vq, outputProjectionWeights, c.embeddingSegmentStart(), c.embeddingSegmentLength(), chunkStart, chunkSize);
+                });
 
-            // with all key-value entries populated, compute attention
-            // the softmax is incrementally aggregated using the flash attention technique
-            AbstractTensor k0 = kvMem.slice(true,0).slice(0);
-            AbstractTensor v0 = kvMem.slice(true,0).slice(1);
-
-            // value is initially the position 0 value for all heads
-            //POSITION ZERO
-            for (int i = c.headStart(); i < c.headEnd(); i++) {
-                value.copyFrom(v0, v0.getOffset(c.maybeMapToGroupHead(i) * c.headSize), value.getOffset(i * c.headSize), c.headSize);
-                float a = TensorOperationsProvider.get().dotProduct(query, k0, i * c.headSize, c.maybeMapToGroupHead(i) * c.headSize, c.headSize) * attentionScale;
-                flashAttn_m.set(a, i);
-                flashAttn_l.set(1, i);
+                tensorReducer.ifPresent(func -> func.accept(Collections.singletonList(result)));
+
+                outputProjectionBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(result, bias, c.embeddingSegmentStart(), c.embeddingSegmentLength()));
             }
 
-            //POSITION > 0
-            //This is where the context length gets expensive! We need to run this query token by all prior tokens.
-            VectorMath.pfor(0, position, i -> {
-                //KEY OFFSET
-                AbstractTensor kk = kvMem.slice(true, i + 1).slice(0);
-                for(int h = c.headStart(); h < c.headEnd(); h++){
-                    flashAttnHeads[i][h] = TensorOperationsProvider.get().dotProduct(query, kk, h * c.headSize, c.maybeMapToGroupHead(h) * c.headSize, c.headSize) * attentionScale;
-                }
+            return result;
+        }
+    }
+
+    /**
+     * Processes a batch of tokens [batch, embedding].
+     * The projections are done as matrix-matrix products so each weight row is read once for the whole batch,
+     * then each row attends causally to every position up to and including its own in its kv cache.
+     */
+    private AbstractTensor batchForward(AbstractTensor input, int[] positions, KvBuffer.Layer[] kvMems, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        Preconditions.checkArgument(input.shape().last() == c.embeddingLength);
+        int batchSize = input.shape().first();
+        Preconditions.checkArgument(positions.length == batchSize && kvMems.length == batchSize);
+
+        try (AbstractTensor query = m.makeFullTensor(batchSize, c.embeddingLength);
+             AbstractTensor tmpKey = m.makeFullTensor(batchSize, c.kvLength);
+             AbstractTensor tmpVal = m.makeFullTensor(batchSize, c.kvLength);
+             AbstractTensor value = m.makeFullTensor(batchSize, c.embeddingLength))
+        {
+            VectorMath.pchunk(0, c.embeddingLength, (chunkStart, chunkLength) -> {
+                TensorOperationsProvider.get().matmul(query, input, queryAttnWeights, c.embeddingSegmentStart(), c.embeddingSegmentLength(), chunkStart, chunkLength);
+            });
+            VectorMath.pchunk(0, c.kvLength, (chunkStart, chunkLength) -> {
+                TensorOperationsProvider.get().matmul(tmpKey, input, keyAttnWeights, c.embeddingSegmentStart(), c.embeddingSegmentLength(), chunkStart, chunkLength);
+                TensorOperationsProvider.get().matmul(tmpVal, input, valueAttnWeights, c.embeddingSegmentStart(), c.embeddingSegmentLength(), chunkStart, chunkLength);
             });
 
-            //Now aggregate results per head
-            for (int i = 0; i < position; i++) {
-                //VALUE OFFSET
-                AbstractTensor vv = kvMem.slice(true, i + 1).slice(1);
-                for (int h = c.headStart(); h < c.headEnd(); h++) {
-                    float a = flashAttnHeads[i][h];
-                    if (a > flashAttn_m.get(h)) {
-                        float e = (float) Math.exp(flashAttn_m.get(h) - a);
-                        TensorOperationsProvider.get().sxpby(e, vv, value, c.maybeMapToGroupHead(h) * c.headSize, h * c.headSize, c.headSize);
-                        flashAttn_l.set(1 + e * flashAttn_l.get(h), h);
-                        flashAttn_m.set(a, h);
-                    } else {
-                        float e = (float) Math.exp(a - flashAttn_m.get(h));
-                        TensorOperationsProvider.get().saxpy(e, vv, value, c.maybeMapToGroupHead(h) * c.headSize, h * c.headSize, c.headSize);
-                        flashAttn_l.set(flashAttn_l.get(h) + e, h);
-                    }
+            // For distributed sum of tensor, reduce each row like the single token case
+            tensorReducer.ifPresent(func -> {
+                List<AbstractTensor> rows = new ArrayList<>(batchSize * 3);
+                for (int b = 0; b < batchSize; b++) {
+                    rows.add(query.slice(b));
+                    rows.add(tmpKey.slice(b));
+                    rows.add(tmpVal.slice(b));
                 }
-            }
+                func.accept(rows);
+            });
 
-            // scale y by 1/l
-            for (int h = c.headStart(); h < c.headEnd(); h++) {
-                float scale = 1.0f / flashAttn_l.get(h);
-                TensorOperationsProvider.get().scale(scale, value, (h * c.headSize), c.headSize);
+            // All keys and values must be in place before any row attends to them
+            for (int b = 0; b < batchSize; b++)
+                storeKeyValue(query.slice(b), tmpKey.slice(b), tmpVal.slice(b), positions[b], kvMems[b]);
+
+            AbstractTensor[] queries = new AbstractTensor[batchSize];
+            AbstractTensor[] values = new AbstractTensor[batchSize];
+            for (int b = 0; b < batchSize; b++) {
+                queries[b] = query.slice(b);
+                values[b] = value.slice(b);
             }
+            attend(queries, values, positions, kvMems);
 
-            // matmul the projection and sum into input
-            // input += c_proj_weight @ ybuf + c_proj_bias
-            AbstractTensor result = m.makeFullTensor(c.embeddingLength);
+            AbstractTensor result = m.makeFullTensor(batchSize, c.embeddingLength);
             try(AbstractTensor vq = m.maybeQuantize(value)) {
                 VectorMath.pchunk(0, c.embeddingLength, (chunkStart, chunkSize) -> {
-                    TensorOperationsProvider.get().dotProductChunk(result, vq, outputProjectionWeights, c.embeddingSegmentStart(), c.embeddingSegmentLength(), chunkStart, chunkSize);
+                    TensorOperationsProvider.get().matmul(result, vq, outputProjectionWeights, c.embeddingSegmentStart(), c.embeddingSegmentLength(), chunkStart, chunkSize);
                 });
 
-                tensorReducer.ifPresent(func -> func.accept(Collections.singletonList(result)));
+                tensorReducer.ifPresent(func -> {
+                    List<AbstractTensor> rows = new ArrayList<>(batchSize);
+                    for (int b = 0; b < batchSize; b++)
+                        rows.add(result.slice(b));
+                    func.accept(rows);
+                });
 
-                outputProjectionBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(result, bias, c.embeddingSegmentStart(), c.embeddingSegmentLength()));
+                outputProjectionBias.ifPresent(bias -> {
+                    for (int b = 0; b < batchSize; b++)
+                        TensorOperationsProvider.get().accumulate(result.slice(b), bias, c.embeddingSegmentStart(), c.embeddingSegmentLength());
+                });
             }
 
             return result;
         }
     }
+
+    /**
+     * Applies the biases and RoPE, then saves the key and value for this position into the kv cache
+     */
+    private void storeKeyValue(AbstractTensor query, AbstractTensor tmpKey, AbstractTensor tmpVal, int position, KvBuffer.Layer kvMem) {
+        queryAttnBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(query, bias, c.embeddingSegmentStart(), c.embeddingSegmentLength()));
+        keyAttnBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(tmpKey, bias, c.kvSegmentStart(), c.kvSegmentLength()));
+        valueAttnBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(tmpVal, bias, c.kvSegmentStart(), c.kvSegmentLength()));
+
+        // apply RoPE if present (accounting for huggingface permutation)
+        // https://github.com/huggingface/transformers/blob/d533465150532b0c5de167b574e59f64c68b1154/src/transformers/models/llama/convert_llama_weights_to_hf.py#L114
+        // Every head is rotated by the same angles so with GQA the query heads and the fewer key heads are just different ranges
+        // With a streaming window the key is rotated within its epoch and the query per segment when it attends
+        if (kvMem instanceof StreamingKvBuffer.Ring ring)
+            c.ropeFreqs.ifPresent(rf -> TensorOperationsProvider.get().rope(tmpKey, tmpKey, ring.ropePosition(position), rf, c.headSize,
+                    0, 0, c.kvSegmentStart(), c.kvSegmentLength()));
+        else
+            c.ropeFreqs.ifPresent(rf -> TensorOperationsProvider.get().rope(query, tmpKey, position, rf, c.headSize,
+                    c.embeddingSegmentStart(), c.embeddingSegmentLength(), c.kvSegmentStart(), c.kvSegmentLength()));
+
+        //This is our memory of the key and value vectors for each position
+        AbstractTensor kvp = kvMem.writable(position);
+
+        AbstractTensor key = kvp.slice(0);
+        AbstractTensor val = kvp.slice(1);
+
+        store(tmpKey, key);
+        store(tmpVal, val);
+    }
+
+    private void store(AbstractTensor src, AbstractTensor dest) {
+        switch (dest.dType()) {
+            case I8 -> ((Q8ByteBufferTensor) dest).quantize(src, c.kvSegmentStart(), c.kvSegmentLength());
+            case Q4 -> ((Q4ByteBufferTensor) dest).quantize(src, c.kvSegmentStart(), c.kvSegmentLength());
+            default -> dest.copyFrom(src, src.getOffset(c.kvSegmentStart()), dest.getOffset(c.kvSegmentStart()), c.kvSegmentLength());
+        }
+    }
+
+    /**
+     * Computes the attention of each query against all positions up to and including its own, writing into its value.
+     * Every (row, head) pair is independent so they all run in parallel.
+     */
+    private void attend(AbstractTensor[] queries, AbstractTensor[] values, int[] positions, KvBuffer.Layer[] kvMems) {
+        List<AbstractTensor> rotated = new ArrayList<>();
+        try {
+            Segment[][] segments = new Segment[queries.length][];
+            for (int b = 0; b < queries.length; b++)
+                segments[b] = segments(queries[b], positions[b], kvMems[b], rotated);
+
+            int heads = c.headEnd() - c.headStart();
+            VectorMath.pfor(0, queries.length * heads, i -> {
+                int b = i / heads;
+                attendHead(segments[b], values[b], kvMems[b], c.headStart() + i % heads);
+            });
+        } finally {
+            for (AbstractTensor t : rotated)
+                t.close();
+        }
+    }
+
+    /**
+     * The positions a query attends to. A streaming window splits them into the sinks, the previous epoch
+     * and the current epoch, each needing its own rotation of the query, see {@link StreamingKvBuffer.Ring#ropePosition}.
+     */
+    private Segment[] segments(AbstractTensor query, int position, KvBuffer.Layer kvMem, List<AbstractTensor> rotated) {
+        if (!(kvMem instanceof StreamingKvBuffer.Ring ring))
+            return new Segment[]{new Segment(query, 0, position + 1)};
+
+        List<Segment> segments = new ArrayList<>(3);
+        int sinkEnd = Math.min(ring.sinks(), position + 1);
+        if (sinkEnd > 0)
+            segments.add(new Segment(rotate(query, ring.sinkRopePosition(position), rotated), 0, sinkEnd));
+
+        if (position >= ring.sinks()) {
+            int epochStart = ring.epochStart(position);
+            int windowStart = Math.max(ring.sinks(), position - ring.window() + 1);
+            if (windowStart < epochStart)
+                segments.add(new Segment(rotate(query, ring.ropePosition(position) + ring.window(), rotated), windowStart, epochStart));
+
+            segments.add(new Segment(rotate(query, ring.ropePosition(position), rotated), epochStart, position + 1));
+        }
+
+        return segments.toArray(new Segment[0]);
+    }
+
+    private AbstractTensor rotate(AbstractTensor query, int ropePosition, List<AbstractTensor> rotated) {
+        AbstractTensor q = m.makeFullTensor(c.embeddingLength);
+        rotated.add(q);
+        q.copyFrom(query, query.getOffset(c.embeddingSegmentStart()), q.getOffset(c.embeddingSegmentStart()), c.embeddingSegmentLength());
+        TensorOperationsProvider.get().rope(q, q, ropePosition, c.ropeFreqs.get(), c.headSize,
+                c.embeddingSegmentStart(), c.embeddingSegmentLength(), 0, 0);
+        return q;
+    }
+
+    /**
+     * Attention for a single head using the flash attention technique, the softmax is aggregated incrementally.
+     * Keys are scored a tile at a time so the running max and sum, and the value accumulated so far,
+     * are rescaled at most once per tile rather than every time a new max shows up.
+     * Within a tile keys and values are read a run of contiguous positions at a time.
+     */
+    private void attendHead(Segment[] segments, AbstractTensor value, KvBuffer.Layer kvMem, int h) {
+        TensorOperations ops = TensorOperationsProvider.get();
+        int qOffset = h * c.headSize;
+        int kvOffset = c.maybeMapToGroupHead(h) * c.headSize;
+        float[] scores = tileScores.get();
+
+        // value is initially the first position's value
+        Segment first = segments[0];
+        AbstractTensor kv0 = kvMem.get(first.start);
+        AbstractTensor v0 = kv0.slice(1);
+        if (v0.dType() == value.dType()) {
+            value.copyFrom(v0, v0.getOffset(kvOffset), value.getOffset(qOffset), c.headSize);
+        } else {
+            for (int i = 0; i < c.headSize; i++)
+                value.set(v0.get(kvOffset + i), qOffset + i);
+        }
+        float max = ops.dotProduct(first.query, kv0.slice(0), qOffset, kvOffset, c.headSize) * attentionScale;
+        float sum = 1f;
+
+        //This is where the context length gets expensive! We need to run this query token by all prior tokens.
+        for (Segment s : segments) {
+            AbstractTensor query = s.query;
+            for (int tileStart = s == first ? s.start + 1 : s.start; tileStart < s.end; tileStart += ATTENTION_TILE) {
+                int tileEnd = Math.min(s.end, tileStart + ATTENTION_TILE);
+
+                for (int t = tileStart; t < tileEnd; ) {
+                    KvBuffer.Run run = kvMem.run(t, tileEnd - t);
+                    ops.attentionScores(query, run.kv, qOffset, kvOffset, c.headSize, run.offset, run.length, attentionScale, scores, t - tileStart);
+                    t += run.length;
+                }
+
+                float tileMax = max;
+                for (int i = 0; i < tileEnd - tileStart; i++)
+                    tileMax = Math.max(tileMax, scores[i]);
+
+                if (tileMax > max) {
+                    float e = (float) Math.exp(max - tileMax);
+                    ops.scale(e, value, qOffset, c.headSize);
+                    sum *= e;
+                    max = tileMax;
+                }
+
+                for (int i = 0; i < tileEnd - tileStart; i++) {
+                    scores[i] = (float) Math.exp(scores[i] - max);
+                    sum += scores[i];
+                }
+
+                for (int t = tileStart; t < tileEnd; ) {
+                    KvBuffer.Run run = kvMem.run(t, tileEnd - t);
+                    ops.attentionValues(scores, t - tileStart, run.kv, value, kvOffset, qOffset, c.headSize, run.offset, run.length);
+                    t += run.length;
+                }
+            }
+        }
+
+        // scale y by 1/l
+        ops.scale(1.0f / sum, value, qOffset, c.headSize);
+    }
 }
@@ -0,0 +1,345 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.model.functions.Sampler;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+
+import java.util.Arrays;
+
+/**
+ * Temperature sampling with optional repetition penalties and top-k, top-p (nucleus) and min-p truncation.
+ *
+ * Passes over the whole vocabulary (penalised argmax, softmax, top-k selection) are split across cores.
+ * Top-p starts from a small top-k and only widens it while the candidates fall short of p,
+ * so the vocabulary is never fully sorted.
+ */
+public class DefaultSampler implements Sampler {
+    private static final int MIN_CANDIDATES = 64;
+
+    private final int topK;
+    private final float topP;
+    private final float minP;
+    private final float repetitionPenalty;
+    private final float frequencyPenalty;
+    private final float presencePenalty;
+
+    /**
+     * Samples from the whole vocabulary
+     */
+    public DefaultSampler() {
+        this(0, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f);
+    }
+
+    /**
+     * @param topK only sample from the k most likely tokens, 0 for no limit
+     * @param topP only sample from the most likely tokens that together reach this probability
+     * @param minP drop tokens less than minP times as likely as the most likely one
+     * @param repetitionPenalty divides the positive logits (multiplies the negative ones) of tokens already seen, 1 for none
+     * @param frequencyPenalty subtracted from the logit of a seen token for each time it was seen
+     * @param presencePenalty subtracted from the logit of any seen token
+     */
+    public DefaultSampler(int topK, float topP, float minP, float repetitionPenalty, float frequencyPenalty, float presencePenalty) {
+        Preconditions.checkArgument(topK >= 0, "topK must not be negative");
+        Preconditions.checkArgument(topP > 0.0f && topP <= 1.0f, "topP must be in (0, 1]");
+        Preconditions.checkArgument(minP >= 0.0f && minP < 1.0f, "minP must be in [0, 1)");
+        Preconditions.checkArgument(repetitionPenalty > 0.0f, "repetitionPenalty must be positive");
+        this.topK = topK;
+        this.topP = topP;
+        this.minP = minP;
+        this.repetitionPenalty = repetitionPenalty;
+        this.frequencyPenalty = frequencyPenalty;
+        this.presencePenalty = presencePenalty;
+    }
+
+    @Override
+    public int sample(AbstractTensor logits, int maxIndex, float temperature, int[] history, int historyLength, float uniformSample) {
+        int vocab = Ints.checkedCast(logits.size());
+        if (applyPenalties(logits, history, historyLength))
+            maxIndex = VectorMath.argmax(logits, vocab);
+
+        if (temperature == 0.0f)
+            return maxIndex;
+
+        if (topK > 0 || topP < 1.0f)
+            return sampleCandidates(logits, vocab, maxIndex, temperature, uniformSample);
+
+        return sampleAll(logits, vocab, maxIndex, temperature, uniformSample);
+    }
+
+    @Override
+    public void probabilities(AbstractTensor logits, int maxIndex, float temperature, int[] history, int historyLength, AbstractTensor probs) {
+        int vocab = Ints.checkedCast(logits.size());
+        if (applyPenalties(logits, history, historyLength))
+            maxIndex = VectorMath.argmax(logits, vocab);
+
+        if (temperature == 0.0f) {
+            probs.clear();
+            probs.set(1.0f, maxIndex);
+            return;
+        }
+
+        if (topK > 0 || topP < 1.0f) {
+            Candidates c = candidates(logits, vocab, maxIndex, temperature);
+            probs.clear();
+            for (int i = 0; i < c.n; i++)
+                probs.set(c.probs[i] / c.sum, c.tokens[i]);
+            return;
+        }
+
+        float[] sums = exponentiate(logits, vocab, maxIndex, temperature);
+        float total = 0;
+        for (float v : sums)
+            total += v;
+
+        float ftotal = total;
+        int splits = sums.length;
+        VectorMath.pfor(0, splits, s -> {
+            for (int i = VectorMath.splitStart(vocab, splits, s); i < VectorMath.splitStart(vocab, splits, s + 1); i++)
+                probs.set(logits.get(i) / ftotal, i);
+        });
+    }
+
+    /**
+     * @return true if any logit was changed
+     */
+    private boolean applyPenalties(AbstractTensor logits, int[] history, int historyLength) {
+        if (historyLength == 0 || (repetitionPenalty == 1.0f && frequencyPenalty == 0.0f && presencePenalty == 0.0f))
+            return false;
+
+        int[] seen = Arrays.copyOf(history, historyLength);
+        Arrays.sort(seen);
+        for (int i = 0; i < seen.length; ) {
+            int token = seen[i];
+            int count = 0;
+            for (; i < seen.length && seen[i] == token; i++)
+                count++;
+
+            float v = logits.get(token);
+            if (repetitionPenalty != 1.0f)
+                v = v > 0 ? v / repetitionPenalty : v * repetitionPenalty;
+
+            logits.set(v - count * frequencyPenalty - presencePenalty, token);
+        }
+
+        return true;
+    }
+
+    /**
+     * Replaces the logits with their unnormalized softmax, less any tokens under min-p
+     * @return the sum of each parallel split
+     */
+    private float[] exponentiate(AbstractTensor logits, int vocab, int maxIndex, float temperature) {
+        float maxv = logits.get(maxIndex);
+        // exp((l - max) / t) < minP  <=>  l < max + t * ln(minP)
+        float cutoff = minP > 0.0f ? maxv + temperature * (float) Math.log(minP) : Float.NEGATIVE_INFINITY;
+
+        int splits = VectorMath.parallelSplits(vocab);
+        float[] sums = new float[splits];
+        VectorMath.pfor(0, splits, s -> {
+            float sum = 0;
+            for (int i = VectorMath.splitStart(vocab, splits, s); i < VectorMath.splitStart(vocab, splits, s + 1); i++) {
+                float l = logits.get(i);
+                float v = l < cutoff ? 0.0f : (float) Math.exp((l - maxv) / temperature);
+                logits.set(v, i);
+                sum += v;
+            }
+            sums[s] = sum;
+        });
+
+        return sums;
+    }
+
+    /**
+     * Samples from the softmax of the whole vocabulary, less any tokens under min-p
+     */
+    private int sampleAll(AbstractTensor logits, int vocab, int maxIndex, float temperature, float uniformSample) {
+        float[] sums = exponentiate(logits, vocab, maxIndex, temperature);
+        int splits = sums.length;
+
+        float total = 0;
+        for (float v : sums)
+            total += v;
+
+        // Skip whole pieces until the one the sample falls in
+        float target = uniformSample * total;
+        float acc = 0;
+        for (int s = 0; s < splits; s++) {
+            if (acc + sums[s] <= target) {
+                acc += sums[s];
+                continue;
+            }
+
+            for (int i = VectorMath.splitStart(vocab, splits, s); i < VectorMath.splitStart(vocab, splits, s + 1); i++) {
+                acc += logits.get(i);
+                if (acc > target)
+                    return i;
+            }
+        }
+
+        return maxIndex;
+    }
+
+    /**
+     * The first n tokens, most likely first, with their probabilities over the whole vocabulary
+     */
+    private static class Candidates {
+        final int[] tokens;
+        final float[] probs;
+        final int n;
+        final float sum;
+
+        Candidates(int[] tokens, float[] probs, int n, float sum) {
+            this.tokens = tokens;
+            this.probs = probs;
+            this.n = n;
+            this.sum = sum;
+        }
+    }
+
+    /**
+     * Samples from the top-k / top-p candidates, less any under min-p
+     */
+    private int sampleCandidates(AbstractTensor logits, int vocab, int maxIndex, float temperature, float uniformSample) {
+        Candidates c = candidates(logits, vocab, maxIndex, temperature);
+
+        float target = uniformSample * c.sum;
+        float acc = 0;
+        for (int i = 0; i < c.n; i++) {
+            acc += c.probs[i];
+            if (acc > target)
+                return c.tokens[i];
+        }
+
+        return c.tokens[0];
+    }
+
+    /**
+     * The top-k / top-p candidates, less any under min-p
+     */
+    private Candidates candidates(AbstractTensor logits, int vocab, int maxIndex, float temperature) {
+        float maxv = logits.get(maxIndex);
+
+        // Top-p needs probabilities over the whole vocabulary
+        int splits = VectorMath.parallelSplits(vocab);
+        float[] sums = new float[splits];
+        VectorMath.pfor(0, splits, s -> {
+            float sum = 0;
+            for (int i = VectorMath.splitStart(vocab, splits, s); i < VectorMath.splitStart(vocab, splits, s + 1); i++)
+                sum += (float) Math.exp((logits.get(i) - maxv) / temperature);
+            sums[s] = sum;
+        });
+
+        float total = 0;
+        for (float v : sums)
+            total += v;
+
+        int k = topK > 0 ? Math.min(topK, vocab) : Math.min(MIN_CANDIDATES, vocab);
+        int[] candidates;
+        float[] probs;
+        int n;
+        while (true) {
+            candidates = topK(logits, vocab, k);
+            probs = new float[candidates.length];
+            float cumulative = 0;
+            n = 0;
+            while (n < candidates.length && cumulative < topP) {
+                probs[n] = (float) Math.exp((logits.get(candidates[n]) - maxv) / temperature) / total;
+                cumulative += probs[n++];
+            }
+
+            if (cumulative >= topP || topK > 0 || k == vocab)
+                break;
+
+            k = Math.min(vocab, k * 4);
+        }
+
+        float sum = 0;
+        float floor = minP * probs[0];
+        for (int i = 0; i < n; i++) {
+            if (probs[i] < floor) {
+                n = i;
+                break;
+            }
+            sum += probs[i];
+        }
+
+        return new Candidates(candidates, probs, n, sum);
+    }
+
+    /**
+     * @return the indexes of the k largest logits, largest first
+     */
+    static int[] topK(AbstractTensor logits, int length, int k) {
+        int splits = VectorMath.parallelSplits(length);
+        long[][] pieces = new long[splits][];
+        VectorMath.pfor(0, splits, s -> {
+            int start = VectorMath.splitStart(length, splits, s);
+            int end = VectorMath.splitStart(length, splits, s + 1);
+            long[] heap = new long[Math.min(k, end - start)];
+            int size = 0;
+            for (int i = start; i < end; i++)
+                size = offer(heap, size, key(logits.get(i), i));
+            pieces[s] = heap;
+        });
+
+        long[] heap = new long[k];
+        int size = 0;
+        for (long[] piece : pieces)
+            for (long key : piece)
+                size = offer(heap, size, key);
+
+        Arrays.sort(heap, 0, size);
+        int[] top = new int[size];
+        for (int i = 0; i < size; i++)
+            top[i] = (int) heap[size - 1 - i];
+        return top;
+    }
+
+    /**
+     * Orders by logit then index, so keys compare as the logits do
+     */
+    private static long key(float v, int index) {
+        int bits = Float.floatToIntBits(v);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long) bits << 32) | index;
+    }
+
+    /**
+     * Adds to a min-heap holding the largest keys seen, up to heap.length of them
+     */
+    private static int offer(long[] heap, int size, long key) {
+        if (size < heap.length) {
+            int i = size++;
+            heap[i] = key;
+            while (i > 0 && heap[(i - 1) >>> 1] > heap[i]) {
+                swap(heap, i, (i - 1) >>> 1);
+                i = (i - 1) >>> 1;
+            }
+            return size;
+        }
+
+        if (key <= heap[0])
+            return size;
+
+        heap[0] = key;
+        int i = 0;
+        while (true) {
+            int l = 2 * i + 1, r = l + 1, min = i;
+            if (l < size && heap[l] < heap[min]) min = l;
+            if (r < size && heap[r] < heap[min]) min = r;
+            if (min == i)
+                return size;
+            swap(heap, i, min);
+            i = min;
+        }
+    }
+
+    private static void swap(long[] a, int i, int j) {
+        long t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+}
@@ -1,5 +1,8 @@
 package com.github.tjake.jlama.model;
 
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.operations.TensorOperations;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.base.Preconditions;
 
@@ -25,21 +28,40 @@ public class LayerNorm {
     }
 
     public AbstractTensor forward(AbstractTensor input, Optional<BiFunction<Float, Float,Pair<Float, Float>>> reducer) {
-        Preconditions.checkArgument(input.shape().dims() == 1);
-        int size = input.shape().first();
+        return forward(input, input.dType(), reducer);
+    }
+
+    /**
+     * Normalizes into a tensor of the given type, so the output can be quantized for the next matmul as it's written
+     */
+    public AbstractTensor forward(AbstractTensor input, DType outputType, Optional<BiFunction<Float, Float,Pair<Float, Float>>> reducer) {
+        Preconditions.checkArgument(input.shape().dims() == 1 || input.shape().dims() == 2);
+        int size = input.shape().last();
         Preconditions.checkArgument(size == m.c.embeddingLength);
-        return forward(input, m.c.embeddingSegmentStart(), m.c.embeddingSegmentLength(), reducer);
+
+        AbstractTensor output = m.c.tensorCache.get(outputType, input.shape());
+        if (input.dims() == 1) {
+            forward(input, output, m.c.embeddingSegmentStart(), m.c.embeddingSegmentLength(), reducer);
+            return output;
+        }
+
+        //Batch of embeddings, normalize each row independently
+        for (int b = 0; b < input.shape().first(); b++)
+            forward(input.slice(b), output.slice(b), m.c.embeddingSegmentStart(), m.c.embeddingSegmentLength(), reducer);
+
+        return output;
     }
 
     public AbstractTensor forward(AbstractTensor input, int offset, int length, Optional<BiFunction<Float, Float,Pair<Float, Float>>> reducer) {
-        float sum = 0;
-        float sumSq = 0;
-        int limit = offset + length;
-        for (int i = offset; i < limit; i++) {
-            float v = input.get(i);
-            sum += v;
-            sumSq += v * v;
-        }
+        AbstractTensor output = input.copyShape();
+        forward(input, output, offset, length, reducer);
+        return output;
+    }
+
+    protected void forward(AbstractTensor input, AbstractTensor output, int offset, int length, Optional<BiFunction<Float, Float,Pair<Float, Float>>> reducer) {
+        TensorOperations ops = TensorOperationsProvider.get();
+        float sum = ops.sum(input, offset, length);
+        float sumSq = ops.sumOfSquares(input, offset, length);
 
         if (reducer.isPresent()) {
             Pair<Float, Float> p = reducer.get().apply(sumSq, sum);
@@ -51,12 +73,6 @@ public class LayerNorm {
         float variance = sumSq / m.c.embeddingLength - mean * mean;
         float invStddev = 1.0f / (float) Math.sqrt(variance + m.c.layerNormEps);
 
-        AbstractTensor output = input.copyShape();
-        for (int i = offset; i < limit; i++) {
-            float v = (input.get(i) - mean) * invStddev * weights.get(i) + bias.get(i);
-            output.set(v, i);
-        }
-
-        return output;
+        ops.normalize(input, output, mean, invStddev, weights, 0.0f, bias, offset, length);
     }
 }
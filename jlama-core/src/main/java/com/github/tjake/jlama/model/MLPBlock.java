@@ -55,6 +55,9 @@ public class MLPBlock implements FeedForward {
     // For FFN in PyTorch we have: self.w2(F.silu(self.w1(x)) * self.w3(x))
     @Override
     public AbstractTensor forward(AbstractTensor lnemb, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        if (lnemb.dims() == 2)
+            return batchForward(lnemb, tensorReducer);
+
         int hiddenLength = model.c.hiddenLength;
         try(AbstractTensor buf = model.makeTensor(hiddenLength); AbstractTensor buf2 = model.makeTensor(hiddenLength)) {
 
@@ -79,15 +82,7 @@ public class MLPBlock implements FeedForward {
 
             fullyConnectedBias.ifPresent(bias -> TensorOperationsProvider.get().accumulate(buf, bias, 0, hiddenLength));
 
-            VectorMath.pfor(0, hiddenLength, i -> {
-                float w1 = buf.get(i);
-                float w1a = ActivationFunction.eval(activationFunction, w1);
-                buf.set(w1a, i);
-            });
-
-            if (upProjectionWeights != null) {
-                TensorOperationsProvider.get().maccumulate(buf, buf2, 0, hiddenLength);
-            }
+            TensorOperationsProvider.get().activateAndMultiply(buf, upProjectionWeights != null ? buf2 : null, activationFunction, 0, hiddenLength);
 
             //matmul the projection and sum into input
             AbstractTensor result = model.makeTensor(model.c.embeddingLength);
@@ -98,4 +93,50 @@ public class MLPBlock implements FeedForward {
             return result;
         }
     }
+
+    /**
+     * Same as forward but for a batch of embeddings [batch, embedding], each weight row is read once for the whole batch
+     */
+    private AbstractTensor batchForward(AbstractTensor lnemb, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        int hiddenLength = model.c.hiddenLength;
+        int batchSize = lnemb.shape().first();
+        try(AbstractTensor buf = model.makeTensor(batchSize, hiddenLength); AbstractTensor buf2 = model.makeTensor(batchSize, hiddenLength)) {
+
+            VectorMath.pchunk(0, hiddenLength, (chunkStart, chunkSize) -> {
+                TensorOperationsProvider.get().matmul(buf, lnemb, fullyConnectedWeights, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength(), chunkStart, chunkSize);
+                if (upProjectionWeights != null)
+                    TensorOperationsProvider.get().matmul(buf2, lnemb, upProjectionWeights, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength(), chunkStart, chunkSize);
+            });
+
+            tensorReducer.ifPresent(func -> {
+                List<AbstractTensor> ts = new ArrayList<>(2 * batchSize);
+                for (int b = 0; b < batchSize; b++) {
+                    ts.add(buf.slice(b));
+                    if (upProjectionWeights != null) ts.add(buf2.slice(b));
+                }
+
+                func.accept(ts);
+            });
+
+            fullyConnectedBias.ifPresent(bias -> {
+                for (int b = 0; b < batchSize; b++)
+                    TensorOperationsProvider.get().accumulate(buf.slice(b), bias, 0, hiddenLength);
+            });
+
+            VectorMath.pfor(0, batchSize, b -> {
+                TensorOperationsProvider.get().activateAndMultiply(buf.slice(b), upProjectionWeights != null ? buf2.slice(b) : null, activationFunction, 0, hiddenLength);
+            });
+
+            //matmul the projection and sum into input
+            AbstractTensor result = model.makeTensor(batchSize, model.c.embeddingLength);
+            VectorMath.pchunk(model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength(), (chunkStart, chunkSize) -> {
+                TensorOperationsProvider.get().matmul(result, buf, projectionWeights, 0, hiddenLength, chunkStart, chunkSize);
+            });
+            projectionBias.ifPresent(bias -> {
+                for (int b = 0; b < batchSize; b++)
+                    TensorOperationsProvider.get().accumulate(result.slice(b), bias, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength());
+            });
+            return result;
+        }
+    }
 }
@@ -49,6 +49,18 @@ public class MoEBlock implements FeedForward {
 
     @Override
     public AbstractTensor forward(AbstractTensor lnemb, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        if (lnemb.dims() == 2) {
+            // Each token routes to its own experts so a batch is processed one row at a time
+            int batchSize = lnemb.shape().first();
+            AbstractTensor result = model.makeTensor(batchSize, model.c.embeddingLength);
+            for (int b = 0; b < batchSize; b++) {
+                AbstractTensor row = result.slice(b);
+                try (AbstractTensor r = forward(lnemb.slice(b), tensorReducer)) {
+                    row.copyFrom(r, r.getOffset(model.c.embeddingSegmentStart()), row.getOffset(model.c.embeddingSegmentStart()), model.c.embeddingSegmentLength());
+                }
+            }
+            return result;
+        }
 
         int hiddenLength = model.c.hiddenLength;
         AbstractTensor result = model.makeTensor(model.c.embeddingLength);
@@ -87,13 +99,7 @@ public class MoEBlock implements FeedForward {
                     func.accept(tmpTensors1);
                 });
 
-                VectorMath.pfor(0, hiddenLength, iv -> {
-                    float w1 = buf.get(iv);
-                    float w1a = ActivationFunction.eval(activationFunction, w1);
-                    buf.set(w1a, iv);
-                });
-
-                TensorOperationsProvider.get().maccumulate(buf, buf2, 0, hiddenLength);
+                TensorOperationsProvider.get().activateAndMultiply(buf, buf2, activationFunction, 0, hiddenLength);
 
                 //matmul the projection and sum into result
                 VectorMath.pchunk(model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength(), (chunkStart, chunkSize) -> {
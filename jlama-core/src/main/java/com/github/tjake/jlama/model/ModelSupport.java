@@ -18,6 +18,7 @@ import com.github.tjake.jlama.model.mixtral.MixtralConfig;
 import com.github.tjake.jlama.model.mixtral.MixtralModel;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.safetensors.JlamaTensorFile;
 import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 import com.github.tjake.jlama.safetensors.WeightLoader;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
@@ -28,6 +29,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 
@@ -84,6 +86,24 @@ public class ModelSupport {
             }
         }
 
+        // A jlama model file can be used on its own, with the config and tokenizer from its snapshot
+        File metadataDir = baseDir;
+        File jlamaFile = new File(baseDir, JlamaTensorFile.MODEL_FILE);
+        if (configFile == null && jlamaFile.exists()) {
+            try {
+                metadataDir = Files.createTempDirectory("jlama").toFile();
+                metadataDir.deleteOnExit();
+                JlamaTensorFile.open(jlamaFile.toPath()).extractFiles(metadataDir.toPath());
+                for (File f : Objects.requireNonNull(metadataDir.listFiles()))
+                    f.deleteOnExit();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            File snapshotConfig = new File(metadataDir, "config.json");
+            configFile = snapshotConfig.exists() ? snapshotConfig : null;
+        }
+
         if (configFile == null) {
             throw new IllegalArgumentException("config.json in model directory does not exist: " + baseDir);
         }
@@ -97,7 +117,7 @@ public class ModelSupport {
 
             c.setWorkingDirectory(workingDirectory);
 
-            Tokenizer t = modelType.tokenizerClass.getConstructor(Path.class).newInstance(baseDir.toPath());
+            Tokenizer t = modelType.tokenizerClass.getConstructor(Path.class).newInstance(metadataDir.toPath());
             WeightLoader wl = SafeTensorSupport.loadWeights(baseDir);
 
             return modelType.modelClass.getConstructor(AbstractModel.InferenceType.class, Config.class, WeightLoader.class, Tokenizer.class, DType.class, DType.class, Optional.class)
@@ -1,6 +1,7 @@
 package com.github.tjake.jlama.model;
 
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.base.Preconditions;
@@ -21,14 +22,9 @@ public class RMSNorm extends LayerNorm {
     }
 
     @Override
-    public AbstractTensor forward(AbstractTensor input, int offset, int length, Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
+    protected void forward(AbstractTensor input, AbstractTensor output, int offset, int length, Optional<BiFunction<Float, Float, Pair<Float, Float>>> reducer) {
         Preconditions.checkArgument(input.shape().dims() == 1);
-        int limit = offset + length;
-        float ss = 0.0f;
-        for (int j = offset; j < limit; j++) {
-            float v = input.get(j);
-            ss += v * v;
-        }
+        float ss = TensorOperationsProvider.get().sumOfSquares(input, offset, length);
 
         if (reducer.isPresent()) {
             Pair<Float, Float> p = reducer.get().apply(ss, 0f);
@@ -39,10 +35,6 @@ public class RMSNorm extends LayerNorm {
         ss += m.c.layerNormEps;
         ss = (float)(1.0 / StrictMath.sqrt(ss));
         // normalize and scale
-        AbstractTensor output = input.copyShape();
-        for (int j = offset; j < limit; j++) {
-            output.set((weightAdjustment + weights.get(j)) * (ss * input.get(j)), j);
-        }
-        return output;
+        TensorOperationsProvider.get().normalize(input, output, 0.0f, ss, weights, weightAdjustment, null, offset, length);
     }
 }
@@ -0,0 +1,395 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBlockPool;
+import com.github.tjake.jlama.tensor.KvBuffer;
+import com.github.tjake.jlama.tensor.PagedKvBuffer;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the kv memory and token history of each generate session between calls,
+ * so a follow-up turn only runs the tokens the session hasn't seen yet.
+ *
+ * Sessions idle for longer than the timeout are spilled to the working directory (or dropped if spilling is off)
+ * and restored on their next use, as are idle sessions when the kv pool runs out of blocks.
+ * Past maxSessions the least recently used session is dropped.
+ */
+public class SessionCache implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SessionCache.class);
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // No more sessions than the kv pool holds full contexts for
+    public static final int DEFAULT_MAX_SESSIONS = KvBlockPool.DEFAULT_MAX_CONTEXTS;
+
+    private static final int SPILL_MAGIC = 0x4a4b5653; // JKVS
+
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jlama-session-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public class Session {
+        private final UUID id;
+        private KvBuffer kv;
+        private int[] tokens;
+        private int length;
+        private long lastUsed;
+        private boolean inUse;
+        private File spillFile;
+
+        private Session(UUID id) {
+            this.id = id;
+            this.tokens = new int[64];
+            this.length = 0;
+        }
+
+        public UUID id() {
+            return id;
+        }
+
+        /** Next position to run, also the number of tokens in the kv memory */
+        public int position() {
+            return length;
+        }
+
+        /** Tokens in the kv memory, the first position() are valid */
+        public int[] history() {
+            return tokens;
+        }
+
+        public KvBuffer kv() {
+            return kv;
+        }
+
+        /**
+         * Runs the prompt tokens this session hasn't seen yet into its kv memory.
+         * A prompt that repeats the session history (e.g. a client re-sending the whole conversation) only runs the rest,
+         * any other prompt is treated as the next turn and appended without its BOS token.
+         * If the session would overflow the context it starts over with just this prompt.
+         *
+         * @return the output embedding of the last prompt token
+         */
+        public AbstractTensor prefill(int[] promptTokens) {
+            Preconditions.checkArgument(promptTokens.length > 0);
+            int[] run = promptTokens;
+            if (length > 0) {
+                if (startsWithHistory(promptTokens))
+                    run = Arrays.copyOfRange(promptTokens, length, promptTokens.length);
+                else if (promptTokens[0] == model.c.bosToken)
+                    run = Arrays.copyOfRange(promptTokens, 1, promptTokens.length);
+
+                // Nothing new, re-run the last token to get its output
+                if (run.length == 0)
+                    run = new int[]{tokens[--length]};
+
+                if (length + run.length >= kv.capacity()) {
+                    logger.debug("Session {} is out of context, starting over", id);
+                    reset();
+                    run = promptTokens;
+                }
+            }
+
+            if (length > 0 && !kv.ensureCapacity(length + run.length))
+                throw new IllegalStateException("Not enough kv cache to continue session " + id);
+
+            AbstractTensor last = length == 0 ? model.prefill(run, kv) : model.batchForward(run, length, kv);
+            for (int t : run)
+                append(t);
+
+            return last;
+        }
+
+        /**
+         * Records a token that was just run at the current position
+         */
+        public void append(int token) {
+            if (length == tokens.length)
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+
+            tokens[length++] = token;
+        }
+
+        private boolean startsWithHistory(int[] promptTokens) {
+            return promptTokens.length >= length && Arrays.equals(tokens, 0, length, promptTokens, 0, length);
+        }
+
+        private void reset() {
+            if (kv != null)
+                kv.close();
+
+            kv = model.newKvBuffer(model.c.contextLength);
+            length = 0;
+        }
+
+        private void spill(File directory) throws IOException {
+            File f = new File(directory, id + ".kv");
+            Preconditions.checkState(kv instanceof PagedKvBuffer, "Only paged kv buffers can be spilled");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+                out.writeInt(SPILL_MAGIC);
+                out.writeInt(length);
+                for (int i = 0; i < length; i++)
+                    out.writeInt(tokens[i]);
+
+                ((PagedKvBuffer) kv).writeTo(out, length);
+            }
+
+            kv.close();
+            kv = null;
+            spillFile = f;
+        }
+
+        private void restore() throws IOException {
+            PagedKvBuffer buffer = model.kvBlockPool.newBuffer(model.c.contextLength);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)))) {
+                if (in.readInt() != SPILL_MAGIC)
+                    throw new IOException("Not a session file: " + spillFile);
+
+                int n = in.readInt();
+                int[] history = new int[Math.max(64, n)];
+                for (int i = 0; i < n; i++)
+                    history[i] = in.readInt();
+
+                buffer.readFrom(in);
+
+                tokens = history;
+                length = n;
+                kv = buffer;
+            } catch (IOException | RuntimeException e) {
+                buffer.close();
+                throw e;
+            } finally {
+                deleteSpillFile();
+            }
+        }
+
+        private void deleteSpillFile() {
+            if (spillFile != null && !spillFile.delete())
+                logger.warn("Unable to delete session file {}", spillFile);
+            spillFile = null;
+        }
+
+        private void discard() {
+            if (kv != null)
+                kv.close();
+
+            kv = null;
+            length = 0;
+            deleteSpillFile();
+        }
+    }
+
+    private final AbstractModel model;
+    private final LinkedHashMap<UUID, Session> sessions;
+    private long idleTimeoutMillis;
+    private int maxSessions;
+    private boolean spillToDisk;
+    private ScheduledFuture<?> sweep;
+
+    public SessionCache(AbstractModel model) {
+        this.model = model;
+        this.sessions = new LinkedHashMap<>(16, 0.75f, true);
+        this.idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+        this.maxSessions = DEFAULT_MAX_SESSIONS;
+        this.spillToDisk = true;
+    }
+
+    public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+        Preconditions.checkArgument(timeout > 0);
+        this.idleTimeoutMillis = unit.toMillis(timeout);
+        if (sweep != null) {
+            sweep.cancel(false);
+            sweep = null;
+        }
+    }
+
+    public synchronized void setMaxSessions(int maxSessions) {
+        Preconditions.checkArgument(maxSessions > 0);
+        this.maxSessions = maxSessions;
+        evictOverflow();
+    }
+
+    public synchronized void setSpillToDisk(boolean spillToDisk) {
+        this.spillToDisk = spillToDisk;
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Takes exclusive use of a session, creating it or restoring it from disk as needed.
+     * If the session is already generating this waits for it, so a second request on a session runs after the first.
+     * Must be followed by {@link #release}.
+     */
+    public synchronized Session acquire(UUID id) {
+        Session s;
+        while ((s = sessions.computeIfAbsent(id, Session::new)).inUse) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for session " + id, e);
+            }
+        }
+
+        return take(s);
+    }
+
+    /**
+     * Same as {@link #acquire} but returns null rather than waiting if the session is already generating
+     */
+    public synchronized Session tryAcquire(UUID id) {
+        Session s = sessions.computeIfAbsent(id, Session::new);
+        return s.inUse ? null : take(s);
+    }
+
+    private Session take(Session s) {
+        if (s.spillFile != null) {
+            try {
+                s.restore();
+                logger.debug("Restored session {} with {} tokens", s.id, s.length);
+            } catch (IOException e) {
+                logger.warn("Unable to restore session {}, starting over", s.id, e);
+                s.discard();
+            }
+        }
+
+        if (s.kv == null)
+            s.reset();
+
+        s.inUse = true;
+        evictOverflow();
+        scheduleSweep();
+        return s;
+    }
+
+    public synchronized void release(Session s) {
+        s.inUse = false;
+        s.lastUsed = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Forgets a session, e.g. when its kv memory can't be trusted after an error
+     */
+    public synchronized void remove(UUID id) {
+        Session s = sessions.remove(id);
+        if (s != null)
+            s.discard();
+    }
+
+    /**
+     * Spills or drops every session that has been idle longer than the timeout
+     */
+    public synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Session> it = sessions.values().iterator(); it.hasNext(); ) {
+            Session s = it.next();
+            if (s.inUse || s.kv == null || now - s.lastUsed < idleTimeoutMillis)
+                continue;
+
+            if (!spill(s)) {
+                it.remove();
+                s.discard();
+            }
+        }
+    }
+
+    /**
+     * Spills or drops the least recently used idle session holding kv memory, e.g. when the kv pool runs out
+     * @return false if no idle session holds any
+     */
+    public synchronized boolean reclaim() {
+        for (Iterator<Session> it = sessions.values().iterator(); it.hasNext(); ) {
+            Session s = it.next();
+            if (s.inUse || s.kv == null)
+                continue;
+
+            if (!spill(s)) {
+                it.remove();
+                s.discard();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the session's kv memory was written to disk and freed
+     */
+    private boolean spill(Session s) {
+        Optional<File> directory = spillToDisk ? model.c.workingDirectory() : Optional.empty();
+        if (directory.isEmpty() || s.length == 0 || !(s.kv instanceof PagedKvBuffer))
+            return false;
+
+        try {
+            s.spill(directory.get());
+            logger.debug("Spilled idle session {} to {}", s.id, s.spillFile);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to spill session {}", s.id, e);
+            return false;
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<UUID, Session>> it = sessions.entrySet().iterator();
+        int excess = sessions.size() - maxSessions;
+        List<Session> dropped = new ArrayList<>();
+        while (excess > 0 && it.hasNext()) {
+            Session s = it.next().getValue();
+            if (s.inUse)
+                continue;
+
+            it.remove();
+            dropped.add(s);
+            excess--;
+        }
+
+        dropped.forEach(Session::discard);
+    }
+
+    private void scheduleSweep() {
+        if (sweep == null) {
+            long period = Math.min(idleTimeoutMillis, TimeUnit.MINUTES.toMillis(1));
+            sweep = sweeper.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (sweep != null) {
+            sweep.cancel(false);
+            sweep = null;
+        }
+
+        for (Session s : sessions.values())
+            s.discard();
+        sessions.clear();
+    }
+}
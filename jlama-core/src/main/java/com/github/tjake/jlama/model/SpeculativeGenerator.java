@@ -0,0 +1,317 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.model.functions.Generator;
+import com.github.tjake.jlama.model.functions.Sampler;
+import com.github.tjake.jlama.safetensors.tokenizer.StreamingDecoder;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBuffer;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Speculative decoding: a cheap drafter proposes a few tokens ahead and the target model checks
+ * them all in a single batched forward pass, so each pass over the target weights can yield several tokens.
+ *
+ * Draft tokens are accepted with probability min(1, p/q) and the first rejected one is resampled from
+ * the leftover distribution max(0, p - q), which keeps the output distributed exactly as the target model alone.
+ * Both p and q go through the target's sampler, so its penalties and truncation apply as they would without speculation.
+ *
+ * The drafter is either a smaller model sharing the target's tokenizer, or prompt lookup which copies
+ * whatever followed the last occurrence of the newest tokens in the prompt or output so far.
+ */
+public class SpeculativeGenerator implements Generator {
+    private static final Logger logger = LoggerFactory.getLogger(SpeculativeGenerator.class);
+
+    public static final int DEFAULT_DRAFT_TOKENS = 4;
+    public static final int DEFAULT_LOOKUP_NGRAM = 3;
+
+    /**
+     * Proposes the tokens to follow tokens[pos] during a single generate call
+     */
+    private interface Drafter extends AutoCloseable {
+        /**
+         * Writes up to n tokens to tokens[pos + 1...] and the distribution each was drawn from to the rows of q
+         * @return the number of tokens proposed
+         */
+        int propose(int[] tokens, int pos, int n, float temperature, AbstractTensor q);
+
+        /**
+         * Only the tokens up to and including this position were kept
+         */
+        default void truncate(int length) {}
+
+        @Override
+        default void close() {}
+    }
+
+    private final AbstractModel target;
+    private final Optional<AbstractModel> draft;
+    private final int draftTokens;
+    private final int ngram;
+    private final AtomicLong draftedTokens = new AtomicLong();
+    private final AtomicLong acceptedTokens = new AtomicLong();
+
+    /**
+     * Speculates with a smaller draft model
+     */
+    public SpeculativeGenerator(AbstractModel target, AbstractModel draft, int draftTokens) {
+        this(target, Optional.of(draft), draftTokens, 0);
+        Preconditions.checkArgument(target.c.vocabularySize == draft.c.vocabularySize, "Draft model vocabulary size %s does not match %s", draft.c.vocabularySize, target.c.vocabularySize);
+    }
+
+    private SpeculativeGenerator(AbstractModel target, Optional<AbstractModel> draft, int draftTokens, int ngram) {
+        Preconditions.checkArgument(draftTokens > 0, "draftTokens must be positive");
+        this.target = target;
+        this.draft = draft;
+        this.draftTokens = draftTokens;
+        this.ngram = ngram;
+    }
+
+    /**
+     * Speculates by prompt lookup, no draft model needed
+     *
+     * @param ngram the most trailing tokens to match against the prompt and output, shorter matches are tried after
+     */
+    public static SpeculativeGenerator promptLookup(AbstractModel target, int ngram, int draftTokens) {
+        Preconditions.checkArgument(ngram > 0, "ngram must be positive");
+        return new SpeculativeGenerator(target, Optional.empty(), draftTokens, ngram);
+    }
+
+    /** Total draft tokens proposed over every generate call */
+    public long draftedTokens() {
+        return draftedTokens.get();
+    }
+
+    /** Total draft tokens the target accepted over every generate call */
+    public long acceptedTokens() {
+        return acceptedTokens.get();
+    }
+
+    @Override
+    public void generate(UUID sessionId, String prompt, String cleanPrompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings) {
+        int[] promptTokens = target.encodePrompt(prompt, useEOS);
+
+        onTokenWithTimings.accept(cleanPrompt == null ? prompt : cleanPrompt, 0f);
+        long start = System.currentTimeMillis();
+        int[] generated = {0};
+        StreamingDecoder decoder = target.getTokenizer().streamingDecoder();
+
+        generate(promptTokens, temperature, ntokens, next -> {
+            //Model may tell us it's done
+            if (next == target.c.eosToken)
+                return false;
+
+            try {
+                String c = decoder.next(next);
+                onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) ++generated[0]);
+            } catch (Exception e) {
+                logger.error("Failed to decode token {}", next, e);
+            }
+            return true;
+        });
+
+        decoder.flushTo(onTokenWithTimings, (System.currentTimeMillis() - start) / (float) Math.max(generated[0], 1));
+    }
+
+    /**
+     * Generates tokens following the prompt, handing each one to onToken until it returns false
+     * or ntokens (prompt included) is reached.
+     */
+    public void generate(int[] promptTokens, float temperature, int ntokens, IntPredicate onToken) {
+        int contextLength = draft.map(d -> Math.min(target.c.contextLength, d.c.contextLength)).orElse(target.c.contextLength);
+        Preconditions.checkArgument(promptTokens.length > 0 && promptTokens.length < contextLength);
+        int limit = Math.min(Math.max(ntokens, promptTokens.length), contextLength);
+        int vocab = target.c.vocabularySize;
+
+        // tokens[pos] is the newest token, sampled but not yet run through the target
+        int[] tokens = Arrays.copyOf(promptTokens, contextLength + 1);
+        int pos = promptTokens.length;
+        int drafted = 0, accepted = 0;
+        Sampler sampler = target.getSampler();
+
+        try (KvBuffer targetKv = target.newKvBuffer(contextLength);
+             AbstractTensor p = target.makeFullTensor(draftTokens + 1, vocab);
+             AbstractTensor q = target.makeFullTensor(draftTokens, vocab);
+             Drafter drafter = draft.isPresent() ? new ModelDrafter(draft.get(), sampler, promptTokens, contextLength) : new LookupDrafter()) {
+
+            try (AbstractTensor last = target.prefill(promptTokens, targetKv)) {
+                target.probabilities(last, sampler, temperature, tokens, pos, p.slice(0));
+            }
+
+            tokens[pos] = target.sample(p.slice(0), ThreadLocalRandom.current().nextFloat());
+            if (!onToken.test(tokens[pos]))
+                return;
+
+            while (pos < limit) {
+                int n = drafter.propose(tokens, pos, Math.min(draftTokens, limit - pos - 1), temperature, q);
+
+                // Score the newest token and every draft token in one pass
+                int[] positions = new int[n + 1];
+                KvBuffer[] kvbufs = new KvBuffer[n + 1];
+                for (int i = 0; i <= n; i++) {
+                    positions[i] = pos + i;
+                    kvbufs[i] = targetKv;
+                }
+
+                try (AbstractTensor out = target.batchForward(Arrays.copyOfRange(tokens, pos, pos + n + 1), positions, kvbufs)) {
+                    for (int i = 0; i <= n; i++)
+                        target.probabilities(out.slice(i), sampler, temperature, tokens, pos + i + 1, p.slice(i));
+                }
+
+                int a = 0;
+                for (; a < n; a++) {
+                    int t = tokens[pos + a + 1];
+                    float pt = p.slice(a).get(t);
+                    float qt = q.slice(a).get(t);
+                    if (ThreadLocalRandom.current().nextFloat() * qt >= pt)
+                        break;
+                }
+
+                int next = a < n
+                        ? sampleResidual(p.slice(a), q.slice(a), ThreadLocalRandom.current().nextFloat())
+                        : target.sample(p.slice(n), ThreadLocalRandom.current().nextFloat());
+
+                drafted += n;
+                accepted += a;
+
+                // Kv entries past the accepted tokens are stale and get overwritten by the next round
+                drafter.truncate(pos + a + 1);
+
+                for (int i = 1; i <= a; i++) {
+                    if (!onToken.test(tokens[pos + i]))
+                        return;
+                }
+
+                pos += a + 1;
+                tokens[pos] = next;
+                if (!onToken.test(next))
+                    return;
+            }
+        } finally {
+            draftedTokens.addAndGet(drafted);
+            acceptedTokens.addAndGet(accepted);
+            if (drafted > 0)
+                logger.debug("Accepted {} of {} draft tokens", accepted, drafted);
+        }
+    }
+
+    /**
+     * Samples from max(0, p - q), the part of the target distribution the draft under-weighted
+     */
+    private int sampleResidual(AbstractTensor p, AbstractTensor q, float uniformSample) {
+        int vocab = target.c.vocabularySize;
+        float sum = 0;
+        for (int i = 0; i < vocab; i++)
+            sum += Math.max(0, p.get(i) - q.get(i));
+
+        if (sum <= 0)
+            return target.sample(p, uniformSample);
+
+        float acc = 0;
+        float threshold = uniformSample * sum;
+        for (int i = 0; i < vocab; i++) {
+            acc += Math.max(0, p.get(i) - q.get(i));
+            if (acc > threshold)
+                return i;
+        }
+
+        return vocab - 1;
+    }
+
+    /**
+     * Drafts by running the tokens through a smaller model with its own kv memory
+     */
+    private static class ModelDrafter implements Drafter {
+        private final AbstractModel model;
+        private final Sampler sampler;
+        private final KvBuffer kv;
+        private int length;
+
+        /**
+         * @param sampler the target's sampler, so q is shaped the same way as p
+         */
+        ModelDrafter(AbstractModel model, Sampler sampler, int[] promptTokens, int contextLength) {
+            this.model = model;
+            this.sampler = sampler;
+            this.kv = model.newKvBuffer(contextLength);
+            model.prefill(promptTokens, kv).close();
+            this.length = promptTokens.length;
+        }
+
+        @Override
+        public int propose(int[] tokens, int pos, int n, float temperature, AbstractTensor q) {
+            // Bring the draft up to date with the tokens it hasn't run yet
+            if (length < pos) {
+                model.batchForward(Arrays.copyOfRange(tokens, length, pos), length, kv).close();
+                length = pos;
+            }
+
+            for (int i = 0; i < n; i++) {
+                try (AbstractTensor out = model.forward(tokens[pos + i], pos + i, kv)) {
+                    model.probabilities(out, sampler, temperature, tokens, pos + i + 1, q.slice(i));
+                }
+                tokens[pos + i + 1] = model.sample(q.slice(i), ThreadLocalRandom.current().nextFloat());
+            }
+
+            length = pos + n;
+            return n;
+        }
+
+        @Override
+        public void truncate(int length) {
+            this.length = Math.min(this.length, length);
+        }
+
+        @Override
+        public void close() {
+            kv.close();
+        }
+    }
+
+    /**
+     * Drafts by finding the latest earlier occurrence of the trailing tokens and copying what came after it.
+     * The proposals are certain, so q is one-hot and each is accepted with the target's probability of it.
+     */
+    private class LookupDrafter implements Drafter {
+        @Override
+        public int propose(int[] tokens, int pos, int n, float temperature, AbstractTensor q) {
+            if (n == 0)
+                return 0;
+
+            for (int len = Math.min(ngram, pos); len > 0; len--) {
+                int tail = pos - len + 1;
+                for (int start = tail - 1; start >= 0; start--) {
+                    if (!Arrays.equals(tokens, start, start + len, tokens, tail, pos + 1))
+                        continue;
+
+                    int found = Math.min(n, pos - (start + len) + 1);
+                    for (int i = 0; i < found; i++) {
+                        int t = tokens[start + len + i];
+                        tokens[pos + i + 1] = t;
+                        AbstractTensor row = q.slice(i);
+                        row.clear();
+                        row.set(1.0f, t);
+                    }
+                    return found;
+                }
+            }
+
+            return 0;
+        }
+    }
+
+    @Override
+    public String wrapPrompt(String prompt, Optional<String> systemPrompt) {
+        return target.wrapPrompt(prompt, systemPrompt);
+    }
+}
@@ -2,6 +2,7 @@ package com.github.tjake.jlama.model;
 
 import com.github.tjake.jlama.model.functions.FeedForward;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBuffer;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.Pair;
 
@@ -45,35 +46,44 @@ public class TransformerBlock {
         this.postFFNorm = Optional.of(postFFNorm);
     }
 
-    public AbstractTensor forward(AbstractTensor embedding, int position, AbstractTensor kvBuffer) {
+    public AbstractTensor forward(AbstractTensor embedding, int position, KvBuffer.Layer kvBuffer) {
         return forward(embedding, position, kvBuffer, Optional.empty(), Optional.empty());
     }
 
-    public AbstractTensor forward(AbstractTensor embedding, int position, AbstractTensor kvBuffer, Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+    /**
+     * The embedding is either a single token or a batch of consecutive tokens [batch, embedding] starting at position
+     */
+    public AbstractTensor forward(AbstractTensor embedding, int position, KvBuffer.Layer kvBuffer, Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        return forward(embedding, qlnemb -> attention.forward(qlnemb, position, kvBuffer, tensorReducer), normReducer, tensorReducer);
+    }
+
+    /**
+     * The embedding is a batch [batch, embedding] where each row has its own position and kv cache
+     */
+    public AbstractTensor forward(AbstractTensor embedding, int[] positions, KvBuffer.Layer[] kvBuffers, Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        return forward(embedding, qlnemb -> attention.forward(qlnemb, positions, kvBuffers, tensorReducer), normReducer, tensorReducer);
+    }
+
+    private AbstractTensor forward(AbstractTensor embedding, Function<AbstractTensor, AbstractTensor> attentionFn, Optional<BiFunction<Float, Float, Pair<Float, Float>>> normReducer, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
 
-        AbstractTensor lnemb = preAttentionNorm.map(ln -> ln.forward(embedding, normReducer)).orElse(embedding);
+        // The norms write straight into the type the matmuls take, so there's no separate quantize step
         AbstractTensor postAttention;
-        try(AbstractTensor qlnemb = model.maybeQuantize(lnemb)) {
-            postAttention = attention.forward(qlnemb, position, kvBuffer, tensorReducer);
+        try(AbstractTensor qlnemb = preAttentionNorm.map(ln -> ln.forward(embedding, model.activationType(), normReducer)).orElseGet(() -> model.maybeQuantize(embedding))) {
+            postAttention = attentionFn.apply(qlnemb);
         }
 
         //residual connection
-        TensorOperationsProvider.get().accumulate(postAttention, embedding, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength());
+        residual(postAttention, embedding);
 
-        AbstractTensor lnemb2 = postAttentionNorm.forward(postAttention, normReducer);
         AbstractTensor postFF;
-        try(AbstractTensor qlnemb2 = model.maybeQuantize(lnemb2)) {
+        try(AbstractTensor qlnemb2 = postAttentionNorm.forward(postAttention, model.activationType(), normReducer)) {
             postFF = ffBlock.forward(qlnemb2, tensorReducer);
         }
 
         //residual connection
-        TensorOperationsProvider.get().accumulate(postFF, postAttention, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength());
+        residual(postFF, postAttention);
 
         //Release any tmp buffers
-        if (lnemb != embedding)
-            lnemb.close();
-
-        lnemb2.close();
         postAttention.close();
 
         return postFFNorm.map(ln -> {
@@ -82,4 +92,13 @@ public class TransformerBlock {
             return lnout;
         }).orElse(postFF);
     }
+
+    private void residual(AbstractTensor a, AbstractTensor b) {
+        if (a.dims() == 1) {
+            TensorOperationsProvider.get().accumulate(a, b, model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength());
+        } else {
+            for (int i = 0; i < a.shape().first(); i++)
+                TensorOperationsProvider.get().accumulate(a.slice(i), b.slice(i), model.c.embeddingSegmentStart(), model.c.embeddingSegmentLength());
+        }
+    }
 }
@@ -8,20 +8,24 @@ import com.github.tjake.jlama.model.functions.SampleOutput;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
-import com.github.tjake.jlama.safetensors.Weights;
+import com.github.tjake.jlama.safetensors.WeightLoader;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBuffer;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 
 import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
 
+import java.util.List;
 import java.util.Optional;
 
 public class BertModel extends AbstractModel {
 
-    public BertModel(Config c, Weights w, Tokenizer tokenizer, DType workingDType, DType workingQType, Optional<DType> modelQType) {
-        super(InferenceType.FULL_GENERATION, c, w, tokenizer, workingDType, workingQType, modelQType);
+    public BertModel(Config c, WeightLoader w, Tokenizer tokenizer, DType workingDType, DType workingQType, Optional<DType> modelQType) {
+        super(InferenceType.FORWARD_PASS, c, w, tokenizer, workingDType, workingQType, modelQType);
     }
 
-    public BertModel(InferenceType inferenceType, Config c, Weights w, Tokenizer tokenizer, DType workingDType, DType workingQType, Optional<DType> modelQType) {
+    public BertModel(InferenceType inferenceType, Config c, WeightLoader w, Tokenizer tokenizer, DType workingDType, DType workingQType, Optional<DType> modelQType) {
         super(inferenceType, c, w, tokenizer, workingDType, workingQType, modelQType);
     }
 
@@ -91,30 +95,106 @@ public class BertModel extends AbstractModel {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Upper bound on the tokens packed into a single pass, which bounds the activations of the pass
+     */
+    private static final int MAX_BATCH_TOKENS = 1024;
+
     public float[] embed(String input) {
-        long[] encoded = tokenizer.encode(input);
-        Preconditions.checkArgument(encoded.length < c.contextLength);
+        return embedBatch(List.of(input))[0];
+    }
+
+    /**
+     * Mean pooled, l2 normalized embedding of already tokenized input
+     */
+    public float[] embed(int[] tokens) {
+        return embedBatch(new int[][]{tokens})[0];
+    }
 
-        AbstractTensor kvmem = makeTensor(c.getNumberOfLayers(), encoded.length, 2, c.embeddingLength); // 2 for key and value
+    public float[][] embedBatch(List<String> inputs) {
+        List<long[]> encoded = tokenizer.encodeBatch(inputs);
+        int[][] sequences = new int[encoded.size()][];
+        for (int i = 0; i < sequences.length; i++) {
+            long[] e = encoded.get(i);
+            sequences[i] = new int[e.length];
+            for (int j = 0; j < e.length; j++)
+                sequences[i][j] = Ints.checkedCast(e[j]);
+        }
 
-        int promptLength = encoded.length;
-        float avgp = 1.0f/promptLength;
+        return embedBatch(sequences);
+    }
 
-        float[] outputEmbedding = new float[c.embeddingLength];
+    /**
+     * Mean pooled, l2 normalized embeddings of already tokenized inputs.
+     *
+     * Sequences are packed back to back without padding into one [tokens, embedding] activation, so each layer
+     * runs as matrix-matrix products over many sequences. Every sequence has its own kv buffer, which masks
+     * each token's attention to its own sequence.
+     */
+    public float[][] embedBatch(int[][] sequences) {
+        float[][] embeddings = new float[sequences.length][];
+
+        for (int first = 0; first < sequences.length; ) {
+            int last = first;
+            int totalTokens = 0;
+            do {
+                Preconditions.checkArgument(sequences[last].length > 0 && sequences[last].length < c.contextLength);
+                totalTokens += sequences[last++].length;
+            } while (last < sequences.length && totalTokens + sequences[last].length <= MAX_BATCH_TOKENS);
+
+            embedPacked(sequences, first, last, totalTokens, embeddings);
+            first = last;
+        }
 
-        for (int i = 0; i < promptLength; i++) {
-            int next = (int)encoded[i];
-            AbstractTensor output = forward(next, i, kvmem);
+        return embeddings;
+    }
+
+    private void embedPacked(int[][] sequences, int from, int to, int totalTokens, float[][] embeddings) {
+        int[] tokens = new int[totalTokens];
+        int[] positions = new int[totalTokens];
+        KvBuffer[] kvbufs = new KvBuffer[totalTokens];
+        int[] starts = new int[to - from + 1];
+        KvBuffer[] owned = new KvBuffer[to - from];
+
+        try {
+            int t = 0;
+            for (int s = from; s < to; s++) {
+                int[] sequence = sequences[s];
+                starts[s - from] = t;
+                owned[s - from] = KvBuffer.dense(makeTensor(c.getNumberOfLayers(), sequence.length, 2, c.embeddingLength)); // 2 for key and value
+                for (int i = 0; i < sequence.length; i++, t++) {
+                    tokens[t] = sequence[i];
+                    positions[t] = i;
+                    kvbufs[t] = owned[s - from];
+                }
+            }
+            starts[to - from] = t;
+
+            try (AbstractTensor output = batchForward(tokens, positions, kvbufs)) {
+                VectorMath.pfor(0, to - from, s -> embeddings[from + s] = pool(output, starts[s], starts[s + 1]));
+            }
+        } finally {
+            for (KvBuffer kvbuf : owned)
+                if (kvbuf != null)
+                    kvbuf.close();
+        }
+    }
 
-            //Average Pooling
-            for (int ii = 0; ii < c.embeddingLength; ii++)
-                outputEmbedding[ii] += output.get(ii) * avgp;
+    /**
+     * Average pooling of the rows [start, end) of the output
+     */
+    private float[] pool(AbstractTensor output, int start, int end) {
+        float[] outputEmbedding = new float[c.embeddingLength];
+        try (AbstractTensor sum = makeFullTensor(c.embeddingLength)) {
+            for (int i = start; i < end; i++)
+                TensorOperationsProvider.get().accumulate(sum, output.slice(i), 0, c.embeddingLength);
 
-            output.close();
+            TensorOperationsProvider.get().scale(1.0f / (end - start), sum, 0, c.embeddingLength);
+            for (int i = 0; i < c.embeddingLength; i++)
+                outputEmbedding[i] = sum.get(i);
         }
 
         VectorMath.l2normalize(outputEmbedding);
-        kvmem.close();
         return outputEmbedding;
     }
 }
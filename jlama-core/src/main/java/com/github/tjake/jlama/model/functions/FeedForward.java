@@ -11,5 +11,8 @@ import java.util.function.Consumer;
  */
 public interface FeedForward {
 
+    /**
+     * Input is either a single embedding or a batch of embeddings [batch, embedding]
+     */
     AbstractTensor forward(AbstractTensor input, Optional<Consumer<List<AbstractTensor>>> tensorReducer);
 }
@@ -12,4 +12,10 @@ public interface Generator {
     void generate(UUID session, String prompt, String cleanPrompt, float temperature, int ntokens, boolean useEOS, BiConsumer<String, Float> onTokenWithTimings);
 
     String wrapPrompt(String prompt, Optional<String> systemPrompt);
+
+    /**
+     * Drops whatever is kept for a session between calls, e.g. after a one-off request on an id no caller will reuse
+     */
+    default void forget(UUID session) {
+    }
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package com.github.tjake.jlama.model.functions;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+
+/**
+ * Picks the next token from the logits over the vocabulary
+ */
+public interface Sampler {
+
+    /**
+     * @param logits raw logits, may be changed in place
+     * @param maxIndex index of the largest logit
+     * @param history tokens so far, only the first historyLength are valid
+     * @param uniformSample random value in [0, 1)
+     */
+    int sample(AbstractTensor logits, int maxIndex, float temperature, int[] history, int historyLength, float uniformSample);
+
+    /**
+     * Writes out the distribution {@link #sample} draws from, e.g. for speculative decoding to compare two models with.
+     * Same arguments as sample, probs may be the logits tensor itself.
+     */
+    void probabilities(AbstractTensor logits, int maxIndex, float temperature, int[] history, int historyLength, AbstractTensor probs);
+}
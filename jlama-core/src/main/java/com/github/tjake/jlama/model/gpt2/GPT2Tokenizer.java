@@ -1,9 +1,7 @@
 package com.github.tjake.jlama.model.gpt2;
 import com.github.tjake.jlama.safetensors.tokenizer.BPETokenizer;
 
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -12,7 +10,6 @@ import com.google.common.collect.HashBiMap;
 
 public class GPT2Tokenizer extends BPETokenizer {
 
-    private static BiMap<Integer, String> codePointsToByteStrings;
     private static BiMap<Integer, Integer> alteredBytes; // Codepoint and Token
     static {
         // https://github.com/openai/gpt-2/blob/master/src/encoder.py#L19
@@ -24,20 +21,6 @@ public class GPT2Tokenizer extends BPETokenizer {
                 alteredBytes.put(c, codepoint);
             }
         }
-
-        //Represent emojis as their badly tokenized strings
-        codePointsToByteStrings = HashBiMap.create();
-        for(int j = 9000; j <= 128512; j++) {
-            if (Character.isEmoji(j)) {
-                byte[] b = Character.toString(j).getBytes(StandardCharsets.UTF_8);
-                StringBuilder sb = new StringBuilder();
-                for (int k = 0; k < b.length; k++) {
-                    String piece = Character.toString(Byte.toUnsignedInt(b[k]));
-                    sb.append(piece);
-                }
-                codePointsToByteStrings.put(j, sb.toString());
-            }
-        }
     }
 
     public GPT2Tokenizer(Path modelPath) {
@@ -70,25 +53,14 @@ public class GPT2Tokenizer extends BPETokenizer {
     }
 
     @Override
-    public String decode(long id) {
+    protected byte[] tokenBytes(long id) {
         String s = model.vocabLookup.inverse().get(id);
+        if (s == null)
+            return new byte[0];
 
-        return s.codePoints()
+        return byteLevelBytes(s.codePoints()
                 .map(c -> alteredBytes.inverse().getOrDefault(c, c))
                 .mapToObj(Character::toString)
-                .collect(Collectors.joining());
-    }
-
-
-
-    @Override
-    protected String postProcess(String s) {
-
-        for (Map.Entry<Integer, String> e : codePointsToByteStrings.entrySet()) {
-            if (s.contains(e.getValue()))
-                s = s.replace(e.getValue(), Character.toString(e.getKey()));
-        }
-
-        return s;
+                .collect(Collectors.joining()));
     }
 }
@@ -13,7 +13,6 @@ import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 
 import com.google.common.base.Preconditions;
-import com.google.common.primitives.Ints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -114,15 +113,21 @@ public class LlamaModel extends AbstractModel {
         return b.toString();
     }
 
+    @Override
+    protected DType activationType() {
+        return workingQType;
+    }
+
     @Override
     protected AbstractTensor maybeQuantize(AbstractTensor t)
     {
-        Preconditions.checkArgument(t.dims() == 1, "Unexpected shape");
+        Preconditions.checkArgument(t.dims() == 1 || t.dims() == 2, "Unexpected shape");
         if (t.dType() == workingQType)
             return super.maybeQuantize(t);
 
+        //Offset and length are per row when quantizing a batch
         return t.shape().last() == c.embeddingLength
                ? TensorOperationsProvider.get().quantize(t, workingQType, c.embeddingSegmentStart(), c.embeddingSegmentLength())
-               : TensorOperationsProvider.get().quantize(t, workingQType, 0, Ints.checkedCast(t.size()));
+               : TensorOperationsProvider.get().quantize(t, workingQType, 0, t.shape().last());
     }
 }
@@ -64,6 +64,16 @@ public class LlamaTokenizer extends BPETokenizer {
         }
     }
 
+    @Override
+    protected byte[] tokenBytes(long id) {
+        // Legacy vocabularies are byte level once the altered bytes are mapped back
+        if (!model.isLegacy() || maybeDecodeTokenAsCharacter(id).isPresent())
+            return super.tokenBytes(id);
+
+        String s = postProcessToken(model.vocabLookup.inverse().get(id));
+        return s == null ? new byte[0] : byteLevelBytes(s);
+    }
+
     @Override
     protected String postProcess(String sentence) {
         return sentence.stripLeading();
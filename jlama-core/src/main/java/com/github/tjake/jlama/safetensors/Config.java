@@ -27,7 +27,8 @@ public class Config {
     public final int vocabularySize;
     public final int bosToken;
     public final int eosToken;
-    public final Optional<float[][]> ropeFreqs;
+    /** RoPE cos and sin per position, see {@link VectorMath#precomputeRopeTable} */
+    public final Optional<float[]> ropeFreqs;
     private volatile Optional<Pair<Integer, Integer>> offset;
     private volatile File workingDirectory;
 
@@ -74,7 +75,7 @@ public class Config {
         this.kvLength = numberOfKeyValueHeads * headSize;
         this.isGQA = numberOfKeyValueHeads < numberOfHeads;
         this.activationFunction = activationFunction;
-        this.ropeFreqs = ropeFreqsTheta == null ? Optional.empty() : Optional.of(VectorMath.precomputeFreqsCis(embeddingLength / numberOfHeads, contextLength, ropeFreqsTheta, ropeScalingFactor == null ? 1.0 : ropeScalingFactor));
+        this.ropeFreqs = ropeFreqsTheta == null ? Optional.empty() : Optional.of(VectorMath.precomputeRopeTable(embeddingLength / numberOfHeads, contextLength, ropeFreqsTheta, ropeScalingFactor == null ? 1.0 : ropeScalingFactor));
 
         // Set default values
         setOffset(null);
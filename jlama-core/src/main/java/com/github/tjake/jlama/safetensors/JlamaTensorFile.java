@@ -0,0 +1,347 @@
+package com.github.tjake.jlama.safetensors;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.TensorCache;
+import com.github.tjake.jlama.tensor.TensorShape;
+import com.github.tjake.jlama.util.Pair;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Ints;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tjake.jlama.util.JsonSupport.om;
+
+/**
+ * Jlama's own weight file, written by {@link SafeTensorSupport#quantizeModel}.
+ * Tensors are stored exactly as the kernels use them, each quantized tensor followed by its block scales,
+ * at 64 byte aligned offsets. Loading is just mapping the file, nothing is converted.
+ *
+ * The layout is the magic, version and header length, then a JSON header padded to the alignment
+ * with the tensor index and a snapshot of the config and tokenizer files, then the tensor data.
+ */
+public class JlamaTensorFile implements WeightLoader {
+    public static final String MODEL_FILE = "model.jlama";
+    public static final int MAGIC = 0x414D4C4A; // "JLMA" little endian
+    public static final int VERSION = 1;
+    public static final int ALIGNMENT = 64;
+
+    /** Files from the model directory kept in the header, so the weights can be used on their own */
+    static final String[] SNAPSHOT_FILES = {"config.json", "tokenizer.json", "tokenizer_config.json"};
+
+    private static final int PREAMBLE_SIZE = Integer.BYTES * 2 + Long.BYTES;
+
+    static class Header {
+        @JsonProperty("metadata")
+        final Map<String, String> metadata;
+
+        @JsonProperty("files")
+        final Map<String, String> files;
+
+        @JsonProperty("tensors")
+        final Map<String, TensorInfo> tensors;
+
+        @JsonCreator
+        Header(@JsonProperty("metadata") Map<String, String> metadata,
+               @JsonProperty("files") Map<String, String> files,
+               @JsonProperty("tensors") Map<String, TensorInfo> tensors) {
+            this.metadata = metadata == null ? Map.of() : metadata;
+            this.files = files == null ? Map.of() : files;
+            this.tensors = tensors;
+        }
+    }
+
+    private final Map<String, String> files;
+    private final Weights weights;
+
+    private JlamaTensorFile(Header header, MemorySegment data) {
+        this.files = ImmutableMap.copyOf(header.files);
+        this.weights = new Weights(header.metadata, header.tensors, data, Optional.empty());
+    }
+
+    /**
+     * Maps the file, pages are read as the tensors are first used
+     */
+    public static JlamaTensorFile open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            // Unmapped once nothing references it, tensors can outlive this
+            MemorySegment segment = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size(), Arena.ofAuto());
+            ByteBuffer bb = segment.asSlice(0, Math.min(segment.byteSize(), Integer.MAX_VALUE)).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+
+            if (bb.remaining() < PREAMBLE_SIZE || bb.getInt() != MAGIC)
+                throw new IOException("Not a jlama model file: " + file);
+
+            int version = bb.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported jlama model file version " + version + ": " + file);
+
+            byte[] header = new byte[Ints.checkedCast(bb.getLong())];
+            bb.get(header);
+
+            return new JlamaTensorFile(om.readValue(header, Header.class), segment.asSlice(PREAMBLE_SIZE + header.length));
+        }
+    }
+
+    /**
+     * Writes the snapshot files into the directory, e.g. for tokenizers that load from a path
+     */
+    public void extractFiles(Path directory) throws IOException {
+        for (Map.Entry<String, String> e : files.entrySet())
+            Files.writeString(directory.resolve(e.getKey()), e.getValue());
+    }
+
+    /**
+     * Contents of the snapshot files by name
+     */
+    public Map<String, String> files() {
+        return files;
+    }
+
+    @Override
+    public Map<String, String> metadata() {
+        return weights.metadata();
+    }
+
+    @Override
+    public Map<String, TensorInfo> tensorInfoMap() {
+        return weights.tensorInfoMap();
+    }
+
+    @Override
+    public AbstractTensor load(String name, Optional<Pair<Integer, Integer>> offset) {
+        return weights.load(name, offset);
+    }
+
+    @Override
+    public DType getModelDType() {
+        return weights.getModelDType();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Streams tensors into a new file. The data goes to a temporary file first since the header,
+     * which has to come first, isn't known until every tensor is written. Nothing is published until {@link #commit()}.
+     */
+    public static class Writer implements AutoCloseable {
+        /** Elements quantized at a time when streaming a tensor */
+        static final int CHUNK_ELEMENTS = 1 << 22;
+        /** Chunks waiting to be written before quantizing blocks on the writes */
+        static final int WRITE_QUEUE_DEPTH = 4;
+
+        private final Path file;
+        private final Path tmp;
+        private final FileChannel data;
+        private final Map<String, String> metadata = new TreeMap<>();
+        private final Map<String, String> files = new TreeMap<>();
+        private final Map<String, TensorInfo> tensors = new LinkedHashMap<>();
+        private final int chunkElements;
+        private final TensorCache chunks;
+        private final ExecutorService writer;
+        private long end;
+        private boolean committed;
+
+        public Writer(Path file) throws IOException {
+            this(file, CHUNK_ELEMENTS);
+        }
+
+        Writer(Path file, int chunkElements) throws IOException {
+            this.file = file;
+            this.chunkElements = chunkElements;
+            this.chunks = new TensorCache((WRITE_QUEUE_DEPTH + 2L) * chunkElements);
+            this.tmp = Files.createTempFile(file.toAbsolutePath().getParent(), "jlama", ".tmp");
+            this.data = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            // Full queue runs the write on the quantizing thread, so no more than the queue's chunks are held
+            this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(WRITE_QUEUE_DEPTH), r -> {
+                Thread t = new Thread(r, "jlama-tensor-writer");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        public void putMetadata(String key, String value) {
+            metadata.put(key, value);
+        }
+
+        /**
+         * Keeps a copy of the model directory's config and tokenizer files
+         */
+        public void snapshot(Path modelRoot) throws IOException {
+            for (String name : SNAPSHOT_FILES) {
+                Path p = modelRoot.resolve(name);
+                if (Files.exists(p))
+                    files.put(name, Files.readString(p));
+            }
+        }
+
+        public void write(String name, AbstractTensor t) throws IOException {
+            Preconditions.checkArgument(!tensors.containsKey(name), "Duplicate tensor %s", name);
+            switch (t.dType()) {
+                case F32, F16, BF16 -> save(name, t);
+                case Q4 -> {
+                    save(name, t);
+                    save(name + ".qb", ((Q4ByteBufferTensor) t).getBlockF());
+                }
+                case I8 -> {
+                    save(name, t);
+                    save(name + ".qb", ((Q8ByteBufferTensor) t).getBlockF());
+                }
+                default -> throw new UnsupportedOperationException(t.dType() + " not implemented");
+            }
+        }
+
+        /**
+         * Writes the tensor as qType. 2D tensors going to Q4 or I8 are quantized a chunk of rows at a time straight from
+         * the source, with the writes positioned so quantizing the next chunk overlaps writing the last.
+         * Memory use stays the same however large the tensor is.
+         */
+        public void write(String name, AbstractTensor t, DType qType) throws IOException {
+            if (t.dims() != 2 || t.dType() == qType || t.shape().isSparse() || (qType != DType.Q4 && qType != DType.I8)) {
+                write(name, t.quantize(qType));
+                return;
+            }
+
+            Preconditions.checkArgument(!tensors.containsKey(name), "Duplicate tensor %s", name);
+            int rows = t.shape().first();
+            int cols = t.shape().last();
+            Preconditions.checkArgument(cols % Q8ByteBufferTensor.BLOCK_SIZE == 0, "Rows of %s must be a multiple of the block size", name);
+
+            long rowBytes = qType == DType.Q4 ? cols / 2 : cols;
+            long rowScaleBytes = (long) cols / Q8ByteBufferTensor.BLOCK_SIZE * Float.BYTES;
+            long base = align(end);
+            long scaleBase = align(base + rows * rowBytes);
+            end = scaleBase + rows * rowScaleBytes;
+
+            tensors.put(name, new TensorInfo(qType, new long[]{rows, cols}, new long[]{base, base + rows * rowBytes}));
+            tensors.put(name + ".qb", new TensorInfo(DType.F32, new long[]{rows, cols / Q8ByteBufferTensor.BLOCK_SIZE}, new long[]{scaleBase, end}));
+
+            int chunkRows = Math.max(1, Math.min(rows, chunkElements / cols));
+            TensorShape chunkShape = TensorShape.of(chunkRows, cols);
+            List<Future<?>> writes = new ArrayList<>();
+            for (int r = 0; r < rows; r += chunkRows) {
+                int count = Math.min(chunkRows, rows - r);
+                AbstractTensor chunk = chunks.get(qType, chunkShape);
+                FloatBufferTensor scales;
+                if (qType == DType.Q4) {
+                    ((Q4ByteBufferTensor) chunk).quantizeRows(t, r, count);
+                    scales = ((Q4ByteBufferTensor) chunk).getBlockF();
+                } else {
+                    ((Q8ByteBufferTensor) chunk).quantizeRows(t, r, count);
+                    scales = ((Q8ByteBufferTensor) chunk).getBlockF();
+                }
+
+                ByteBuffer qb = chunk.getMemorySegment().asSlice(0, count * rowBytes).asByteBuffer();
+                ByteBuffer sb = scales.getMemorySegment().asSlice(0, count * rowScaleBytes).asByteBuffer();
+                long position = base + r * rowBytes;
+                long scalePosition = scaleBase + r * rowScaleBytes;
+                writes.add(writer.submit(() -> {
+                    try (chunk) {
+                        writeFully(qb, position);
+                        writeFully(sb, scalePosition);
+                    }
+                    return null;
+                }));
+            }
+
+            try {
+                for (Future<?> f : writes)
+                    f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ioe ? ioe : new IOException(e.getCause());
+            }
+        }
+
+        private void writeFully(ByteBuffer bb, long position) throws IOException {
+            while (bb.hasRemaining())
+                position += data.write(bb, position);
+        }
+
+        private void save(String name, AbstractTensor t) throws IOException {
+            // The data starts on an aligned offset, so aligning within it aligns within the file
+            data.position(align(end));
+            tensors.put(name, t.save(data));
+            end = data.position();
+        }
+
+        /**
+         * Publishes the file once every tensor is written. It's assembled next to the destination and moved over it,
+         * so the destination only ever holds a complete file. Closing without committing leaves it untouched.
+         */
+        public void commit() throws IOException {
+            Preconditions.checkState(!committed, "Already committed");
+            writer.shutdown();
+
+            byte[] json = om.writeValueAsBytes(new Header(metadata, files, tensors));
+            int headerLength = Ints.checkedCast(align(PREAMBLE_SIZE + json.length) - PREAMBLE_SIZE);
+            byte[] header = Arrays.copyOf(json, headerLength);
+            Arrays.fill(header, json.length, headerLength, (byte) ' ');
+
+            Path staged = Files.createTempFile(file.toAbsolutePath().getParent(), "jlama", ".tmp");
+            try {
+                try (FileChannel out = FileChannel.open(staged, StandardOpenOption.WRITE)) {
+                    ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    preamble.putInt(MAGIC).putInt(VERSION).putLong(headerLength).flip();
+                    out.write(preamble);
+                    out.write(ByteBuffer.wrap(header));
+
+                    long size = data.size();
+                    for (long pos = 0; pos < size; )
+                        pos += data.transferTo(pos, size - pos, out);
+
+                    out.force(true);
+                }
+
+                Files.move(staged, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                committed = true;
+            } finally {
+                Files.deleteIfExists(staged);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.shutdown();
+            try {
+                data.close();
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private static long align(long position) {
+            return (position + ALIGNMENT - 1) & -ALIGNMENT;
+        }
+    }
+}
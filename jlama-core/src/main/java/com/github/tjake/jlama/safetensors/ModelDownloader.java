@@ -0,0 +1,373 @@
+package com.github.tjake.jlama.safetensors;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.tjake.jlama.util.TriConsumer;
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.tjake.jlama.util.JsonSupport.om;
+
+/**
+ * Downloads model files from huggingface, or anything serving the same api.
+ *
+ * Large files are split into ranges fetched over several connections, each written in place into the preallocated file.
+ * Finished ranges are recorded in a sidecar file so an interrupted download picks up where it left off.
+ * Files are checked against the size and hash the repository lists for them.
+ */
+public class ModelDownloader {
+    private static final Logger logger = LoggerFactory.getLogger(ModelDownloader.class);
+
+    public static final String HF_URL = "https://huggingface.co";
+    public static final int DEFAULT_CONNECTIONS = 8;
+    public static final long DEFAULT_PART_SIZE = 64L << 20;
+    public static final String PROGRESS_SUFFIX = ".progress";
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * A file in the model repository. The hash is the sha256 of LFS files and the git blob sha1 of the rest.
+     */
+    public static class RemoteFile {
+        public final String path;
+        public final long size;
+        public final String hash;
+        public final boolean lfs;
+
+        public RemoteFile(String path, long size, String hash, boolean lfs) {
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+            this.lfs = lfs;
+        }
+    }
+
+    /**
+     * What the sidecar file records, the parts already written for a given file
+     */
+    static class Progress {
+        @JsonProperty("size")
+        final long size;
+
+        @JsonProperty("part_size")
+        final long partSize;
+
+        @JsonProperty("hash")
+        final String hash;
+
+        @JsonProperty("done")
+        final Set<Integer> done;
+
+        @JsonCreator
+        Progress(@JsonProperty("size") long size,
+                 @JsonProperty("part_size") long partSize,
+                 @JsonProperty("hash") String hash,
+                 @JsonProperty("done") Set<Integer> done) {
+            this.size = size;
+            this.partSize = partSize;
+            this.hash = hash;
+            this.done = done == null ? new TreeSet<>() : new TreeSet<>(done);
+        }
+
+        boolean matches(RemoteFile file, long partSize) {
+            return size == file.size && this.partSize == partSize && (file.hash == null ? hash == null : file.hash.equals(hash));
+        }
+    }
+
+    private final String baseUrl;
+    private final Optional<String> authHeader;
+    private final int connections;
+    private final long partSize;
+
+    public ModelDownloader(String baseUrl, Optional<String> authHeader, int connections) {
+        this(baseUrl, authHeader, connections, DEFAULT_PART_SIZE);
+    }
+
+    public ModelDownloader(String baseUrl, Optional<String> authHeader, int connections, long partSize) {
+        Preconditions.checkArgument(connections > 0 && partSize > 0, "connections and partSize must be positive");
+        this.baseUrl = baseUrl;
+        this.authHeader = authHeader;
+        this.connections = connections;
+        this.partSize = partSize;
+    }
+
+    /**
+     * Lists the top level files of the model at the given branch
+     */
+    public List<RemoteFile> listFiles(String hfModel, String branch) throws IOException {
+        JsonNode tree;
+        HttpURLConnection connection = connect(baseUrl + "/api/models/" + hfModel + "/tree/" + branch, -1, -1);
+        try (InputStream in = connection.getInputStream()) {
+            tree = om.readTree(in);
+        }
+
+        List<RemoteFile> files = new ArrayList<>();
+        if (tree.isArray()) {
+            for (JsonNode node : tree) {
+                if (node.has("type") && !node.path("type").asText().equals("file"))
+                    continue;
+
+                JsonNode lfs = node.path("lfs");
+                boolean isLfs = lfs.isObject();
+                JsonNode hash = isLfs ? lfs.path("oid") : node.path("oid");
+                files.add(new RemoteFile(node.path("path").asText(), node.path("size").asLong(-1), hash.isTextual() ? hash.asText() : null, isLfs));
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Downloads the file to out, unless it's already there. An interrupted download of the same file is resumed.
+     */
+    public void download(String hfModel, String branch, RemoteFile file, Path out, Optional<TriConsumer<String, Long, Long>> progressReporter) throws IOException {
+        Path sidecar = out.resolveSibling(out.getFileName() + PROGRESS_SUFFIX);
+        if (Files.exists(out) && !Files.exists(sidecar) && file.size >= 0 && Files.size(out) == file.size) {
+            logger.debug("Already downloaded {}", out);
+            progressReporter.ifPresent(p -> p.accept(file.path, file.size, file.size));
+            return;
+        }
+
+        if (out.getParent() != null)
+            Files.createDirectories(out.getParent());
+
+        String url = baseUrl + "/" + hfModel + "/resolve/" + branch + "/" + file.path;
+
+        // Without a size there are no ranges to split into, so stream it in one go
+        int parts = file.size > 0 ? (int) ((file.size + partSize - 1) / partSize) : 1;
+        Progress progress = file.size > 0 ? readProgress(sidecar, file) : null;
+        if (progress == null) {
+            progress = new Progress(file.size, partSize, file.hash, null);
+            Files.deleteIfExists(out);
+            if (file.size > 0) {
+                try (RandomAccessFile raf = new RandomAccessFile(out.toFile(), "rw")) {
+                    raf.setLength(file.size);
+                }
+                writeProgress(sidecar, progress);
+            }
+        } else {
+            logger.info("Resuming download of {}, {} of {} parts done", file.path, progress.done.size(), parts);
+        }
+
+        AtomicLong written = new AtomicLong();
+        for (int part : progress.done)
+            written.addAndGet(Math.min(file.size, (part + 1) * partSize) - part * partSize);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, parts), r -> {
+            Thread t = new Thread(r, "jlama-download");
+            t.setDaemon(true);
+            return t;
+        });
+
+        try (FileChannel ch = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Progress p = progress;
+            List<CompletableFuture<Void>> fetches = new ArrayList<>(parts);
+            for (int i = 0; i < parts; i++) {
+                if (p.done.contains(i))
+                    continue;
+
+                int part = i;
+                fetches.add(CompletableFuture.runAsync(() -> {
+                    long start = part * partSize;
+                    long end = file.size > 0 ? Math.min(file.size, start + partSize) : -1;
+                    fetchPart(url, start, end, parts > 1, ch, written);
+                    synchronized (p) {
+                        p.done.add(part);
+                        if (file.size > 0) {
+                            // A resume trusts every part in the sidecar, so they have to be on disk before it says so
+                            force(ch);
+                            writeProgress(sidecar, p);
+                        }
+                    }
+                }, executor));
+            }
+
+            CompletableFuture<Void> all = CompletableFuture.allOf(fetches.toArray(CompletableFuture[]::new));
+            long total = file.size;
+            while (true) {
+                progressReporter.ifPresent(r -> r.accept(file.path, written.get(), total));
+                try {
+                    all.get(100, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    // Report and keep waiting
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted downloading " + file.path, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException u ? u.getCause() : e.getCause();
+            throw new IOException("Failed to download file: " + file.path, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(file, out, sidecar);
+        Files.deleteIfExists(sidecar);
+        long size = Files.size(out);
+        progressReporter.ifPresent(r -> r.accept(file.path, size, size));
+    }
+
+    /**
+     * Writes [start, end) of the file at its offset, or the whole body when end is unknown.
+     * Retried from the start of the range on failure.
+     */
+    private void fetchPart(String url, long start, long end, boolean ranged, FileChannel ch, AtomicLong written) {
+        IOException last = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long position = start;
+            try {
+                HttpURLConnection connection = ranged ? connect(url, start, end) : connect(url, -1, -1);
+                try (InputStream in = connection.getInputStream()) {
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        ByteBuffer bb = ByteBuffer.wrap(buf, 0, end < 0 ? n : (int) Math.min(n, end - position));
+                        while (bb.hasRemaining()) {
+                            int w = ch.write(bb, position);
+                            position += w;
+                            written.addAndGet(w);
+                        }
+                    }
+                }
+
+                if (end >= 0 && position != end)
+                    throw new IOException("Expected " + (end - start) + " bytes of " + url + " from " + start + " but got " + (position - start));
+
+                return;
+            } catch (IOException e) {
+                written.addAndGet(start - position);
+                last = e;
+                logger.warn("Failed fetching {} from {} (attempt {} of {})", url, start, attempt + 1, MAX_ATTEMPTS, e);
+            }
+        }
+
+        throw new UncheckedIOException(last);
+    }
+
+    private HttpURLConnection connect(String urlString, long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+        connection.setRequestMethod("GET");
+        authHeader.ifPresent(authHeader -> connection.setRequestProperty("Authorization", "Bearer " + authHeader));
+        if (start >= 0)
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+
+        int responseCode = connection.getResponseCode();
+        int expected = start >= 0 ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK;
+        if (responseCode != expected)
+            throw new IOException("HTTP response code: " + responseCode + " for URL: " + urlString);
+
+        return connection;
+    }
+
+    /**
+     * Checks the size and hash of a finished download, deleting it if they are wrong
+     */
+    private static void verify(RemoteFile file, Path out, Path sidecar) throws IOException {
+        long size = Files.size(out);
+        String error = null;
+        if (file.size >= 0 && size != file.size) {
+            error = "expected " + file.size + " bytes but got " + size;
+        } else if (file.hash != null) {
+            String hash = hash(out, size, file.lfs);
+            if (!hash.equalsIgnoreCase(file.hash))
+                error = "expected hash " + file.hash + " but got " + hash;
+        }
+
+        if (error != null) {
+            Files.deleteIfExists(out);
+            Files.deleteIfExists(sidecar);
+            throw new IOException("Downloaded " + file.path + " is corrupt, " + error);
+        }
+    }
+
+    static String hash(Path file, long size, boolean lfs) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(lfs ? "SHA-256" : "SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // Git hashes the blob header along with the contents
+        if (!lfs)
+            digest.update(("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buf = new byte[1 << 20];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                digest.update(buf, 0, n);
+        }
+
+        return BaseEncoding.base16().lowerCase().encode(digest.digest());
+    }
+
+    private Progress readProgress(Path sidecar, RemoteFile file) {
+        if (!Files.exists(sidecar))
+            return null;
+
+        try {
+            Progress progress = om.readValue(sidecar.toFile(), Progress.class);
+            if (progress.matches(file, partSize))
+                return progress;
+
+            logger.info("Restarting download of {}, the partial download doesn't match", file.path);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable download progress {}", sidecar, e);
+        }
+
+        return null;
+    }
+
+    private static void force(FileChannel ch) {
+        try {
+            ch.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeProgress(Path sidecar, Progress progress) {
+        try {
+            Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+            Files.write(tmp, om.writeValueAsBytes(progress));
+            Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -12,6 +12,8 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
@@ -53,6 +55,10 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
         return index;
     }
 
+    /**
+     * Maps each file whole as a single segment, nothing is read up front other than the header.
+     * Tensors are views over the mapping so they are paged in by the OS as they're first used.
+     */
     static void loadWeights(SafeTensorIndex index, Path modelRoot) throws IOException {
         for (Map.Entry<String, String> e : index.weightFileMap.entrySet()) {
             // Only load the file if it's not already loaded
@@ -60,81 +66,19 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
                 RandomAccessFile raf = new RandomAccessFile(Paths.get(modelRoot.toString(), e.getValue()).toFile(), "r");
                 index.fileMap.put(e.getValue(), raf);
 
-                //Read the first 1MB of the file to get the TensorInfo
-                ByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(1 << 20, raf.length()));
+                // Unmapped once nothing references it, tensors can outlive the index
+                MemorySegment file = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length(), Arena.ofAuto());
 
+                ByteBuffer header = file.asSlice(0, Math.min(file.byteSize(), Integer.MAX_VALUE)).asByteBuffer();
                 Map<String, String> metadata = new HashMap<>();
                 Map<String, TensorInfo> tensorInfoMap = SafeTensorSupport.readTensorInfoMap(header, Optional.of(metadata));
                 int endOfHeaderPosition = header.position();
 
-                Map<List<Long>, List<String>> splits = index.computeMmapSplits(tensorInfoMap, raf.length());
-                for (Map.Entry<List<Long>, List<String>> split : splits.entrySet()) {
-                    long offset = split.getKey().get(0);
-                    long length = split.getKey().get(1);
-                    List<String> tensors = split.getValue();
-
-                    ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, endOfHeaderPosition + offset, (length - offset)).load();
-                    Map<String, TensorInfo> mmapTensorInfoMap = tensorInfoMap.entrySet().stream()
-                            .filter(x -> tensors.contains(x.getKey())).collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, Map.Entry::getValue));
-
-                    Weights mmapWeights = new Weights(metadata, mmapTensorInfoMap, buf, Optional.of(index));
-                    for (String tensor : tensors) {
-                        index.weightMap.put(tensor, mmapWeights);
-                    }
-                }
+                Weights fileWeights = new Weights(metadata, tensorInfoMap, file.asSlice(endOfHeaderPosition), Optional.of(index));
+                for (String tensor : tensorInfoMap.keySet())
+                    index.weightMap.put(tensor, fileWeights);
             }
         }
-
-    }
-
-    /**
-     * Group tensors into splits that can be mmaped together.
-     * Since mmap limitation is integer max_value length.
-     *
-     * This also adjusts (inplace) the tensor offsets to be relative to the start of the split.
-     *
-     */
-    private Map<List<Long>, List<String>> computeMmapSplits(Map<String, TensorInfo> tensorInfoMap, long fileLength) {
-        Set<String> added = new HashSet<>();
-        Map<List<Long>, List<String>> splits = new HashMap<>();
-        long lastSplitOffset = 0;
-        while (added.size() < tensorInfoMap.size()) {
-            List<String> tensors = new ArrayList<>();
-            long limit = lastSplitOffset + Integer.MAX_VALUE;
-            long startOffset = fileLength;
-            long endOffset = 0;
-
-            for (Map.Entry<String, TensorInfo> e : tensorInfoMap.entrySet()) {
-                if (added.contains(e.getKey()))
-                    continue;
-
-                TensorInfo info = e.getValue();
-
-                if (info.dataOffsets[1] < limit) {
-                    tensors.add(e.getKey());
-                    added.add(e.getKey());
-
-                    if (info.dataOffsets[1] > endOffset)
-                        endOffset = info.dataOffsets[1];
-
-                    if (info.dataOffsets[0] < startOffset)
-                        startOffset = info.dataOffsets[0];
-
-                    // Adjust the offset to be relative to the start of the split
-                    info.dataOffsets[0] -= lastSplitOffset;
-                    info.dataOffsets[1] -= lastSplitOffset;
-
-                    logger.debug("Adding tensor {} to split {}-{}", e.getKey(), info.dataOffsets[0], info.dataOffsets[1]);
-                }
-            }
-
-            logger.debug("Adding split {}-{} with {} tensors", startOffset, endOffset, tensors.size());
-            assert endOffset - startOffset < Integer.MAX_VALUE : "Mmap split too large " + (endOffset - startOffset) + " > " + Integer.MAX_VALUE + " " + lastSplitOffset;
-            splits.put(List.of(startOffset, endOffset), tensors);
-            lastSplitOffset = endOffset;
-        }
-
-        return splits;
     }
 
     @JsonCreator
@@ -1,33 +1,23 @@
 package com.github.tjake.jlama.safetensors;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.type.MapType;
 import com.github.tjake.jlama.model.ModelSupport.ModelType;
 import com.github.tjake.jlama.safetensors.tokenizer.TokenizerModel;
 import com.github.tjake.jlama.tensor.AbstractTensor;
-import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
-import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
-import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 
 import com.github.tjake.jlama.util.Pair;
 import com.github.tjake.jlama.util.TriConsumer;
 import com.google.common.base.Preconditions;
-import com.google.common.io.CountingInputStream;
 import com.google.common.primitives.Ints;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -86,6 +76,9 @@ public class SafeTensorSupport {
     }
 
     public static WeightLoader loadWeights(File baseDir) throws IOException {
+        if (Files.exists(Paths.get(baseDir.getAbsolutePath(), JlamaTensorFile.MODEL_FILE)))
+            return JlamaTensorFile.open(Paths.get(baseDir.getAbsolutePath(), JlamaTensorFile.MODEL_FILE));
+
         if (Files.exists(Paths.get(baseDir.getAbsolutePath(), SafeTensorIndex.MODEL_INDEX_JSON)))
             return SafeTensorIndex.loadWithWeights(baseDir.toPath());
 
@@ -118,16 +111,30 @@ public class SafeTensorSupport {
         return model;
     }
 
+    /**
+     * Quantizes the model into a {@link JlamaTensorFile} so later loads can map it as is
+     */
     public static Path quantizeModel(Path modelRoot, DType modelQuantization, String[] skipLayerPrefixes, String[] dropLayerPrefixes, Optional<Path> outputRoot) throws IOException {
-        File tmp = File.createTempFile("safe", "tensor");
-        tmp.deleteOnExit();
+        String baseDirName = modelRoot.getName(modelRoot.getNameCount() - 1).toString();
+        Path parentPath = modelRoot.getParent();
+
+        Path qPath = outputRoot.orElseGet(() -> Paths.get(parentPath.toString(), baseDirName + "-jlama-" + modelQuantization.name()));
+        File qDir = qPath.toFile();
+        qDir.mkdirs();
+
         WeightLoader wl = SafeTensorSupport.loadWeights(modelRoot.toFile());
-        Map<String, Object> writtenInfo = new HashMap<>();
 
-        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
-            Map<String, TensorInfo> tensors = wl.tensorInfoMap();
+        try (JlamaTensorFile.Writer writer = new JlamaTensorFile.Writer(qPath.resolve(JlamaTensorFile.MODEL_FILE))) {
+            writer.snapshot(modelRoot);
+            wl.metadata().forEach(writer::putMetadata);
 
+            // Sorted so the layout is the same from run to run
+            Map<String, TensorInfo> tensors = new TreeMap<>(wl.tensorInfoMap());
             for (Map.Entry<String, TensorInfo> e : tensors.entrySet()) {
+                // Scales are written along with their tensors
+                if (e.getKey().endsWith(".qb"))
+                    continue;
+
                 boolean drop = false;
                 if (dropLayerPrefixes != null) {
                     for (String dropLayerPrefix : dropLayerPrefixes) {
@@ -153,98 +160,40 @@ public class SafeTensorSupport {
                         }
                     }
 
-                    AbstractTensor t = skipQ ? tr : tr.quantize(modelQuantization);
-
-                    switch (t.dType()) {
-                        case F32:
-                        case BF16:
-                        case F16:
-                            writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
-                            break;
-                        case Q4:
-                            writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
-                            writtenInfo.put(e.getKey() + ".qb", ((Q4ByteBufferTensor) t).getBlockF().save(raf.getChannel()));
-                            break;
-                        case Q5:
-                            writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
-                            writtenInfo.put(e.getKey() + ".qb", ((Q5ByteBufferTensor) t).getBlockF().save(raf.getChannel()));
-                            //FIXME: Need to add b5 bits
-                            throw new UnsupportedOperationException("TODO");
-                            //break;
-                        case I8:
-                            writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
-                            writtenInfo.put(e.getKey() + ".qb", ((Q8ByteBufferTensor) t).getBlockF().save(raf.getChannel()));
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("" + t.dType() + " not implemented");
-                    }
+                    writer.write(e.getKey(), tr, skipQ ? tr.dType() : modelQuantization);
                 }
             }
-        }
 
-        //Now create the output file
-        String baseDirName = modelRoot.getName(modelRoot.getNameCount() - 1).toString();
-        Path parentPath = modelRoot.getParent();
-
-        Path qPath = outputRoot.orElseGet(() -> Paths.get(parentPath.toString(), baseDirName + "-jlama-" + modelQuantization.name()));
-        File qDir = qPath.toFile();
-        qDir.mkdirs();
+            writer.commit();
+        }
 
         //Copy config.json and tokenizer.json
         Files.copy(modelRoot.resolve("config.json"), qPath.resolve("config.json"));
         Files.copy(modelRoot.resolve("tokenizer.json"), qPath.resolve("tokenizer.json"));
 
-        try (RandomAccessFile raf = new RandomAccessFile(qPath.resolve("model.safetensors").toFile(), "rw")) {
-            FileChannel chan = raf.getChannel();
-
-            byte[] header = om.writeValueAsBytes(writtenInfo);
-            logger.debug("pos = {}", chan.position());
-            byte[] hsize = new byte[Long.BYTES];
-            ByteBuffer.wrap(hsize).order(ByteOrder.LITTLE_ENDIAN).putLong(header.length);
-            raf.write(hsize);
-            logger.debug("pos = {}", chan.position());
-            raf.write(header);
-            logger.debug("pos = {}", chan.position());
-
-            Files.copy(tmp.toPath(), new OutputStream() {
-                @Override
-                public void write(int b) throws IOException {
-                    raf.write(b);
-                }
-
-                @Override
-                public void write(byte[] b) throws IOException {
-                    raf.write(b);
-                }
-
-                @Override
-                public void write(byte[] b, int off, int len) throws IOException {
-                    raf.write(b, off, len);
-                }
-            });
-        }
-
         return qPath;
     }
 
     public static void maybeDownloadModel(String modelDir, Optional<String> modelOwner, String modelName, Optional<String> optionalBranch, Optional<String> optionalAuthHeader, Optional<TriConsumer<String, Long, Long>> optionalProgressReporter) throws IOException {
         String hfModel = modelOwner.map(mo -> mo + "/" + modelName).orElse(modelName);
-        InputStream modelInfoStream = getResponse("https://huggingface.co/api/models/" + hfModel + "/tree/" + optionalBranch.orElse("main"), optionalAuthHeader).left;
-        String modelInfo = readInputStream(modelInfoStream);
+        String branch = optionalBranch.orElse("main");
+        ModelDownloader downloader = new ModelDownloader(ModelDownloader.HF_URL, optionalAuthHeader, ModelDownloader.DEFAULT_CONNECTIONS);
 
-        if (modelInfo == null) {
-            throw new IOException("No valid model found or trying to access a restricted model (please include correct access token)");
+        List<ModelDownloader.RemoteFile> allFiles;
+        try {
+            allFiles = downloader.listFiles(hfModel, branch);
+        } catch (IOException e) {
+            throw new IOException("No valid model found or trying to access a restricted model (please include correct access token)", e);
         }
 
-        List<String> allFiles = parseFileList(modelInfo);
         if (allFiles.isEmpty()) {
             throw new IOException("No valid model found");
         }
 
-        List<String> tensorFiles = new ArrayList<>();
+        List<ModelDownloader.RemoteFile> tensorFiles = new ArrayList<>();
         boolean hasSafetensor = false;
-        for (String currFile : allFiles) {
-            String f = currFile.toLowerCase();
+        for (ModelDownloader.RemoteFile currFile : allFiles) {
+            String f = currFile.path.toLowerCase();
             if (f.contains("safetensor") || f.contains("readme") || f.equals("config.json") || f.contains("tokenizer")) {
                 tensorFiles.add(currFile);
                 if (f.contains("safetensor")) {
@@ -262,105 +211,15 @@ public class SafeTensorSupport {
 
         logger.info("Downloading model to: {}", localModelDir);
 
-        for (String currFile : tensorFiles) {
-            downloadFile(hfModel, currFile, optionalBranch, optionalAuthHeader, localModelDir.resolve(currFile), optionalProgressReporter);
-        }
-    }
-
-    private static List<String> parseFileList(String modelInfo) throws IOException {
-        List<String> fileList = new ArrayList<>();
-
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonNode siblingsNode = objectMapper.readTree(modelInfo);
-        if (siblingsNode.isArray()) {
-            for (JsonNode siblingNode : siblingsNode) {
-                String rFilename = siblingNode.path("path").asText();
-                fileList.add(rFilename);
-            }
-        }
-
-        return fileList;
-    }
-
-    private static Pair<InputStream, Long> getResponse(String urlString, Optional<String> optionalAuthHeader) throws IOException {
-        URL url = new URL(urlString);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-        // Set the request method
-        connection.setRequestMethod("GET");
-
-        // Set the request header
-        optionalAuthHeader.ifPresent(authHeader -> connection.setRequestProperty("Authorization", "Bearer " + authHeader));
-
-        // Get the response code
-        int responseCode = connection.getResponseCode();
-
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            // If the response code is 200 (HTTP_OK), return the input stream
-            return Pair.create(connection.getInputStream(), connection.getContentLengthLong());
-        } else {
-            // If the response code is not 200, throw an IOException
-            throw new IOException("HTTP response code: " + responseCode + " for URL: " + urlString);
-        }
-    }
-
-    private static String readInputStream(InputStream inStream) throws IOException {
-        if (inStream == null) return null;
-
-        BufferedReader inReader = new BufferedReader(new InputStreamReader(inStream));
-        StringBuilder stringBuilder = new StringBuilder();
-
-        String currLine;
-        while ((currLine = inReader.readLine()) != null) {
-            stringBuilder.append(currLine);
-            stringBuilder.append(System.lineSeparator());
-        }
-
-        return stringBuilder.toString();
-    }
-    private static void downloadFile(String hfModel, String currFile, Optional<String> optionalBranch, Optional<String> optionalAuthHeader, Path outputPath, Optional<TriConsumer<String,Long, Long>> optionalProgressConsumer) throws IOException {
-        try {
-            Pair<InputStream, Long> stream = getResponse("https://huggingface.co/" + hfModel + "/resolve/" + optionalBranch.orElse("main") + "/" + currFile, optionalAuthHeader);
-
-            if (optionalProgressConsumer.isEmpty())
+        for (ModelDownloader.RemoteFile currFile : tensorFiles) {
+            Path outputPath = localModelDir.resolve(currFile.path);
+            if (optionalProgressReporter.isEmpty())
                 logger.info("Downloading file: {}", outputPath);
 
-            CountingInputStream inStream = new CountingInputStream(stream.left);
-
-            long totalBytes = stream.right;
-            optionalProgressConsumer.ifPresent(p -> p.accept(currFile, 0L, totalBytes));
-
-            CompletableFuture<Long> result = CompletableFuture.supplyAsync(() -> {
-                try {
-                    return Files.copy(inStream, outputPath, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+            downloader.download(hfModel, branch, currFile, outputPath, optionalProgressReporter);
 
-            optionalProgressConsumer.ifPresent(p -> {
-                while (!result.isDone()) {
-                    p.accept(currFile, inStream.getCount(), totalBytes);
-                }
-
-                if (result.isCompletedExceptionally())
-                    p.accept(currFile, inStream.getCount(), totalBytes);
-                else
-                    p.accept(currFile, totalBytes, totalBytes);
-            });
-
-
-            try {
-                result.get();
-            } catch (Throwable e) {
-                throw new IOException("Failed to download file: " + currFile, e);
-            }
-
-            if (optionalProgressConsumer.isEmpty() && !result.isCompletedExceptionally())
+            if (optionalProgressReporter.isEmpty())
                 logger.info("Downloaded file: {}", outputPath);
         }
-        catch (IOException e) {
-            throw e;
-        }
     }
 }
@@ -3,10 +3,11 @@ package com.github.tjake.jlama.safetensors;
 import com.github.tjake.jlama.math.FloatConversions;
 import com.github.tjake.jlama.tensor.*;
 
+import com.github.tjake.jlama.util.MachineSpec;
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.primitives.Ints;
 
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -20,18 +21,39 @@ public class Weights implements WeightLoader {
     private static final Logger logger = LoggerFactory.getLogger(Weights.class);
     private final Map<String, String> metadata;
     private final Map<String, TensorInfo> tensorInfoMap;
-    private final ByteBuffer bytes;
+    private final MemorySegment bytes;
     private final DType majorityDType;
     private final Optional<WeightLoader> parent;
+    private final boolean halfWidthMatrices;
 
     Weights(Map<String, String> metadata, Map<String, TensorInfo> tensorInfoMap, ByteBuffer bytes, Optional<WeightLoader> parent) {
+        this(metadata, tensorInfoMap, MemorySegment.ofBuffer(bytes), parent);
+    }
+
+    Weights(Map<String, String> metadata, Map<String, TensorInfo> tensorInfoMap, MemorySegment bytes, Optional<WeightLoader> parent) {
+        this(metadata, tensorInfoMap, bytes, parent, MachineSpec.VECTOR_TYPE);
+    }
+
+    /**
+     * @param bytes the tensor data, which tensors are views over rather than copies
+     * @param vectorType the kernels the weights will be used with, half width matrices are widened if they can't read them
+     */
+    Weights(Map<String, String> metadata, Map<String, TensorInfo> tensorInfoMap, MemorySegment bytes, Optional<WeightLoader> parent, MachineSpec.Type vectorType) {
         this.metadata = ImmutableMap.copyOf(metadata);
         this.tensorInfoMap = ImmutableMap.copyOf(tensorInfoMap);
-        this.bytes = bytes.duplicate();
+        this.bytes = bytes;
+        this.halfWidthMatrices = hasHalfWidthKernels(vectorType);
         this.majorityDType = findDType();
         this.parent = parent;
     }
 
+    /**
+     * Only the AVX kernels read BF16 and F16 matrices
+     */
+    static boolean hasHalfWidthKernels(MachineSpec.Type vectorType) {
+        return vectorType == MachineSpec.Type.AVX_512 || vectorType == MachineSpec.Type.AVX_256;
+    }
+
     private DType findDType() {
         EnumMap<DType, Integer> counts = new EnumMap<>(DType.class);
         for (Map.Entry<String, TensorInfo> e : tensorInfoMap.entrySet()) {
@@ -48,8 +70,8 @@ public class Weights implements WeightLoader {
             }
         }
 
-        //FIXME don't really support B16 atm
-        return maxType == DType.BF16 || maxType == DType.F16 ? DType.F32 : maxType;
+        // Widened half width weights are used as F32
+        return !halfWidthMatrices && (maxType == DType.BF16 || maxType == DType.F16) ? DType.F32 : maxType;
     }
 
     @Override
@@ -71,45 +93,25 @@ public class Weights implements WeightLoader {
         if (info.shape.length < 1)
             throw new RuntimeException("Invalid shape dimensions " + info.shape.length + " encountered for " + name);
 
-        ByteBuffer b = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN)
-                .position(Ints.checkedCast(info.dataOffsets[0]))
-                .limit(Ints.checkedCast(info.dataOffsets[1]));
+        ByteBuffer b = bytes.asSlice(info.dataOffsets[0], info.dataOffsets[1] - info.dataOffsets[0])
+                .asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
 
-        int len;
-        FloatBuffer fb;
-        ShortBuffer sb;
         AbstractTensor t;
         switch (info.dType) {
             case F32:
-                fb = b.asFloatBuffer().slice();
-                t =  new FloatBufferTensor(name, fb, TensorShape.of(info.shape), true);
+                t =  new FloatBufferTensor(name, b.asFloatBuffer(), TensorShape.of(info.shape), true);
                 break;
             case F16:
-                // If the majority of the weights are F32 then convert to F32
-                if (majorityDType == DType.F32) {
-                    len = b.remaining() / DType.F16.size();
-                    ByteBuffer bb = ByteBuffer.allocate(len * DType.F32.size()).order(ByteOrder.LITTLE_ENDIAN);
-                    for (int i = 0; i < len * DType.F32.size(); i += DType.F32.size()) {
-                        short s = b.getShort();
-                        float v = Float.float16ToFloat(s);
-                        bb.putFloat(i, v);
-                    }
-                    t =  new FloatBufferTensor(bb.asFloatBuffer(), TensorShape.of(info.shape), true);
-                } else {
-                    sb = b.asShortBuffer().slice();
-                    t =  new Float16BufferTensor(name, sb, TensorShape.of(info.shape), true);
-                }
+                // Vectors like norms and biases are tiny, so they're widened for the F32 kernels.
+                // Matrices stay as is where there are half width kernels to read them.
+                t = info.shape.length == 1 || !halfWidthMatrices
+                        ? toF32(name, b.asShortBuffer(), info.shape, Float::float16ToFloat)
+                        : new Float16BufferTensor(name, b.asShortBuffer(), TensorShape.of(info.shape), true);
                 break;
             case BF16:
-                //For now always convert to F32
-                len = b.remaining() / DType.F16.size();
-                fb = FloatBuffer.allocate(len);
-                for (int i = 0; i < len; i++) {
-                    short s = b.getShort();
-                    float v = FloatConversions.bFloat16ToFloat32(s);
-                    fb.put(i, v);
-                }
-                t = new FloatBufferTensor(name, fb, TensorShape.of(info.shape), true);
+                t = info.shape.length == 1 || !halfWidthMatrices
+                        ? toF32(name, b.asShortBuffer(), info.shape, FloatConversions::bFloat16ToFloat32)
+                        : new BFloat16BufferTensor(name, b.asShortBuffer(), TensorShape.of(info.shape), true);
                 break;
             case Q4:
                 FloatBufferTensor qb = (FloatBufferTensor) parent.orElse(this).load(name + ".qb", offset);
@@ -126,6 +128,19 @@ public class Weights implements WeightLoader {
         return offset.map(o -> t.sparsify(o.left, o.right)).orElse(t);
     }
 
+    private static AbstractTensor toF32(String name, ShortBuffer sb, int[] shape, ShortToFloat conversion) {
+        FloatBuffer fb = FloatBuffer.allocate(sb.remaining());
+        for (int i = 0; i < fb.capacity(); i++)
+            fb.put(i, conversion.apply(sb.get(i)));
+
+        return new FloatBufferTensor(name, fb, TensorShape.of(shape), true);
+    }
+
+    @FunctionalInterface
+    private interface ShortToFloat {
+        float apply(short s);
+    }
+
     @Override
     public DType getModelDType() {
         return majorityDType;
@@ -1,13 +1,17 @@
 package com.github.tjake.jlama.safetensors.tokenizer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,7 +21,16 @@ import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 public abstract class BPETokenizer implements Tokenizer {
     protected static final Logger logger = LoggerFactory.getLogger(BPETokenizer.class);
     protected final TokenizerModel model;
-    protected final ByteBuffer decodeBuffer = ByteBuffer.allocate(4);
+
+    /** Longer pieces, e.g. whole sentences when there is no pre-tokenizer, aren't worth caching */
+    private static final int MAX_CACHED_PIECE_LENGTH = 64;
+    private static final int PIECE_CACHE_SIZE = 1 << 16;
+    /** Fewer pieces than this are encoded on the calling thread */
+    private static final int MIN_PARALLEL_PIECES = 256;
+
+    private final MergeTable merges;
+    private final Cache<String, int[]> pieceCache = CacheBuilder.newBuilder().maximumSize(PIECE_CACHE_SIZE).build();
+    private final Supplier<byte[][]> tokenBytes = Suppliers.memoize(this::buildTokenBytes);
 
     protected BPETokenizer(Path modelRoot) {
         Preconditions.checkArgument(modelRoot.resolve("tokenizer.json").toFile().exists(), "No tokenizer.jsom found in " + modelRoot);
@@ -27,6 +40,8 @@ public abstract class BPETokenizer implements Tokenizer {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+
+        this.merges = buildMergeTable(model);
     }
 
     @Override
@@ -49,68 +64,281 @@ public abstract class BPETokenizer implements Tokenizer {
     public long[] encode(String rawSentence) {
 
         List<String> sentencePieces = tokenize(rawSentence);
-        List<Long> allTokens = new ArrayList<>();
-
-        for (String sentence : sentencePieces) {
-            List<Long> tokens = new ArrayList<>();
-            sentence = preProcess(sentence);
-            int[] codes = sentence.codePoints().toArray();
-            for (int i = 0; i < codes.length; i++) {
-                String c = Character.toString(codes[i]);
-                Long id = model.vocabLookup.get(c);
-                if (id != null) {
-                    // we found this codepoint in vocab, add it as a token
-                    //logger.debug("{} -> {}", c, id);
-                    tokens.add(id);
-                } else {
-                    if (model.byteFallback) {
-                        // byte_fallback encoding: just encode each byte as a token
-                        String code = Character.toString(codes[i]);
-                        byte[] chars = code.getBytes(StandardCharsets.UTF_8);
-                        for (int k = 0; k < chars.length; k++) {
-                            long token = encodeCharacterAsToken(chars[k]);
-                            //logger.debug("byte {} -> {}", Byte.toUnsignedInt(chars[k]), token);
-                            tokens.add(token);
-                        }
-                    } else {
-                        if (model.unkToken != null) {
-                            tokens.add(model.vocabLookup.get(model.unkToken));
-                        }
-                    }
-                }
+        int[][] pieceTokens = new int[sentencePieces.size()][];
+
+        // Pieces merge independently, so long inputs are spread over the fork join pool
+        boolean parallel = pieceTokens.length >= MIN_PARALLEL_PIECES;
+        IntStream pieces = IntStream.range(0, pieceTokens.length);
+        (parallel ? pieces.parallel() : pieces).forEach(i -> pieceTokens[i] = encodePiece(sentencePieces.get(i)));
+
+        int[] offsets = new int[pieceTokens.length + 1];
+        for (int i = 0; i < pieceTokens.length; i++)
+            offsets[i + 1] = offsets[i] + pieceTokens[i].length;
+
+        long[] allTokens = new long[offsets[pieceTokens.length]];
+        pieces = IntStream.range(0, pieceTokens.length);
+        (parallel ? pieces.parallel() : pieces).forEach(i -> {
+            int[] tokens = pieceTokens[i];
+            for (int j = 0, pos = offsets[i]; j < tokens.length; j++, pos++)
+                allTokens[pos] = tokens[j];
+        });
+
+        return allTokens;
+    }
+
+    private int[] encodePiece(String piece) {
+        String sentence = preProcess(piece);
+        boolean cacheable = sentence.length() <= MAX_CACHED_PIECE_LENGTH;
+        int[] tokens = cacheable ? pieceCache.getIfPresent(sentence) : null;
+        if (tokens == null) {
+            tokens = merge(sentence);
+            if (cacheable)
+                pieceCache.put(sentence, tokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * Splits the piece into its characters, then applies merges lowest rank first (leftmost on ties) until none apply.
+     * Symbols are a linked list over arrays with a heap of candidate pairs, so each merge is a log n step.
+     */
+    private int[] merge(String sentence) {
+        int[] codes = sentence.codePoints().toArray();
+        int[] tokens = new int[codes.length];
+        int n = 0;
+        for (int i = 0; i < codes.length; i++) {
+            Long id = model.vocabLookup.get(Character.toString(codes[i]));
+            if (id != null) {
+                // we found this codepoint in vocab, add it as a token
+                tokens[n++] = id.intValue();
+            } else if (model.byteFallback) {
+                // byte_fallback encoding: just encode each byte as a token
+                byte[] chars = Character.toString(codes[i]).getBytes(StandardCharsets.UTF_8);
+                if (n + chars.length > tokens.length)
+                    tokens = Arrays.copyOf(tokens, tokens.length + codes.length * 3);
+                for (int k = 0; k < chars.length; k++)
+                    tokens[n++] = (int) encodeCharacterAsToken(chars[k]);
+            } else if (model.unkToken != null && model.vocabLookup.containsKey(model.unkToken)) {
+                tokens[n++] = model.vocabLookup.get(model.unkToken).intValue();
             }
+        }
 
-            // merge the best consecutive pair each iteration
-            while (true) {
-                long bestId = -1;
-                long bestIdx = -1;
-
-                for (int i = 0; i < tokens.size() - 1; i++) {
-                    // check if we can merge the pair (tokens[i], tokens[i+1])
-                    String merge = String.format("%s%s", decodeInternal(tokens.get(i)), decodeInternal(tokens.get(i + 1)));
-                    Long id = model.vocabLookup.get(merge);
-                    if (id != null) {
-                        // this merge pair exists in vocab! record its position
-                        bestId = id;
-                        bestIdx = i;
-                        break;
-                    }
-                }
+        if (n < 2)
+            return Arrays.copyOf(tokens, n);
+
+        int[] prev = new int[n];
+        int[] next = new int[n];
+        for (int i = 0; i < n; i++) {
+            prev[i] = i - 1;
+            next[i] = i + 1 < n ? i + 1 : -1;
+        }
+
+        // Candidates are (rank, position) packed so the heap orders by rank then position
+        PairHeap heap = new PairHeap(n);
+        for (int i = 0; i < n - 1; i++) {
+            int rank = merges.rank(tokens[i], tokens[i + 1]);
+            if (rank >= 0)
+                heap.add(rank, i);
+        }
+
+        int remaining = n;
+        while (!heap.isEmpty()) {
+            long candidate = heap.poll();
+            int rank = (int) (candidate >>> 32);
+            int i = (int) candidate;
+
+            // Skip candidates that went stale when a neighbour merged
+            int j = next[i];
+            if (tokens[i] < 0 || j < 0 || merges.rank(tokens[i], tokens[j]) != rank)
+                continue;
+
+            tokens[i] = merges.merged(tokens[i], tokens[j]);
+            tokens[j] = -1;
+            next[i] = next[j];
+            if (next[j] >= 0)
+                prev[next[j]] = i;
+            remaining--;
+
+            if (prev[i] >= 0) {
+                int r = merges.rank(tokens[prev[i]], tokens[i]);
+                if (r >= 0)
+                    heap.add(r, prev[i]);
+            }
+
+            if (next[i] >= 0) {
+                int r = merges.rank(tokens[i], tokens[next[i]]);
+                if (r >= 0)
+                    heap.add(r, i);
+            }
+        }
+
+        int[] merged = new int[remaining];
+        for (int i = 0, k = 0; i >= 0; i = next[i])
+            merged[k++] = tokens[i];
+
+        return merged;
+    }
+
+    /**
+     * Ranks of the model's merges, the order they were learned in. Without a merge list in the tokenizer
+     * every split of a vocab entry into two others is a merge, ranked by the entry's id.
+     */
+    private static MergeTable buildMergeTable(TokenizerModel model) {
+        if (!model.merges.isEmpty()) {
+            MergeTable table = new MergeTable(model.merges.size());
+            int rank = 0;
+            for (String[] m : model.merges) {
+                Long left = model.vocabLookup.get(m[0]);
+                Long right = model.vocabLookup.get(m[1]);
+                Long merged = model.vocabLookup.get(m[0] + m[1]);
+                if (left != null && right != null && merged != null)
+                    table.putIfAbsent(left.intValue(), right.intValue(), rank, merged.intValue());
+                rank++;
+            }
+            return table;
+        }
+
+        MergeTable table = new MergeTable(model.vocabLookup.size() * 2);
+        for (Map.Entry<String, Long> e : model.vocabLookup.entrySet()) {
+            String s = e.getKey();
+            int id = e.getValue().intValue();
+            for (int split = s.offsetByCodePoints(0, 1); split < s.length(); split = s.offsetByCodePoints(split, 1)) {
+                Long left = model.vocabLookup.get(s.substring(0, split));
+                Long right = model.vocabLookup.get(s.substring(split));
+                if (left != null && right != null)
+                    table.putIfAbsent(left.intValue(), right.intValue(), id, id);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Open addressed map from a pair of token ids to the rank of their merge and the token it makes
+     */
+    static final class MergeTable {
+        private long[] keys;
+        private int[] ranks;
+        private int[] merged;
+        private int mask;
+        private int size;
+
+        MergeTable(int expected) {
+            allocate(Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1);
+        }
+
+        private void allocate(int capacity) {
+            this.keys = new long[capacity];
+            this.ranks = new int[capacity];
+            this.merged = new int[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(keys, -1L);
+        }
 
-                if (bestIdx == -1) {
-                    break; // we couldn't find any more pairs to merge, so we're done
+        private int slot(long key) {
+            int h = (int) (key ^ (key >>> 29)) * 0x9E3779B9;
+            int i = h & mask;
+            while (keys[i] != -1L && keys[i] != key)
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        void putIfAbsent(int left, int right, int rank, int token) {
+            long key = ((long) left << 32) | (right & 0xFFFFFFFFL);
+            int i = slot(key);
+            if (keys[i] == key) {
+                if (ranks[i] <= rank)
+                    return;
+            } else {
+                // Kept at most half full so probes stay short and always reach an empty slot
+                if (++size * 2 > keys.length) {
+                    grow();
+                    i = slot(key);
                 }
+                keys[i] = key;
+            }
+
+            ranks[i] = rank;
+            merged[i] = token;
+        }
 
-                // merge the consecutive pair (best_idx, best_idx+1) into new token best_id
-                tokens.set((int) bestIdx, bestId);
-                // delete token at position best_idx+1, shift the entire sequence back 1
-                tokens.remove((int) bestIdx + 1);
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldRanks = ranks;
+            int[] oldMerged = merged;
+            allocate(oldKeys.length * 2);
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == -1L)
+                    continue;
+                int i = slot(oldKeys[j]);
+                keys[i] = oldKeys[j];
+                ranks[i] = oldRanks[j];
+                merged[i] = oldMerged[j];
             }
+        }
+
+        /** @return the rank of merging the pair, or -1 if it doesn't merge */
+        int rank(int left, int right) {
+            if (left < 0 || right < 0)
+                return -1;
+            long key = ((long) left << 32) | (right & 0xFFFFFFFFL);
+            int i = slot(key);
+            return keys[i] == key ? ranks[i] : -1;
+        }
+
+        int merged(int left, int right) {
+            return merged[slot(((long) left << 32) | (right & 0xFFFFFFFFL))];
+        }
+    }
+
+    /**
+     * Min heap of packed (rank, position) longs
+     */
+    private static final class PairHeap {
+        private long[] heap;
+        private int size;
+
+        PairHeap(int capacity) {
+            this.heap = new long[Math.max(capacity, 4)];
+        }
 
-            allTokens.addAll(tokens);
+        boolean isEmpty() {
+            return size == 0;
         }
 
-        return allTokens.stream().mapToLong(s -> s).toArray();
+        void add(int rank, int position) {
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, size * 2);
+
+            long v = ((long) rank << 32) | position;
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= v)
+                    break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = v;
+        }
+
+        long poll() {
+            long top = heap[0];
+            long v = heap[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && heap[child + 1] < heap[child])
+                    child++;
+                if (heap[child] >= v)
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = v;
+            return top;
+        }
     }
 
     protected String postProcessToken(String decoded) {
@@ -120,48 +348,77 @@ public abstract class BPETokenizer implements Tokenizer {
         return decoded;
     }
 
+    /**
+     * Decodes a single token on its own, a character split over several tokens comes out as replacement characters.
+     * Use a {@link #streamingDecoder()} to decode a stream of tokens.
+     */
     @Override
     public String decode(long id) {
-        return maybeDecodeTokenAsCharacter(id).map(c -> {
-            // We have a continuation byte or are buffering them
-            if (Character.isUnicodeIdentifierPart(c) || decodeBuffer.remaining() < 4) {
-                decodeBuffer.put((byte)c.charValue());
-
-                //Unicode symbol is ready
-                if (decodeBuffer.remaining() == 0) {
-                    String s = new String(decodeBuffer.array());
-                    decodeBuffer.rewind();
-                    return s;
-                }
+        byte[][] table = tokenBytes.get();
+        return new String(id >= 0 && id < table.length && table[(int) id] != null ? table[(int) id] : unknownBytes(), StandardCharsets.UTF_8);
+    }
 
-                return "";
-            }
-            return Character.toString(c);
-        }).orElseGet(() -> postProcessToken(model.vocabLookup.inverse().get(id)));
+    @Override
+    public StreamingDecoder streamingDecoder() {
+        return new StreamingDecoder(tokenBytes.get(), unknownBytes());
     }
 
-    protected abstract long encodeCharacterAsToken(byte c);
+    /**
+     * The UTF-8 bytes a token decodes to, byte fallback tokens are their byte
+     */
+    protected byte[] tokenBytes(long id) {
+        Optional<Character> c = maybeDecodeTokenAsCharacter(id);
+        if (c.isPresent())
+            return new byte[]{(byte) c.get().charValue()};
 
-    protected abstract Optional<Character> maybeDecodeTokenAsCharacter(long id);
+        String s = postProcessToken(model.vocabLookup.inverse().get(id));
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
 
-    //Only used for merging
-    protected String decodeInternal(long id) {
-        return maybeDecodeTokenAsCharacter(id).map(Object::toString).orElseGet(() -> {
+    /**
+     * Bytes of byte level vocabularies, where each character below 256 stands for that byte
+     */
+    protected static byte[] byteLevelBytes(String s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+        s.codePoints().forEach(c -> {
+            if (c < 256)
+                out.write(c);
+            else
+                out.writeBytes(Character.toString(c).getBytes(StandardCharsets.UTF_8));
+        });
+        return out.toByteArray();
+    }
 
-            String s = model.vocabLookup.inverse().get(id);
-            if (s == null)
-                s = model.unkToken;
+    private byte[] unknownBytes() {
+        return model.unkToken == null ? new byte[0] : model.unkToken.getBytes(StandardCharsets.UTF_8);
+    }
 
-            return s;
-        });
+    // Built on first use, subclasses aren't set up yet when this constructor runs
+    private byte[][] buildTokenBytes() {
+        int size = model.vocabLookup.values().stream().mapToInt(Long::intValue).max().orElse(-1) + 1;
+        byte[][] table = new byte[size][];
+        for (long id : model.vocabLookup.values())
+            table[(int) id] = tokenBytes(id);
+
+        // Byte fallback tokens may not all be in the vocab
+        for (int b = 0; b < 256; b++) {
+            long id = encodeCharacterAsToken((byte) b);
+            if (id >= 0 && id < size && table[(int) id] == null)
+                table[(int) id] = tokenBytes(id);
+        }
+        return table;
     }
 
+    protected abstract long encodeCharacterAsToken(byte c);
+
+    protected abstract Optional<Character> maybeDecodeTokenAsCharacter(long id);
+
     protected String postProcess(String sentence) {
         return sentence;
     }
 
     @Override
     public String decode(long[] ids) {
-        return postProcess(Arrays.stream(ids).mapToObj(this::decode).collect(Collectors.joining()));
+        return postProcess(streamingDecoder().decode(ids));
     }
 }
@@ -0,0 +1,194 @@
+package com.github.tjake.jlama.safetensors.tokenizer;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Read only double-array trie over the UTF-16 chars of its keys, for longest prefix matching.
+ * The transition from state s on char c is to t = base[s] + code(c) when check[t] == s, chars are
+ * mapped to dense codes first so the arrays stay about as large as the number of trie nodes.
+ *
+ * While building, the free slots are kept in a linked list so placing a state's children only
+ * looks at slots that could take them, keeping the build about linear in the number of nodes.
+ */
+final class DoubleArrayTrie {
+    private static final int FREE = -1;
+
+    private final char[] codes = new char[Character.MAX_VALUE + 1];
+    private int[] base;
+    private int[] check;
+    private int[] value;
+
+    // Free slots in ascending order, only used while building
+    private int[] nextFree;
+    private int[] prevFree;
+    private int freeHead = FREE;
+    private int freeTail = FREE;
+
+    /**
+     * @param keys keys and their non negative values, empty keys are ignored
+     */
+    DoubleArrayTrie(Map<String, Integer> keys) {
+        String[] sorted = keys.keySet().stream().filter(k -> !k.isEmpty()).sorted().toArray(String[]::new);
+        int[] values = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            values[i] = keys.get(sorted[i]);
+            Preconditions.checkArgument(values[i] >= 0, "Negative value for " + sorted[i]);
+        }
+
+        char next = 1;
+        for (String key : sorted)
+            for (int i = 0; i < key.length(); i++)
+                if (codes[key.charAt(i)] == 0)
+                    codes[key.charAt(i)] = next++;
+
+        this.base = new int[0];
+        this.check = new int[0];
+        this.value = new int[0];
+        this.nextFree = new int[0];
+        this.prevFree = new int[0];
+        ensureCapacity(Math.max(256, sorted.length * 2 + next));
+
+        use(0, Integer.MAX_VALUE); // The root has no parent
+        build(0, sorted, values, 0, sorted.length, 0);
+
+        this.nextFree = null;
+        this.prevFree = null;
+    }
+
+    /**
+     * Finds the longest key that prefixes chars[from, to)
+     * @return the key length in the upper 32 bits and its value in the lower, or -1 when no key matches
+     */
+    long longestPrefix(char[] chars, int from, int to) {
+        long match = -1;
+        int s = 0;
+        for (int i = from; i < to; i++) {
+            int code = codes[chars[i]];
+            if (code == 0)
+                break;
+
+            int t = base[s] + code;
+            if (t >= check.length || check[t] != s)
+                break;
+
+            s = t;
+            if (value[s] != FREE)
+                match = ((long) (i - from + 1) << 32) | value[s];
+        }
+        return match;
+    }
+
+    /**
+     * Places the children of state s, the keys sorted[lo, hi) which share their first depth chars
+     */
+    private void build(int s, String[] sorted, int[] values, int lo, int hi, int depth) {
+        if (lo < hi && sorted[lo].length() == depth)
+            value[s] = values[lo++];
+
+        if (lo == hi)
+            return;
+
+        // Distinct next chars, with where their keys start
+        int[] childCodes = new int[hi - lo];
+        int[] childStarts = new int[hi - lo + 1];
+        int children = 0;
+        for (int i = lo; i < hi; i++) {
+            int code = codes[sorted[i].charAt(depth)];
+            if (children == 0 || childCodes[children - 1] != code) {
+                childCodes[children] = code;
+                childStarts[children++] = i;
+            }
+        }
+        childStarts[children] = hi;
+
+        int b = findBase(childCodes, children);
+        base[s] = b;
+        for (int i = 0; i < children; i++)
+            use(b + childCodes[i], s);
+
+        for (int i = 0; i < children; i++)
+            build(b + childCodes[i], sorted, values, childStarts[i], childStarts[i + 1], depth + 1);
+    }
+
+    /**
+     * Finds a base where every child code lands on a free slot, trying each free slot for the smallest code
+     */
+    private int findBase(int[] childCodes, int children) {
+        int min = Integer.MAX_VALUE, max = 0;
+        for (int i = 0; i < children; i++) {
+            min = Math.min(min, childCodes[i]);
+            max = Math.max(max, childCodes[i]);
+        }
+
+        int last = FREE;
+        while (true) {
+            int pos = last == FREE ? freeHead : nextFree[last];
+            if (pos == FREE) {
+                // Out of free slots, grow and carry on from the new ones
+                ensureCapacity(check.length * 2);
+                continue;
+            }
+            last = pos;
+
+            if (pos <= min)
+                continue;
+
+            int b = pos - min;
+            ensureCapacity(b + max + 1);
+
+            boolean fits = true;
+            for (int i = 0; i < children && fits; i++)
+                fits = check[b + childCodes[i]] == FREE;
+
+            if (fits)
+                return b;
+        }
+    }
+
+    /**
+     * Takes slot t for a state whose parent is s
+     */
+    private void use(int t, int s) {
+        check[t] = s;
+
+        int prev = prevFree[t], next = nextFree[t];
+        if (prev == FREE)
+            freeHead = next;
+        else
+            nextFree[prev] = next;
+
+        if (next == FREE)
+            freeTail = prev;
+        else
+            prevFree[next] = prev;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= check.length)
+            return;
+
+        int capacity = Math.max(size, check.length * 2);
+        int old = check.length;
+        base = Arrays.copyOf(base, capacity);
+        check = Arrays.copyOf(check, capacity);
+        value = Arrays.copyOf(value, capacity);
+        nextFree = Arrays.copyOf(nextFree, capacity);
+        prevFree = Arrays.copyOf(prevFree, capacity);
+        Arrays.fill(check, old, capacity, FREE);
+        Arrays.fill(value, old, capacity, FREE);
+
+        // The new slots go on the end of the free list
+        for (int i = old; i < capacity; i++) {
+            prevFree[i] = i == old ? freeTail : i - 1;
+            nextFree[i] = i == capacity - 1 ? FREE : i + 1;
+        }
+        if (freeTail == FREE)
+            freeHead = old;
+        else
+            nextFree[freeTail] = old;
+        freeTail = capacity - 1;
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.tjake.jlama.safetensors.tokenizer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Turns the tokens of one generation session into text as they come. Each token maps to its UTF-8 bytes through
+ * a table the tokenizer builds once, bytes of a character split across tokens are held back until it's complete.
+ *
+ * Not thread safe, use one per session. Nothing is shared with other sessions but the read only table.
+ */
+public class StreamingDecoder {
+    private final byte[][] table;
+    private final byte[] unknown;
+    private byte[] pending = new byte[16];
+    private int pendingLength;
+
+    /**
+     * @param table the bytes of each token id, null entries and ids past the end decode as unknown
+     */
+    public StreamingDecoder(byte[][] table, byte[] unknown) {
+        this.table = table;
+        this.unknown = unknown;
+    }
+
+    /**
+     * @return the text completed by this token, possibly empty
+     */
+    public String next(long id) {
+        byte[] bytes = id >= 0 && id < table.length && table[(int) id] != null ? table[(int) id] : unknown;
+        if (pendingLength + bytes.length > pending.length)
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + bytes.length));
+
+        System.arraycopy(bytes, 0, pending, pendingLength, bytes.length);
+        pendingLength += bytes.length;
+
+        int complete = completeLength();
+        if (complete == 0)
+            return "";
+
+        String s = new String(pending, 0, complete, StandardCharsets.UTF_8);
+        System.arraycopy(pending, complete, pending, 0, pendingLength - complete);
+        pendingLength -= complete;
+        return s;
+    }
+
+    /**
+     * @return whatever is held back, incomplete characters become replacement characters
+     */
+    public String flush() {
+        String s = new String(pending, 0, pendingLength, StandardCharsets.UTF_8);
+        pendingLength = 0;
+        return s;
+    }
+
+    /**
+     * Hands the bytes of a character the output was cut off in the middle of to the consumer, if there are any
+     */
+    public void flushTo(BiConsumer<String, Float> onTokenWithTimings, float timing) {
+        String s = flush();
+        if (!s.isEmpty())
+            onTokenWithTimings.accept(s, timing);
+    }
+
+    /**
+     * Decodes a whole sequence, leaving nothing held back
+     */
+    public String decode(long[] ids) {
+        StringBuilder sb = new StringBuilder();
+        for (long id : ids)
+            sb.append(next(id));
+
+        return sb.append(flush()).toString();
+    }
+
+    /**
+     * Length of the pending bytes up to the end of the last complete character
+     */
+    private int completeLength() {
+        // A character is at most 4 bytes, so its lead byte is in the last 4
+        for (int i = pendingLength - 1; i >= Math.max(0, pendingLength - 4); i--) {
+            int b = pending[i] & 0xFF;
+            if ((b & 0xC0) == 0x80)
+                continue; // Continuation byte
+
+            int length = b < 0x80 ? 1 : b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+            return i + length <= pendingLength ? pendingLength : i;
+        }
+
+        // Only stray continuation bytes, they will never complete
+        return pendingLength;
+    }
+}
@@ -1,13 +1,29 @@
 package com.github.tjake.jlama.safetensors.tokenizer;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.IntStream;
 
 public interface Tokenizer {
     List<String> tokenize(String sentence);
 
     long[] encode(String sentence);
 
+    /**
+     * Encodes independent sentences, e.g. documents to embed, spread over the fork join pool
+     */
+    default List<long[]> encodeBatch(List<String> sentences) {
+        long[][] encoded = new long[sentences.size()][];
+        IntStream.range(0, encoded.length).parallel().forEach(i -> encoded[i] = encode(sentences.get(i)));
+        return Arrays.asList(encoded);
+    }
+
     String decode(long id);
 
     String decode(long[] ids);
+
+    /**
+     * A decoder for one stream of generated tokens
+     */
+    StreamingDecoder streamingDecoder();
 }
@@ -13,6 +13,7 @@ import com.google.common.collect.ImmutableBiMap;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableList;
 
 public class TokenizerModel
@@ -27,6 +28,8 @@ public class TokenizerModel
     public final boolean byteFallback;
     @JsonProperty("vocab")
     public final BiMap<String, Long> vocabLookup;
+    /** BPE merges as [left, right] pairs, highest priority first */
+    public final List<String[]> merges;
     private PreTokenizer preTokenizer;
 
     //This is pretty much a hack to support the legacy tokenizer
@@ -38,14 +41,36 @@ public class TokenizerModel
             @JsonProperty("unk_token") String unkToken,
             @JsonProperty("fuse_unk") boolean fuseUnk,
             @JsonProperty("byte_fallback") boolean byteFallback,
-            @JsonProperty("vocab") Map<String, Long> vocabLookup) {
+            @JsonProperty("vocab") Map<String, Long> vocabLookup,
+            @JsonProperty("merges") JsonNode merges) {
         this.type = type;
         this.unkToken = unkToken;
         this.fuseUnk = fuseUnk;
         this.byteFallback = byteFallback;
         this.vocabLookup = ImmutableBiMap.copyOf(vocabLookup);
+        this.merges = parseMerges(merges);
    }
 
+    // Merges are either "left right" strings or, in newer files, [left, right] arrays
+    private static List<String[]> parseMerges(JsonNode merges) {
+        if (merges == null || !merges.isArray())
+            return Collections.emptyList();
+
+        List<String[]> pairs = new ArrayList<>(merges.size());
+        for (JsonNode merge : merges) {
+            if (merge.isArray() && merge.size() == 2) {
+                pairs.add(new String[]{merge.get(0).asText(), merge.get(1).asText()});
+            } else if (merge.isTextual()) {
+                String m = merge.asText();
+                int split = m.indexOf(' ', 1);
+                if (split > 0)
+                    pairs.add(new String[]{m.substring(0, split), m.substring(split + 1)});
+            }
+        }
+
+        return pairs;
+    }
+
     public PreTokenizer preTokenizer() {
         return preTokenizer;
     }
@@ -1,14 +1,18 @@
 package com.github.tjake.jlama.safetensors.tokenizer;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 
 import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 
@@ -19,10 +23,14 @@ public class WordPieceTokenizer implements Tokenizer {
     protected final long sepToken;
     protected final long clsToken;
     protected final long unkToken;
+    private final DoubleArrayTrie words;
+    private final DoubleArrayTrie suffixes;
+    private final Supplier<byte[][]> tokenBytes = Suppliers.memoize(this::buildTokenBytes);
 
     protected static final String sepString = "[SEP]";
     protected static final String clsString = "[CLS]";
     protected static final String unkString = "[UNK]";
+    private static final int MAX_WORD_CHARS = 200;
 
 
     public WordPieceTokenizer(Path modelRoot) {
@@ -38,67 +46,104 @@ public class WordPieceTokenizer implements Tokenizer {
         this.sepToken = model.vocabLookup.get(sepString);
         this.clsToken = model.vocabLookup.get(clsString);
         this.unkToken = model.vocabLookup.get(unkString);
+
+        Map<String, Integer> wordKeys = new HashMap<>();
+        Map<String, Integer> suffixKeys = new HashMap<>();
+        for (Map.Entry<String, Long> e : model.vocabLookup.entrySet()) {
+            if (e.getKey().startsWith("##"))
+                suffixKeys.put(e.getKey().substring(2), e.getValue().intValue());
+            else
+                wordKeys.put(e.getKey(), e.getValue().intValue());
+        }
+        this.words = new DoubleArrayTrie(wordKeys);
+        this.suffixes = new DoubleArrayTrie(suffixKeys);
     }
 
     @Override
     public List<String> tokenize(String sentence) {
-
-        sentence = preProcess(sentence);
-
-        String[] whitespaceSplits = sentence.split("\\s+");
-
-        List<String> tokens = new ArrayList<>();
-        tokens.add(clsString);
-
-        List<String> stringList = Arrays.stream(whitespaceSplits)
-                .flatMap(this::splitByPunctuation)
-                .map(str -> str.length() > 200 ? model.unkToken : str)
-                .flatMap(str -> {
-                    boolean isBad = false;
-                    List<String> subTokens = new ArrayList<>();
-
-                    int start = 0;
-                    while (start < str.length()) {
-                        int end = str.length();
-                        String curSubStr = null;
-                        while (start < end) {
-                            String substr = str.substring(start, end);
-                            if (start > 0)
-                                substr = "##" + substr;
-                            if (model.vocabLookup.containsKey(substr)) {
-                                curSubStr = substr;
-                                break;
-                            }
-                            end -= 1;
-                        }
-                        if (curSubStr == null) {
-                            isBad = true;
-                            break;
-                        }
-
-                        subTokens.add(curSubStr);
-                        start = end;
-                    }
-
-                    if (isBad)
-                        subTokens.add(model.unkToken);
-
-                    return subTokens.stream();
-                }).collect(Collectors.toList());
-
-        tokens.addAll(stringList);
-        tokens.add(sepString);
+        int[] ids = encodeIds(sentence);
+        List<String> tokens = new ArrayList<>(ids.length);
+        for (int id : ids)
+            tokens.add(model.vocabLookup.inverse().get((long) id));
 
         return tokens;
     }
 
-    protected String preProcess(String sentence) {
-        sentence =  sentence.toLowerCase().strip();
+    /**
+     * Tokenizes straight into vocab ids, wrapped in [CLS] ... [SEP].
+     * Cleaning, lowercasing and splitting happen in one pass over the chars, words are matched against the tries
+     * from a reused buffer so nothing is allocated per word.
+     */
+    public int[] encodeIds(String sentence) {
+        // Every token covers at least one char
+        int[] ids = new int[sentence.length() + 2];
+        char[] word = new char[MAX_WORD_CHARS + 1];
+        int length = 0;
+        int count = 0;
+
+        ids[count++] = (int) clsToken;
+        for (int i = 0; i < sentence.length(); ) {
+            int cp = sentence.codePointAt(i);
+            i += Character.charCount(cp);
+
+            if (cp == 0 || cp == 0xfffd || isControl(cp))
+                continue;
+
+            if (Character.isWhitespace(cp)) {
+                count = wordPiece(word, length, ids, count);
+                length = 0;
+                continue;
+            }
+
+            cp = Character.toLowerCase(cp);
+            if (isPunctuation(cp)) {
+                count = wordPiece(word, length, ids, count);
+                length = Character.toChars(cp, word, 0);
+                count = wordPiece(word, length, ids, count);
+                length = 0;
+                continue;
+            }
+
+            // Past the limit only count, the word becomes [UNK] anyway
+            if (length + Character.charCount(cp) <= word.length)
+                length += Character.toChars(cp, word, length);
+            else
+                length += Character.charCount(cp);
+        }
+        count = wordPiece(word, length, ids, count);
+        ids[count++] = (int) sepToken;
+
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Greedy longest match of word[0, length), a word with any unmatched part becomes a single [UNK]
+     * @return the new count of ids
+     */
+    private int wordPiece(char[] word, int length, int[] ids, int count) {
+        if (length == 0)
+            return count;
+
+        if (length > MAX_WORD_CHARS) {
+            ids[count] = (int) unkToken;
+            return count + 1;
+        }
+
+        int start = count;
+        for (int pos = 0; pos < length; ) {
+            long match = (pos == 0 ? words : suffixes).longestPrefix(word, pos, length);
+            if (match < 0) {
+                ids[start] = (int) unkToken;
+                return start + 1;
+            }
 
-        return cleanText(sentence);
+            ids[count++] = (int) match;
+            pos += (int) (match >>> 32);
+        }
+        return count;
     }
 
-    static boolean isControl(Integer c) {
+    static boolean isControl(int c) {
          // These are technically control characters but we count them as whitespace characters.
         if (c =='\t' || c == '\n' || c == '\r')
             return false;
@@ -106,7 +151,7 @@ public class WordPieceTokenizer implements Tokenizer {
         return Character.isISOControl(c);
     }
 
-    static boolean isPunctuation(Integer cp) {
+    static boolean isPunctuation(int cp) {
         if ((cp >= 33 && cp <= 47) || (cp >= 58 && cp <= 64) ||
                 (cp >= 91 && cp <= 96) || (cp >= 123 && cp <= 126)) {
             return true;
@@ -119,55 +164,14 @@ public class WordPieceTokenizer implements Tokenizer {
         return false;
     }
 
-    String cleanText(String sentence) {
-        return sentence.codePoints()
-                .map(c -> {
-                    if (c == 0 || c == 0xfffd || isControl(c))
-                        return -1;
-
-                    if (Character.isWhitespace(c))
-                        return ' ';
-
-                    return c;
-                }).filter(c -> c != -1)
-                .mapToObj(Character::toString)
-                .collect(Collectors.joining());
-    }
-
-    Stream<String> splitByPunctuation(String str)
-    {
-        List<String> result = new ArrayList<>();
-
-        int start = 0;
-
-        for (int offset = 0; offset < str.length(); ) {
-            int codepoint = str.codePointAt(offset);
-
-            if (isPunctuation(codepoint)) {
-                if (offset != start) {
-                    result.add(str.substring(start, offset));
-                }
-                result.add(str.substring(offset, offset + Character.charCount(codepoint)));
-                start = offset + Character.charCount(codepoint);
-            }
-
-            offset += Character.charCount(codepoint);
-        }
-
-        // Add the remaining part if there's any
-        if (start != str.length()) {
-            result.add(str.substring(start));
-        }
-
-        return result.stream();
-    }
-
     @Override
     public long[] encode(String sentence) {
-        return tokenize(sentence)
-                .stream()
-                .mapToLong(s -> model.vocabLookup.get(s))
-                .toArray();
+        int[] ids = encodeIds(sentence);
+        long[] encoded = new long[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            encoded[i] = ids[i];
+
+        return encoded;
     }
 
     protected String postProcessToken(String decoded) {
@@ -182,6 +186,18 @@ public class WordPieceTokenizer implements Tokenizer {
         return postProcessToken(model.vocabLookup.inverse().get(id));
     }
 
+    @Override
+    public StreamingDecoder streamingDecoder() {
+        return new StreamingDecoder(tokenBytes.get(), unkString.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[][] buildTokenBytes() {
+        byte[][] table = new byte[model.vocabLookup.values().stream().mapToInt(Long::intValue).max().orElse(-1) + 1][];
+        for (long id : model.vocabLookup.values())
+            table[(int) id] = decode(id).getBytes(StandardCharsets.UTF_8);
+        return table;
+    }
+
     protected String postProcess(String sentence) {
         return sentence.strip();
     }
@@ -0,0 +1,34 @@
+package com.github.tjake.jlama.tensor;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A kv buffer backed by a single pre-allocated [layers, positions, 2, kvLength] tensor
+ */
+public class DenseKvBuffer implements KvBuffer {
+    private final AbstractTensor kvmem;
+    private final Layer[] layers;
+
+    public DenseKvBuffer(AbstractTensor kvmem) {
+        Preconditions.checkArgument(kvmem.dims() == 4, "kv memory must be [layers, positions, 2, kvLength]");
+        this.kvmem = kvmem;
+        this.layers = new Layer[kvmem.shape().first()];
+        for (int i = 0; i < layers.length; i++)
+            layers[i] = KvBuffer.denseLayer(kvmem.slice(true, i));
+    }
+
+    @Override
+    public Layer layer(int layer) {
+        return layers[layer];
+    }
+
+    @Override
+    public int capacity() {
+        return kvmem.shape().dim(1);
+    }
+
+    @Override
+    public void close() {
+        kvmem.close();
+    }
+}
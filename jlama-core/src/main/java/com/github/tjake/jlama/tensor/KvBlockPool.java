@@ -0,0 +1,159 @@
+package com.github.tjake.jlama.tensor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A shared pool of fixed size kv blocks, each holding the keys and values of blockSize positions
+ * for every layer [layers, blockSize, 2, kvLength].
+ *
+ * Blocks are only allocated when a sequence first reaches them and are reused once nothing references them,
+ * so memory tracks the tokens actually in flight rather than the worst case of every session.
+ * A block can be shared by many sequences (see {@link KvPrefixCache}), writers copy it first.
+ * Once every block is in use the pool asks its reclaimer to give some back before failing.
+ */
+public class KvBlockPool implements AutoCloseable {
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    /**
+     * Default number of full context length sequences a model's pool can hold at once
+     */
+    public static final int DEFAULT_MAX_CONTEXTS = 8;
+
+    /**
+     * A block and the number of buffers/caches referencing it
+     */
+    static class Block {
+        final AbstractTensor tensor;
+        private int refs;
+
+        private Block(AbstractTensor tensor) {
+            this.tensor = tensor;
+        }
+    }
+
+    private final int blockSize;
+    private final int maxBlocks;
+    private final Supplier<AbstractTensor> blockFactory;
+    private final ArrayDeque<Block> free;
+    private int allocated;
+    private volatile BooleanSupplier reclaimer;
+
+    /**
+     * @param blockSize number of positions per block
+     * @param maxBlocks max number of blocks this pool will allocate
+     * @param blockFactory creates a new [layers, blockSize, 2, kvLength] block
+     */
+    public KvBlockPool(int blockSize, int maxBlocks, Supplier<AbstractTensor> blockFactory) {
+        Preconditions.checkArgument(blockSize > 0 && maxBlocks > 0);
+        this.blockSize = blockSize;
+        this.maxBlocks = maxBlocks;
+        this.blockFactory = blockFactory;
+        this.free = new ArrayDeque<>();
+        this.allocated = 0;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    /** Number of blocks needed to hold this many positions */
+    public int blocksFor(int positions) {
+        return (positions + blockSize - 1) / blockSize;
+    }
+
+    /** Number of blocks that can still be handed out */
+    public synchronized int availableBlocks() {
+        return free.size() + (maxBlocks - allocated);
+    }
+
+    /** Number of blocks currently referenced */
+    public synchronized int usedBlocks() {
+        return allocated - free.size();
+    }
+
+    /**
+     * Sets what is asked to free blocks when the pool runs out, e.g. by dropping cached prefixes or idle sessions.
+     * It must return false once it has nothing left to give back. It's called without the pool lock held,
+     * since it frees blocks through the caches holding them.
+     */
+    public void setReclaimer(BooleanSupplier reclaimer) {
+        this.reclaimer = reclaimer;
+    }
+
+    /**
+     * Makes sure at least n blocks can be handed out, reclaiming blocks if needed
+     * @return false if they can't be
+     */
+    public boolean ensureAvailable(int blocks) {
+        while (availableBlocks() < blocks) {
+            if (!reclaim())
+                return false;
+        }
+        return true;
+    }
+
+    private boolean reclaim() {
+        BooleanSupplier r = reclaimer;
+        return r != null && r.getAsBoolean();
+    }
+
+    /**
+     * Creates an empty buffer for a sequence of up to capacity positions
+     */
+    public PagedKvBuffer newBuffer(int capacity) {
+        return new PagedKvBuffer(this, capacity);
+    }
+
+    Block allocate() {
+        Block b;
+        while ((b = tryAllocate()) == null) {
+            if (!reclaim())
+                throw new IllegalStateException("KV cache pool exhausted: " + maxBlocks + " blocks of " + blockSize + " positions in use");
+        }
+        return b;
+    }
+
+    private synchronized Block tryAllocate() {
+        Block b = free.poll();
+        if (b == null) {
+            if (allocated >= maxBlocks)
+                return null;
+
+            AbstractTensor t = blockFactory.get();
+            Preconditions.checkArgument(t.dims() == 4 && t.shape().dim(1) == blockSize, "Block must be [layers, blockSize, 2, kvLength]");
+            b = new Block(t);
+            allocated++;
+        }
+
+        b.refs = 1;
+        return b;
+    }
+
+    synchronized void retain(Block b) {
+        Preconditions.checkState(b.refs > 0, "Block was already released");
+        b.refs++;
+    }
+
+    synchronized void release(Block b) {
+        Preconditions.checkState(b.refs > 0, "Block was already released");
+        if (--b.refs == 0)
+            free.push(b);
+    }
+
+    synchronized boolean isShared(Block b) {
+        return b.refs > 1;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Block b : free)
+            b.tensor.close();
+
+        allocated -= free.size();
+        free.clear();
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.tjake.jlama.tensor;
+
+/**
+ * Memory of the key and value vectors of a sequence, for each layer and position.
+ *
+ * See {@link PagedKvBuffer} for the primary impl.
+ */
+public interface KvBuffer extends AutoCloseable {
+
+    /**
+     * Positions stored in consecutive rows of a [rows, 2, kvLength] tensor, rows [offset, offset + length)
+     */
+    final class Run {
+        public final AbstractTensor kv;
+        public final int offset;
+        public final int length;
+
+        public Run(AbstractTensor kv, int offset, int length) {
+            this.kv = kv;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The kv memory of a single layer
+     */
+    interface Layer {
+        /**
+         * @return [2, kvLength] tensor with the key (slice 0) and value (slice 1) for this position
+         */
+        AbstractTensor get(int position);
+
+        /**
+         * Same as {@link #get(int)} but safe to write the key and value into
+         */
+        default AbstractTensor writable(int position) {
+            return get(position);
+        }
+
+        /**
+         * The positions from this one on that are stored next to it, at most limit of them,
+         * so a run of keys or values can be read without going through each position
+         */
+        Run run(int position, int limit);
+    }
+
+    Layer layer(int layer);
+
+    /** Max number of positions this buffer can hold */
+    int capacity();
+
+    /**
+     * Makes sure the memory for the first n positions is in place
+     * @return false if it can't be
+     */
+    default boolean ensureCapacity(int positions) {
+        return positions <= capacity();
+    }
+
+    @Override
+    void close();
+
+    /**
+     * Wraps a dense [layers, positions, 2, kvLength] tensor
+     */
+    static KvBuffer dense(AbstractTensor kvmem) {
+        return new DenseKvBuffer(kvmem);
+    }
+
+    /**
+     * Wraps a dense [positions, 2, kvLength] tensor for a single layer
+     */
+    static Layer denseLayer(AbstractTensor kvlayer) {
+        return new Layer() {
+            @Override
+            public AbstractTensor get(int position) {
+                return kvlayer.slice(true, position);
+            }
+
+            @Override
+            public Run run(int position, int limit) {
+                return new Run(kvlayer, position, Math.min(limit, kvlayer.shape().first() - position));
+            }
+        };
+    }
+}
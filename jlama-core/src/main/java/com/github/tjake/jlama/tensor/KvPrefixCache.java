@@ -0,0 +1,176 @@
+package com.github.tjake.jlama.tensor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the kv blocks of recently seen prompts so a new prompt that starts with the same tokens
+ * (e.g. a shared system prompt and template) only needs to prefill the rest.
+ *
+ * Entries are full blocks keyed by the hash of every token up to the end of the block, so a block is only
+ * reused when the whole prefix before it matches. Buffers share the cached blocks and copy them on write.
+ * Least recently used blocks are dropped once the cache goes over its byte budget.
+ */
+public class KvPrefixCache {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static class Entry {
+        final long parentHash;
+        final int[] tokens;
+        final KvBlockPool.Block block;
+
+        Entry(long parentHash, int[] tokens, KvBlockPool.Block block) {
+            this.parentHash = parentHash;
+            this.tokens = tokens;
+            this.block = block;
+        }
+
+        boolean matches(long parentHash, int[] tokens, int offset) {
+            return this.parentHash == parentHash && Arrays.equals(this.tokens, 0, this.tokens.length, tokens, offset, offset + this.tokens.length);
+        }
+    }
+
+    private final KvBlockPool pool;
+    private final LinkedHashMap<Long, Entry> entries;
+    private volatile long maxBytes;
+    private long blockBytes;
+
+    /**
+     * @param maxBytes memory budget for cached blocks, 0 disables the cache
+     */
+    public KvPrefixCache(KvBlockPool pool, long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.blockBytes = 0;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized long bytes() {
+        return entries.size() * blockBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Fills an empty buffer with the cached blocks matching the start of these tokens.
+     * At least the last token is always left out so the caller gets its output from the model.
+     *
+     * @return number of positions now in the buffer
+     */
+    public synchronized int attach(PagedKvBuffer buffer, int[] tokens) {
+        Preconditions.checkArgument(buffer.blocks() == 0, "Buffer must be empty");
+        if (maxBytes == 0 || entries.isEmpty())
+            return 0;
+
+        int blockSize = pool.blockSize();
+        int maxBlocks = Math.min((tokens.length - 1) / blockSize, buffer.capacity() / blockSize);
+
+        List<Long> matched = new ArrayList<>();
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < maxBlocks; i++) {
+            long parent = hash;
+            hash = hash(parent, tokens, i * blockSize, blockSize);
+            Entry e = entries.get(hash);
+            if (e == null || !e.matches(parent, tokens, i * blockSize))
+                break;
+
+            buffer.append(e.block);
+            matched.add(hash);
+        }
+
+        touch(matched);
+        return matched.size() * blockSize;
+    }
+
+    /**
+     * Adds the full blocks covering the first length tokens of this buffer to the cache
+     */
+    public synchronized void insert(PagedKvBuffer buffer, int[] tokens, int length) {
+        if (maxBytes == 0)
+            return;
+
+        int blockSize = pool.blockSize();
+        int fullBlocks = Math.min(Math.min(length, tokens.length) / blockSize, buffer.blocks());
+
+        List<Long> added = new ArrayList<>(fullBlocks);
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < fullBlocks; i++) {
+            long parent = hash;
+            hash = hash(parent, tokens, i * blockSize, blockSize);
+            Entry e = entries.get(hash);
+            if (e == null) {
+                KvBlockPool.Block b = buffer.blockAt(i);
+                if (blockBytes == 0)
+                    blockBytes = b.tensor.size() * b.tensor.dType().size();
+
+                pool.retain(b);
+                entries.put(hash, new Entry(parent, Arrays.copyOfRange(tokens, i * blockSize, (i + 1) * blockSize), b));
+            } else if (!e.matches(parent, tokens, i * blockSize)) {
+                break; // Hash collision, leave the existing entry be
+            }
+            added.add(hash);
+        }
+
+        touch(added);
+        evict();
+    }
+
+    /**
+     * Drops every cached block
+     */
+    public synchronized void clear() {
+        for (Entry e : entries.values())
+            pool.release(e.block);
+        entries.clear();
+        blockBytes = 0;
+    }
+
+    /**
+     * Drops the least recently used block, e.g. to give memory back to a pool that ran out
+     * @return false if the cache is empty
+     */
+    public synchronized boolean reclaim() {
+        if (entries.isEmpty())
+            return false;
+
+        Map.Entry<Long, Entry> eldest = entries.entrySet().iterator().next();
+        entries.remove(eldest.getKey());
+        pool.release(eldest.getValue().block);
+        return true;
+    }
+
+    /**
+     * Marks a chain of blocks as recently used, parents last so they outlive their children
+     */
+    private void touch(List<Long> chain) {
+        for (int i = chain.size() - 1; i >= 0; i--)
+            entries.get(chain.get(i));
+    }
+
+    private void evict() {
+        while (entries.size() * blockBytes > maxBytes)
+            reclaim();
+    }
+
+    private static long hash(long parent, int[] tokens, int offset, int length) {
+        long h = parent;
+        for (int i = offset; i < offset + length; i++)
+            h = (h ^ tokens[i]) * FNV_PRIME;
+        return h;
+    }
+}
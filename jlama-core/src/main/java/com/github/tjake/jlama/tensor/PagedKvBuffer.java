@@ -0,0 +1,180 @@
+package com.github.tjake.jlama.tensor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A kv buffer made of blocks from a shared {@link KvBlockPool}. The block table maps each run of
+ * blockSize positions to a block, and grows as the sequence does.
+ *
+ * Blocks may be shared with other buffers, a shared block is copied before this buffer writes to it.
+ */
+public class PagedKvBuffer implements KvBuffer {
+    private final KvBlockPool pool;
+    private final int capacity;
+    private final int blockSize;
+    private final List<KvBlockPool.Block> blockTable;
+
+    PagedKvBuffer(KvBlockPool pool, int capacity) {
+        this.pool = pool;
+        this.capacity = capacity;
+        this.blockSize = pool.blockSize();
+        this.blockTable = new ArrayList<>(pool.blocksFor(capacity));
+    }
+
+    @Override
+    public Layer layer(int layer) {
+        return new Layer() {
+            @Override
+            public AbstractTensor get(int position) {
+                return block(position).tensor.slice(true, layer).slice(true, position % blockSize);
+            }
+
+            @Override
+            public AbstractTensor writable(int position) {
+                return writableBlock(position).tensor.slice(true, layer).slice(true, position % blockSize);
+            }
+
+            @Override
+            public Run run(int position, int limit) {
+                int row = position % blockSize;
+                return new Run(block(position).tensor.slice(true, layer), row, Math.min(limit, blockSize - row));
+            }
+        };
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Number of blocks held by this buffer */
+    public int blocks() {
+        return blockTable.size();
+    }
+
+    KvBlockPool.Block blockAt(int idx) {
+        return blockTable.get(idx);
+    }
+
+    /**
+     * Appends a block that is shared with another buffer or cache
+     */
+    void append(KvBlockPool.Block b) {
+        Preconditions.checkState((blockTable.size() + 1) * blockSize <= capacity, "Block exceeds kv capacity %s", capacity);
+        pool.retain(b);
+        blockTable.add(b);
+    }
+
+    /**
+     * Makes sure the blocks for the first n positions are allocated
+     * @return false if the pool doesn't have enough blocks left
+     */
+    @Override
+    public boolean ensureCapacity(int positions) {
+        if (positions > capacity)
+            return false;
+
+        int needed = pool.blocksFor(positions) - blockTable.size();
+        if (needed > 0 && !pool.ensureAvailable(needed))
+            return false;
+
+        while (blockTable.size() < pool.blocksFor(positions))
+            blockTable.add(pool.allocate());
+
+        return true;
+    }
+
+    private KvBlockPool.Block block(int position) {
+        Preconditions.checkElementIndex(position, capacity);
+        int idx = position / blockSize;
+        // Positions are written in order before they are read, so only the writer ever grows the table
+        while (blockTable.size() <= idx)
+            blockTable.add(pool.allocate());
+
+        return blockTable.get(idx);
+    }
+
+    private KvBlockPool.Block writableBlock(int position) {
+        KvBlockPool.Block b = block(position);
+        if (!pool.isShared(b))
+            return b;
+
+        // Copy on write, the other holders keep the original
+        KvBlockPool.Block copy = pool.allocate();
+        copy.tensor.copyFrom(b.tensor, 0, 0, Ints.checkedCast(b.tensor.size()));
+        blockTable.set(position / blockSize, copy);
+        pool.release(b);
+        return copy;
+    }
+
+    /**
+     * Writes out the blocks holding the first n positions
+     */
+    public void writeTo(DataOutput out, int positions) throws IOException {
+        int blocks = pool.blocksFor(positions);
+        Preconditions.checkArgument(blocks <= blockTable.size(), "Only %s of %s blocks present", blockTable.size(), blocks);
+
+        out.writeInt(blocks);
+        byte[] buf = new byte[0];
+        for (int i = 0; i < blocks; i++) {
+            for (MemorySegment segment : segments(blockTable.get(i).tensor)) {
+                int length = Ints.checkedCast(segment.byteSize());
+                if (buf.length < length)
+                    buf = new byte[length];
+
+                MemorySegment.ofArray(buf).asSlice(0, length).copyFrom(segment);
+                out.write(buf, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Reads blocks written by {@link #writeTo} into this empty buffer
+     */
+    public void readFrom(DataInput in) throws IOException {
+        Preconditions.checkState(blockTable.isEmpty(), "Buffer must be empty");
+
+        int blocks = in.readInt();
+        if (!ensureCapacity(Math.min(blocks * blockSize, capacity)) || blocks > blockTable.size())
+            throw new IOException("Not enough kv capacity to restore " + blocks + " blocks");
+
+        byte[] buf = new byte[0];
+        for (int i = 0; i < blocks; i++) {
+            for (MemorySegment segment : segments(blockTable.get(i).tensor)) {
+                int length = Ints.checkedCast(segment.byteSize());
+                if (buf.length < length)
+                    buf = new byte[length];
+
+                in.readFully(buf, 0, length);
+                segment.copyFrom(MemorySegment.ofArray(buf).asSlice(0, length));
+            }
+        }
+    }
+
+    /**
+     * The memory of a block, quantized blocks also need their scales
+     */
+    private static MemorySegment[] segments(AbstractTensor t) {
+        return switch (t.dType()) {
+            case I8 -> new MemorySegment[]{t.getMemorySegment(), ((Q8ByteBufferTensor) t).getBlockF().getMemorySegment()};
+            case Q4 -> new MemorySegment[]{t.getMemorySegment(), ((Q4ByteBufferTensor) t).getBlockF().getMemorySegment()};
+            default -> new MemorySegment[]{t.getMemorySegment()};
+        };
+    }
+
+    @Override
+    public void close() {
+        for (KvBlockPool.Block b : blockTable)
+            pool.release(b);
+
+        blockTable.clear();
+    }
+}
@@ -6,7 +6,10 @@ import com.google.common.base.Preconditions;
 
 import com.github.tjake.jlama.util.UnsafeDirectByteBuffer;
 import com.google.common.primitives.Ints;
+import com.github.tjake.jlama.math.VectorMath;
 import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,16 +17,14 @@ import org.slf4j.LoggerFactory;
 import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.stream.IntStream;
 
 public final class Q4ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
     private static final Logger logger = LoggerFactory.getLogger(Q4ByteBufferTensor.class);;
     public static final int BLOCK_SIZE = 32;
     public static final int HALF_BLOCK = (BLOCK_SIZE / 2);
     private static final float I_BLOCK_SIZE = 1.0f / BLOCK_SIZE;
+    static final VectorSpecies<Float> F_SPECIES = FloatVector.SPECIES_PREFERRED;
 
     final ByteBuffer b;
     final FloatBufferTensor blockF; //Deltas
@@ -36,79 +37,89 @@ public final class Q4ByteBufferTensor extends AbstractTensor<ByteVector, Byte, b
         Preconditions.checkArgument(ft.dType != DType.Q4, "This should never happen, likely a bug");
         Preconditions.checkArgument(ft.size() % BLOCK_SIZE == 0, "I8 buffer must be a multiple of BLOCK_SIZE");
 
-        List<int[]> startBlockCursors = new ArrayList<>();
-        int[] cursor = new int[ft.shape.dims()];
-        int c = 0;
-        do {
-            if (c++ % BLOCK_SIZE == 0) {
-                startBlockCursors.add(Arrays.copyOf(cursor, cursor.length));
-            }
-        } while (ft.iterate(cursor));
+        quantizeRows(ft, 0, Ints.checkedCast(size() / shape.last()));
+    }
 
-        //Process each block in parallel
-        IntStream.range(0, startBlockCursors.size()).parallel().forEach((i) -> {
-            int[] blockStartCursor = startBlockCursors.get(i);
-            processBlock(ft, blockStartCursor);
+    /**
+     * Quantizes count rows of ft, starting from its row firstRow, into the first count rows of this tensor.
+     * A row is a run of the last dimension, rows are processed in parallel.
+     */
+    public void quantizeRows(AbstractTensor ft, int firstRow, int count) {
+        Preconditions.checkArgument(ft.shape.last() == shape.last() && shape.last() % BLOCK_SIZE == 0, "Rows must be the same length and a multiple of BLOCK_SIZE");
+        int splits = VectorMath.parallelSplits(count);
+        VectorMath.pfor(0, splits, s -> {
+            float[] row = new float[shape.last()];
+            int[] cursor = new int[shape.dims()];
+            int[] blockCursor = new int[shape.dims()];
+            for (int r = VectorMath.splitStart(count, splits, s); r < VectorMath.splitStart(count, splits, s + 1); r++) {
+                readRow(ft, firstRow, r, row, cursor);
+                System.arraycopy(cursor, 0, blockCursor, 0, cursor.length);
+                int rowOffset = getOffset(cursor);
+                for (int i = 0; i < row.length; i += BLOCK_SIZE) {
+                    blockCursor[blockCursor.length - 1] = i / BLOCK_SIZE;
+                    processBlock(row, i, rowOffset + i, blockCursor);
+                }
+            }
         });
     }
 
-    void processBlock(AbstractTensor ft, int[] blockStartCursor) {
-        int[] cursor = Arrays.copyOf(blockStartCursor, blockStartCursor.length);
-        float max = Float.MIN_VALUE;
-        float amax = Float.MIN_VALUE;
-
-        //Accumulate the max value for this block
-        for (int i = 0; i < BLOCK_SIZE; i++) {
-            float v = ft.get(cursor);
-            float absv = v < 0 ? -v : v;
-            if (absv > amax) {
-                max = v;
-                amax = absv;
-            }
-            ft.iterate(cursor);
+    void processBlock(float[] row, int i, int offset, int[] blockCursor) {
+        //Find the value with the largest magnitude for this block
+        FloatVector v = FloatVector.fromArray(F_SPECIES, row, i);
+        FloatVector vmax = v, vmin = v;
+        for (int j = F_SPECIES.length(); j < BLOCK_SIZE; j += F_SPECIES.length()) {
+            v = FloatVector.fromArray(F_SPECIES, row, i + j);
+            vmax = vmax.max(v);
+            vmin = vmin.min(v);
         }
+        float hi = vmax.reduceLanes(VectorOperators.MAX);
+        float lo = vmin.reduceLanes(VectorOperators.MIN);
+        float max = -lo > hi ? lo : hi;
 
         // Process the block and save it
         float scale = max  / -8f;
         float iscale = scale != 0.0f ? 1.0f / scale : 0.0f;
-        this.blockF.set(scale, makeBlockShape(blockStartCursor));
-        int i = ft.getOffset(blockStartCursor);
-
+        this.blockF.set(scale, blockCursor);
 
-        int ibyte = i/2;
-        for (int j = 0;  j < BLOCK_SIZE / 2; j++, i++, ibyte++) {
-            float f0 = ft.get(blockStartCursor) * iscale;
-
-            //Since the iterator doesn't work for Q4, we need to manually increment the cursor
-            // to get the next value since the byte is packed with [0,15] position.
-            // we do this because on the simd side we need to load 2 values at a time
-            // and want to keep the order of the values in the byte the same as the original layout
-            blockStartCursor[blockStartCursor.length - 1] += HALF_BLOCK;
-            float f1 = ft.get(blockStartCursor) * iscale;
-
-            //Reset the cursor back to previous position
-            blockStartCursor[blockStartCursor.length - 1] -= HALF_BLOCK;
-            ft.iterate(blockStartCursor);
+        // Each byte is packed with the values at [j, j + HALF_BLOCK] since on the simd side
+        // we need to load 2 values at a time and want to keep the order of the values the same as the original layout
+        int ibyte = offset / 2;
+        for (int j = 0; j < HALF_BLOCK; j++, ibyte++) {
+            float f0 = row[i + j] * iscale;
+            float f1 = row[i + j + HALF_BLOCK] * iscale;
 
             byte fb0 = (byte)Math.min(15, (byte)(f0 + 8.5f));
             byte fb1 = (byte)Math.min(15, (byte)(f1 + 8.5f));
 
             this.b.put(ibyte, (byte) ((fb0) | ((fb1) << 4)));
+        }
+    }
 
-            /*
-            //DEBUG
-            byte b0 = this.b.get(ibyte);
-            int x0 = (b0 & 0x0F) - 8;
-            int x1 = (b0 >> 4 & 0x0F) - 8;
+    /**
+     * Reads row r of this tensor's shape from ft, offset by firstRow in the first dimension.
+     * Leaves cursor at the start of the row in this tensor.
+     */
+    static void readRow(AbstractTensor ft, int firstRow, int r, float[] row, int[] cursor) {
+        TensorShape shape = ft.shape();
+        int last = cursor.length - 1;
+        for (int d = last - 1; d >= 0; d--) {
+            int dim = d == 0 ? Integer.MAX_VALUE : shape.dim(d);
+            cursor[d] = r % dim;
+            r /= dim;
+        }
 
-            float f11 = x0 * scale;
-            float f2 = x1 * scale;
-            logger.info("i:{} ibyte:{} f1={} | i:{} f2={} | c={}",i,ibyte, x0, i+HALF_BLOCK, x1, b0);
-            */
+        if (last > 0)
+            cursor[0] += firstRow;
 
+        for (int c = 0; c < row.length; c++) {
+            cursor[last] = c;
+            row[c] = ft.get(cursor);
         }
-    }
 
+        cursor[last] = 0;
+        if (last > 0)
+            cursor[0] -= firstRow;
+    }
 
     static int[] makeBlockShape(int... shape) {
         int[] blockShape = new int[shape.length];
@@ -261,6 +272,40 @@ public final class Q4ByteBufferTensor extends AbstractTensor<ByteVector, Byte, b
         blockF.copyFrom(srcQ4.blockF, srcOffset / BLOCK_SIZE, destOffset / BLOCK_SIZE, length / BLOCK_SIZE);
     }
 
+    /**
+     * Quantizes src over [offset, offset + length) into the same positions of this tensor, a block at a time
+     */
+    public void quantize(AbstractTensor src, int offset, int length) {
+        Preconditions.checkArgument(dims() == 1 && src.dims() == 1);
+        Preconditions.checkArgument(offset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Must be block aligned");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+
+        for (int start = offset; start < offset + length; start += BLOCK_SIZE) {
+            float max = 0f;
+            float amax = 0f;
+            for (int i = start; i < start + BLOCK_SIZE; i++) {
+                float v = src.get(i);
+                if (Math.abs(v) > amax) {
+                    max = v;
+                    amax = Math.abs(v);
+                }
+            }
+
+            float scale = max / -8f;
+            float iscale = scale != 0.0f ? 1.0f / scale : 0.0f;
+            blockF.set(scale, makeBlockShape(start));
+
+            // Same packing as processBlock, element j and j + HALF_BLOCK share a byte
+            for (int j = 0; j < HALF_BLOCK; j++) {
+                int i = getOffset(start + j);
+                int ibyte = ((int) (i * I_BLOCK_SIZE)) * HALF_BLOCK + (i % BLOCK_SIZE);
+                byte fb0 = (byte) Math.min(15, (byte) (src.get(start + j) * iscale + 8.5f));
+                byte fb1 = (byte) Math.min(15, (byte) (src.get(start + j + HALF_BLOCK) * iscale + 8.5f));
+                this.b.put(ibyte, (byte) (fb0 | (fb1 << 4)));
+            }
+        }
+    }
+
     @Override
     public void clear() {
         Preconditions.checkArgument(!b.isReadOnly(), "Can't clear a read-only buffer");
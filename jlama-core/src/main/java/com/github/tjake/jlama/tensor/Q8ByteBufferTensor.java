@@ -8,6 +8,8 @@ import com.google.common.base.Preconditions;
 import com.github.tjake.jlama.util.UnsafeDirectByteBuffer;
 import com.google.common.primitives.Ints;
 import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorMask;
 import jdk.incubator.vector.VectorSpecies;
 import org.slf4j.Logger;
@@ -16,11 +18,11 @@ import org.slf4j.LoggerFactory;
 import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
+import static com.github.tjake.jlama.tensor.Q4ByteBufferTensor.F_SPECIES;
 import static com.github.tjake.jlama.tensor.Q4ByteBufferTensor.makeBlockShape;
+import static com.github.tjake.jlama.tensor.Q4ByteBufferTensor.readRow;
 
 public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]> {
     private static final Logger logger = LoggerFactory.getLogger(Q8ByteBufferTensor.class);;
@@ -37,44 +39,45 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         Preconditions.checkArgument(ft.dType != DType.I8, "This should never happen, likely a bug");
         Preconditions.checkArgument(ft.size() % BLOCK_SIZE == 0, "I8 buffer must be a multiple of BLOCK_SIZE");
 
-        List<int[]> startBlockCursors = new ArrayList<>();
-        int[] cursor = new int[ft.shape.dims()];
-        int c = 0;
-        do {
-            if (c++ % BLOCK_SIZE == 0) {
-                startBlockCursors.add(Arrays.copyOf(cursor, cursor.length));
-            }
-        } while (ft.iterate(cursor));
+        quantizeRows(ft, 0, Ints.checkedCast(size() / shape.last()));
+    }
 
-        //Process each block in parallel
-        VectorMath.pfor(0, startBlockCursors.size(), (i) -> {
-            int[] blockStartCursor = startBlockCursors.get(i);
-            processBlock(ft, blockStartCursor);
+    /**
+     * Quantizes count rows of ft, starting from its row firstRow, into the first count rows of this tensor.
+     * A row is a run of the last dimension, rows are processed in parallel.
+     */
+    public void quantizeRows(AbstractTensor ft, int firstRow, int count) {
+        Preconditions.checkArgument(ft.shape.last() == shape.last() && shape.last() % BLOCK_SIZE == 0, "Rows must be the same length and a multiple of BLOCK_SIZE");
+        int splits = VectorMath.parallelSplits(count);
+        VectorMath.pfor(0, splits, s -> {
+            float[] row = new float[shape.last()];
+            int[] cursor = new int[shape.dims()];
+            int[] blockCursor = new int[shape.dims()];
+            for (int r = VectorMath.splitStart(count, splits, s); r < VectorMath.splitStart(count, splits, s + 1); r++) {
+                readRow(ft, firstRow, r, row, cursor);
+                System.arraycopy(cursor, 0, blockCursor, 0, cursor.length);
+                int rowOffset = getOffset(cursor);
+                for (int i = 0; i < row.length; i += BLOCK_SIZE) {
+                    blockCursor[blockCursor.length - 1] = i / BLOCK_SIZE;
+                    processBlock(row, i, rowOffset + i, blockCursor);
+                }
+            }
         });
     }
 
-    void processBlock(AbstractTensor ft, int[] blockStartCursor) {
-        int[] cursor = Arrays.copyOf(blockStartCursor, blockStartCursor.length);
-        float max = Float.MIN_VALUE;
-
+    void processBlock(float[] row, int i, int offset, int[] blockCursor) {
         //Accumulate the max value for this block
-        for (int i = 0; i < BLOCK_SIZE; i++) {
-            float v = ft.get(cursor);
-            float absv = v < 0 ? -v : v;
-            if (absv > max) max = absv;
-            ft.iterate(cursor);
-        }
+        FloatVector amax = FloatVector.fromArray(F_SPECIES, row, i).abs();
+        for (int j = F_SPECIES.length(); j < BLOCK_SIZE; j += F_SPECIES.length())
+            amax = amax.max(FloatVector.fromArray(F_SPECIES, row, i + j).abs());
+        float max = amax.reduceLanes(VectorOperators.MAX);
 
         // Process the block and save it
-        float iscale = 127f / max;
+        float iscale = max != 0.0f ? 127f / max : 0.0f;
         float scale = iscale != 0.0f ? 1.0f / iscale : 0.0f;
-        this.blockF.set(scale, makeBlockShape(blockStartCursor));
-        int i = ft.getOffset(blockStartCursor);
-        for (int j = 0;  j < BLOCK_SIZE; j++, i++) {
-            float f0 = ft.get(blockStartCursor) * iscale;
-            this.b.put(i, (byte) Math.round(f0));
-            ft.iterate(blockStartCursor);
-        }
+        this.blockF.set(scale, blockCursor);
+        for (int j = 0;  j < BLOCK_SIZE; j++)
+            this.b.put(offset + j, (byte) Math.round(row[i + j] * iscale));
     }
 
     public Q8ByteBufferTensor(int... shape) {
@@ -224,6 +227,30 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte, byte[]>
         Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
         segment.asSlice(getMemorySegmentOffset(destOffset), length)
                 .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+
+        Q8ByteBufferTensor srcQ8 = (Q8ByteBufferTensor) src;
+        blockF.copyFrom(srcQ8.blockF, srcOffset / BLOCK_SIZE, destOffset / BLOCK_SIZE, length / BLOCK_SIZE);
+    }
+
+    /**
+     * Quantizes src over [offset, offset + length) into the same positions of this tensor, a block at a time
+     */
+    public void quantize(AbstractTensor src, int offset, int length) {
+        Preconditions.checkArgument(dims() == 1 && src.dims() == 1);
+        Preconditions.checkArgument(offset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0, "Must be block aligned");
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't modify a read only buffer");
+
+        for (int start = offset; start < offset + length; start += BLOCK_SIZE) {
+            float max = 0f;
+            for (int i = start; i < start + BLOCK_SIZE; i++)
+                max = Math.max(max, Math.abs(src.get(i)));
+
+            float d = max / Byte.MAX_VALUE;
+            float id = d != 0.0f ? 1.0f / d : 0.0f;
+            blockF.set(d, makeBlockShape(start));
+            for (int i = start; i < start + BLOCK_SIZE; i++)
+                b.put(getOffset(i), (byte) Math.round(src.get(i) * id));
+        }
     }
 
     @Override
@@ -0,0 +1,119 @@
+package com.github.tjake.jlama.tensor;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A fixed size kv buffer for generating without end (see StreamingLLM, https://arxiv.org/abs/2309.17453).
+ * The first sinks positions are kept for good since attention leans on them heavily, after that only a rolling window
+ * of the most recent positions is attended to. Older positions are overwritten in a ring so memory and the cost
+ * of each token stay constant however long the sequence runs.
+ *
+ * Keys are rotated relative to the start of their epoch of window positions rather than their absolute position,
+ * so RoPE positions never go past sinks + 2 * window, see {@link Ring#ropePosition}.
+ */
+public class StreamingKvBuffer implements KvBuffer {
+    /** Extra ring slots so a batch of up to this many new positions can be stored before any of them attends */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    /**
+     * The kv memory of a single layer, with what attention needs to know about the window
+     */
+    public class Ring implements Layer {
+        private final AbstractTensor layer;
+
+        private Ring(AbstractTensor layer) {
+            this.layer = layer;
+        }
+
+        @Override
+        public AbstractTensor get(int position) {
+            return layer.slice(true, slot(position));
+        }
+
+        @Override
+        public Run run(int position, int limit) {
+            // Runs break where the sinks end and where the ring wraps
+            int slot = slot(position);
+            int end = position < sinks ? sinks : sinks + ringSize;
+            return new Run(layer, slot, Math.min(limit, end - slot));
+        }
+
+        public int sinks() {
+            return sinks;
+        }
+
+        public int window() {
+            return window;
+        }
+
+        /**
+         * First position of the epoch the position is in. Window positions are split into epochs of window positions,
+         * a query attends to at most the current and previous epoch.
+         */
+        public int epochStart(int position) {
+            Preconditions.checkArgument(position >= sinks);
+            return position - (position - sinks) % window;
+        }
+
+        /**
+         * The RoPE position a key is stored at, sinks keep theirs and window positions are relative to their epoch.
+         * A query rotated to ropePosition(p) sees the keys of its own epoch at the right distance, rotated to
+         * ropePosition(p) + window it sees the previous epoch's.
+         */
+        public int ropePosition(int position) {
+            return position < sinks ? position : sinks + (position - sinks) % window;
+        }
+
+        /**
+         * The RoPE position a query attends to the sinks from, as if the window sat right after them
+         */
+        public int sinkRopePosition(int position) {
+            return Math.min(position, sinks + window - 1);
+        }
+    }
+
+    private final AbstractTensor memory;
+    private final int sinks;
+    private final int window;
+    private final int chunkSize;
+    private final int ringSize;
+
+    /**
+     * @param memory [layers, sinks + window + chunkSize, 2, kvLength] tensor, owned by this buffer
+     */
+    public StreamingKvBuffer(AbstractTensor memory, int sinks, int window) {
+        Preconditions.checkArgument(memory.dims() == 4, "Memory must be [layers, positions, 2, kvLength]");
+        Preconditions.checkArgument(sinks >= 0 && window > 0 && memory.shape().dim(1) > sinks + window, "Memory must hold the sinks, window and at least one more position");
+        this.memory = memory;
+        this.sinks = sinks;
+        this.window = window;
+        this.ringSize = memory.shape().dim(1) - sinks;
+        this.chunkSize = ringSize - window;
+    }
+
+    @Override
+    public Ring layer(int layer) {
+        return new Ring(memory.slice(true, layer));
+    }
+
+    /** Unbounded, old positions are dropped as new ones come in */
+    @Override
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /** Max number of positions that can be run as one batch */
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    private int slot(int position) {
+        Preconditions.checkArgument(position >= 0);
+        return position < sinks ? position : sinks + (position - sinks) % ringSize;
+    }
+
+    @Override
+    public void close() {
+        memory.close();
+    }
+}
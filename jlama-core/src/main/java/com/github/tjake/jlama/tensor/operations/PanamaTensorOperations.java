@@ -1,5 +1,6 @@
 package com.github.tjake.jlama.tensor.operations;
 
+import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.tensor.TensorCache;
 import com.github.tjake.jlama.util.MachineSpec;
 import com.google.common.base.Preconditions;
@@ -7,6 +8,7 @@ import com.google.common.base.Preconditions;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
+import com.github.tjake.jlama.tensor.Float16BufferTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
@@ -67,6 +69,17 @@ final public class PanamaTensorOperations implements TensorOperations
                     case ARM_128 -> dotProductF32Q4_arm((FloatBufferTensor) a, (Q4ByteBufferTensor) b, aoffset, boffset, limit);
                     default -> throw new UnsupportedOperationException(MachineSpec.VECTOR_TYPE.name());
                 };
+                // Half width weights are used as mapped, the dot product is symmetric so the BF16 kernels serve both orders
+                case BF16 -> switch (vectorType) {
+                    case AVX_512 -> dotProductBF16F32_512((BFloat16BufferTensor) b, (FloatBufferTensor) a, boffset, aoffset, limit);
+                    case AVX_256 -> dotProductBF16F32_256((BFloat16BufferTensor) b, (FloatBufferTensor) a, boffset, aoffset, limit);
+                    default -> throw new UnsupportedOperationException(MachineSpec.VECTOR_TYPE.name());
+                };
+                case F16 -> switch (vectorType) {
+                    case AVX_512 -> dotProductF32F16_512((FloatBufferTensor) a, (Float16BufferTensor) b, aoffset, boffset, limit);
+                    case AVX_256 -> dotProductF32F16_256((FloatBufferTensor) a, (Float16BufferTensor) b, aoffset, boffset, limit);
+                    default -> throw new UnsupportedOperationException(MachineSpec.VECTOR_TYPE.name());
+                };
                 default -> throw new UnsupportedOperationException(b.dType().name());
             };
             case I8 -> switch (b.dType()) {
@@ -80,6 +93,16 @@ final public class PanamaTensorOperations implements TensorOperations
                     case AVX_256 -> QDotProductI8Q4_256((Q8ByteBufferTensor) a, (Q4ByteBufferTensor) b, aoffset, boffset, limit);
                     default -> throw new UnsupportedOperationException();
                 };
+                case BF16 -> switch (vectorType) {
+                    case AVX_512 -> dotProductBF16I8_512((BFloat16BufferTensor) b, (Q8ByteBufferTensor) a, boffset, aoffset, limit);
+                    case AVX_256 -> dotProductBF16I8_256((BFloat16BufferTensor) b, (Q8ByteBufferTensor) a, boffset, aoffset, limit);
+                    default -> throw new UnsupportedOperationException();
+                };
+                case F16 -> switch (vectorType) {
+                    case AVX_512 -> dotProductI8F16_512((Q8ByteBufferTensor) a, (Float16BufferTensor) b, aoffset, boffset, limit);
+                    case AVX_256 -> dotProductI8F16_256((Q8ByteBufferTensor) a, (Float16BufferTensor) b, aoffset, boffset, limit);
+                    default -> throw new UnsupportedOperationException();
+                };
                 default -> throw new UnsupportedOperationException(b.dType().name());
             };
             case BF16 -> switch (b.dType()) {
@@ -111,7 +134,24 @@ final public class PanamaTensorOperations implements TensorOperations
 
     @Override
     public AbstractTensor quantize(AbstractTensor t, DType qtype, int offset, int length) {
-        Preconditions.checkArgument(t.dims() == 1);
+        Preconditions.checkArgument(t.dims() == 1 || t.dims() == 2);
+
+        if (t.dims() == 2) {
+            //Quantize each row of the batch, offset and length are relative to the row
+            return switch (t.dType()) {
+                case F32 -> switch (qtype) {
+                    case I8 -> {
+                        //Up to caller to release
+                        Q8ByteBufferTensor qft = (Q8ByteBufferTensor) TensorCache.instance.get(DType.I8, t.shape());
+                        for (int i = 0; i < t.shape().first(); i++)
+                            quantizeQ8((FloatBufferTensor) t.slice(i), (Q8ByteBufferTensor) qft.slice(i), offset, length);
+                        yield qft;
+                    }
+                    default -> throw new UnsupportedOperationException();
+                };
+                default -> throw new UnsupportedOperationException();
+            };
+        }
 
         return switch (t.dType()) {
             case F32 -> switch (qtype) {
@@ -127,11 +167,24 @@ final public class PanamaTensorOperations implements TensorOperations
         };
     }
 
-    public Q8ByteBufferTensor quantizeQ8_512(FloatBufferTensor ft, int offset, int length) {
-        Preconditions.checkArgument(length % Q8ByteBufferTensor.BLOCK_SIZE == 0 && ft.dims() == 1);
+    void quantizeQ8(FloatBufferTensor ft, Q8ByteBufferTensor qft, int offset, int length) {
+        switch (vectorType) {
+            case AVX_512 -> quantizeQ8_512(ft, qft, offset, length);
+            case AVX_256 -> quantizeQ8_256(ft, qft, offset, length);
+            case ARM_128 -> quantizeQ8_arm(ft, qft, offset, length);
+            default -> throw new UnsupportedOperationException();
+        }
+    }
 
+    public Q8ByteBufferTensor quantizeQ8_512(FloatBufferTensor ft, int offset, int length) {
         //Up to caller to release
         Q8ByteBufferTensor qft = (Q8ByteBufferTensor) TensorCache.instance.get(DType.I8, ft.shape());
+        quantizeQ8_512(ft, qft, offset, length);
+        return qft;
+    }
+
+    void quantizeQ8_512(FloatBufferTensor ft, Q8ByteBufferTensor qft, int offset, int length) {
+        Preconditions.checkArgument(length % Q8ByteBufferTensor.BLOCK_SIZE == 0 && ft.dims() == 1);
 
         for (int i = offset; i < offset + length; i += Q8ByteBufferTensor.BLOCK_SIZE) {
             FloatVector fv0 = ft.getVector(FloatVector.SPECIES_512, i);
@@ -159,15 +212,17 @@ final public class PanamaTensorOperations implements TensorOperations
             qft.intoTensor(bvq1, i+16);
             qft.getBlockF().set(d, (int)(i * Q8ByteBufferTensor.I_BLOCK_SIZE));
         }
-
-        return qft;
     }
 
     public Q8ByteBufferTensor quantizeQ8_256(FloatBufferTensor ft, int offset, int length) {
-        Preconditions.checkArgument(length % Q8ByteBufferTensor.BLOCK_SIZE == 0 && ft.dims() == 1);
-
         //Up to caller to release
         Q8ByteBufferTensor qft = (Q8ByteBufferTensor) TensorCache.instance.get(DType.I8, ft.shape());
+        quantizeQ8_256(ft, qft, offset, length);
+        return qft;
+    }
+
+    void quantizeQ8_256(FloatBufferTensor ft, Q8ByteBufferTensor qft, int offset, int length) {
+        Preconditions.checkArgument(length % Q8ByteBufferTensor.BLOCK_SIZE == 0 && ft.dims() == 1);
 
         for (int i = offset; i < offset + length; i += Q8ByteBufferTensor.BLOCK_SIZE) {
             FloatVector fv0 = ft.getVector(FloatVector.SPECIES_256, i);
@@ -208,15 +263,17 @@ final public class PanamaTensorOperations implements TensorOperations
 
             qft.getBlockF().set(d, (int)(i * Q8ByteBufferTensor.I_BLOCK_SIZE));
         }
-
-        return qft;
     }
 
     public Q8ByteBufferTensor quantizeQ8_arm(FloatBufferTensor ft, int offset, int length) {
-        Preconditions.checkArgument(length % Q8ByteBufferTensor.BLOCK_SIZE == 0 && ft.dims() == 1);
-
         //Up to caller to release
         Q8ByteBufferTensor qft = (Q8ByteBufferTensor) TensorCache.instance.get(DType.I8, ft.shape());
+        quantizeQ8_arm(ft, qft, offset, length);
+        return qft;
+    }
+
+    void quantizeQ8_arm(FloatBufferTensor ft, Q8ByteBufferTensor qft, int offset, int length) {
+        Preconditions.checkArgument(length % Q8ByteBufferTensor.BLOCK_SIZE == 0 && ft.dims() == 1);
 
         for (int i = offset; i < offset + length; i += Q8ByteBufferTensor.BLOCK_SIZE) {
             FloatVector fv0 = ft.getVector(FloatVector.SPECIES_128, i);
@@ -284,8 +341,6 @@ final public class PanamaTensorOperations implements TensorOperations
 
             qft.getBlockF().set(d, (int)(i * Q8ByteBufferTensor.I_BLOCK_SIZE));
         }
-
-        return qft;
     }
 
 
@@ -899,6 +954,85 @@ final public class PanamaTensorOperations implements TensorOperations
         return acc.reduceLanes(VectorOperators.ADD);
     }
 
+    /**
+     * Widens F16 bits, in the low 16 bits of each lane, to F32. Shifting the exponent and mantissa into place and
+     * rebiasing with a multiply is exact for every finite value, subnormals included.
+     */
+    private static FloatVector f16ToF32(IntVector h) {
+        FloatVector magnitude = h.and(0x7FFF).lanewise(VectorOperators.LSHL, 13).reinterpretAsFloats().mul(0x1p112f);
+        return magnitude.reinterpretAsInts().or(h.and(0x8000).lanewise(VectorOperators.LSHL, 16)).reinterpretAsFloats();
+    }
+
+    private float dotProductF32F16_512(FloatBufferTensor a, Float16BufferTensor b, int aoffset, int boffset, int limit) {
+        int alim = aoffset + limit;
+        int slen = FloatVector.SPECIES_512.length();
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_512);
+        for (; aoffset < alim; aoffset += slen, boffset += slen) {
+            FloatVector af = a.getVector(FloatVector.SPECIES_512, aoffset);
+            FloatVector bf = f16ToF32((IntVector) b.getVector(ShortVector.SPECIES_256, boffset)
+                    .convertShape(VectorOperators.S2I, IntVector.SPECIES_512, 0));
+
+            acc = af.fma(bf, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    private float dotProductF32F16_256(FloatBufferTensor a, Float16BufferTensor b, int aoffset, int boffset, int limit) {
+        int alim = aoffset + limit;
+        int slen = FloatVector.SPECIES_256.length();
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_256);
+        for (; aoffset < alim; aoffset += slen, boffset += slen) {
+            FloatVector af = a.getVector(FloatVector.SPECIES_256, aoffset);
+            FloatVector bf = f16ToF32((IntVector) b.getVector(ShortVector.SPECIES_128, boffset)
+                    .convertShape(VectorOperators.S2I, IntVector.SPECIES_256, 0));
+
+            acc = af.fma(bf, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    private float dotProductI8F16_512(Q8ByteBufferTensor a, Float16BufferTensor b, int aoffset, int boffset, int limit) {
+        int alim = aoffset + limit;
+        int slen = ByteVector.SPECIES_128.length();
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_512);
+        for (; aoffset < alim; aoffset += slen, boffset += slen) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_512, a.getFactorForIndex(aoffset));
+            FloatVector af = ((FloatVector) a.getVector(ByteVector.SPECIES_128, aoffset)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0))
+                    .mul(scale);
+            FloatVector bf = f16ToF32((IntVector) b.getVector(ShortVector.SPECIES_256, boffset)
+                    .convertShape(VectorOperators.S2I, IntVector.SPECIES_512, 0));
+
+            acc = af.fma(bf, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    private float dotProductI8F16_256(Q8ByteBufferTensor a, Float16BufferTensor b, int aoffset, int boffset, int limit) {
+        int alim = aoffset + limit;
+        int slen = ByteVector.SPECIES_64.length();
+
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_256);
+        for (; aoffset < alim; aoffset += slen, boffset += slen) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_256, a.getFactorForIndex(aoffset));
+            FloatVector af = ((FloatVector) a.getVector(ByteVector.SPECIES_64, aoffset)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0))
+                    .mul(scale);
+            FloatVector bf = f16ToF32((IntVector) b.getVector(ShortVector.SPECIES_128, boffset)
+                    .convertShape(VectorOperators.S2I, IntVector.SPECIES_256, 0));
+
+            acc = af.fma(bf, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
     private float dotProductBF16F32_512(BFloat16BufferTensor a, FloatBufferTensor b, int aoffset, int boffset, int limit) {
         int alim = aoffset + limit;
         int blim = boffset + limit;
@@ -1005,6 +1139,391 @@ final public class PanamaTensorOperations implements TensorOperations
         return acc.reduceLanes(VectorOperators.ADD);
     }
 
+    /**
+     * Rows of a run together through a matmul micro-kernel, each block of b is loaded and dequantized once for all of them
+     */
+    static final int MATMUL_ROWS = 4;
+
+    @Override
+    public void matmul(AbstractTensor result, AbstractTensor a, AbstractTensor b, int offset, int limit, int chunkStart, int chunkSize) {
+        Preconditions.checkArgument(a.dims() == 2 && b.dims() == 2 && result.dims() == 2);
+        if (!hasMatmulKernel(a.dType(), b.dType(), offset, limit)) {
+            TensorOperations.super.matmul(result, a, b, offset, limit, chunkStart, chunkSize);
+            return;
+        }
+
+        int rows = a.shape().first();
+        int end = chunkStart + chunkSize;
+        float[] out = new float[MATMUL_ROWS];
+        AbstractTensor[] ar = new AbstractTensor[MATMUL_ROWS];
+        AbstractTensor[] bt = new AbstractTensor[MATMUL_TILE_ROWS];
+
+        for (int n0 = chunkStart; n0 < end; n0 += MATMUL_TILE_ROWS) {
+            int tile = Math.min(MATMUL_TILE_ROWS, end - n0);
+            for (int n = 0; n < tile; n++)
+                bt[n] = b.slice(n0 + n);
+
+            for (int m0 = 0; m0 < rows; m0 += MATMUL_ROWS) {
+                // A short last block repeats its final row, the extra results are dropped
+                int mr = Math.min(MATMUL_ROWS, rows - m0);
+                for (int r = 0; r < MATMUL_ROWS; r++)
+                    ar[r] = a.slice(m0 + Math.min(r, mr - 1));
+
+                for (int n = 0; n < tile; n++) {
+                    matmulKernel(ar, bt[n], offset, limit, out);
+                    for (int r = 0; r < mr; r++)
+                        result.set(out[r], m0 + r, n0 + n);
+                }
+            }
+        }
+    }
+
+    private boolean hasMatmulKernel(DType a, DType b, int offset, int limit) {
+        if (a == DType.F32 && b == DType.F32)
+            return true;
+
+        if (vectorType != MachineSpec.Type.AVX_512 && vectorType != MachineSpec.Type.AVX_256)
+            return false;
+
+        if (offset % Q8ByteBufferTensor.BLOCK_SIZE != 0 || limit % Q8ByteBufferTensor.BLOCK_SIZE != 0)
+            return false;
+
+        return switch (a) {
+            case F32 -> b == DType.I8 || b == DType.Q4;
+            case I8 -> b == DType.Q4;
+            case BF16 -> b == DType.I8;
+            default -> false;
+        };
+    }
+
+    private void matmulKernel(AbstractTensor[] a, AbstractTensor b, int offset, int limit, float[] out) {
+        boolean avx512 = vectorType == MachineSpec.Type.AVX_512;
+        switch (a[0].dType()) {
+            case F32 -> {
+                switch (b.dType()) {
+                    case F32 -> matmulF32(a, (FloatBufferTensor) b, offset, limit, out);
+                    case I8 -> {
+                        if (avx512) matmulF32I8_512(a, (Q8ByteBufferTensor) b, offset, limit, out);
+                        else matmulF32I8_256(a, (Q8ByteBufferTensor) b, offset, limit, out);
+                    }
+                    case Q4 -> {
+                        if (avx512) matmulF32Q4_512(a, (Q4ByteBufferTensor) b, offset, limit, out);
+                        else matmulF32Q4_256(a, (Q4ByteBufferTensor) b, offset, limit, out);
+                    }
+                    default -> throw new UnsupportedOperationException(b.dType().name());
+                }
+            }
+            case I8 -> {
+                if (avx512) matmulI8Q4_512(a, (Q4ByteBufferTensor) b, offset, limit, out);
+                else matmulI8Q4_256(a, (Q4ByteBufferTensor) b, offset, limit, out);
+            }
+            case BF16 -> {
+                if (avx512) matmulBF16I8_512(a, (Q8ByteBufferTensor) b, offset, limit, out);
+                else matmulBF16I8_256(a, (Q8ByteBufferTensor) b, offset, limit, out);
+            }
+            default -> throw new UnsupportedOperationException(a[0].dType().name());
+        }
+    }
+
+    private void matmulF32(AbstractTensor[] a, FloatBufferTensor b, int offset, int limit, float[] out) {
+        FloatBufferTensor a0 = (FloatBufferTensor) a[0], a1 = (FloatBufferTensor) a[1], a2 = (FloatBufferTensor) a[2], a3 = (FloatBufferTensor) a[3];
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+        FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+        FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+        FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+
+        int slen = FloatVector.SPECIES_PREFERRED.length();
+        int upperBound = offset + FloatVector.SPECIES_PREFERRED.loopBound(limit);
+        int i = offset;
+        for (; i < upperBound; i += slen) {
+            FloatVector vb = b.getVector(FloatVector.SPECIES_PREFERRED, i);
+            acc0 = a0.getVector(FloatVector.SPECIES_PREFERRED, i).fma(vb, acc0);
+            acc1 = a1.getVector(FloatVector.SPECIES_PREFERRED, i).fma(vb, acc1);
+            acc2 = a2.getVector(FloatVector.SPECIES_PREFERRED, i).fma(vb, acc2);
+            acc3 = a3.getVector(FloatVector.SPECIES_PREFERRED, i).fma(vb, acc3);
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+
+        // tail
+        for (; i < offset + limit; i++) {
+            float vb = b.get(i);
+            out[0] += a0.get(i) * vb;
+            out[1] += a1.get(i) * vb;
+            out[2] += a2.get(i) * vb;
+            out[3] += a3.get(i) * vb;
+        }
+    }
+
+    private void matmulF32I8_512(AbstractTensor[] a, Q8ByteBufferTensor b, int offset, int limit, float[] out) {
+        FloatBufferTensor a0 = (FloatBufferTensor) a[0], a1 = (FloatBufferTensor) a[1], a2 = (FloatBufferTensor) a[2], a3 = (FloatBufferTensor) a[3];
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_512);
+
+        for (int i = offset; i < offset + limit; i += Q8ByteBufferTensor.BLOCK_SIZE) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_512, b.getFactorForIndex(i));
+            var b0 = b.getVector(ByteVector.SPECIES_128, i).convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0).mul(scale);
+            var b1 = b.getVector(ByteVector.SPECIES_128, i + 16).convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0).mul(scale);
+
+            acc0 = a0.getVector(FloatVector.SPECIES_512, i + 16).fma(b1, a0.getVector(FloatVector.SPECIES_512, i).fma(b0, acc0));
+            acc1 = a1.getVector(FloatVector.SPECIES_512, i + 16).fma(b1, a1.getVector(FloatVector.SPECIES_512, i).fma(b0, acc1));
+            acc2 = a2.getVector(FloatVector.SPECIES_512, i + 16).fma(b1, a2.getVector(FloatVector.SPECIES_512, i).fma(b0, acc2));
+            acc3 = a3.getVector(FloatVector.SPECIES_512, i + 16).fma(b1, a3.getVector(FloatVector.SPECIES_512, i).fma(b0, acc3));
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+    }
+
+    private void matmulF32I8_256(AbstractTensor[] a, Q8ByteBufferTensor b, int offset, int limit, float[] out) {
+        FloatBufferTensor a0 = (FloatBufferTensor) a[0], a1 = (FloatBufferTensor) a[1], a2 = (FloatBufferTensor) a[2], a3 = (FloatBufferTensor) a[3];
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_256);
+
+        for (int i = offset; i < offset + limit; i += Q8ByteBufferTensor.BLOCK_SIZE) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(i));
+            for (int j = i; j < i + Q8ByteBufferTensor.BLOCK_SIZE; j += 8) {
+                var bf = b.getVector(ByteVector.SPECIES_64, j).convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0).mul(scale);
+                acc0 = a0.getVector(FloatVector.SPECIES_256, j).fma(bf, acc0);
+                acc1 = a1.getVector(FloatVector.SPECIES_256, j).fma(bf, acc1);
+                acc2 = a2.getVector(FloatVector.SPECIES_256, j).fma(bf, acc2);
+                acc3 = a3.getVector(FloatVector.SPECIES_256, j).fma(bf, acc3);
+            }
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+    }
+
+    private void matmulF32Q4_512(AbstractTensor[] a, Q4ByteBufferTensor b, int offset, int limit, float[] out) {
+        FloatBufferTensor a0 = (FloatBufferTensor) a[0], a1 = (FloatBufferTensor) a[1], a2 = (FloatBufferTensor) a[2], a3 = (FloatBufferTensor) a[3];
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_512);
+
+        for (int i = offset; i < offset + limit; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_512, b.getFactorForIndex(i));
+
+            //Make 16 bytes -> 32 4bit -> 32 bytes -> 32 32F
+            var bf0 = b.getVector(ByteVector.SPECIES_128, i);
+            var low = bf0.lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                    .sub(Q4_BYTE_SUB_128)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0)
+                    .mul(scale);
+            var high = bf0.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_128)
+                    .lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                    .sub(Q4_BYTE_SUB_128)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0)
+                    .mul(scale);
+
+            int h = i + Q4ByteBufferTensor.HALF_BLOCK;
+            acc0 = a0.getVector(FloatVector.SPECIES_512, h).fma(high, a0.getVector(FloatVector.SPECIES_512, i).fma(low, acc0));
+            acc1 = a1.getVector(FloatVector.SPECIES_512, h).fma(high, a1.getVector(FloatVector.SPECIES_512, i).fma(low, acc1));
+            acc2 = a2.getVector(FloatVector.SPECIES_512, h).fma(high, a2.getVector(FloatVector.SPECIES_512, i).fma(low, acc2));
+            acc3 = a3.getVector(FloatVector.SPECIES_512, h).fma(high, a3.getVector(FloatVector.SPECIES_512, i).fma(low, acc3));
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+    }
+
+    private void matmulF32Q4_256(AbstractTensor[] a, Q4ByteBufferTensor b, int offset, int limit, float[] out) {
+        FloatBufferTensor a0 = (FloatBufferTensor) a[0], a1 = (FloatBufferTensor) a[1], a2 = (FloatBufferTensor) a[2], a3 = (FloatBufferTensor) a[3];
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_256);
+
+        for (int i = offset; i < offset + limit; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(i));
+
+            //Each 8 bytes holds 8 values of the first half of the block and the matching 8 of the second half
+            for (int j = 0; j < Q4ByteBufferTensor.HALF_BLOCK; j += 8) {
+                var bf = b.getVector(ByteVector.SPECIES_64, i + j * 2);
+                var low = bf.lanewise(VectorOperators.AND, Q4_BYTE_MASK_64)
+                        .sub(Q4_BYTE_SUB_64)
+                        .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0)
+                        .mul(scale);
+                var high = bf.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_64)
+                        .lanewise(VectorOperators.AND, Q4_BYTE_MASK_64)
+                        .sub(Q4_BYTE_SUB_64)
+                        .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0)
+                        .mul(scale);
+
+                int l = i + j;
+                int h = l + Q4ByteBufferTensor.HALF_BLOCK;
+                acc0 = a0.getVector(FloatVector.SPECIES_256, h).fma(high, a0.getVector(FloatVector.SPECIES_256, l).fma(low, acc0));
+                acc1 = a1.getVector(FloatVector.SPECIES_256, h).fma(high, a1.getVector(FloatVector.SPECIES_256, l).fma(low, acc1));
+                acc2 = a2.getVector(FloatVector.SPECIES_256, h).fma(high, a2.getVector(FloatVector.SPECIES_256, l).fma(low, acc2));
+                acc3 = a3.getVector(FloatVector.SPECIES_256, h).fma(high, a3.getVector(FloatVector.SPECIES_256, l).fma(low, acc3));
+            }
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+    }
+
+    /**
+     * Integer dot product of a block of 32 quantized bytes with a decoded Q4 block (as low and high halves)
+     */
+    private static ShortVector blockI8Q4(Q8ByteBufferTensor a, int i, ShortVector low, ShortVector high) {
+        var af0 = a.getVector(ByteVector.SPECIES_128, i).convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+        var af1 = a.getVector(ByteVector.SPECIES_128, i + Q4ByteBufferTensor.HALF_BLOCK).convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0);
+        return low.mul(af0).add(high.mul(af1)).reinterpretAsShorts();
+    }
+
+    private static ShortVector[] decodeQ4(Q4ByteBufferTensor b, int i) {
+        var bf = b.getVector(ByteVector.SPECIES_128, i);
+        var low = bf.lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                .sub(Q4_BYTE_SUB_128)
+                .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0)
+                .reinterpretAsShorts();
+        var high = bf.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_128)
+                .lanewise(VectorOperators.AND, Q4_BYTE_MASK_128)
+                .sub(Q4_BYTE_SUB_128)
+                .convertShape(VectorOperators.B2S, ShortVector.SPECIES_256, 0)
+                .reinterpretAsShorts();
+        return new ShortVector[]{low, high};
+    }
+
+    private void matmulI8Q4_512(AbstractTensor[] a, Q4ByteBufferTensor b, int offset, int limit, float[] out) {
+        Q8ByteBufferTensor a0 = (Q8ByteBufferTensor) a[0], a1 = (Q8ByteBufferTensor) a[1], a2 = (Q8ByteBufferTensor) a[2], a3 = (Q8ByteBufferTensor) a[3];
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_512);
+
+        for (int i = offset; i < offset + limit; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+            float bscale = b.getFactorForIndex(i);
+            ShortVector[] bq = decodeQ4(b, i);
+
+            acc0 = FloatVector.broadcast(FloatVector.SPECIES_512, a0.getFactorForIndex(i) * bscale)
+                    .fma(blockI8Q4(a0, i, bq[0], bq[1]).convertShape(VectorOperators.S2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats(), acc0);
+            acc1 = FloatVector.broadcast(FloatVector.SPECIES_512, a1.getFactorForIndex(i) * bscale)
+                    .fma(blockI8Q4(a1, i, bq[0], bq[1]).convertShape(VectorOperators.S2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats(), acc1);
+            acc2 = FloatVector.broadcast(FloatVector.SPECIES_512, a2.getFactorForIndex(i) * bscale)
+                    .fma(blockI8Q4(a2, i, bq[0], bq[1]).convertShape(VectorOperators.S2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats(), acc2);
+            acc3 = FloatVector.broadcast(FloatVector.SPECIES_512, a3.getFactorForIndex(i) * bscale)
+                    .fma(blockI8Q4(a3, i, bq[0], bq[1]).convertShape(VectorOperators.S2F, FloatVector.SPECIES_512, 0).reinterpretAsFloats(), acc3);
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+    }
+
+    private void matmulI8Q4_256(AbstractTensor[] a, Q4ByteBufferTensor b, int offset, int limit, float[] out) {
+        Q8ByteBufferTensor[] aq = new Q8ByteBufferTensor[]{(Q8ByteBufferTensor) a[0], (Q8ByteBufferTensor) a[1], (Q8ByteBufferTensor) a[2], (Q8ByteBufferTensor) a[3]};
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_256);
+
+        for (int i = offset; i < offset + limit; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+            float bscale = b.getFactorForIndex(i);
+            ShortVector[] bq = decodeQ4(b, i);
+
+            for (int r = 0; r < MATMUL_ROWS; r++) {
+                var isum = blockI8Q4(aq[r], i, bq[0], bq[1]);
+                var scale = FloatVector.broadcast(FloatVector.SPECIES_256, aq[r].getFactorForIndex(i) * bscale);
+                var sum = scale.mul(isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_256, 0).reinterpretAsFloats())
+                        .add(scale.mul(isum.convertShape(VectorOperators.S2F, FloatVector.SPECIES_256, 1).reinterpretAsFloats()));
+                switch (r) {
+                    case 0 -> acc0 = acc0.add(sum);
+                    case 1 -> acc1 = acc1.add(sum);
+                    case 2 -> acc2 = acc2.add(sum);
+                    default -> acc3 = acc3.add(sum);
+                }
+            }
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+    }
+
+    private void matmulBF16I8_512(AbstractTensor[] a, Q8ByteBufferTensor b, int offset, int limit, float[] out) {
+        BFloat16BufferTensor a0 = (BFloat16BufferTensor) a[0], a1 = (BFloat16BufferTensor) a[1], a2 = (BFloat16BufferTensor) a[2], a3 = (BFloat16BufferTensor) a[3];
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_512);
+        FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_512);
+
+        for (int i = offset; i < offset + limit; i += 16) {
+            var bf = b.getVector(ByteVector.SPECIES_128, i)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_512, 0)
+                    .reinterpretAsFloats()
+                    .mul(b.getFactorForIndex(i));
+
+            acc0 = bf16ToF32_512(a0, i).fma(bf, acc0);
+            acc1 = bf16ToF32_512(a1, i).fma(bf, acc1);
+            acc2 = bf16ToF32_512(a2, i).fma(bf, acc2);
+            acc3 = bf16ToF32_512(a3, i).fma(bf, acc3);
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+    }
+
+    private void matmulBF16I8_256(AbstractTensor[] a, Q8ByteBufferTensor b, int offset, int limit, float[] out) {
+        BFloat16BufferTensor a0 = (BFloat16BufferTensor) a[0], a1 = (BFloat16BufferTensor) a[1], a2 = (BFloat16BufferTensor) a[2], a3 = (BFloat16BufferTensor) a[3];
+        FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_256);
+        FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_256);
+
+        for (int i = offset; i < offset + limit; i += 8) {
+            var bf = b.getVector(ByteVector.SPECIES_64, i)
+                    .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0)
+                    .reinterpretAsFloats()
+                    .mul(b.getFactorForIndex(i));
+
+            acc0 = bf16ToF32_256(a0, i).fma(bf, acc0);
+            acc1 = bf16ToF32_256(a1, i).fma(bf, acc1);
+            acc2 = bf16ToF32_256(a2, i).fma(bf, acc2);
+            acc3 = bf16ToF32_256(a3, i).fma(bf, acc3);
+        }
+
+        out[0] = acc0.reduceLanes(VectorOperators.ADD);
+        out[1] = acc1.reduceLanes(VectorOperators.ADD);
+        out[2] = acc2.reduceLanes(VectorOperators.ADD);
+        out[3] = acc3.reduceLanes(VectorOperators.ADD);
+    }
+
+    private static FloatVector bf16ToF32_512(BFloat16BufferTensor a, int i) {
+        return a.getVector(ShortVector.SPECIES_256, i)
+                .convertShape(VectorOperators.ZERO_EXTEND_S2I, IntVector.SPECIES_512, 0)
+                .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT_512)
+                .reinterpretAsFloats();
+    }
+
+    private static FloatVector bf16ToF32_256(BFloat16BufferTensor a, int i) {
+        return a.getVector(ShortVector.SPECIES_128, i)
+                .convertShape(VectorOperators.ZERO_EXTEND_S2I, IntVector.SPECIES_256, 0)
+                .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT_256)
+                .reinterpretAsFloats();
+    }
+
     private float dotProductF32(FloatBufferTensor a, FloatBufferTensor b, int aoffset, int boffset, int limit) {
         FloatVector acc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
         int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(limit);
@@ -1054,6 +1573,72 @@ final public class PanamaTensorOperations implements TensorOperations
         }
     }
 
+    @Override
+    public void activateAndMultiply(AbstractTensor a, AbstractTensor b, ActivationFunction.Type type, int offset, int length) {
+        if (a.dType() == DType.F32 && (b == null || b.dType() == DType.F32))
+            activateAndMultiplyF32((FloatBufferTensor) a, (FloatBufferTensor) b, type, offset, length);
+        else
+            TensorOperations.super.activateAndMultiply(a, b, type, offset, length);
+    }
+
+    void activateAndMultiplyF32(FloatBufferTensor a, FloatBufferTensor b, ActivationFunction.Type type, int offset, int length) {
+        int upperBound = offset + FloatVector.SPECIES_PREFERRED.loopBound(length);
+        int i = offset;
+
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length()) {
+            FloatVector va = activate(type, a.getVector(FloatVector.SPECIES_PREFERRED, i));
+            if (b != null)
+                va = va.mul(b.getVector(FloatVector.SPECIES_PREFERRED, i));
+            a.intoTensor(va, i);
+        }
+
+        // tail
+        for (; i < offset + length; i++) {
+            float v = ActivationFunction.eval(type, a.get(i));
+            a.set(b == null ? v : v * b.get(i), i);
+        }
+    }
+
+    private static final float GELU_K0 = (float) Math.sqrt(2 / Math.PI);
+    private static final float GELU_K1 = 0.044715f * GELU_K0;
+
+    /**
+     * SiLU is x * sigmoid(x) and the tanh form of GELU is x * sigmoid(2 * sqrt(2 / pi) * (x + 0.044715 * x^3)),
+     * so both only need a single exp
+     */
+    private static FloatVector activate(ActivationFunction.Type type, FloatVector x) {
+        FloatVector z = switch (type) {
+            case SILU -> x.neg();
+            case GELU -> x.mul(x).fma(GELU_K1, GELU_K0).mul(x).mul(-2f);
+        };
+        return x.div(exp(z).add(1f));
+    }
+
+    /**
+     * Cephes style expf, range reduced to 2^n * e^r with |r| <= ln2 / 2 and a degree 6 polynomial for e^r.
+     * Good to a couple of ulp over the clamped range which is plenty for activations.
+     */
+    private static FloatVector exp(FloatVector x) {
+        x = x.max(-87.3f).min(88.3f);
+
+        // round to nearest by adding and removing 1.5 * 2^23
+        FloatVector n = x.fma(1.44269504f, 12582912f).sub(12582912f);
+        FloatVector r = x.sub(n.mul(0.693359375f)).add(n.mul(2.12194440e-4f));
+
+        FloatVector p = r.fma(1.9875691500e-4f, 1.3981999507e-3f);
+        p = p.mul(r).add(8.3334519073e-3f);
+        p = p.mul(r).add(4.1665795894e-2f);
+        p = p.mul(r).add(1.6666665459e-1f);
+        p = p.mul(r).add(5.0000001201e-1f);
+        p = p.mul(r.mul(r)).add(r).add(1f);
+
+        FloatVector pow2n = ((IntVector) n.convert(VectorOperators.F2I, 0))
+                .add(127)
+                .lanewise(VectorOperators.LSHL, 23)
+                .reinterpretAsFloats();
+        return p.mul(pow2n);
+    }
+
     @Override
     public void accumulate(AbstractTensor a, AbstractTensor b, int offset, int limit) {
         Preconditions.checkArgument(a.dType() == b.dType());
@@ -1189,7 +1774,7 @@ final public class PanamaTensorOperations implements TensorOperations
 
         // tail
         for (; i < (offset + length); i++) {
-            a.set(a.get(i) + factor, i);
+            a.set(a.get(i) * factor, i);
         }
     }
 
@@ -1214,7 +1799,7 @@ final public class PanamaTensorOperations implements TensorOperations
 
         // tail
         for (; i < (offset + length); i++) {
-            a.set(a.get(i) + factor, i);
+            a.set(a.get(i) * factor, i);
         }
     }
 
@@ -1239,15 +1824,352 @@ final public class PanamaTensorOperations implements TensorOperations
 
         // tail
         for (; i < (offset + length); i++) {
-            a.set(a.get(i) + factor, i);
+            a.set(a.get(i) * factor, i);
+        }
+    }
+
+    @Override
+    public void rope(AbstractTensor query, AbstractTensor key, int position, float[] freqs, int headSize, int queryOffset, int queryLength, int keyOffset, int keyLength) {
+        if (query.dType() == DType.F32 && key.dType() == DType.F32)
+            ropeF32((FloatBufferTensor) query, (FloatBufferTensor) key, position, freqs, headSize, queryOffset, queryLength, keyOffset, keyLength);
+        else
+            TensorOperations.super.rope(query, key, position, freqs, headSize, queryOffset, queryLength, keyOffset, keyLength);
+    }
+
+    /**
+     * Loads each vector of cos and sin once and rotates that slice of every query and key head with it
+     */
+    void ropeF32(FloatBufferTensor query, FloatBufferTensor key, int position, float[] freqs, int headSize, int queryOffset, int queryLength, int keyOffset, int keyLength) {
+        Preconditions.checkArgument(queryLength % headSize == 0 && keyLength % headSize == 0);
+        int half = headSize / 2;
+        int base = position * headSize;
+        int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(half);
+
+        int i = 0;
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length()) {
+            FloatVector fcr = FloatVector.fromArray(FloatVector.SPECIES_PREFERRED, freqs, base + i);
+            FloatVector fci = FloatVector.fromArray(FloatVector.SPECIES_PREFERRED, freqs, base + half + i);
+
+            for (int h = queryOffset; h < queryOffset + queryLength; h += headSize)
+                rotateF32(query, h + i, h + i + half, fcr, fci);
+
+            for (int h = keyOffset; h < keyOffset + keyLength; h += headSize)
+                rotateF32(key, h + i, h + i + half, fcr, fci);
+        }
+
+        // tail
+        for (; i < half; i++) {
+            float fcr = freqs[base + i];
+            float fci = freqs[base + half + i];
+            for (int h = queryOffset; h < queryOffset + queryLength; h += headSize)
+                rotateF32(query, h + i, h + i + half, fcr, fci);
+
+            for (int h = keyOffset; h < keyOffset + keyLength; h += headSize)
+                rotateF32(key, h + i, h + i + half, fcr, fci);
+        }
+    }
+
+    private static void rotateF32(FloatBufferTensor t, int i0, int i1, FloatVector fcr, FloatVector fci) {
+        FloatVector v0 = t.getVector(FloatVector.SPECIES_PREFERRED, i0);
+        FloatVector v1 = t.getVector(FloatVector.SPECIES_PREFERRED, i1);
+        t.intoTensor(v0.mul(fcr).sub(v1.mul(fci)), i0);
+        t.intoTensor(v0.fma(fci, v1.mul(fcr)), i1);
+    }
+
+    private static void rotateF32(FloatBufferTensor t, int i0, int i1, float fcr, float fci) {
+        float v0 = t.get(i0);
+        float v1 = t.get(i1);
+        t.set(v0 * fcr - v1 * fci, i0);
+        t.set(v0 * fci + v1 * fcr, i1);
+    }
+
+    @Override
+    public float sum(AbstractTensor x, int offset, int length) {
+        if (!hasNormVectors(x))
+            return TensorOperations.super.sum(x, offset, length);
+
+        VectorSpecies<Float> species = normSpecies();
+        int upperBound = offset + species.loopBound(length);
+        FloatVector acc = FloatVector.zero(species);
+        int i = offset;
+        for (; i < upperBound; i += species.length())
+            acc = acc.add(loadNorm(species, x, i));
+
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        // tail
+        for (; i < offset + length; i++)
+            sum += x.get(i);
+
+        return sum;
+    }
+
+    @Override
+    public float sumOfSquares(AbstractTensor x, int offset, int length) {
+        if (!hasNormVectors(x))
+            return TensorOperations.super.sumOfSquares(x, offset, length);
+
+        VectorSpecies<Float> species = normSpecies();
+        int upperBound = offset + species.loopBound(length);
+        FloatVector acc = FloatVector.zero(species);
+        int i = offset;
+        for (; i < upperBound; i += species.length()) {
+            FloatVector v = loadNorm(species, x, i);
+            acc = v.fma(v, acc);
+        }
+
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        // tail
+        for (; i < offset + length; i++) {
+            float v = x.get(i);
+            sum += v * v;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void normalize(AbstractTensor x, AbstractTensor out, float mean, float scale, AbstractTensor weights, float weightAdjustment, AbstractTensor bias, int offset, int length) {
+        boolean quantized = out.dType() == DType.I8;
+        boolean vectorize = hasNormVectors(x) && hasNormVectors(weights) && (bias == null || hasNormVectors(bias)) && (quantized
+                ? (vectorType == MachineSpec.Type.AVX_512 || vectorType == MachineSpec.Type.AVX_256) && offset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && length % Q8ByteBufferTensor.BLOCK_SIZE == 0
+                : hasNormVectors(out));
+
+        if (!vectorize) {
+            TensorOperations.super.normalize(x, out, mean, scale, weights, weightAdjustment, bias, offset, length);
+            return;
+        }
+
+        VectorSpecies<Float> species = normSpecies();
+        FloatVector vmean = FloatVector.broadcast(species, mean);
+        FloatVector vscale = FloatVector.broadcast(species, scale);
+        FloatVector vadj = FloatVector.broadcast(species, weightAdjustment);
+
+        if (quantized) {
+            // Find the block's max from the normalized values, then normalize again to quantize rather than storing them
+            Q8ByteBufferTensor q = (Q8ByteBufferTensor) out;
+            VectorSpecies<Byte> byteSpecies = species == FloatVector.SPECIES_512 ? ByteVector.SPECIES_128 : ByteVector.SPECIES_64;
+            FloatVector roundUp = species == FloatVector.SPECIES_512 ? F32_ROUND_UP_512 : F32_ROUND_UP_256;
+            for (int b = offset; b < offset + length; b += Q8ByteBufferTensor.BLOCK_SIZE) {
+                FloatVector maxAbs = FloatVector.zero(species);
+                for (int i = b; i < b + Q8ByteBufferTensor.BLOCK_SIZE; i += species.length())
+                    maxAbs = maxAbs.max(normalized(species, x, i, vmean, vscale, weights, vadj, bias).abs());
+
+                float maxScalar = maxAbs.reduceLanes(VectorOperators.MAX);
+                float d = maxScalar / 127f;
+                float id = (maxScalar != 0.0f) ? 127.f / maxScalar : 0.0f;
+                FloatVector vid = FloatVector.broadcast(species, id);
+
+                for (int i = b; i < b + Q8ByteBufferTensor.BLOCK_SIZE; i += species.length()) {
+                    FloatVector v = normalized(species, x, i, vmean, vscale, weights, vadj, bias).mul(vid).add(roundUp); //rounding
+                    q.intoTensor(v.convertShape(VectorOperators.F2B, byteSpecies, 0).reinterpretAsBytes(), i);
+                }
+
+                q.getBlockF().set(d, (int) (b * Q8ByteBufferTensor.I_BLOCK_SIZE));
+            }
+            return;
+        }
+
+        int upperBound = offset + species.loopBound(length);
+        int i = offset;
+        for (; i < upperBound; i += species.length())
+            storeNorm(species, out, normalized(species, x, i, vmean, vscale, weights, vadj, bias), i);
+
+        // tail
+        for (; i < offset + length; i++) {
+            float v = (x.get(i) - mean) * scale * (weightAdjustment + weights.get(i));
+            out.set(bias == null ? v : v + bias.get(i), i);
+        }
+    }
+
+    /**
+     * F32 always has vectors, BF16 only where there are widening conversions for it
+     */
+    private boolean hasNormVectors(AbstractTensor t) {
+        return t.dType() == DType.F32 || (t.dType() == DType.BF16 && (vectorType == MachineSpec.Type.AVX_512 || vectorType == MachineSpec.Type.AVX_256));
+    }
+
+    private VectorSpecies<Float> normSpecies() {
+        return switch (vectorType) {
+            case AVX_512 -> FloatVector.SPECIES_512;
+            case AVX_256 -> FloatVector.SPECIES_256;
+            default -> FloatVector.SPECIES_PREFERRED;
+        };
+    }
+
+    private static FloatVector normalized(VectorSpecies<Float> species, AbstractTensor x, int i, FloatVector vmean, FloatVector vscale, AbstractTensor weights, FloatVector vadj, AbstractTensor bias) {
+        FloatVector v = loadNorm(species, x, i).sub(vmean).mul(vscale).mul(loadNorm(species, weights, i).add(vadj));
+        return bias == null ? v : v.add(loadNorm(species, bias, i));
+    }
+
+    private static FloatVector loadNorm(VectorSpecies<Float> species, AbstractTensor t, int i) {
+        if (t.dType() == DType.F32)
+            return ((FloatBufferTensor) t).getVector(species, i);
+
+        return species == FloatVector.SPECIES_512 ? bf16ToF32_512((BFloat16BufferTensor) t, i) : bf16ToF32_256((BFloat16BufferTensor) t, i);
+    }
+
+    private static void storeNorm(VectorSpecies<Float> species, AbstractTensor t, FloatVector v, int i) {
+        if (t.dType() == DType.F32) {
+            ((FloatBufferTensor) t).intoTensor(v, i);
+            return;
+        }
+
+        var bf16 = v.reinterpretAsInts()
+                .lanewise(VectorOperators.ASHR, 16)
+                .convertShape(VectorOperators.I2S, species == FloatVector.SPECIES_512 ? ShortVector.SPECIES_256 : ShortVector.SPECIES_128, 0);
+        ((BFloat16BufferTensor) t).intoTensor((ShortVector) bf16, i);
+    }
+
+    /**
+     * Keys or values of a run handled together, each vector of the query or output head is loaded once for all of them
+     */
+    static final int ATTENTION_ROWS = 4;
+
+    @Override
+    public void attentionScores(AbstractTensor query, AbstractTensor kv, int qOffset, int kvOffset, int headSize, int row, int length, float scale, float[] scores, int scoresOffset) {
+        if (query.dType() != DType.F32 || !hasAttentionKernel(kv.dType(), kvOffset, headSize)) {
+            TensorOperations.super.attentionScores(query, kv, qOffset, kvOffset, headSize, row, length, scale, scores, scoresOffset);
+            return;
+        }
+
+        VectorSpecies<Float> species = attentionSpecies();
+        FloatBufferTensor q = (FloatBufferTensor) query;
+        for (int r = 0; r < length; r += ATTENTION_ROWS) {
+            // A short last block repeats its final row, the extra scores are dropped
+            int rows = Math.min(ATTENTION_ROWS, length - r);
+            AbstractTensor k0 = kv.slice(true, row + r).slice(0);
+            AbstractTensor k1 = kv.slice(true, row + r + Math.min(1, rows - 1)).slice(0);
+            AbstractTensor k2 = kv.slice(true, row + r + Math.min(2, rows - 1)).slice(0);
+            AbstractTensor k3 = kv.slice(true, row + r + Math.min(3, rows - 1)).slice(0);
+
+            FloatVector acc0 = FloatVector.zero(species);
+            FloatVector acc1 = FloatVector.zero(species);
+            FloatVector acc2 = FloatVector.zero(species);
+            FloatVector acc3 = FloatVector.zero(species);
+            for (int i = 0; i < headSize; i += species.length()) {
+                FloatVector vq = q.getVector(species, qOffset + i);
+                int ki = kvOffset + i;
+                acc0 = attentionVector(species, k0, ki).fma(vq, acc0);
+                acc1 = attentionVector(species, k1, ki).fma(vq, acc1);
+                acc2 = attentionVector(species, k2, ki).fma(vq, acc2);
+                acc3 = attentionVector(species, k3, ki).fma(vq, acc3);
+            }
+
+            int at = scoresOffset + r;
+            scores[at] = acc0.reduceLanes(VectorOperators.ADD) * scale;
+            if (rows > 1) scores[at + 1] = acc1.reduceLanes(VectorOperators.ADD) * scale;
+            if (rows > 2) scores[at + 2] = acc2.reduceLanes(VectorOperators.ADD) * scale;
+            if (rows > 3) scores[at + 3] = acc3.reduceLanes(VectorOperators.ADD) * scale;
+        }
+    }
+
+    @Override
+    public void attentionValues(float[] weights, int weightsOffset, AbstractTensor kv, AbstractTensor out, int kvOffset, int outOffset, int headSize, int row, int length) {
+        if (out.dType() != DType.F32 || !hasAttentionKernel(kv.dType(), kvOffset, headSize)) {
+            TensorOperations.super.attentionValues(weights, weightsOffset, kv, out, kvOffset, outOffset, headSize, row, length);
+            return;
+        }
+
+        VectorSpecies<Float> species = attentionSpecies();
+        FloatBufferTensor o = (FloatBufferTensor) out;
+        for (int r = 0; r < length; r += ATTENTION_ROWS) {
+            // A short last block repeats its final row with no weight
+            int rows = Math.min(ATTENTION_ROWS, length - r);
+            int w = weightsOffset + r;
+            AbstractTensor v0 = kv.slice(true, row + r).slice(1);
+            AbstractTensor v1 = kv.slice(true, row + r + Math.min(1, rows - 1)).slice(1);
+            AbstractTensor v2 = kv.slice(true, row + r + Math.min(2, rows - 1)).slice(1);
+            AbstractTensor v3 = kv.slice(true, row + r + Math.min(3, rows - 1)).slice(1);
+            FloatVector w0 = FloatVector.broadcast(species, weights[w]);
+            FloatVector w1 = FloatVector.broadcast(species, rows > 1 ? weights[w + 1] : 0f);
+            FloatVector w2 = FloatVector.broadcast(species, rows > 2 ? weights[w + 2] : 0f);
+            FloatVector w3 = FloatVector.broadcast(species, rows > 3 ? weights[w + 3] : 0f);
+
+            for (int i = 0; i < headSize; i += species.length()) {
+                int vi = kvOffset + i;
+                int oi = outOffset + i;
+                FloatVector acc = o.getVector(species, oi);
+                acc = attentionVector(species, v0, vi).fma(w0, acc);
+                acc = attentionVector(species, v1, vi).fma(w1, acc);
+                acc = attentionVector(species, v2, vi).fma(w2, acc);
+                acc = attentionVector(species, v3, vi).fma(w3, acc);
+                o.intoTensor(acc, oi);
+            }
+        }
+    }
+
+    private boolean hasAttentionKernel(DType kv, int kvOffset, int headSize) {
+        if (kv == DType.F32)
+            return headSize % attentionSpecies().length() == 0;
+
+        if (vectorType != MachineSpec.Type.AVX_512 && vectorType != MachineSpec.Type.AVX_256)
+            return false;
+
+        if (kvOffset % Q8ByteBufferTensor.BLOCK_SIZE != 0 || headSize % Q8ByteBufferTensor.BLOCK_SIZE != 0)
+            return false;
+
+        return kv == DType.I8 || kv == DType.Q4;
+    }
+
+    private VectorSpecies<Float> attentionSpecies() {
+        return switch (vectorType) {
+            case AVX_512 -> FloatVector.SPECIES_512;
+            case AVX_256 -> FloatVector.SPECIES_256;
+            default -> FloatVector.SPECIES_PREFERRED;
+        };
+    }
+
+    /**
+     * The species length of a cached key or value starting at i, dequantized to F32
+     */
+    private static FloatVector attentionVector(VectorSpecies<Float> species, AbstractTensor t, int i) {
+        switch (t.dType()) {
+            case F32:
+                return ((FloatBufferTensor) t).getVector(species, i);
+            case I8: {
+                Q8ByteBufferTensor q = (Q8ByteBufferTensor) t;
+                VectorSpecies<Byte> bs = species.length() == 16 ? ByteVector.SPECIES_128 : ByteVector.SPECIES_64;
+                return ((FloatVector) q.getVector(bs, i).convertShape(VectorOperators.B2F, species, 0)).mul(q.getFactorForIndex(i));
+            }
+            case Q4: {
+                // Byte j of a block holds element j in the low nibble and element j + 16 in the high one
+                Q4ByteBufferTensor q = (Q4ByteBufferTensor) t;
+                boolean avx512 = species.length() == 16;
+                int block = i - i % Q4ByteBufferTensor.BLOCK_SIZE;
+                int j = i % Q4ByteBufferTensor.BLOCK_SIZE;
+                boolean high = j >= Q4ByteBufferTensor.HALF_BLOCK;
+                int from = block + 2 * (high ? j - Q4ByteBufferTensor.HALF_BLOCK : j);
+                ByteVector b = q.getVector(avx512 ? ByteVector.SPECIES_128 : ByteVector.SPECIES_64, from);
+                if (high)
+                    b = b.lanewise(VectorOperators.ASHR, avx512 ? Q4_BYTE_SHIFT_128 : Q4_BYTE_SHIFT_64);
+                b = b.lanewise(VectorOperators.AND, avx512 ? Q4_BYTE_MASK_128 : Q4_BYTE_MASK_64)
+                        .sub(avx512 ? Q4_BYTE_SUB_128 : Q4_BYTE_SUB_64);
+                return ((FloatVector) b.convertShape(VectorOperators.B2F, species, 0)).mul(q.getFactorForIndex(i));
+            }
+            default:
+                throw new UnsupportedOperationException(t.dType().name());
         }
     }
 
     @Override
     public void saxpy(float alpha, AbstractTensor x, AbstractTensor y, int xoffset, int yoffset, int limit) {
-        Preconditions.checkArgument(x.dType() == y.dType());
         Preconditions.checkArgument(limit % 2 == 0);
 
+        // Quantized x, e.g. values from a quantized kv cache
+        if (x.dType() != y.dType()) {
+            boolean avx = vectorType == MachineSpec.Type.AVX_512 || vectorType == MachineSpec.Type.AVX_256;
+            if (avx && y.dType() == DType.F32 && x.dType() == DType.I8)
+                saxpyI8_256(alpha, (Q8ByteBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit);
+            else if (avx && y.dType() == DType.F32 && x.dType() == DType.Q4)
+                saxpyQ4_256(alpha, (Q4ByteBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit);
+            else
+                for (int i = 0; i < limit; i++)
+                    y.set(y.get(yoffset + i) + alpha * x.get(xoffset + i), yoffset + i);
+            return;
+        }
+
         switch (x.dType()) {
             case F32: saxpyF32(alpha, (FloatBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit); break;
             case BF16: switch (vectorType) {
@@ -1282,6 +2204,46 @@ final public class PanamaTensorOperations implements TensorOperations
         }
     }
 
+    void saxpyI8_256(float alpha, Q8ByteBufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        Preconditions.checkArgument(xoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+
+        for (int i = 0; i < limit; i += Q8ByteBufferTensor.BLOCK_SIZE) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_256, alpha * x.getFactorForIndex(xoffset + i));
+            for (int j = i; j < i + Q8ByteBufferTensor.BLOCK_SIZE; j += FloatVector.SPECIES_256.length()) {
+                var vx = x.getVector(ByteVector.SPECIES_64, xoffset + j)
+                        .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+                var vy = y.getVector(FloatVector.SPECIES_256, yoffset + j);
+                y.intoTensor(((FloatVector) vx).fma(scale, vy), yoffset + j);
+            }
+        }
+    }
+
+    void saxpyQ4_256(float alpha, Q4ByteBufferTensor x, FloatBufferTensor y, int xoffset, int yoffset, int limit) {
+        Preconditions.checkArgument(xoffset % Q4ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q4ByteBufferTensor.BLOCK_SIZE == 0);
+
+        for (int i = 0; i < limit; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+            FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_256, alpha * x.getFactorForIndex(xoffset + i));
+            for (int j = 0; j < Q4ByteBufferTensor.HALF_BLOCK; j += FloatVector.SPECIES_256.length()) {
+                // 8 bytes hold elements [j, j + 8) in the low bits and [j + HALF_BLOCK, j + HALF_BLOCK + 8) in the high bits
+                var bx = x.getVector(ByteVector.SPECIES_64, xoffset + i + j * 2);
+
+                var low = (FloatVector) bx.lanewise(VectorOperators.AND, Q4_BYTE_MASK_64)
+                        .sub(Q4_BYTE_SUB_64)
+                        .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+
+                var high = (FloatVector) bx.lanewise(VectorOperators.ASHR, Q4_BYTE_SHIFT_64)
+                        .lanewise(VectorOperators.AND, Q4_BYTE_MASK_64)
+                        .sub(Q4_BYTE_SUB_64)
+                        .convertShape(VectorOperators.B2F, FloatVector.SPECIES_256, 0);
+
+                int yl = yoffset + i + j;
+                int yh = yl + Q4ByteBufferTensor.HALF_BLOCK;
+                y.intoTensor(low.fma(scale, y.getVector(FloatVector.SPECIES_256, yl)), yl);
+                y.intoTensor(high.fma(scale, y.getVector(FloatVector.SPECIES_256, yh)), yh);
+            }
+        }
+    }
+
     void saxpyBF16_256(float alpha, BFloat16BufferTensor a, BFloat16BufferTensor b, int aoffset, int boffset, int limit) {
         int upperBound = FloatVector.SPECIES_256.loopBound(limit);
         Preconditions.checkArgument(upperBound == limit);
@@ -1,5 +1,7 @@
 package com.github.tjake.jlama.tensor.operations;
 
+import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.tensor.TensorCache;
 import com.google.common.base.Preconditions;
 
@@ -37,6 +39,31 @@ public interface TensorOperations
         }
     }
 
+    /**
+     * Rows of b handled together in matmul, small enough to stay in cache while every row of a passes over them
+     */
+    int MATMUL_TILE_ROWS = 16;
+
+    /**
+     * Matrix multiply over a chunk of b's rows.  a is [M, K], b is [N, K] and result is [M, N],
+     * result[m, n] is the dot product of a[m] and b[n] over [offset, offset + limit) for n in [chunkStart, chunkStart + chunkSize).
+     * Each tile of b is applied to every row of a before moving on to the next,
+     * so the weights are streamed once per batch rather than once per row of a.
+     */
+    default void matmul(AbstractTensor result, AbstractTensor a, AbstractTensor b, int offset, int limit, int chunkStart, int chunkSize) {
+        Preconditions.checkArgument(a.dims() == 2 && b.dims() == 2 && result.dims() == 2);
+        int rows = a.shape().first();
+        int end = chunkStart + chunkSize;
+        for (int n0 = chunkStart; n0 < end; n0 += MATMUL_TILE_ROWS) {
+            int n1 = Math.min(end, n0 + MATMUL_TILE_ROWS);
+            for (int m = 0; m < rows; m++) {
+                AbstractTensor am = a.slice(m);
+                for (int n = n0; n < n1; n++)
+                    result.set(dotProduct(am, b.slice(n), offset, offset, limit), m, n);
+            }
+        }
+    }
+
     /**
      * For each position in the tensor, add b into a.  Must be same size.
      */
@@ -57,11 +84,124 @@ public interface TensorOperations
      */
     void sxpby(float beta, AbstractTensor x, AbstractTensor y, int xoffset, int yoffset, int limit);
 
+    /**
+     * Scores a query head against a run of cached keys, kv is [rows, 2, kvLength] with the key in slice 0 of each row.
+     * scores[scoresOffset + r] = scale * (query . key[row + r]) over [qOffset, qOffset + headSize) of the query
+     * and [kvOffset, kvOffset + headSize) of the key, for r in [0, length)
+     */
+    default void attentionScores(AbstractTensor query, AbstractTensor kv, int qOffset, int kvOffset, int headSize, int row, int length, float scale, float[] scores, int scoresOffset) {
+        for (int r = 0; r < length; r++)
+            scores[scoresOffset + r] = dotProduct(query, kv.slice(true, row + r).slice(0), qOffset, kvOffset, headSize) * scale;
+    }
+
+    /**
+     * Adds a run of cached values into an output head, weighted by weights[weightsOffset + r] for the value in slice 1 of row + r.
+     * Offsets and headSize are as in {@link #attentionScores}
+     */
+    default void attentionValues(float[] weights, int weightsOffset, AbstractTensor kv, AbstractTensor out, int kvOffset, int outOffset, int headSize, int row, int length) {
+        for (int r = 0; r < length; r++)
+            saxpy(weights[weightsOffset + r], kv.slice(true, row + r).slice(1), out, kvOffset, outOffset, headSize);
+    }
+
     /**
      * For each position multiply value by the scale factor
      */
     void scale(float factor, AbstractTensor x, int offset, int length);
 
+    /**
+     * Applies RoPE to every head of the query and key in the given ranges, in place.
+     * Heads use the huggingface permutation where element i is paired with element i + headSize / 2.
+     *
+     * @param freqs table from {@link com.github.tjake.jlama.math.VectorMath#precomputeRopeTable}
+     */
+    default void rope(AbstractTensor query, AbstractTensor key, int position, float[] freqs, int headSize, int queryOffset, int queryLength, int keyOffset, int keyLength) {
+        Preconditions.checkArgument(queryLength % headSize == 0 && keyLength % headSize == 0);
+        int half = headSize / 2;
+        int base = position * headSize;
+        for (int i = 0; i < half; i++) {
+            float fcr = freqs[base + i];
+            float fci = freqs[base + half + i];
+            for (int h = queryOffset; h < queryOffset + queryLength; h += headSize)
+                rotate(query, h + i, h + i + half, fcr, fci);
+            for (int h = keyOffset; h < keyOffset + keyLength; h += headSize)
+                rotate(key, h + i, h + i + half, fcr, fci);
+        }
+    }
+
+    /**
+     * Sum of x over [offset, offset + length)
+     */
+    default float sum(AbstractTensor x, int offset, int length) {
+        float sum = 0f;
+        for (int i = offset; i < offset + length; i++)
+            sum += x.get(i);
+        return sum;
+    }
+
+    /**
+     * Sum of the squares of x over [offset, offset + length)
+     */
+    default float sumOfSquares(AbstractTensor x, int offset, int length) {
+        float sum = 0f;
+        for (int i = offset; i < offset + length; i++) {
+            float v = x.get(i);
+            sum += v * v;
+        }
+        return sum;
+    }
+
+    /**
+     * The value computed is out[i] = (x[i] - mean) * scale * (weightAdjustment + weights[i]) + bias[i], the second half of a norm.
+     * When out is I8 each block is quantized as it's written, so no separate quantize pass is needed.
+     *
+     * @param bias may be null
+     */
+    default void normalize(AbstractTensor x, AbstractTensor out, float mean, float scale, AbstractTensor weights, float weightAdjustment, AbstractTensor bias, int offset, int length) {
+        if (out.dType() != DType.I8) {
+            for (int i = offset; i < offset + length; i++)
+                out.set(normalized(x, i, mean, scale, weights, weightAdjustment, bias), i);
+            return;
+        }
+
+        Preconditions.checkArgument(offset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && length % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+        Q8ByteBufferTensor q = (Q8ByteBufferTensor) out;
+        for (int b = offset; b < offset + length; b += Q8ByteBufferTensor.BLOCK_SIZE) {
+            float max = 0f;
+            for (int i = b; i < b + Q8ByteBufferTensor.BLOCK_SIZE; i++)
+                max = Math.max(max, Math.abs(normalized(x, i, mean, scale, weights, weightAdjustment, bias)));
+
+            float d = max / Byte.MAX_VALUE;
+            float limit = d * Byte.MAX_VALUE; // max after rounding, so the largest value still fits
+            q.getBlockF().set(d, (int) (b * Q8ByteBufferTensor.I_BLOCK_SIZE));
+            for (int i = b; i < b + Q8ByteBufferTensor.BLOCK_SIZE; i++)
+                q.set(Math.min(normalized(x, i, mean, scale, weights, weightAdjustment, bias), limit), i);
+        }
+    }
+
+    /**
+     * The value computed is a[i] = act(a[i]) * b[i], the gated activation of an MLP done in a single pass.
+     *
+     * @param b may be null, in which case only the activation is applied
+     */
+    default void activateAndMultiply(AbstractTensor a, AbstractTensor b, ActivationFunction.Type type, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            float v = ActivationFunction.eval(type, a.get(i));
+            a.set(b == null ? v : v * b.get(i), i);
+        }
+    }
+
+    private static float normalized(AbstractTensor x, int i, float mean, float scale, AbstractTensor weights, float weightAdjustment, AbstractTensor bias) {
+        float v = (x.get(i) - mean) * scale * (weightAdjustment + weights.get(i));
+        return bias == null ? v : v + bias.get(i);
+    }
+
+    private static void rotate(AbstractTensor t, int i0, int i1, float fcr, float fci) {
+        float v0 = t.get(i0);
+        float v1 = t.get(i1);
+        t.set(v0 * fcr - v1 * fci, i0);
+        t.set(v0 * fci + v1 * fcr, i1);
+    }
+
     /**
      * Quantizes the tensor to the specified type (if supported)
      */
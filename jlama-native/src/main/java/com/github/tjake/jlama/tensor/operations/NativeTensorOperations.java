@@ -7,6 +7,7 @@ import java.lang.foreign.ValueLayout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
@@ -81,6 +82,10 @@ public class NativeTensorOperations implements TensorOperations {
     @Override
     public float dotProduct(AbstractTensor a, AbstractTensor b, int aoffset, int boffset, int limit)
     {
+        // No native kernels for half width weights
+        if (isHalf(b))
+            return delegate.dotProduct(a, b, aoffset, boffset, limit);
+
         aoffset = a.getOffset(aoffset);
         boffset = b.getOffset(boffset);
 
@@ -102,6 +107,11 @@ public class NativeTensorOperations implements TensorOperations {
 
     @Override
     public void dotProductChunk(AbstractTensor r, AbstractTensor a, AbstractTensor b, int offset, int limit, int chunkStart, int chunkSize) {
+        if (isHalf(b)) {
+            delegate.dotProductChunk(r, a, b, offset, limit, chunkStart, chunkSize);
+            return;
+        }
+
         int aoffset = a.getOffset(offset);
         int boffset = b.getOffset(0, offset);
         int roffset = r.getOffset(chunkStart);
@@ -126,6 +136,11 @@ public class NativeTensorOperations implements TensorOperations {
 
     @Override
     public void dotProductBatchChunk(AbstractTensor[] r, AbstractTensor a, AbstractTensor[] b, int offset, int limit, int chunkStart, int chunkSize) {
+        if (isHalf(b[0])) {
+            delegate.dotProductBatchChunk(r, a, b, offset, limit, chunkStart, chunkSize);
+            return;
+        }
+
         int aoffset = a.getOffset(offset);
         int boffset = b[0].getOffset(0, offset);
         int roffset = r[0].getOffset(chunkStart);
@@ -170,6 +185,30 @@ public class NativeTensorOperations implements TensorOperations {
     }
 
 
+    @Override
+    public void matmul(AbstractTensor r, AbstractTensor a, AbstractTensor b, int offset, int limit, int chunkStart, int chunkSize) {
+        boolean nativeKernel = switch (a.dType()) {
+            case F32 -> b.dType() == DType.F32 || b.dType() == DType.I8 || b.dType() == DType.Q4;
+            case I8 -> b.dType() == DType.Q4;
+            default -> false;
+        };
+
+        if (!nativeKernel) {
+            delegate.matmul(r, a, b, offset, limit, chunkStart, chunkSize);
+            return;
+        }
+
+        int batchSize = a.shape().first();
+        int end = chunkStart + chunkSize;
+
+        //Walk the chunk in small row blocks so each block of b stays in cache for every row of a
+        for (int i = chunkStart; i < end; i += MATMUL_TILE_ROWS) {
+            int n = Math.min(MATMUL_TILE_ROWS, end - i);
+            for (int j = 0; j < batchSize; j++)
+                dotProductChunk(r.slice(j), a.slice(j), b, offset, limit, i, n);
+        }
+    }
+
     @Override
     public void accumulate(AbstractTensor a, AbstractTensor b, int offset, int length) {
          delegate.accumulate(a, b, offset, length);
@@ -195,8 +234,37 @@ public class NativeTensorOperations implements TensorOperations {
         delegate.scale(factor, x, offset, length);
     }
 
+    @Override
+    public void rope(AbstractTensor query, AbstractTensor key, int position, float[] freqs, int headSize, int queryOffset, int queryLength, int keyOffset, int keyLength) {
+        delegate.rope(query, key, position, freqs, headSize, queryOffset, queryLength, keyOffset, keyLength);
+    }
+
+    @Override
+    public void activateAndMultiply(AbstractTensor a, AbstractTensor b, ActivationFunction.Type type, int offset, int length) {
+        delegate.activateAndMultiply(a, b, type, offset, length);
+    }
+
+    @Override
+    public float sum(AbstractTensor x, int offset, int length) {
+        return delegate.sum(x, offset, length);
+    }
+
+    @Override
+    public float sumOfSquares(AbstractTensor x, int offset, int length) {
+        return delegate.sumOfSquares(x, offset, length);
+    }
+
+    @Override
+    public void normalize(AbstractTensor x, AbstractTensor out, float mean, float scale, AbstractTensor weights, float weightAdjustment, AbstractTensor bias, int offset, int length) {
+        delegate.normalize(x, out, mean, scale, weights, weightAdjustment, bias, offset, length);
+    }
+
     @Override
     public AbstractTensor quantize(AbstractTensor t, DType qtype, int offset, int length) {
         return delegate.quantize(t, qtype, offset, length);
     }
+
+    private static boolean isHalf(AbstractTensor t) {
+        return t.dType() == DType.BF16 || t.dType() == DType.F16;
+    }
 }
@@ -4,6 +4,7 @@ import com.github.tjake.jlama.model.AbstractModel;
 import com.github.tjake.jlama.model.functions.Generator;
 import com.github.tjake.jlama.net.grpc.JlamaService;
 import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.safetensors.tokenizer.StreamingDecoder;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
@@ -101,6 +102,7 @@ public class Coordinator implements Generator {
             onTokenWithTimings.accept(clientPrompt, 0f);
             long start = System.currentTimeMillis();
 
+            StreamingDecoder decoder = model.getTokenizer().streamingDecoder();
             AbstractTensor output = null;
             for (int i = 0; i < promptLength; i++) {
                 if (output != null) output.close();
@@ -117,7 +119,7 @@ public class Coordinator implements Generator {
                     break;
 
                 try {
-                    String c = model.getTokenizer().decode(next);
+                    String c = decoder.next(next);
                     onTokenWithTimings.accept(c, (System.currentTimeMillis() - start) / (float) (i + 1));
                 } catch (Exception e) {
                     logger.error("Failed to decode token {}", next, e);
@@ -125,6 +127,8 @@ public class Coordinator implements Generator {
 
                 output = service.generateNextOutput(session, next, i);
             }
+
+            decoder.flushTo(onTokenWithTimings, (System.currentTimeMillis() - start) / (float) ntokens);
         } catch (Throwable t) {
             logger.warn("Error generating tokens for session {}", session, t);
         }
@@ -3,7 +3,9 @@ package com.github.tjake.jlama.net;
 import com.github.tjake.jlama.model.AbstractModel;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.DenseKvBuffer;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.KvBuffer;
 import com.github.tjake.jlama.tensor.TensorShape;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.Pair;
@@ -42,6 +44,8 @@ import static com.github.tjake.jlama.model.ModelSupport.loadModel;
 
 public class Worker {
     private static final Logger logger = org.slf4j.LoggerFactory.getLogger(Worker.class);
+    //FIXME: Max size should be configurable
+    private static final int MAX_MAPPED_KV_POSITIONS = 2048;
     private final UUID workerId;
     private final ByteString workerIdBytes;
     private final AbstractModel model;
@@ -115,7 +119,7 @@ public class Worker {
 
     class GenerateObserver implements StreamObserver<GenerateResponse> {
         private final CountDownLatch finishedLatch;
-        private final ConcurrentMap<UUID, Pair<RandomAccessFile, AbstractTensor>> kvBufferCache;
+        private final ConcurrentMap<UUID, KvBuffer> kvBufferCache;
         private final ConcurrentMap<UUID, AtomicInteger> requestCount;
         private final ConcurrentMap<UUID, CombineObserver> combineStreams;
 
@@ -128,38 +132,37 @@ public class Worker {
             this.combineStreams = new ConcurrentHashMap<>();
         }
 
-        private AbstractTensor getKvBuffer(UUID session) {
-            return kvBufferCache.computeIfAbsent(session, this::makeKvBuffer).right;
+        private KvBuffer getKvBuffer(UUID session) {
+            return kvBufferCache.computeIfAbsent(session, this::makeKvBuffer);
         }
 
-        private Pair<RandomAccessFile, AbstractTensor> makeKvBuffer(UUID session)
-        {
-            TensorShape s;
-            //FIXME: Max size should be configurable
-            int[] rawShape = new int[]{ model.getConfig().getNumberOfLayers(), Math.min(2048, model.getConfig().contextLength), 2, model.getConfig().kvLength };
-
-            if (model.getConfig().offset().isPresent()) {
-                Pair<Integer, Integer> offset = model.getConfig().offset().get();
-                //Adjust the shape to be relative to the kv cache size (in case of GQA)
-                Pair<Integer, Integer> kvOffset = Pair.create(offset.left / model.getConfig().headGroupSize, offset.right / model.getConfig().headGroupSize);
-                s = TensorShape.sparse(rawShape, kvOffset);
-            } else {
-                s = TensorShape.of(rawShape);
-            }
-            Preconditions.checkArgument(model.getConfig().workingDirectory().isPresent());
+        /**
+         * With a working directory each session's kv memory is a file mapped under it, so idle sessions can be
+         * paged out, otherwise it comes from the model's block pool
+         */
+        private KvBuffer makeKvBuffer(UUID session) {
+            if (model.getConfig().workingDirectory().isEmpty())
+                return model.newKvBuffer(model.getConfig().contextLength);
 
-            try
-            {
+            TensorShape s = model.kvShape(Math.min(MAX_MAPPED_KV_POSITIONS, model.getConfig().contextLength));
+            try {
                 RandomAccessFile raf = new RandomAccessFile(Paths.get(model.getConfig().workingDirectory().get().toString(), session.toString()).toFile(), "rw");
                 long bytes = s.size() * Float.BYTES;
                 raf.setLength(bytes);
 
                 FloatBuffer fb = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
 
-                FloatBufferTensor fbt = new FloatBufferTensor(fb, s, true);
-
-                return Pair.create(raf, fbt);
-
+                return new DenseKvBuffer(new FloatBufferTensor(fb, s, true)) {
+                    @Override
+                    public void close() {
+                        super.close();
+                        try {
+                            raf.close();
+                        } catch (IOException e) {
+                            throw new IOError(e);
+                        }
+                    }
+                };
             } catch (IOException e) {
                 throw new IOError(e);
             }
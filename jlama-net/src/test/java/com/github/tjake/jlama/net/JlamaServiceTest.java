@@ -10,6 +10,7 @@ import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.safetensors.TensorInfo;
 import com.github.tjake.jlama.safetensors.WeightLoader;
+import com.github.tjake.jlama.safetensors.tokenizer.StreamingDecoder;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.util.Pair;
@@ -156,6 +157,11 @@ public class JlamaServiceTest {
         public String decode(long[] ids) {
             return "null";
         }
+
+        @Override
+        public StreamingDecoder streamingDecoder() {
+            return new StreamingDecoder(new byte[0][], "null".getBytes());
+        }
     }
 
     class MockModel extends AbstractModel {
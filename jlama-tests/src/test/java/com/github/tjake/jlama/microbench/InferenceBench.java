@@ -0,0 +1,228 @@
+package com.github.tjake.jlama.microbench;
+
+import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.DefaultSampler;
+import com.github.tjake.jlama.model.SyntheticWeights;
+import com.github.tjake.jlama.model.bert.BertConfig;
+import com.github.tjake.jlama.model.bert.BertModel;
+import com.github.tjake.jlama.model.functions.Sampler;
+import com.github.tjake.jlama.model.llama.LlamaConfig;
+import com.github.tjake.jlama.model.llama.LlamaModel;
+import com.github.tjake.jlama.model.mixtral.MixtralConfig;
+import com.github.tjake.jlama.model.mixtral.MixtralModel;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.KvBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole model benchmarks on small randomly initialized models, so no model files are needed.
+ * Prefill and decode report tokens per second through the tokens counter.
+ *
+ * e.g. java -jar jlama-tests-*-test-jar-with-dependencies.jar InferenceBench.decode -p model=llama -p modelQType=Q4
+ */
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(warmups = 0, value = 1, jvmArgsPrepend = {
+        "--add-modules=jdk.incubator.vector",
+        "--add-exports", "java.base/sun.nio.ch=ALL-UNNAMED", "-Djdk.incubator.vector.VECTOR_ACCESS_OOB_CHECK=0",
+        "--enable-preview", "--enable-native-access=ALL-UNNAMED"})
+public class InferenceBench {
+    private static final long SEED = 42;
+    private static final int[] NO_HISTORY = new int[0];
+
+    static AbstractModel makeModel(String model, DType workingQType, DType modelQType) {
+        switch (model) {
+            case "llama":
+                LlamaConfig lc = new LlamaConfig(1024, 512, 1536, 8, 4, 4, 1e-5f, 32000, 1, 2, ActivationFunction.Type.SILU, 10000.0, null);
+                return new LlamaModel(lc, SyntheticWeights.llama(lc, SEED), null, DType.F32, workingQType, Optional.of(modelQType));
+            case "mixtral":
+                MixtralConfig mc = new MixtralConfig(1024, 512, 1024, 8, 4, 4, 1e-5f, 32000, 1, 2, 10000.0, ActivationFunction.Type.SILU, 4, 2);
+                return new MixtralModel(mc, SyntheticWeights.mixtral(mc, SEED), null, DType.F32, workingQType, Optional.of(modelQType));
+            default:
+                throw new IllegalArgumentException("Unknown model " + model);
+        }
+    }
+
+    static int[] randomTokens(int length, int vocab) {
+        Random r = new Random(SEED);
+        int[] tokens = new int[length];
+        for (int i = 0; i < length; i++)
+            tokens[i] = r.nextInt(vocab);
+        return tokens;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Tokens {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Prefill {
+        @Param({"llama", "mixtral"})
+        String model;
+
+        @Param({"I8", "F32"})
+        DType workingQType;
+
+        @Param({"Q4", "I8", "F32"})
+        DType modelQType;
+
+        @Param({"16", "128", "512"})
+        int promptLength;
+
+        AbstractModel m;
+        int[] prompt;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            m = makeModel(model, workingQType, modelQType);
+            prompt = randomTokens(promptLength, m.getConfig().vocabularySize);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Decode {
+        @Param({"llama", "mixtral"})
+        String model;
+
+        @Param({"I8", "F32"})
+        DType workingQType;
+
+        @Param({"Q4", "I8", "F32"})
+        DType modelQType;
+
+        @Param({"1", "256", "1000"})
+        int position;
+
+        AbstractModel m;
+        KvBuffer kv;
+        AbstractTensor logits;
+        int[] token;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            m = makeModel(model, workingQType, modelQType);
+            int[] context = randomTokens(position + 1, m.getConfig().vocabularySize);
+
+            // Fill the kv memory up to the position, every invocation then decodes the same next token over it
+            kv = m.newKvBuffer(position + 1);
+            m.prefill(Arrays.copyOf(context, position), kv).close();
+            kv.ensureCapacity(position + 1);
+            logits = m.makeTensor(m.getConfig().vocabularySize);
+            token = new int[]{context[position]};
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() {
+            logits.close();
+            kv.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Sampling {
+        @Param({"32000", "128000", "256000"})
+        int vocabularySize;
+
+        @Param({"greedy", "full", "topk-topp"})
+        String sampler;
+
+        FloatBufferTensor logits;
+        FloatBufferTensor scratch;
+        Sampler s;
+        int maxIndex;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Random r = new Random(SEED);
+            logits = new FloatBufferTensor(vocabularySize);
+            scratch = new FloatBufferTensor(vocabularySize);
+            for (int i = 0; i < vocabularySize; i++)
+                logits.set((float) r.nextGaussian() * 4, i);
+
+            maxIndex = VectorMath.argmax(logits, vocabularySize);
+            s = sampler.equals("topk-topp") ? new DefaultSampler(40, 0.9f, 0.0f, 1.0f, 0.0f, 0.0f) : new DefaultSampler();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Embed {
+        @Param({"I8", "F32"})
+        DType workingQType;
+
+        @Param({"Q4", "I8", "F32"})
+        DType modelQType;
+
+        @Param({"16", "128"})
+        int inputLength;
+
+        BertModel m;
+        int[] input;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            BertConfig c = new BertConfig(512, 384, 1536, 12, 4, 1e-12f, ActivationFunction.Type.GELU, 30522);
+            m = new BertModel(AbstractModel.InferenceType.FORWARD_PASS, c, SyntheticWeights.bert(c, SEED), null, DType.F32, workingQType, Optional.of(modelQType));
+            input = randomTokens(inputLength, c.vocabularySize);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @BenchmarkMode(Mode.Throughput)
+    public void prefill(Prefill p, Tokens t, Blackhole bh) {
+        try (KvBuffer kv = p.m.newKvBuffer(p.promptLength);
+             AbstractTensor last = p.m.prefill(p.prompt, kv)) {
+            bh.consume(last);
+        }
+        t.tokens += p.promptLength;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @BenchmarkMode(Mode.Throughput)
+    public void decode(Decode d, Tokens t, Blackhole bh) {
+        try (AbstractTensor out = d.m.batchForward(d.token, new int[]{d.position}, new KvBuffer[]{d.kv})) {
+            bh.consume(d.m.sample(out.slice(0), 0.0f, 0.5f, d.logits));
+        }
+        t.tokens++;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @BenchmarkMode(Mode.AverageTime)
+    public void sample(Sampling s, Blackhole bh) {
+        // The sampler works in place, so each run starts from a fresh copy of the logits
+        s.scratch.copyFrom(s.logits, 0, 0, s.vocabularySize);
+        float temperature = s.sampler.equals("greedy") ? 0.0f : 0.7f;
+        bh.consume(s.s.sample(s.scratch, s.maxIndex, temperature, NO_HISTORY, 0, ThreadLocalRandom.current().nextFloat()));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @BenchmarkMode(Mode.Throughput)
+    public void embed(Embed e, Blackhole bh) {
+        bh.consume(e.m.embed(e.input));
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+}
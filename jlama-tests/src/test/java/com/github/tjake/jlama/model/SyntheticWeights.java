@@ -0,0 +1,162 @@
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.model.mixtral.MixtralConfig;
+import com.github.tjake.jlama.safetensors.Config;
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.safetensors.TensorInfo;
+import com.github.tjake.jlama.safetensors.WeightLoader;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.util.Pair;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * Random weights for small model configs, so the model code can be exercised without any model files.
+ * Weights are generated lazily and are stable for a given seed and name.
+ */
+public class SyntheticWeights implements WeightLoader {
+
+    private final long seed;
+    private final Map<String, int[]> shapes;
+    private final Map<String, AbstractTensor> loaded;
+
+    private SyntheticWeights(long seed, Map<String, int[]> shapes) {
+        this.seed = seed;
+        this.shapes = shapes;
+        this.loaded = new HashMap<>();
+    }
+
+    /** Weights using the huggingface llama naming (also used by mistral) */
+    public static SyntheticWeights llama(Config c, long seed) {
+        Map<String, int[]> shapes = decoderShapes(c);
+        for (int i = 0; i < c.getNumberOfLayers(); i++) {
+            String base = "model.layers." + i + ".";
+            shapes.put(base + "mlp.gate_proj.weight", new int[]{c.hiddenLength, c.embeddingLength});
+            shapes.put(base + "mlp.down_proj.weight", new int[]{c.embeddingLength, c.hiddenLength});
+            shapes.put(base + "mlp.up_proj.weight", new int[]{c.hiddenLength, c.embeddingLength});
+        }
+
+        return new SyntheticWeights(seed, shapes);
+    }
+
+    /** Weights using the huggingface mixtral naming, llama with a mixture of experts in place of the mlp */
+    public static SyntheticWeights mixtral(MixtralConfig c, long seed) {
+        Map<String, int[]> shapes = decoderShapes(c);
+        for (int i = 0; i < c.getNumberOfLayers(); i++) {
+            String base = "model.layers." + i + ".block_sparse_moe.";
+            shapes.put(base + "gate.weight", new int[]{c.numberOfExperts, c.embeddingLength});
+            for (int e = 0; e < c.numberOfExperts; e++) {
+                String expert = base + "experts." + e + ".";
+                shapes.put(expert + "w1.weight", new int[]{c.hiddenLength, c.embeddingLength});
+                shapes.put(expert + "w2.weight", new int[]{c.embeddingLength, c.hiddenLength});
+                shapes.put(expert + "w3.weight", new int[]{c.hiddenLength, c.embeddingLength});
+            }
+        }
+
+        return new SyntheticWeights(seed, shapes);
+    }
+
+    /** Weights using the huggingface bert naming, without the "bert." prefix */
+    public static SyntheticWeights bert(Config c, long seed) {
+        Map<String, int[]> shapes = new HashMap<>();
+        shapes.put("embeddings.word_embeddings.weight", new int[]{c.vocabularySize, c.embeddingLength});
+        shapes.put("embeddings.token_type_embeddings.weight", new int[]{2, c.embeddingLength});
+        shapes.put("embeddings.position_embeddings.weight", new int[]{c.contextLength, c.embeddingLength});
+        layerNorm(shapes, "embeddings.LayerNorm.", c.embeddingLength);
+
+        for (int i = 0; i < c.getNumberOfLayers(); i++) {
+            String base = "encoder.layer." + i + ".";
+            linear(shapes, base + "attention.self.query.", c.embeddingLength, c.embeddingLength);
+            linear(shapes, base + "attention.self.key.", c.embeddingLength, c.embeddingLength);
+            linear(shapes, base + "attention.self.value.", c.embeddingLength, c.embeddingLength);
+            linear(shapes, base + "attention.output.dense.", c.embeddingLength, c.embeddingLength);
+            layerNorm(shapes, base + "attention.output.LayerNorm.", c.embeddingLength);
+            linear(shapes, base + "intermediate.dense.", c.hiddenLength, c.embeddingLength);
+            linear(shapes, base + "output.dense.", c.embeddingLength, c.hiddenLength);
+            layerNorm(shapes, base + "output.LayerNorm.", c.embeddingLength);
+        }
+
+        return new SyntheticWeights(seed, shapes);
+    }
+
+    /** Embeddings, attention and norms shared by the llama family, everything but the feed forward */
+    private static Map<String, int[]> decoderShapes(Config c) {
+        Map<String, int[]> shapes = new HashMap<>();
+        shapes.put("model.embed_tokens.weight", new int[]{c.vocabularySize, c.embeddingLength});
+        shapes.put("model.norm.weight", new int[]{c.embeddingLength});
+        shapes.put("lm_head.weight", new int[]{c.vocabularySize, c.embeddingLength});
+
+        for (int i = 0; i < c.getNumberOfLayers(); i++) {
+            String base = "model.layers." + i + ".";
+            shapes.put(base + "self_attn.q_proj.weight", new int[]{c.embeddingLength, c.embeddingLength});
+            shapes.put(base + "self_attn.k_proj.weight", new int[]{c.kvLength, c.embeddingLength});
+            shapes.put(base + "self_attn.v_proj.weight", new int[]{c.kvLength, c.embeddingLength});
+            shapes.put(base + "self_attn.o_proj.weight", new int[]{c.embeddingLength, c.embeddingLength});
+            shapes.put(base + "input_layernorm.weight", new int[]{c.embeddingLength});
+            shapes.put(base + "post_attention_layernorm.weight", new int[]{c.embeddingLength});
+        }
+
+        return shapes;
+    }
+
+    private static void linear(Map<String, int[]> shapes, String prefix, int out, int in) {
+        shapes.put(prefix + "weight", new int[]{out, in});
+        shapes.put(prefix + "bias", new int[]{out});
+    }
+
+    private static void layerNorm(Map<String, int[]> shapes, String prefix, int length) {
+        shapes.put(prefix + "weight", new int[]{length});
+        shapes.put(prefix + "bias", new int[]{length});
+    }
+
+    @Override
+    public Map<String, String> metadata() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<String, TensorInfo> tensorInfoMap() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public synchronized AbstractTensor load(String name, Optional<Pair<Integer, Integer>> offset) {
+        AbstractTensor t = loaded.computeIfAbsent(name, this::generate);
+        return offset.isPresent() ? t.sparsify(offset.get().left, offset.get().right) : t;
+    }
+
+    private AbstractTensor generate(String name) {
+        int[] shape = shapes.get(name);
+        if (shape == null)
+            throw new NoSuchFieldError(name);
+
+        Random r = new Random(seed + name.hashCode());
+        FloatBufferTensor t = new FloatBufferTensor(shape);
+        // Norm weights sit around one, biases and matrices around zero
+        boolean isNorm = shape.length == 1 && !name.endsWith(".bias");
+        for (int i = 0; i < t.size(); i++) {
+            float v = (float) r.nextGaussian() * 0.05f;
+            if (shape.length == 1)
+                t.set(isNorm ? 1.0f + v : v, i);
+            else
+                t.set(v, i / shape[1], i % shape[1]);
+        }
+
+        return t;
+    }
+
+    @Override
+    public DType getModelDType() {
+        return DType.F32;
+    }
+
+    @Override
+    public void close() {
+        loaded.clear();
+    }
+}
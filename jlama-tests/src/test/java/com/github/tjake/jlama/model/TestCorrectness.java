@@ -6,6 +6,7 @@ import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.model.gemma.GemmaTokenizer;
 import com.github.tjake.jlama.model.gpt2.GPT2Tokenizer;
 import com.github.tjake.jlama.model.llama.LlamaTokenizer;
+import com.github.tjake.jlama.safetensors.tokenizer.StreamingDecoder;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.safetensors.tokenizer.WordPieceTokenizer;
 
@@ -16,9 +17,13 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 
 import static com.github.tjake.jlama.util.JsonSupport.om;
@@ -85,10 +90,10 @@ public class TestCorrectness {
                 3.6517e-04,  3.1623e-04,  2.7384e-04,  2.3714e-04,  2.0535e-04,
                 1.7783e-04,  1.5399e-04,  1.3335e-04,  1.1548e-04};
 
-        float[][] ropeFreqs = VectorMath.precomputeFreqsCis(128, 4096 * 2, 10000.0 , 1.0);
+        float[] ropeTable = VectorMath.precomputeRopeTable(128, 4096 * 2, 10000.0 , 1.0);
 
         for (int i = 0; i < 64; i++)
-            Assert.assertEquals(expected[i], ropeFreqs[i + 64][1], 0.0001);
+            Assert.assertEquals(expected[i], ropeTable[128 + 64 + i], 0.0001);
 
 
         expected = new double[]{ 0.9200, -0.9031, -0.7639, -0.6592, -0.9904, -0.2474,  0.9597, -0.9819,
@@ -102,7 +107,7 @@ public class TestCorrectness {
 
 
         for (int i = 0; i < 64; i++)
-            Assert.assertEquals(expected[i], ropeFreqs[i + (64 * 64)][1], 0.0001);
+            Assert.assertEquals(expected[i], ropeTable[64 * 128 + 64 + i], 0.0001);
     }
 
     @Test
@@ -110,15 +115,15 @@ public class TestCorrectness {
         List<List<Float>> real = om.readerFor(new TypeReference<ArrayList<ArrayList<Float>>>() {}).readValue(Resources.getResource("real.json"));
         List<List<Float>> imag = om.readerFor(new TypeReference<ArrayList<ArrayList<Float>>>() {}).readValue(Resources.getResource("imag.json"));
 
-        float[][] ropeFreqs = VectorMath.precomputeFreqsCis(128, 2048, 10000.0, 1.0 );
+        float[] ropeTable = VectorMath.precomputeRopeTable(128, 2048, 10000.0, 1.0 );
 
         Assert.assertEquals(imag.size(), real.size());
-        Assert.assertEquals(ropeFreqs.length, real.size() * 64);
+        Assert.assertEquals(ropeTable.length, real.size() * 128);
 
         for (int i = 0; i < real.size(); i++) {
             for (int j = 0; j < 64; j++) {
-                Assert.assertEquals(real.get(i).get(j), ropeFreqs[i * 64 + j][0], 0.0001);
-                Assert.assertEquals(imag.get(i).get(j), ropeFreqs[i * 64 + j][1], 0.0001);
+                Assert.assertEquals(real.get(i).get(j), ropeTable[i * 128 + j], 0.0001);
+                Assert.assertEquals(imag.get(i).get(j), ropeTable[i * 128 + 64 + j], 0.0001);
             }
         }
     }
@@ -154,6 +159,157 @@ public class TestCorrectness {
         Assert.assertEquals(p, d);
     }
 
+    @Test
+    public void testBPEMergeRanks() throws IOException {
+        Path dir = Files.createTempDirectory("jlama");
+        try {
+            // "ab" is in the vocab but has no merge, so "abc" can only become a + bc
+            Files.writeString(dir.resolve("tokenizer.json"), "{\"model\":{\"type\":\"BPE\",\"vocab\":" +
+                    "{\"a\":0,\"b\":1,\"c\":2,\"ab\":3,\"bc\":4,\"cc\":5,\"ccc\":6,\"cccc\":7}," +
+                    "\"merges\":[\"b c\",\"c c\",[\"cc\",\"cc\"]]}}");
+            Tokenizer tokenizer = new GPT2Tokenizer(dir);
+            Assert.assertArrayEquals(new long[]{0, 4}, tokenizer.encode("abc"));
+
+            // Lowest rank first, leftmost on ties, on a long run too
+            Assert.assertArrayEquals(new long[]{7, 5, 0, 4}, tokenizer.encode("ccccccabc"));
+            String longInput = "abc".repeat(10000) + "cccc";
+            long[] tokens = tokenizer.encode(longInput);
+            Assert.assertEquals(20001, tokens.length);
+            Assert.assertEquals(longInput, tokenizer.decode(tokens));
+
+            // Pre-tokenized pieces encode in parallel into one array, in order
+            Files.writeString(dir.resolve("tokenizer.json"), "{\"pre_tokenizer\":{\"type\":\"Sequence\",\"pretokenizers\":" +
+                    "[{\"type\":\"Split\",\"pattern\":{\"Regex\":\"c+\"},\"behavior\":\"Isolated\"}]}," +
+                    "\"model\":{\"type\":\"BPE\",\"vocab\":{\"a\":0,\"b\":1,\"c\":2,\"ab\":3,\"bc\":4,\"cc\":5,\"ccc\":6,\"cccc\":7}," +
+                    "\"merges\":[\"b c\",\"c c\",[\"cc\",\"cc\"]]}}");
+            Tokenizer split = new GPT2Tokenizer(dir);
+            long[] unit = split.encode("abcccab");
+            long[] many = split.encode("abcccab".repeat(500));
+            Assert.assertEquals(unit.length * 500, many.length);
+            for (int i = 0; i < many.length; i++)
+                Assert.assertEquals(unit[i % unit.length], many[i]);
+
+            List<String> docs = List.of("abc", "ccccccabc", "abcccab".repeat(50), "");
+            List<long[]> batch = split.encodeBatch(docs);
+            for (int i = 0; i < docs.size(); i++)
+                Assert.assertArrayEquals(split.encode(docs.get(i)), batch.get(i));
+
+            // Without merges every vocab split merges, by the id of what it makes
+            Files.writeString(dir.resolve("tokenizer.json"), "{\"model\":{\"type\":\"BPE\",\"vocab\":" +
+                    "{\"a\":0,\"b\":1,\"c\":2,\"ab\":3,\"bc\":4}}}");
+            Assert.assertArrayEquals(new long[]{3, 2}, new GPT2Tokenizer(dir).encode("abc"));
+
+            // Every string of a and b up to 10 long has far more splits than vocab entries
+            List<String> words = new ArrayList<>(List.of("a", "b"));
+            for (int i = 0; words.get(i).length() < 10; i++) {
+                words.add(words.get(i) + "a");
+                words.add(words.get(i) + "b");
+            }
+            StringBuilder vocab = new StringBuilder();
+            for (int i = 0; i < words.size(); i++)
+                vocab.append(i == 0 ? "{" : ",").append('"').append(words.get(i)).append("\":").append(i);
+            Files.writeString(dir.resolve("tokenizer.json"), "{\"model\":{\"type\":\"BPE\",\"vocab\":" + vocab + "}}}");
+            Assert.assertArrayEquals(new long[]{words.indexOf("abbabaabba")}, new GPT2Tokenizer(dir).encode("abbabaabba"));
+        } finally {
+            Files.delete(dir.resolve("tokenizer.json"));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testStreamingDecoder() throws IOException {
+        Path dir = Files.createTempDirectory("jlama");
+        try {
+            StringBuilder vocab = new StringBuilder("{\"<unk>\":0,\"<s>\":1,\"</s>\":2");
+            for (int b = 0; b < 256; b++)
+                vocab.append(String.format(",\"<0x%02X>\":%d", b, b + 3));
+            vocab.append(",\"▁\":259,\"h\":260,\"i\":261,\"▁h\":262,\"▁hi\":263}");
+            Files.writeString(dir.resolve("tokenizer.json"), "{\"model\":{\"type\":\"BPE\",\"unk_token\":\"<unk>\",\"byte_fallback\":true," +
+                    "\"vocab\":" + vocab + ",\"merges\":[\"▁ h\",\"▁h i\"]}}");
+
+            Tokenizer tokenizer = new LlamaTokenizer(dir);
+            long[] tokens = tokenizer.encode("hi \uD83D\uDC31");
+            Assert.assertArrayEquals(new long[]{263, 259, 0xF0 + 3, 0x9F + 3, 0x90 + 3, 0xB1 + 3}, tokens);
+
+            // The emoji's bytes are held back until the last one
+            StreamingDecoder decoder = tokenizer.streamingDecoder();
+            List<String> pieces = new ArrayList<>();
+            for (long t : tokens)
+                pieces.add(decoder.next(t));
+            Assert.assertEquals(List.of(" hi", " ", "", "", "", "\uD83D\uDC31"), pieces);
+            Assert.assertEquals("", decoder.flush());
+
+            // A cut off character comes out as a replacement on flush
+            decoder.next(0xF0 + 3);
+            Assert.assertEquals("\uFFFD", decoder.flush());
+
+            // Only handed on when something was held back
+            List<String> flushed = new ArrayList<>();
+            decoder.next(0xF0 + 3);
+            decoder.flushTo((t, timing) -> flushed.add(t), 0f);
+            decoder.flushTo((t, timing) -> flushed.add(t), 0f);
+            Assert.assertEquals(List.of("\uFFFD"), flushed);
+
+            Assert.assertEquals("hi \uD83D\uDC31", tokenizer.decode(tokens));
+        } finally {
+            Files.delete(dir.resolve("tokenizer.json"));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testWordPieceTrie() throws IOException {
+        Path dir = Files.createTempDirectory("jlama");
+        try {
+            Files.writeString(dir.resolve("tokenizer.json"), "{\"model\":{\"type\":\"WordPiece\",\"unk_token\":\"[UNK]\",\"vocab\":" +
+                    "{\"[PAD]\":0,\"[UNK]\":1,\"[CLS]\":2,\"[SEP]\":3,\"un\":4,\"##aff\":5,\"##able\":6,\"una\":7," +
+                    "\"##ff\":8,\",\":9,\"!\":10,\"hello\":11,\"\u00e9t\u00e9\":12,\"##\":13}}}");
+            WordPieceTokenizer tokenizer = new WordPieceTokenizer(dir);
+
+            // Longest match first, "una" wins over "un" and the word can't finish
+            Assert.assertArrayEquals(new int[]{2, 7, 8, 6, 3}, tokenizer.encodeIds("unaffable"));
+            Assert.assertArrayEquals(new int[]{2, 11, 9, 1, 10, 12, 3},
+                    tokenizer.encodeIds(" \tHELLO,unafx\u0000!\n\u00c9T\u00c9 "));
+            Assert.assertArrayEquals(new long[]{2, 1, 3}, tokenizer.encode("h".repeat(201)));
+            Assert.assertArrayEquals(new long[]{2, 3}, tokenizer.encode(""));
+            Assert.assertEquals(List.of("[CLS]", "hello", "!", "[SEP]"), tokenizer.tokenize("Hello!"));
+
+            // A BERT sized vocab, words, suffixes and single characters from a large alphabet
+            Random r = new Random(42);
+            Set<String> keys = new LinkedHashSet<>(List.of("[PAD]", "[UNK]", "[CLS]", "[SEP]"));
+            while (keys.size() < 30000) {
+                StringBuilder word = new StringBuilder();
+                if (r.nextInt(4) == 0) {
+                    word.append((char) (0x4E00 + r.nextInt(5000)));
+                } else {
+                    for (int i = 1 + r.nextInt(10); i > 0; i--)
+                        word.append((char) ('a' + r.nextInt(26)));
+                }
+                keys.add(r.nextInt(3) == 0 ? "##" + word : word.toString());
+            }
+            StringBuilder vocab = new StringBuilder();
+            List<String> ordered = new ArrayList<>(keys);
+            for (int i = 0; i < ordered.size(); i++)
+                vocab.append(i == 0 ? "{" : ",").append(om.writeValueAsString(ordered.get(i))).append(':').append(i);
+            Files.writeString(dir.resolve("tokenizer.json"), "{\"model\":{\"type\":\"WordPiece\",\"unk_token\":\"[UNK]\",\"vocab\":" + vocab + "}}}");
+
+            long start = System.nanoTime();
+            WordPieceTokenizer large = new WordPieceTokenizer(dir);
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            Assert.assertTrue("Took " + elapsedMs + "ms to load", elapsedMs < 5000);
+
+            // Every whole word is its own token
+            for (int i = 4; i < ordered.size(); i++) {
+                String key = ordered.get(i);
+                if (!key.startsWith("##"))
+                    Assert.assertArrayEquals(key, new int[]{2, i, 3}, large.encodeIds(key));
+            }
+        } finally {
+            Files.delete(dir.resolve("tokenizer.json"));
+            Files.delete(dir);
+        }
+    }
+
     @Test
     public void testNeoTokenizer() throws IOException
     {
@@ -1,7 +1,9 @@
 package com.github.tjake.jlama.model;
 
+import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.model.bert.BertConfig;
+import com.github.tjake.jlama.model.functions.Sampler;
 import com.github.tjake.jlama.model.bert.BertModel;
 import com.github.tjake.jlama.model.bert.BertTokenizer;
 import com.github.tjake.jlama.model.gemma.GemmaConfig;
@@ -16,8 +18,15 @@ import com.github.tjake.jlama.model.gpt2.GPT2Tokenizer;
 import com.github.tjake.jlama.model.llama.LlamaConfig;
 import com.github.tjake.jlama.model.llama.LlamaModel;
 import com.github.tjake.jlama.model.llama.LlamaTokenizer;
+import com.github.tjake.jlama.safetensors.tokenizer.StreamingDecoder;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.KvBlockPool;
+import com.github.tjake.jlama.tensor.KvBuffer;
+import com.github.tjake.jlama.tensor.PagedKvBuffer;
+import com.github.tjake.jlama.tensor.StreamingKvBuffer;
+import com.github.tjake.jlama.tensor.TensorShape;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.primitives.Ints;
@@ -31,19 +40,26 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import com.google.common.util.concurrent.AtomicDouble;
 import com.google.common.util.concurrent.Uninterruptibles;
@@ -393,6 +409,653 @@ public class TestModels {
         Assert.assertTrue(tensorEquals(qc, q0));
     }
 
+    /**
+     * Small GQA llama with random weights
+     */
+    static LlamaModel syntheticLlama() {
+        return syntheticLlama(2, 42);
+    }
+
+    static LlamaModel syntheticLlama(int layers, long seed) {
+        return syntheticLlama(layers, seed, null);
+    }
+
+    static LlamaModel syntheticLlama(int layers, long seed, Tokenizer tokenizer) {
+        Config c = new LlamaConfig(64, 512, 1024, 4, 2, layers, 1e-5f, 256, 1, 2, ActivationFunction.Type.SILU, 10000.0, null);
+        return new LlamaModel(c, SyntheticWeights.llama(c, seed), tokenizer, DType.F32, DType.I8, Optional.of(DType.Q4));
+    }
+
+    /**
+     * Reads and writes token ids as space separated numbers, for driving generate on a synthetic model
+     */
+    static Tokenizer numberTokenizer(int vocab) {
+        byte[][] table = new byte[vocab][];
+        for (int i = 0; i < vocab; i++)
+            table[i] = (i + " ").getBytes();
+
+        return new Tokenizer() {
+            @Override
+            public List<String> tokenize(String sentence) {
+                return Arrays.asList(sentence.trim().split(" +"));
+            }
+
+            @Override
+            public long[] encode(String sentence) {
+                return tokenize(sentence).stream().mapToLong(Long::parseLong).toArray();
+            }
+
+            @Override
+            public String decode(long id) {
+                return id + " ";
+            }
+
+            @Override
+            public String decode(long[] ids) {
+                return streamingDecoder().decode(ids);
+            }
+
+            @Override
+            public StreamingDecoder streamingDecoder() {
+                return new StreamingDecoder(table, "? ".getBytes());
+            }
+        };
+    }
+
+    @Test
+    public void testBatchForward() {
+        LlamaModel model = syntheticLlama();
+        Config c = model.getConfig();
+
+        int[] tokens = new int[]{1, 17, 33, 250, 9, 128, 64, 5, 200, 77};
+
+        AbstractTensor kvmem0 = model.makeTensor(c.getNumberOfLayers(), c.contextLength, 2, c.kvLength);
+        AbstractTensor last0 = null;
+        for (int i = 0; i < tokens.length; i++) {
+            if (last0 != null) last0.close();
+            last0 = model.forward(tokens[i], i, kvmem0);
+        }
+
+        // Paged kv memory should behave exactly like the dense one
+        KvBuffer kvmem1 = model.newKvBuffer(c.contextLength);
+        AbstractTensor last1 = model.batchForward(tokens, 0, kvmem1);
+
+        for (int i = 0; i < c.embeddingLength; i++)
+            Assert.assertEquals("Position " + i, last0.get(i), last1.get(i), 1e-3f);
+
+        // The next token should see the same cache either way
+        AbstractTensor next0 = model.forward(3, tokens.length, kvmem0);
+        AbstractTensor next1 = model.forward(3, tokens.length, kvmem1);
+        for (int i = 0; i < c.embeddingLength; i++)
+            Assert.assertEquals("Position " + i, next0.get(i), next1.get(i), 1e-3f);
+    }
+
+    @Test
+    public void testBatchDecode() {
+        // Sessions at different positions decoded in one step should match decoding each alone
+        LlamaModel model = syntheticLlama();
+        Config c = model.getConfig();
+
+        int[][] prompts = new int[][]{{1, 17, 33, 250, 9}, {1, 128, 64}, {1, 5, 200, 77, 3, 42, 99}};
+        int[] next = new int[]{12, 180, 7};
+        KvBuffer[] kvs = new KvBuffer[prompts.length];
+        int[] positions = new int[prompts.length];
+        AbstractTensor[] expected = new AbstractTensor[prompts.length];
+
+        for (int b = 0; b < prompts.length; b++) {
+            AbstractTensor kvmem = model.makeTensor(c.getNumberOfLayers(), c.contextLength, 2, c.kvLength);
+            model.batchForward(prompts[b], 0, kvmem);
+            kvs[b] = model.newKvBuffer(c.contextLength);
+            model.batchForward(prompts[b], 0, kvs[b]);
+            positions[b] = prompts[b].length;
+            expected[b] = model.forward(next[b], positions[b], kvmem);
+        }
+
+        AbstractTensor output = model.batchForward(next, positions, kvs);
+        for (int b = 0; b < prompts.length; b++)
+            for (int i = 0; i < c.embeddingLength; i++)
+                Assert.assertEquals("Session " + b + " position " + i, expected[b].get(i), output.get(b, i), 1e-3f);
+
+        // Blocks go back to the pool for the next sessions
+        for (KvBuffer kv : kvs)
+            kv.close();
+        Assert.assertEquals(0, model.getKvBlockPool().usedBlocks());
+    }
+
+    @Test
+    public void testBatchScheduler() throws Exception {
+        // Sessions admitted into a running batch at different positions should generate what each would alone
+        LlamaModel model = syntheticLlama(2, 42, numberTokenizer(256));
+        String[] prompts = new String[]{"17 33 250 9", "128 64", "5 200 77 3 42 99 180 7 12", "250 250 9"};
+        int ntokens = 24;
+
+        String[] expected = new String[prompts.length];
+        for (int b = 0; b < prompts.length; b++) {
+            StringBuilder sb = new StringBuilder();
+            UUID id = UUID.randomUUID();
+            model.generate(id, prompts[b], 0.0f, ntokens, false, (t, timing) -> sb.append(t));
+            model.forget(id);
+            expected[b] = sb.toString();
+        }
+
+        BatchScheduler scheduler = new BatchScheduler(model, 2);
+        String[] actual = new String[prompts.length];
+        CompletableFuture<?>[] runs = new CompletableFuture<?>[prompts.length];
+        for (int b = 0; b < prompts.length; b++) {
+            int i = b;
+            runs[b] = CompletableFuture.runAsync(() -> {
+                StringBuilder sb = new StringBuilder();
+                scheduler.generate(UUID.randomUUID(), prompts[i], 0.0f, ntokens, false, (t, timing) -> sb.append(t));
+                actual[i] = sb.toString();
+            });
+        }
+        CompletableFuture.allOf(runs).get(2, TimeUnit.MINUTES);
+        Assert.assertArrayEquals(expected, actual);
+        for (int b = 0; b < prompts.length; b++)
+            Assert.assertTrue(expected[b].length() > prompts[b].length());
+
+        // A second request on the same session waits at the head of the queue for the first to finish
+        UUID shared = UUID.randomUUID();
+        CompletableFuture<?> first = CompletableFuture.runAsync(() -> scheduler.generate(shared, prompts[0], 0.0f, ntokens, false, (t, timing) -> {}));
+        CompletableFuture<?> second = CompletableFuture.runAsync(() -> scheduler.generate(shared, prompts[1], 0.0f, ntokens, false, (t, timing) -> {}));
+        CompletableFuture.allOf(first, second).get(2, TimeUnit.MINUTES);
+        Assert.assertEquals(0, scheduler.activeSessions());
+
+        // With the pool held by sessions in use elsewhere a request stays queued rather than failing
+        Config c = model.getConfig();
+        SessionCache sessions = model.getSessionCache();
+        List<SessionCache.Session> held = new ArrayList<>();
+        Random r = new Random(42);
+        KvBlockPool pool = model.getKvBlockPool();
+        while (sessions.reclaim());
+        while (pool.availableBlocks() > 0) {
+            int length = Math.min(c.contextLength - 4, pool.availableBlocks() * pool.blockSize());
+            SessionCache.Session s = sessions.acquire(UUID.randomUUID());
+            s.prefill(r.ints(length, 3, c.vocabularySize).toArray()).close();
+            held.add(s);
+        }
+
+        CompletableFuture<?> queued = CompletableFuture.runAsync(() -> scheduler.generate(UUID.randomUUID(), prompts[0], 0.0f, ntokens, false, (t, timing) -> {}));
+        Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(queued.isDone());
+        held.forEach(sessions::release);
+        queued.get(2, TimeUnit.MINUTES);
+
+        scheduler.close();
+        try {
+            scheduler.generate(UUID.randomUUID(), prompts[0], 0.0f, ntokens, false, (t, timing) -> {});
+            Assert.fail("generate after close should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        sessions.close();
+        Assert.assertEquals(0, pool.usedBlocks());
+    }
+
+    @Test
+    public void testAttention() {
+        // GQA without rope so the reference is a plain softmax over every cached position
+        Config c = new Config(256, 128, 256, 8, 2, 1, 1e-5f, 64, 1, 2, ActivationFunction.Type.SILU, null, null);
+        LlamaModel model = new LlamaModel(c, SyntheticWeights.llama(c, 42), null, DType.F32, DType.F32, Optional.empty());
+        Random r = new Random(42);
+
+        FloatBufferTensor wq = randomTensor(r, c.embeddingLength, c.embeddingLength);
+        FloatBufferTensor wk = randomTensor(r, c.kvLength, c.embeddingLength);
+        FloatBufferTensor wv = randomTensor(r, c.kvLength, c.embeddingLength);
+        FloatBufferTensor wo = randomTensor(r, c.embeddingLength, c.embeddingLength);
+        CausalSelfAttention attention = new CausalSelfAttention(model, wq, wk, wv, wo);
+
+        // Spans several tiles, the last one partial
+        int position = CausalSelfAttention.ATTENTION_TILE * 2 + 22;
+        FloatBufferTensor kvmem = randomTensor(r, c.contextLength, 2, c.kvLength);
+        FloatBufferTensor x = randomTensor(r, c.embeddingLength);
+
+        AbstractTensor output = attention.forward(x, position, kvmem, Optional.empty());
+
+        float[] q = matVec(wq, x);
+        float[] k = matVec(wk, x);
+        float[] v = matVec(wv, x);
+        float[] y = new float[c.embeddingLength];
+        for (int h = 0; h < c.numberOfHeads; h++) {
+            int offset = h * c.headSize;
+            int kvOffset = (h / (c.numberOfHeads / c.numberOfKeyValueHeads)) * c.headSize;
+
+            double[] scores = new double[position + 1];
+            double max = Double.NEGATIVE_INFINITY;
+            for (int p = 0; p <= position; p++) {
+                double s = 0;
+                for (int i = 0; i < c.headSize; i++)
+                    s += q[offset + i] * (p == position ? k[kvOffset + i] : kvmem.get(p, 0, kvOffset + i));
+                scores[p] = s / Math.sqrt(c.headSize);
+                max = Math.max(max, scores[p]);
+            }
+
+            double sum = 0;
+            for (int p = 0; p <= position; p++) {
+                scores[p] = Math.exp(scores[p] - max);
+                sum += scores[p];
+            }
+
+            for (int p = 0; p <= position; p++)
+                for (int i = 0; i < c.headSize; i++)
+                    y[offset + i] += (float) (scores[p] / sum) * (p == position ? v[kvOffset + i] : kvmem.get(p, 1, kvOffset + i));
+        }
+
+        FloatBufferTensor yt = new FloatBufferTensor(c.embeddingLength);
+        for (int i = 0; i < y.length; i++)
+            yt.set(y[i], i);
+        float[] expected = matVec(wo, yt);
+
+        for (int i = 0; i < c.embeddingLength; i++)
+            Assert.assertEquals("Position " + i, expected[i], output.get(i), 1e-3f + Math.abs(expected[i]) * 1e-3f);
+    }
+
+    private static FloatBufferTensor randomTensor(Random r, int... shape) {
+        TensorShape s = TensorShape.of(shape);
+        float[] values = new float[Ints.checkedCast(s.size())];
+        for (int i = 0; i < values.length; i++)
+            values[i] = r.nextFloat() * 2 - 1;
+        return new FloatBufferTensor(FloatBuffer.wrap(values), s, true);
+    }
+
+    private static float[] matVec(FloatBufferTensor w, AbstractTensor x) {
+        float[] out = new float[w.shape().first()];
+        for (int i = 0; i < out.length; i++)
+            for (int j = 0; j < w.shape().last(); j++)
+                out[i] += w.get(i, j) * x.get(j);
+        return out;
+    }
+
+    @Test
+    public void testBertEmbedBatch() {
+        // Packed sequences should embed like running each alone token by token
+        Config c = new BertConfig(64, 64, 128, 4, 2, 1e-12f, ActivationFunction.Type.GELU, 100);
+        BertModel model = new BertModel(c, SyntheticWeights.bert(c, 42), null, DType.F32, DType.F32, Optional.of(DType.F32));
+
+        // Enough tokens to need more than one pass
+        Random r = new Random(42);
+        int[][] sequences = new int[40][];
+        for (int s = 0; s < sequences.length; s++)
+            sequences[s] = r.ints(1 + r.nextInt(c.contextLength - 1), 0, c.vocabularySize).toArray();
+
+        float[][] embeddings = model.embedBatch(sequences);
+        for (int s = 0; s < sequences.length; s++) {
+            float[] expected = new float[c.embeddingLength];
+            try (AbstractTensor kvmem = model.makeTensor(c.getNumberOfLayers(), sequences[s].length, 2, c.embeddingLength)) {
+                for (int i = 0; i < sequences[s].length; i++) {
+                    try (AbstractTensor output = model.forward(sequences[s][i], i, kvmem)) {
+                        for (int j = 0; j < c.embeddingLength; j++)
+                            expected[j] += output.get(j) / sequences[s].length;
+                    }
+                }
+            }
+            VectorMath.l2normalize(expected);
+
+            Assert.assertArrayEquals("Sequence " + s, expected, embeddings[s], 1e-4f);
+            Assert.assertArrayEquals(embeddings[s], model.embed(sequences[s]), 1e-5f);
+        }
+    }
+
+    @Test
+    public void testPrefixCache() {
+        LlamaModel model = syntheticLlama();
+        Config c = model.getConfig();
+        model.getPrefixCache().setMaxBytes(64L * 1024 * 1024);
+
+        int blockSize = model.getKvBlockPool().blockSize();
+        int[] first = new int[2 * blockSize + 5];
+        int[] second = new int[2 * blockSize + 9];
+        for (int i = 0; i < second.length; i++) {
+            if (i < first.length) first[i] = (i * 7) % c.vocabularySize;
+            second[i] = i < 2 * blockSize ? first[i] : (i * 13) % c.vocabularySize;
+        }
+
+        KvBuffer kv1 = model.newKvBuffer(c.contextLength);
+        model.prefill(first, kv1).close();
+        Assert.assertEquals(2, model.getPrefixCache().size());
+
+        // The second prompt picks up the shared blocks and only runs its own suffix
+        KvBuffer kv2 = model.newKvBuffer(c.contextLength);
+        AbstractTensor cached = model.prefill(second, kv2);
+
+        AbstractTensor dense = model.makeTensor(c.getNumberOfLayers(), c.contextLength, 2, c.kvLength);
+        AbstractTensor expected = model.batchForward(second, 0, dense);
+        for (int i = 0; i < c.embeddingLength; i++)
+            Assert.assertEquals("Position " + i, expected.get(i), cached.get(i), 1e-3f);
+
+        // Writing into a shared block copies it, leaving the first session and the cache alone
+        model.forward(3, blockSize, kv2).close();
+        AbstractTensor denseFirst = model.makeTensor(c.getNumberOfLayers(), c.contextLength, 2, c.kvLength);
+        model.batchForward(first, 0, denseFirst).close();
+        AbstractTensor next0 = model.forward(11, first.length, denseFirst);
+        AbstractTensor next1 = model.forward(11, first.length, kv1);
+        for (int i = 0; i < c.embeddingLength; i++)
+            Assert.assertEquals("Position " + i, next0.get(i), next1.get(i), 1e-3f);
+
+        kv1.close();
+        kv2.close();
+        model.getPrefixCache().setMaxBytes(0);
+        Assert.assertEquals(0, model.getPrefixCache().size());
+        Assert.assertEquals(0, model.getKvBlockPool().usedBlocks());
+    }
+
+    @Test
+    public void testQuantizedKvCache() throws IOException {
+        LlamaModel model = syntheticLlama();
+        Config c = model.getConfig();
+        int[] tokens = new int[]{1, 17, 33, 250, 9, 128, 64, 5, 200, 77};
+
+        AbstractTensor expected;
+        try (KvBuffer kv = model.newKvBuffer(c.contextLength)) {
+            expected = model.batchForward(tokens, 0, kv);
+        }
+
+        for (DType type : new DType[]{DType.I8, DType.Q4}) {
+            model.setKvCacheType(type);
+            Assume.assumeTrue(model.getKvCacheType() == type);
+
+            try (KvBuffer kv = model.newKvBuffer(c.contextLength);
+                 AbstractTensor out = model.batchForward(tokens, 0, kv)) {
+                float[] a = new float[c.embeddingLength], b = new float[c.embeddingLength];
+                for (int i = 0; i < c.embeddingLength; i++) {
+                    a[i] = expected.get(i);
+                    b[i] = out.get(i);
+                }
+                float similarity = VectorMath.cosineSimilarity(a, b);
+                Assert.assertTrue(type + " similarity " + similarity, similarity > (type == DType.I8 ? 0.99f : 0.95f));
+
+                // Spilled and restored entries must keep their block scales
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ((PagedKvBuffer) kv).writeTo(new DataOutputStream(bytes), tokens.length);
+                try (PagedKvBuffer restored = model.getKvBlockPool().newBuffer(c.contextLength)) {
+                    restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+                    AbstractTensor next0 = model.forward(3, tokens.length, kv);
+                    AbstractTensor next1 = model.forward(3, tokens.length, restored);
+                    for (int i = 0; i < c.embeddingLength; i++)
+                        Assert.assertEquals(type + " position " + i, next0.get(i), next1.get(i), 1e-5f);
+                }
+            }
+        }
+
+        model.setKvCacheType(DType.F32);
+        Assert.assertEquals(0, model.getKvBlockPool().usedBlocks());
+    }
+
+    @Test
+    public void testStreamingWindow() {
+        LlamaModel model = syntheticLlama();
+        Config c = model.getConfig();
+        Random r = new Random(42);
+        int[] tokens = new int[150];
+        for (int i = 0; i < tokens.length; i++)
+            tokens[i] = r.nextInt(c.vocabularySize);
+
+        int sinks = 4, window = 16;
+        int[] prefix = Arrays.copyOf(tokens, sinks + window);
+        AbstractTensor expected;
+        try (KvBuffer kv = model.newKvBuffer(c.contextLength)) {
+            expected = model.batchForward(prefix, 0, kv);
+        }
+
+        model.setStreamingWindow(sinks, window);
+
+        // Until the window fills up it's the same as full attention
+        try (KvBuffer kv = model.newKvBuffer(c.contextLength);
+             AbstractTensor out = model.batchForward(prefix, 0, kv)) {
+            Assert.assertTrue(kv instanceof StreamingKvBuffer);
+            for (int i = 0; i < c.embeddingLength; i++)
+                Assert.assertEquals("position " + i, expected.get(i), out.get(i), 1e-4f);
+        }
+
+        // Past the context length, a prefill split into chunks matches running one token at a time
+        try (KvBuffer kv0 = model.newKvBuffer(c.contextLength);
+             KvBuffer kv1 = model.newKvBuffer(c.contextLength);
+             AbstractTensor batched = model.batchForward(tokens, 0, kv0)) {
+            AbstractTensor last = null;
+            for (int p = 0; p < tokens.length; p++) {
+                if (last != null)
+                    last.close();
+                last = model.forward(tokens[p], p, kv1);
+            }
+
+            for (int i = 0; i < c.embeddingLength; i++) {
+                Assert.assertTrue(Float.isFinite(batched.get(i)));
+                Assert.assertEquals("position " + i, last.get(i), batched.get(i), 1e-4f);
+            }
+            last.close();
+        }
+
+        model.setStreamingWindow(0, 0);
+        Assert.assertThrows(IllegalArgumentException.class, () -> model.setStreamingWindow(sinks, c.contextLength));
+    }
+
+    @Test
+    public void testSessionCache() throws IOException {
+        LlamaModel model = syntheticLlama();
+        Config c = model.getConfig();
+        c.setWorkingDirectory(null);
+        SessionCache sessions = model.getSessionCache();
+
+        int[] turn1 = new int[]{c.bosToken, 17, 33, 250, 9, 128, 64, 5, 200, 77};
+        int[] reply = new int[]{12, 180, 7};
+        int[] turn2 = new int[]{c.bosToken, 99, 42, 3, 11};
+
+        UUID id = UUID.randomUUID();
+        SessionCache.Session s = sessions.acquire(id);
+        s.prefill(turn1).close();
+        for (int t : reply) {
+            model.forward(t, s.position(), s.kv()).close();
+            s.append(t);
+        }
+        sessions.release(s);
+
+        // Idle sessions go to disk and come back on next use
+        sessions.setIdleTimeout(1, TimeUnit.MILLISECONDS);
+        Uninterruptibles.sleepUninterruptibly(5, TimeUnit.MILLISECONDS);
+        sessions.evictIdle();
+        Assert.assertEquals(0, model.getKvBlockPool().usedBlocks());
+
+        // The follow up turn only runs its own tokens, after the history
+        s = sessions.acquire(id);
+        Assert.assertEquals(turn1.length + reply.length, s.position());
+        AbstractTensor cont = s.prefill(turn2);
+        Assert.assertEquals(turn1.length + reply.length + turn2.length - 1, s.position());
+        sessions.release(s);
+
+        int[] full = new int[turn1.length + reply.length + turn2.length - 1];
+        System.arraycopy(turn1, 0, full, 0, turn1.length);
+        System.arraycopy(reply, 0, full, turn1.length, reply.length);
+        System.arraycopy(turn2, 1, full, turn1.length + reply.length, turn2.length - 1);
+
+        AbstractTensor dense = model.makeTensor(c.getNumberOfLayers(), c.contextLength, 2, c.kvLength);
+        AbstractTensor expected = model.batchForward(full, 0, dense);
+        for (int i = 0; i < c.embeddingLength; i++)
+            Assert.assertEquals("Position " + i, expected.get(i), cont.get(i), 1e-3f);
+
+        // A second request on a busy session waits for the first
+        s = sessions.acquire(id);
+        Assert.assertNull(sessions.tryAcquire(id));
+        CompletableFuture<SessionCache.Session> second = CompletableFuture.supplyAsync(() -> sessions.acquire(id));
+        Uninterruptibles.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(second.isDone());
+        sessions.release(s);
+        sessions.release(second.join());
+
+        // One-off sessions are dropped straight away
+        model.forget(id);
+        Assert.assertEquals(0, sessions.size());
+        Assert.assertEquals(0, model.getKvBlockPool().usedBlocks());
+
+        sessions.close();
+        Assert.assertEquals(0, model.getKvBlockPool().usedBlocks());
+    }
+
+    @Test
+    public void testKvPoolReclaim() {
+        LlamaModel model = syntheticLlama(1, 42);
+        Config c = model.getConfig();
+        c.setWorkingDirectory(null);
+        model.getPrefixCache().setMaxBytes(Long.MAX_VALUE);
+        SessionCache sessions = model.getSessionCache();
+        KvBlockPool pool = model.getKvBlockPool();
+        // Room for more sessions than the pool holds, so it's the pool that runs out
+        sessions.setMaxSessions(2 * KvBlockPool.DEFAULT_MAX_CONTEXTS);
+
+        // Fill the pool with idle sessions whose prompts are also held by the prefix cache
+        Random r = new Random(42);
+        int length = c.contextLength - 4;
+        UUID[] ids = new UUID[KvBlockPool.DEFAULT_MAX_CONTEXTS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID();
+            SessionCache.Session s = sessions.acquire(ids[i]);
+            s.prefill(r.ints(length, 2, c.vocabularySize).toArray()).close();
+            sessions.release(s);
+        }
+        Assert.assertEquals(0, pool.availableBlocks());
+        Assert.assertTrue(model.getPrefixCache().size() > 0);
+
+        // A new request takes its blocks back from the cached prefixes and the least recently used sessions
+        int[] prompt = r.ints(length, 2, c.vocabularySize).toArray();
+        SessionCache.Session s = sessions.acquire(UUID.randomUUID());
+        AbstractTensor last = s.prefill(prompt);
+        sessions.release(s);
+        Assert.assertEquals("Only the new prompt's blocks are cached", length / pool.blockSize(), model.getPrefixCache().size());
+
+        AbstractTensor dense = model.makeTensor(c.getNumberOfLayers(), c.contextLength, 2, c.kvLength);
+        AbstractTensor expected = model.batchForward(prompt, 0, dense);
+        for (int i = 0; i < c.embeddingLength; i++)
+            Assert.assertEquals("Position " + i, expected.get(i), last.get(i), 1e-3f);
+
+        // The reclaimed session was spilled, restoring it reclaims another
+        s = sessions.acquire(ids[0]);
+        Assert.assertEquals(length, s.position());
+        sessions.release(s);
+
+        sessions.close();
+        model.getPrefixCache().setMaxBytes(0);
+        Assert.assertEquals(0, pool.usedBlocks());
+    }
+
+    @Test
+    public void testSpeculativeDecode() {
+        // Greedy speculative decoding must produce exactly what the target would on its own
+        LlamaModel target = syntheticLlama();
+        LlamaModel draft = syntheticLlama(1, 7);
+        Config c = target.getConfig();
+
+        int[] prompt = new int[]{1, 17, 33, 250, 9, 128, 64, 17, 33, 250, 9};
+        int ntokens = prompt.length + 24;
+
+        int[] expected = new int[ntokens - prompt.length + 1];
+        try (AbstractTensor kv = target.makeTensor(c.getNumberOfLayers(), c.contextLength, 2, c.kvLength);
+             AbstractTensor logits = target.makeTensor(c.vocabularySize)) {
+            AbstractTensor out = target.batchForward(prompt, 0, kv);
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = target.sample(out, 0.0f, 0.0f, logits);
+                out.close();
+                out = target.forward(expected[i], prompt.length + i, kv);
+            }
+            out.close();
+        }
+
+        // A poor draft has most tokens rejected, a perfect one (the target itself) has them all accepted
+        SpeculativeGenerator[] generators = new SpeculativeGenerator[]{
+                new SpeculativeGenerator(target, draft, 4),
+                new SpeculativeGenerator(target, target, 4),
+                SpeculativeGenerator.promptLookup(target, 3, 4)
+        };
+
+        for (SpeculativeGenerator g : generators) {
+            int[] actual = new int[expected.length];
+            AtomicInteger n = new AtomicInteger();
+            g.generate(prompt, 0.0f, ntokens, t -> {
+                actual[n.getAndIncrement()] = t;
+                return true;
+            });
+
+            Assert.assertEquals(expected.length, n.get());
+            Assert.assertArrayEquals(expected, actual);
+            Assert.assertEquals(0, target.getKvBlockPool().usedBlocks());
+        }
+
+        Assert.assertEquals(generators[1].draftedTokens(), generators[1].acceptedTokens());
+
+        // The target's sampler shapes both distributions, with top-k of 1 any temperature is greedy
+        target.setSampler(new DefaultSampler(1, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f));
+        for (SpeculativeGenerator g : generators) {
+            int[] actual = new int[expected.length];
+            AtomicInteger n = new AtomicInteger();
+            g.generate(prompt, 0.9f, ntokens, t -> {
+                actual[n.getAndIncrement()] = t;
+                return true;
+            });
+
+            Assert.assertArrayEquals(expected, actual);
+        }
+        target.setSampler(new DefaultSampler());
+
+        // Without layers each token's successor is fixed, so a prompt that already holds the chain predicts the output
+        LlamaModel chain = syntheticLlama(0, 42);
+        Config lc = chain.getConfig();
+        int[] repetitive = new int[9];
+        try (AbstractTensor kv = chain.makeTensor(1, lc.contextLength, 2, lc.kvLength);
+             AbstractTensor logits = chain.makeTensor(lc.vocabularySize)) {
+            repetitive[0] = 5;
+            for (int i = 1; i < repetitive.length - 1; i++) {
+                try (AbstractTensor out = chain.forward(repetitive[i - 1], i - 1, kv)) {
+                    repetitive[i] = chain.sample(out, 0.0f, 0.0f, logits);
+                }
+            }
+            repetitive[repetitive.length - 1] = repetitive[0];
+        }
+
+        SpeculativeGenerator lookup = SpeculativeGenerator.promptLookup(chain, 3, 4);
+        lookup.generate(repetitive, 0.0f, repetitive.length + 8, t -> true);
+        Assert.assertTrue(lookup.draftedTokens() > 0);
+        Assert.assertTrue(lookup.acceptedTokens() >= 4);
+    }
+
+    @Test
+    public void testSampler() {
+        int vocab = 50000;
+        Random r = new Random(42);
+        FloatBufferTensor logits = new FloatBufferTensor(vocab);
+        for (int i = 0; i < vocab; i++)
+            logits.set((float) r.nextGaussian(), i);
+        logits.set(10.0f, 1234);
+        logits.set(9.5f, 4321);
+
+        Assert.assertEquals(1234, VectorMath.argmax(logits, vocab));
+        Assert.assertArrayEquals(new int[]{1234, 4321}, DefaultSampler.topK(logits, vocab, 2));
+
+        Supplier<AbstractTensor> fresh = () -> {
+            AbstractTensor t = new FloatBufferTensor(vocab);
+            t.copyFrom(logits, 0, 0, vocab);
+            return t;
+        };
+
+        // Truncation leaves only the top tokens, whatever the sample (at t=0.5 token 1234 alone has over half the mass)
+        Sampler topK = new DefaultSampler(2, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f);
+        Sampler topP = new DefaultSampler(0, 0.5f, 0.0f, 1.0f, 0.0f, 0.0f);
+        Sampler minP = new DefaultSampler(0, 1.0f, 0.5f, 1.0f, 0.0f, 0.0f);
+        for (float u : new float[]{0.0f, 0.3f, 0.7f, 0.9999f}) {
+            Assert.assertTrue(Set.of(1234, 4321).contains(topK.sample(fresh.get(), 1234, 1.0f, new int[0], 0, u)));
+            Assert.assertEquals(1234, topP.sample(fresh.get(), 1234, 0.5f, new int[0], 0, u));
+            Assert.assertTrue(Set.of(1234, 4321).contains(minP.sample(fresh.get(), 1234, 1.0f, new int[0], 0, u)));
+        }
+
+        // The distribution handed out for speculative decoding is the truncated one sample() draws from
+        AbstractTensor probs = fresh.get();
+        topK.probabilities(probs, 1234, 1.0f, new int[0], 0, probs);
+        Assert.assertEquals(1.0f, probs.get(1234) + probs.get(4321), 1e-5f);
+        Assert.assertTrue(probs.get(1234) > probs.get(4321));
+
+        // Penalties move greedy decoding off a token already used
+        Sampler penalized = new DefaultSampler(0, 1.0f, 0.0f, 1.5f, 0.0f, 0.0f);
+        Assert.assertEquals(4321, penalized.sample(fresh.get(), 1234, 0.0f, new int[]{1234, 7}, 2, 0.5f));
+        Assert.assertEquals(1234, penalized.sample(fresh.get(), 1234, 0.0f, new int[]{1234, 7}, 0, 0.5f));
+    }
+
     static boolean tensorEquals(AbstractTensor a, AbstractTensor b) {
         if (a.size() != b.size())
             return false;
@@ -1,14 +1,22 @@
 package com.github.tjake.jlama.safetensors;
 
+import com.github.tjake.jlama.math.FloatConversions;
 import com.github.tjake.jlama.model.AbstractModel;
 import com.github.tjake.jlama.model.ModelSupport;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 
 import com.github.tjake.jlama.tensor.TensorShape;
+import com.github.tjake.jlama.tensor.operations.NaiveTensorOperations;
+import com.github.tjake.jlama.tensor.operations.PanamaTensorOperations;
+import com.github.tjake.jlama.tensor.operations.TensorOperations;
+import com.github.tjake.jlama.util.MachineSpec;
 import com.github.tjake.jlama.util.Pair;
 
 import com.google.common.io.BaseEncoding;
+import com.sun.net.httpserver.HttpServer;
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Test;
@@ -17,6 +25,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.foreign.MemorySegment;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -24,8 +34,14 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestParser {
     private static Logger logger = LoggerFactory.getLogger(TestParser.class);
@@ -186,4 +202,219 @@ public class TestParser {
             Assert.assertEquals(-0.027689, slice.get(1), 0.00001f);
         }
     }
+
+    private static ByteBuffer halfWidthSafeTensors() {
+        int rows = 4, cols = 32;
+        String header = "{\"w.bf16\":{\"dtype\":\"BF16\",\"shape\":[4,32],\"data_offsets\":[0,256]}," +
+                "\"w.f16\":{\"dtype\":\"F16\",\"shape\":[4,32],\"data_offsets\":[256,512]}," +
+                "\"norm\":{\"dtype\":\"BF16\",\"shape\":[32],\"data_offsets\":[512,576]}}";
+
+        ByteBuffer bb = ByteBuffer.allocate(8 + header.length() + 576).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putLong(header.length()).put(header.getBytes());
+        for (int i = 0; i < rows * cols; i++)
+            bb.putShort(FloatConversions.float32ToBFloat16(i / 8f));
+        for (int i = 0; i < rows * cols; i++)
+            bb.putShort(Float.floatToFloat16(-i / 8f));
+        for (int i = 0; i < cols; i++)
+            bb.putShort(FloatConversions.float32ToBFloat16(1 + i));
+
+        return bb.flip();
+    }
+
+    @Test
+    public void testHalfWidthWeightsAreMapped() throws Exception {
+        Path dir = Files.createTempDirectory("jlama");
+        Path file = dir.resolve(SafeTensorIndex.SINGLE_MODEL_NAME);
+        Files.write(file, halfWidthSafeTensors().array());
+
+        try (WeightLoader wl = SafeTensorSupport.loadWeights(dir.toFile())) {
+            // Matrices keep their width where the kernels can read them, vectors are always widened
+            boolean halfWidth = Weights.hasHalfWidthKernels(MachineSpec.VECTOR_TYPE);
+            Assert.assertEquals(halfWidth ? DType.BF16 : DType.F32, wl.getModelDType());
+
+            AbstractTensor bf16 = wl.load("w.bf16");
+            AbstractTensor f16 = wl.load("w.f16");
+            AbstractTensor norm = wl.load("norm");
+            Assert.assertEquals(halfWidth ? DType.BF16 : DType.F32, bf16.dType());
+            Assert.assertEquals(halfWidth ? DType.F16 : DType.F32, f16.dType());
+            Assert.assertEquals(DType.F32, norm.dType());
+
+            Assert.assertEquals(33 / 8f, bf16.get(1, 1), 0f);
+            Assert.assertEquals(-127 / 8f, f16.get(3, 31), 0f);
+            Assert.assertEquals(32f, norm.get(31), 0f);
+        } finally {
+            Files.delete(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testHalfWidthWeightsWithoutKernels() {
+        ByteBuffer bb = halfWidthSafeTensors();
+        Map<String, String> metadata = new HashMap<>();
+        Map<String, TensorInfo> tensorInfoMap = SafeTensorSupport.readTensorInfoMap(bb, Optional.of(metadata));
+
+        // The matrices have to be widened for the kernels without half width support
+        Weights w = new Weights(metadata, tensorInfoMap, MemorySegment.ofBuffer(bb.slice()), Optional.empty(), MachineSpec.Type.ARM_128);
+        Assert.assertEquals(DType.F32, w.getModelDType());
+
+        FloatBufferTensor x = new FloatBufferTensor(32);
+        for (int i = 0; i < 32; i++)
+            x.set(1 + i / 16f, i);
+
+        TensorOperations ops = new PanamaTensorOperations(MachineSpec.Type.ARM_128);
+        NaiveTensorOperations control = new NaiveTensorOperations();
+        for (String name : new String[]{"w.bf16", "w.f16"}) {
+            AbstractTensor t = w.load(name);
+            Assert.assertEquals(DType.F32, t.dType());
+            for (int row = 0; row < 4; row++)
+                Assert.assertEquals(name + " row " + row, control.dotProduct(x, t.slice(row), 32), ops.dotProduct(x, t.slice(row), 32), 1e-3f);
+        }
+
+        Assert.assertEquals(-127 / 8f, w.load("w.f16").get(3, 31), 0f);
+    }
+
+    @Test
+    public void testJlamaFileRoundTrip() throws Exception {
+        FloatBufferTensor ft = new FloatBufferTensor(4, 64);
+        for (int i = 0; i < 4; i++)
+            for (int j = 0; j < 64; j++)
+                ft.set((i * 64 + j) / 100f - 1f, i, j);
+
+        AbstractTensor q4 = new Q4ByteBufferTensor(ft);
+        AbstractTensor i8 = new Q8ByteBufferTensor(ft);
+
+        Path dir = Files.createTempDirectory("jlama");
+        Path file = dir.resolve(JlamaTensorFile.MODEL_FILE);
+        Files.writeString(dir.resolve("config.json"), "{\"foo\":\"bar\"}");
+
+        // Small chunks so the streamed tensors take a few, with a partial one at the end
+        try (JlamaTensorFile.Writer writer = new JlamaTensorFile.Writer(file, 3 * 64)) {
+            writer.snapshot(dir);
+            writer.write("f32", ft);
+            writer.write("q4", q4);
+            writer.write("i8", i8);
+            writer.write("q4.streamed", ft, DType.Q4);
+            writer.write("i8.streamed", ft, DType.I8);
+            writer.commit();
+        }
+
+        // A writer that fails part way leaves the last good file as it was
+        long committedSize = Files.size(file);
+        try (JlamaTensorFile.Writer writer = new JlamaTensorFile.Writer(file, 3 * 64)) {
+            writer.write("f32", ft);
+        }
+        Assert.assertEquals(committedSize, Files.size(file));
+        try (var listing = Files.list(dir)) {
+            Assert.assertEquals(2, listing.count());
+        }
+
+        try (WeightLoader wl = SafeTensorSupport.loadWeights(dir.toFile())) {
+            Assert.assertTrue(wl instanceof JlamaTensorFile);
+            Assert.assertEquals("{\"foo\":\"bar\"}", ((JlamaTensorFile) wl).files().get("config.json"));
+
+            // Every tensor starts on an aligned offset, scales included
+            for (TensorInfo info : wl.tensorInfoMap().values())
+                Assert.assertEquals(0, info.dataOffsets[0] % JlamaTensorFile.ALIGNMENT);
+
+            AbstractTensor lq4 = wl.load("q4");
+            AbstractTensor li8 = wl.load("i8");
+            AbstractTensor sq4 = wl.load("q4.streamed");
+            AbstractTensor si8 = wl.load("i8.streamed");
+            Assert.assertEquals(DType.Q4, lq4.dType());
+            Assert.assertEquals(DType.I8, li8.dType());
+
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 64; j++) {
+                    Assert.assertEquals(ft.get(i, j), wl.load("f32").get(i, j), 0f);
+                    Assert.assertEquals(q4.get(i, j), lq4.get(i, j), 0f);
+                    Assert.assertEquals(i8.get(i, j), li8.get(i, j), 0f);
+                    Assert.assertEquals(q4.get(i, j), sq4.get(i, j), 0f);
+                    Assert.assertEquals(i8.get(i, j), si8.get(i, j), 0f);
+                }
+            }
+        } finally {
+            Files.delete(file);
+            Files.delete(dir.resolve("config.json"));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testResumableDownload() throws Exception {
+        byte[] shard = new byte[1000];
+        new Random(42).nextBytes(shard);
+        byte[] config = "{\"foo\":\"bar\"}".getBytes();
+        String shardHash = BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(shard));
+
+        Path dir = Files.createTempDirectory("jlama");
+        Files.write(dir.resolve("config.json"), config);
+        String configHash = ModelDownloader.hash(dir.resolve("config.json"), config.length, false);
+        Files.delete(dir.resolve("config.json"));
+
+        String tree = "[{\"type\":\"file\",\"path\":\"config.json\",\"size\":" + config.length + ",\"oid\":\"" + configHash + "\"}," +
+                "{\"type\":\"file\",\"path\":\"model.safetensors\",\"size\":1000,\"oid\":\"x\",\"lfs\":{\"oid\":\"" + shardHash + "\",\"size\":1000}}]";
+
+        // Stands in for huggingface, serving ranges and failing the one at failStart
+        AtomicInteger failStart = new AtomicInteger(500);
+        AtomicInteger ranges = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            byte[] body = path.endsWith("/tree/main") ? tree.getBytes() : path.endsWith("/model.safetensors") ? shard : config;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } else {
+                ranges.incrementAndGet();
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                int start = Integer.parseInt(bounds[0]), end = Integer.parseInt(bounds[1]) + 1;
+                if (start == failStart.get()) {
+                    exchange.sendResponseHeaders(500, -1);
+                } else {
+                    exchange.sendResponseHeaders(206, end - start);
+                    exchange.getResponseBody().write(body, start, end - start);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            ModelDownloader downloader = new ModelDownloader("http://127.0.0.1:" + server.getAddress().getPort(), Optional.empty(), 4, 100);
+            List<ModelDownloader.RemoteFile> files = downloader.listFiles("owner/model", "main");
+            Assert.assertEquals(2, files.size());
+            ModelDownloader.RemoteFile shardFile = files.get(1);
+            Assert.assertTrue(shardFile.lfs);
+
+            Path out = dir.resolve("model.safetensors");
+            Path sidecar = dir.resolve("model.safetensors" + ModelDownloader.PROGRESS_SUFFIX);
+            Assert.assertThrows(IOException.class, () -> downloader.download("owner/model", "main", shardFile, out, Optional.empty()));
+            Assert.assertTrue(Files.exists(sidecar));
+
+            // Only the failed range is fetched again
+            failStart.set(-1);
+            ranges.set(0);
+            downloader.download("owner/model", "main", shardFile, out, Optional.empty());
+            Assert.assertEquals(1, ranges.get());
+            Assert.assertFalse(Files.exists(sidecar));
+            Assert.assertArrayEquals(shard, Files.readAllBytes(out));
+
+            // Small files are fetched whole and checked against their git hash
+            downloader.download("owner/model", "main", files.get(0), dir.resolve("config.json"), Optional.empty());
+            Assert.assertArrayEquals(config, Files.readAllBytes(dir.resolve("config.json")));
+
+            // A listing that doesn't match what's served is rejected
+            Files.delete(out);
+            ModelDownloader.RemoteFile corrupt = new ModelDownloader.RemoteFile(shardFile.path, shardFile.size, configHash, true);
+            Assert.assertThrows(IOException.class, () -> downloader.download("owner/model", "main", corrupt, out, Optional.empty()));
+            Assert.assertFalse(Files.exists(out));
+        } finally {
+            server.stop(0);
+            Files.deleteIfExists(dir.resolve("config.json"));
+            Files.deleteIfExists(dir.resolve("model.safetensors"));
+            Files.delete(dir);
+        }
+    }
 }
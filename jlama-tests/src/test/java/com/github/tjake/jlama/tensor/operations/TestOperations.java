@@ -7,6 +7,8 @@ import java.util.Random;
 import java.util.TreeMap;
 import java.util.function.Function;
 
+import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.util.MachineSpec;
 import com.github.tjake.jlama.util.RuntimeSupport;
 import org.junit.Assert;
@@ -201,6 +203,43 @@ public class TestOperations
         }
     }
 
+    @Test
+    public void testScaleTail() {
+        // Not a multiple of any vector width so the scalar tail runs
+        int length = 37;
+        AbstractTensor c = makeTensor(SIZE);
+
+        for (TensorOperations t : opTypes) {
+            int supported = 0;
+            for (Map.Entry<DType, Function<AbstractTensor, AbstractTensor>> aType : aTypes.entrySet()) {
+                // Block quantized types clip values scaled past their block's range
+                if (aType.getKey() != DType.F32 && aType.getKey() != DType.BF16 && aType.getKey() != DType.F16)
+                    continue;
+
+                AbstractTensor chat = aType.getValue().apply(c);
+                float[] before = new float[length + 8];
+                for (int i = 0; i < before.length; i++)
+                    before[i] = chat.get(i);
+
+                try {
+                    t.scale(-3.14159f, chat, 0, length);
+                    supported++;
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    logger.debug("No support for AType {}", aType.getKey());
+                    continue;
+                }
+
+                for (int i = 0; i < length; i++) {
+                    float expected = before[i] * -3.14159f;
+                    Assert.assertEquals(t.name() + " AType " + aType.getKey() + " position " + i, expected, chat.get(i), Math.abs(expected) * .01f + 1e-6f);
+                }
+                for (int i = length; i < before.length; i++)
+                    Assert.assertEquals(t.name() + " AType " + aType.getKey() + " changed position " + i, before[i], chat.get(i), 0f);
+            }
+            Assert.assertTrue(supported > 0);
+        }
+    }
+
     @Test
     public void testSaxpy() {
         AbstractTensor a = makeTensor(SIZE);
@@ -307,4 +346,196 @@ public class TestOperations
             Assert.assertEquals(controlOps.sum(r1), controlOps.sum(b1), 0.01);
         }
     }
+
+    @Test
+    public void testMatmul()
+    {
+        // Odd batch so the micro-kernels see a short last block of rows
+        int batch = 5;
+        FloatBufferTensor a = makeWeights(batch, SIZE);
+        FloatBufferTensor w = makeWeights(ROWS, SIZE);
+
+        DType[][] pairs = new DType[][]{
+                {DType.F32, DType.F32}, {DType.F32, DType.I8}, {DType.F32, DType.Q4}, {DType.I8, DType.Q4}, {DType.BF16, DType.I8}
+        };
+
+        for (DType[] pair : pairs) {
+            AbstractTensor qa = aTypes.get(pair[0]).apply(a);
+            AbstractTensor qw = bTypes.get(pair[1]).apply(w);
+
+            float[][] control = new float[batch][ROWS];
+            for (int j = 0; j < batch; j++)
+                for (int i = 0; i < ROWS; i++)
+                    control[j][i] = controlOps.dotProduct(qa.slice(j), qw.slice(i), SIZE);
+
+            for (TensorOperations t : opTypes) {
+                FloatBufferTensor r = new FloatBufferTensor(batch, ROWS);
+                try {
+                    // Split into two chunks like pchunk would
+                    t.matmul(r, qa, qw, 0, SIZE, 0, ROWS / 2);
+                    t.matmul(r, qa, qw, 0, SIZE, ROWS / 2, ROWS / 2);
+                } catch (UnsupportedOperationException e) {
+                    logger.debug("No support for AType {} and BType {}", pair[0], pair[1]);
+                    continue;
+                }
+
+                for (int j = 0; j < batch; j++)
+                    for (int i = 0; i < ROWS; i++)
+                        Assert.assertEquals("OP " + t.name() + " " + pair[0] + "x" + pair[1], control[j][i], r.get(j, i), Math.abs(control[j][i]) * .01f);
+            }
+        }
+    }
+
+    @Test
+    public void testAttentionTile()
+    {
+        // A run that leaves a short last block of rows, reading the second kv head
+        int headSize = 64, kvLength = 2 * headSize, blockRows = 16, row = 3, length = 11;
+        int qOffset = 3 * headSize, kvOffset = headSize, scoresOffset = 5;
+        float scale = 0.125f;
+
+        FloatBufferTensor query = makeTensor(4 * headSize);
+        FloatBufferTensor value = makeTensor(4 * headSize);
+        FloatBufferTensor kv = new FloatBufferTensor(blockRows, 2, kvLength);
+        for (int i = 0; i < blockRows; i++)
+            for (int j = 0; j < 2; j++)
+                for (int k = 0; k < kvLength; k++)
+                    kv.set(r.nextFloat(), i, j, k);
+
+        float[] weights = new float[scoresOffset + length];
+        for (int i = 0; i < weights.length; i++)
+            weights[i] = r.nextFloat();
+
+        for (DType kvType : new DType[]{DType.F32, DType.I8, DType.Q4}) {
+            AbstractTensor qkv = bTypes.get(kvType).apply(kv);
+
+            float[] control = new float[scoresOffset + length];
+            controlOps.attentionScores(query, qkv, qOffset, kvOffset, headSize, row, length, scale, control, scoresOffset);
+            FloatBufferTensor controlValue = new FloatBufferTensor(value);
+            controlOps.attentionValues(weights, scoresOffset, qkv, controlValue, kvOffset, qOffset, headSize, row, length);
+
+            for (TensorOperations t : opTypes) {
+                float[] scores = new float[scoresOffset + length];
+                FloatBufferTensor v = new FloatBufferTensor(value);
+                try {
+                    t.attentionScores(query, qkv, qOffset, kvOffset, headSize, row, length, scale, scores, scoresOffset);
+                    t.attentionValues(weights, scoresOffset, qkv, v, kvOffset, qOffset, headSize, row, length);
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    logger.debug("No support for KV type {}", kvType);
+                    continue;
+                }
+
+                for (int i = 0; i < scores.length; i++)
+                    Assert.assertEquals("OP " + t.name() + " " + kvType, control[i], scores[i], Math.abs(control[i]) * .001f);
+                for (int i = 0; i < value.size(); i++)
+                    Assert.assertEquals("OP " + t.name() + " " + kvType, controlValue.get(i), v.get(i), Math.abs(controlValue.get(i)) * .001f);
+            }
+        }
+    }
+
+    @Test
+    public void testRope()
+    {
+        // Head size that leaves a scalar tail after the vector loop
+        int headSize = 40, half = headSize / 2, position = 37;
+        float[] freqs = VectorMath.precomputeRopeTable(headSize, 64, 10000.0, 1.0);
+
+        FloatBufferTensor query = makeTensor(8 * headSize);
+        FloatBufferTensor key = makeTensor(2 * headSize);
+
+        for (TensorOperations t : opTypes) {
+            FloatBufferTensor q = new FloatBufferTensor(query);
+            FloatBufferTensor k = new FloatBufferTensor(key);
+            // Skip the first query head to check ranges are respected
+            t.rope(q, k, position, freqs, headSize, headSize, 7 * headSize, 0, 2 * headSize);
+
+            for (int h = 0; h < 8; h++) {
+                for (int i = 0; i < half; i++) {
+                    double angle = position / Math.pow(10000.0, 2.0 * i / headSize);
+                    int i0 = h * headSize + i, i1 = i0 + half;
+                    float e0 = h == 0 ? query.get(i0) : (float) (query.get(i0) * Math.cos(angle) - query.get(i1) * Math.sin(angle));
+                    float e1 = h == 0 ? query.get(i1) : (float) (query.get(i0) * Math.sin(angle) + query.get(i1) * Math.cos(angle));
+                    Assert.assertEquals("OP " + t.name(), e0, q.get(i0), 1e-4f);
+                    Assert.assertEquals("OP " + t.name(), e1, q.get(i1), 1e-4f);
+
+                    if (h < 2) {
+                        Assert.assertEquals("OP " + t.name(), (float) (key.get(i0) * Math.cos(angle) - key.get(i1) * Math.sin(angle)), k.get(i0), 1e-4f);
+                        Assert.assertEquals("OP " + t.name(), (float) (key.get(i0) * Math.sin(angle) + key.get(i1) * Math.cos(angle)), k.get(i1), 1e-4f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNormalize()
+    {
+        // Offset into the tensor and a length that leaves a scalar tail
+        int offset = 64, length = SIZE - 64 - 8;
+        FloatBufferTensor x = makeTensor(SIZE);
+        FloatBufferTensor w = makeTensor(SIZE);
+        FloatBufferTensor bias = makeTensor(SIZE);
+
+        float sum = 0, sumSq = 0;
+        for (int i = offset; i < offset + length; i++) {
+            sum += x.get(i);
+            sumSq += x.get(i) * x.get(i);
+        }
+
+        float mean = sum / length, scale = 1.0f / (float) Math.sqrt(sumSq / length - mean * mean + 1e-5f);
+
+        for (DType xType : new DType[]{DType.F32, DType.BF16}) {
+            AbstractTensor qx = aTypes.get(xType).apply(x);
+            AbstractTensor qw = aTypes.get(xType).apply(w);
+
+            for (TensorOperations t : opTypes) {
+                Assert.assertEquals("OP " + t.name() + " " + xType, sum, t.sum(qx, offset, length), Math.abs(sum) * .01f);
+                Assert.assertEquals("OP " + t.name() + " " + xType, sumSq, t.sumOfSquares(qx, offset, length), sumSq * .01f);
+
+                AbstractTensor out = qx.copyShape();
+                t.normalize(qx, out, mean, scale, qw, 1.0f, bias, offset, length);
+                for (int i = offset; i < offset + length; i++) {
+                    float expected = (qx.get(i) - mean) * scale * (1.0f + qw.get(i)) + bias.get(i);
+                    Assert.assertEquals("OP " + t.name() + " " + xType, expected, out.get(i), Math.abs(expected) * .01f + .01f);
+                }
+
+                // Quantized output must be block aligned
+                Q8ByteBufferTensor q = new Q8ByteBufferTensor(SIZE);
+                t.normalize(qx, q, mean, scale, qw, 1.0f, null, offset, length - 24);
+                for (int i = offset; i < offset + length - 24; i++) {
+                    float expected = (x.get(i) - mean) * scale * (1.0f + w.get(i));
+                    Assert.assertEquals("OP " + t.name() + " " + xType + " I8", expected, q.get(i), .05f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testActivateAndMultiply()
+    {
+        int offset = 64, length = SIZE - 64 - 8;
+        FloatBufferTensor x = new FloatBufferTensor(SIZE);
+        FloatBufferTensor y = makeTensor(SIZE);
+        for (int i = 0; i < SIZE; i++)
+            x.set(r.nextFloat() * 20 - 10, i);
+
+        for (ActivationFunction.Type type : ActivationFunction.Type.values()) {
+            for (TensorOperations t : opTypes) {
+                for (FloatBufferTensor gate : new FloatBufferTensor[]{y, null}) {
+                    FloatBufferTensor a = (FloatBufferTensor) x.copyShape();
+                    a.copyFrom(x, 0, 0, SIZE);
+                    t.activateAndMultiply(a, gate, type, offset, length);
+
+                    for (int i = offset; i < offset + length; i++) {
+                        double v = x.get(i);
+                        double act = type == ActivationFunction.Type.SILU ? v / (1 + Math.exp(-v))
+                                : 0.5 * v * (1 + Math.tanh(Math.sqrt(2 / Math.PI) * (v + 0.044715 * v * v * v)));
+                        float expected = (float) (gate == null ? act : act * gate.get(i));
+                        Assert.assertEquals("OP " + t.name() + " " + type, expected, a.get(i), Math.abs(expected) * .05f + .01f);
+                    }
+                    Assert.assertEquals(x.get(offset - 1), a.get(offset - 1), 0f);
+                }
+            }
+        }
+    }
 }